@@ -0,0 +1,30 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * Stand-in for the Android class, so that library classes taking a Context
+ * run on a plain JVM. Only methods used by the benchmarked classes exist.
+ */
+public class Context {
+    private final File mFilesDir;
+
+    /**
+     * Constructor.
+     * 
+     * @param filesDir
+     *            Returned by {@link #getFilesDir()}.
+     */
+    public Context(File filesDir) {
+        this.mFilesDir = filesDir;
+    }
+
+    /**
+     * Gets the directory of application files.
+     * 
+     * @return Directory.
+     */
+    public File getFilesDir() {
+        return this.mFilesDir;
+    }
+}
@@ -0,0 +1,40 @@
+package com.gmail.boiledorange73.and4.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gmail.boiledorange73.ut.FileUtil;
+
+/**
+ * Resolves dataset paths under the root directory, as MBTilesProvider does
+ * for each dataset it opens.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileUtilBenchmark {
+    @Param({ "world.mbtiles", "maps/japan/base.mbtiles",
+            "maps/./japan/../world.mbtiles" })
+    public String relPath;
+
+    private final File mRootDir = new File("/sdcard/mbtiles");
+
+    @Benchmark
+    public String calculatePath() {
+        return FileUtil.calculatePath(this.relPath, this.mRootDir);
+    }
+}
@@ -0,0 +1,219 @@
+package com.gmail.boiledorange73.and4.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.regex.Pattern;
+
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteOpenMode;
+
+import com.gmail.boiledorange73.and4.ut.mbtiles.MBTilesMetadata;
+
+/**
+ * Reads MBTiles files through sqlite-jdbc the way MBTilesOperator does through
+ * android.database.sqlite: same SQL, same validation of string coordinates,
+ * string bind arguments, a pool of connections each holding a prepared tile
+ * statement, and a metadata snapshot read again when the file changes.
+ * 
+ * Only the methods used by the benchmarks are implemented.
+ */
+public class JdbcMBTilesOperator {
+    /** Same as MBTilesOperator. */
+    private static final String SQL_TILE = "SELECT tile_data FROM tiles WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+    /** Same as MBTilesOperator. */
+    private static final String SQL_METADATA = "SELECT name, value FROM metadata";
+    /** Same as MBTilesOperator. */
+    private static final Pattern PTN_INTEGER = Pattern.compile("^-?[0-9]+$");
+
+    /**
+     * Connection with its prepared statement.
+     */
+    private static final class PooledConnection {
+        private final Connection mConnection;
+        private final PreparedStatement mTileStatement;
+
+        private PooledConnection(Connection connection) throws SQLException {
+            this.mConnection = connection;
+            this.mTileStatement = connection
+                    .prepareStatement(JdbcMBTilesOperator.SQL_TILE);
+        }
+
+        private void close() {
+            try {
+                this.mTileStatement.close();
+                this.mConnection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private final String mDbPath;
+    private final BlockingQueue<PooledConnection> mPool;
+    private final PooledConnection[] mConnections;
+    private volatile MBTilesMetadata mMetadata = null;
+
+    /**
+     * Constructor. Opens the file read-only.
+     * 
+     * @param path
+     *            Path of the MBTiles file.
+     * @param poolSize
+     *            The number of connections.
+     * @throws SQLException
+     *             Thrown if the file cannot be opened.
+     */
+    public JdbcMBTilesOperator(String path, int poolSize) throws SQLException {
+        this.mDbPath = path;
+        this.mPool = new ArrayBlockingQueue<PooledConnection>(poolSize);
+        this.mConnections = new PooledConnection[poolSize];
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        config.setOpenMode(SQLiteOpenMode.NOMUTEX);
+        for (int n = 0; n < poolSize; n++) {
+            this.mConnections[n] = new PooledConnection(
+                    DriverManager.getConnection("jdbc:sqlite:" + path,
+                            config.toProperties()));
+            this.mPool.add(this.mConnections[n]);
+        }
+    }
+
+    /**
+     * Gets the path of the file.
+     * 
+     * @return Path.
+     */
+    public String getPath() {
+        return this.mDbPath;
+    }
+
+    /**
+     * Gets the tile.
+     * 
+     * @param sz
+     *            String z. Must match /^-?[0-9]+$/
+     * @param sx
+     *            String x. Must match /^-?[0-9]+$/
+     * @param sy
+     *            String y. Must match /^-?[0-9]+$/
+     * @return The content.
+     * @throws FileNotFoundException
+     *             Thrown if specified record is not found.
+     */
+    public byte[] getTile(String sz, String sx, String sy)
+            throws FileNotFoundException {
+        if (PTN_INTEGER.matcher(sz).find() == false
+                || PTN_INTEGER.matcher(sx).find() == false
+                || PTN_INTEGER.matcher(sy).find() == false) {
+            throw new FileNotFoundException();
+        }
+        PooledConnection conn = this.acquireConnection();
+        try {
+            PreparedStatement stmt = conn.mTileStatement;
+            stmt.setString(1, sz);
+            stmt.setString(2, sx);
+            stmt.setString(3, sy);
+            ResultSet rs = stmt.executeQuery();
+            try {
+                if (!rs.next()) {
+                    throw new FileNotFoundException();
+                }
+                return rs.getBytes(1);
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw new FileNotFoundException(e.getMessage());
+        } finally {
+            this.mPool.add(conn);
+        }
+    }
+
+    /**
+     * Gets the snapshot of metadata table. The snapshot is read again if the
+     * size or the modified time of the file is changed.
+     * 
+     * @return Snapshot of metadata.
+     * @throws FileNotFoundException
+     *             Thrown if the metadata cannot be read.
+     */
+    public MBTilesMetadata getMetadata() throws FileNotFoundException {
+        MBTilesMetadata meta = this.mMetadata;
+        if (meta == null || meta.isStale(new File(this.mDbPath))) {
+            meta = this.loadMetadata();
+            this.mMetadata = meta;
+        }
+        return meta;
+    }
+
+    /**
+     * Reads the metadata table without the snapshot.
+     * 
+     * @return New snapshot.
+     * @throws FileNotFoundException
+     *             Thrown if the metadata cannot be read.
+     */
+    public MBTilesMetadata loadMetadata() throws FileNotFoundException {
+        File file = new File(this.mDbPath);
+        long fileSize = file.length();
+        long lastModified = file.lastModified();
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        PooledConnection conn = this.acquireConnection();
+        try {
+            Statement stmt = conn.mConnection.createStatement();
+            try {
+                ResultSet rs = stmt
+                        .executeQuery(JdbcMBTilesOperator.SQL_METADATA);
+                while (rs.next()) {
+                    values.put(rs.getString(1), rs.getString(2));
+                }
+                rs.close();
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            throw new FileNotFoundException(e.getMessage());
+        } finally {
+            this.mPool.add(conn);
+        }
+        return new MBTilesMetadata(values, fileSize, lastModified);
+    }
+
+    /**
+     * Closes all connections.
+     */
+    public void close() {
+        for (PooledConnection conn : this.mConnections) {
+            conn.close();
+        }
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Takes a connection from the pool, waiting if all are used.
+     * 
+     * @return Connection.
+     * @throws FileNotFoundException
+     *             Thrown if interrupted.
+     */
+    private PooledConnection acquireConnection() throws FileNotFoundException {
+        try {
+            return this.mPool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileNotFoundException("Interrupted.");
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.gmail.boiledorange73.and4.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+/**
+ * Synthetic MBTiles file for benchmarks. Tiles of zoom levels from 0 to the
+ * maximum exist with the given density, chosen by a hash of the coordinates
+ * and the seed, so that benchmarks know hits and misses without reading the
+ * file. Contents are random bytes after the PNG signature.
+ * 
+ * Files are created once in the directory and reused while the parameters
+ * are the same. Run {@link #main(String[])} to create one by hand.
+ */
+public class MBTilesFixture {
+    /** Default maximum zoom level. */
+    public static final int DEFAULT_MAX_ZOOM = 7;
+    /** Default ratio of existing tiles. */
+    public static final double DEFAULT_DENSITY = 0.5;
+    /** Default average size of tiles. */
+    public static final int DEFAULT_TILE_BYTES = 1024;
+    /** Default seed. */
+    public static final long DEFAULT_SEED = 1;
+
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G',
+            '\r', '\n', 0x1a, '\n' };
+    private static final int BATCH_SIZE = 1000;
+
+    private final int mMaxZoom;
+    private final double mDensity;
+    private final int mTileBytes;
+    private final long mSeed;
+
+    /**
+     * Constructor.
+     * 
+     * @param maxZoom
+     *            Maximum zoom level.
+     * @param density
+     *            Ratio of existing tiles, from 0 to 1.
+     * @param tileBytes
+     *            Average size of tiles. Sizes vary by 25%.
+     * @param seed
+     *            Seed of existence and contents.
+     */
+    public MBTilesFixture(int maxZoom, double density, int tileBytes,
+            long seed) {
+        if (maxZoom < 0 || maxZoom > 20) {
+            throw new IllegalArgumentException("maxZoom must be 0 to 20.");
+        }
+        this.mMaxZoom = maxZoom;
+        this.mDensity = density;
+        this.mTileBytes = tileBytes;
+        this.mSeed = seed;
+    }
+
+    /**
+     * Gets the maximum zoom level.
+     * 
+     * @return Maximum zoom level.
+     */
+    public int getMaxZoom() {
+        return this.mMaxZoom;
+    }
+
+    /**
+     * Whether the tile exists. Tiles at zoom level 0 always exist.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return True if exists.
+     */
+    public boolean contains(int z, int x, int y) {
+        if (z < 0 || z > this.mMaxZoom || x < 0 || y < 0 || x >= (1 << z)
+                || y >= (1 << z)) {
+            return false;
+        }
+        if (z == 0) {
+            return true;
+        }
+        long h = this.mSeed;
+        h = h * 0x9e3779b97f4a7c15L + z;
+        h = h * 0x9e3779b97f4a7c15L + x;
+        h = h * 0x9e3779b97f4a7c15L + y;
+        h ^= h >>> 29;
+        h *= 0xbf58476d1ce4e5b9L;
+        h ^= h >>> 32;
+        return (h >>> 11) * 0x1.0p-53 < this.mDensity;
+    }
+
+    /**
+     * Gets the file of the fixture. If not created, will create it.
+     * 
+     * @param dir
+     *            Directory of fixtures.
+     * @return MBTiles file.
+     * @throws IOException
+     *             Thrown if the file cannot be created.
+     */
+    public File getFile(File dir) throws IOException {
+        File file = new File(dir, String.format(
+                "fixture-z%d-d%d-b%d-s%d.mbtiles",
+                Integer.valueOf(this.mMaxZoom),
+                Integer.valueOf((int) Math.round(this.mDensity * 100)),
+                Integer.valueOf(this.mTileBytes), Long.valueOf(this.mSeed)));
+        if (file.exists()) {
+            return file;
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        tmp.delete();
+        try {
+            this.write(tmp);
+        } catch (SQLException e) {
+            tmp.delete();
+            throw new IOException(e.getMessage(), e);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot rename to " + file);
+        }
+        return file;
+    }
+
+    /**
+     * Gets the default directory of fixtures, "mbtiles-bench" in
+     * java.io.tmpdir. Can be changed by system property "fixture.dir".
+     * 
+     * @return Directory.
+     */
+    public static File getDefaultDirectory() {
+        String dir = System.getProperty("fixture.dir");
+        if (dir != null) {
+            return new File(dir);
+        }
+        return new File(System.getProperty("java.io.tmpdir"), "mbtiles-bench");
+    }
+
+    /**
+     * Creates a fixture and prints its path.
+     * 
+     * @param args
+     *            [maxZoom [density [tileBytes [seed [dir]]]]]
+     * @throws IOException
+     *             Thrown if the file cannot be created.
+     */
+    public static void main(String[] args) throws IOException {
+        int maxZoom = args.length > 0 ? Integer.parseInt(args[0])
+                : MBTilesFixture.DEFAULT_MAX_ZOOM;
+        double density = args.length > 1 ? Double.parseDouble(args[1])
+                : MBTilesFixture.DEFAULT_DENSITY;
+        int tileBytes = args.length > 2 ? Integer.parseInt(args[2])
+                : MBTilesFixture.DEFAULT_TILE_BYTES;
+        long seed = args.length > 3 ? Long.parseLong(args[3])
+                : MBTilesFixture.DEFAULT_SEED;
+        File dir = args.length > 4 ? new File(args[4]) : MBTilesFixture
+                .getDefaultDirectory();
+        System.out.println(new MBTilesFixture(maxZoom, density, tileBytes,
+                seed).getFile(dir).getAbsolutePath());
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Writes all tables.
+     * 
+     * @param file
+     *            Destination.
+     * @throws SQLException
+     *             Thrown if failed to write.
+     */
+    private void write(File file) throws SQLException {
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:"
+                + file.getPath());
+        try {
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate("PRAGMA journal_mode=OFF");
+            stmt.executeUpdate("PRAGMA synchronous=OFF");
+            stmt.executeUpdate("CREATE TABLE metadata (name text, value text)");
+            stmt.executeUpdate("CREATE TABLE tiles (zoom_level integer, tile_column integer, tile_row integer, tile_data blob)");
+            stmt.close();
+            conn.setAutoCommit(false);
+            PreparedStatement meta = conn
+                    .prepareStatement("INSERT INTO metadata (name, value) VALUES (?, ?)");
+            String[][] values = { { "name", "fixture" },
+                    { "type", "baselayer" }, { "version", "1.0" },
+                    { "description", "Synthetic tiles for benchmarks" },
+                    { "format", "png" }, { "bounds", "-180,-85,180,85" },
+                    { "attribution", "none" }, { "minzoom", "0" },
+                    { "maxzoom", String.valueOf(this.mMaxZoom) } };
+            for (String[] kv : values) {
+                meta.setString(1, kv[0]);
+                meta.setString(2, kv[1]);
+                meta.executeUpdate();
+            }
+            meta.close();
+            PreparedStatement tile = conn
+                    .prepareStatement("INSERT INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+            Random random = new Random(this.mSeed);
+            int batch = 0;
+            for (int z = 0; z <= this.mMaxZoom; z++) {
+                int size = 1 << z;
+                for (int x = 0; x < size; x++) {
+                    for (int y = 0; y < size; y++) {
+                        if (!this.contains(z, x, y)) {
+                            continue;
+                        }
+                        tile.setInt(1, z);
+                        tile.setInt(2, x);
+                        tile.setInt(3, y);
+                        tile.setBytes(4, this.createContent(random));
+                        tile.addBatch();
+                        if (++batch == MBTilesFixture.BATCH_SIZE) {
+                            tile.executeBatch();
+                            batch = 0;
+                        }
+                    }
+                }
+            }
+            tile.executeBatch();
+            tile.close();
+            conn.commit();
+            conn.setAutoCommit(true);
+            stmt = conn.createStatement();
+            stmt.executeUpdate("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)");
+            stmt.executeUpdate("ANALYZE");
+            stmt.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Creates random content with the PNG signature.
+     * 
+     * @param random
+     *            Random.
+     * @return Content.
+     */
+    private byte[] createContent(Random random) {
+        int spread = this.mTileBytes / 4;
+        int length = this.mTileBytes
+                + (spread > 0 ? random.nextInt(2 * spread + 1) - spread : 0);
+        if (length < MBTilesFixture.PNG_SIGNATURE.length) {
+            length = MBTilesFixture.PNG_SIGNATURE.length;
+        }
+        byte[] ret = new byte[length];
+        random.nextBytes(ret);
+        System.arraycopy(MBTilesFixture.PNG_SIGNATURE, 0, ret, 0,
+                MBTilesFixture.PNG_SIGNATURE.length);
+        return ret;
+    }
+}
@@ -0,0 +1,136 @@
+package com.gmail.boiledorange73.and4.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.gmail.boiledorange73.and4.ut.mbtiles.MBTilesMetadata;
+import com.gmail.boiledorange73.and4.ut.mbtiles.MappedMBTilesReader;
+import com.gmail.boiledorange73.and4.ut.mbtiles.TileSource;
+
+/**
+ * TileSource over {@link MappedMBTilesReader}, so that code taking a
+ * TileSource, e.g. PMTilesConverter, runs on a plain JVM. Metadata is read
+ * again on each call.
+ */
+public class MappedTileSource implements TileSource {
+    private final File mFile;
+    private final MappedMBTilesReader mReader;
+
+    /**
+     * Constructor.
+     * 
+     * @param file
+     *            MBTiles file.
+     * @throws IOException
+     *             Thrown if the file cannot be read.
+     */
+    public MappedTileSource(File file) throws IOException {
+        this.mFile = file;
+        this.mReader = new MappedMBTilesReader(file);
+    }
+
+    @Override
+    public String getPath() {
+        return this.mFile.getPath();
+    }
+
+    @Override
+    public String getMeta(String name) throws FileNotFoundException {
+        String ret = this.getMetadata().get(name);
+        if (ret == null) {
+            throw new FileNotFoundException();
+        }
+        return ret;
+    }
+
+    @Override
+    public MBTilesMetadata getMetadata() throws FileNotFoundException {
+        try {
+            return new MBTilesMetadata(this.mReader.readMetadata(),
+                    this.mFile.length(), this.mFile.lastModified());
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+    }
+
+    @Override
+    public byte[] getTile(String sz, String sx, String sy)
+            throws FileNotFoundException {
+        return this.getTile(Integer.parseInt(sz), Integer.parseInt(sx),
+                Integer.parseInt(sy));
+    }
+
+    @Override
+    public byte[] getTile(int z, int x, int y) throws FileNotFoundException {
+        ByteBuffer buf = this.getTileBuffer(z, x, y);
+        byte[] ret = new byte[buf.remaining()];
+        buf.get(ret);
+        return ret;
+    }
+
+    @Override
+    public ByteBuffer getTileBuffer(int z, int x, int y)
+            throws FileNotFoundException {
+        ByteBuffer ret;
+        try {
+            ret = this.mReader.getTile(z, x, y);
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+        if (ret == null) {
+            throw new FileNotFoundException();
+        }
+        return ret;
+    }
+
+    @Override
+    public int getTiles(int z, int xmin, int xmax, int ymin, int ymax,
+            int offset, int limit, TileVisitor visitor)
+            throws FileNotFoundException {
+        try {
+            return this.mReader.getTiles(z, xmin, xmax, ymin, ymax, offset,
+                    limit, visitor);
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+    }
+
+    @Override
+    public int getCoverage(int z, int xmin, int xmax, int ymin, int ymax,
+            int offset, int limit, CoverageVisitor visitor)
+            throws FileNotFoundException {
+        try {
+            return this.mReader.getCoverage(z, xmin, xmax, ymin, ymax, offset,
+                    limit, visitor);
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+    }
+
+    @Override
+    public int scanCoverage(CoverageVisitor visitor)
+            throws FileNotFoundException {
+        try {
+            return this.mReader.scanCoverage(visitor);
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isMapped() {
+        return true;
+    }
+
+    @Override
+    public void warmUp() {
+        // DOES NOTHING
+    }
+
+    @Override
+    public void close() {
+        // mapped buffers are released by GC.
+    }
+}
@@ -0,0 +1,65 @@
+package com.gmail.boiledorange73.and4.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gmail.boiledorange73.and4.ut.mbtiles.MBTilesMetadata;
+
+/**
+ * Serves metadata as MBTilesProvider#openMetadata does: all metadata as JSON
+ * and one value, from the snapshot. Reading the table again, as done after
+ * the file is changed, is measured separately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetadataBenchmark {
+    private JdbcMBTilesOperator mOperator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        File file = new MBTilesFixture(MBTilesFixture.DEFAULT_MAX_ZOOM,
+                MBTilesFixture.DEFAULT_DENSITY,
+                MBTilesFixture.DEFAULT_TILE_BYTES, MBTilesFixture.DEFAULT_SEED)
+                .getFile(MBTilesFixture.getDefaultDirectory());
+        this.mOperator = new JdbcMBTilesOperator(file.getPath(), 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.mOperator.close();
+    }
+
+    @Benchmark
+    public byte[] metadataJson() throws FileNotFoundException {
+        return this.mOperator.getMetadata().getJson();
+    }
+
+    @Benchmark
+    public byte[] metadataSingleValue() throws FileNotFoundException {
+        MBTilesMetadata meta = this.mOperator.getMetadata();
+        return meta.getValueBytes("name");
+    }
+
+    @Benchmark
+    public MBTilesMetadata metadataLoad() throws FileNotFoundException {
+        return this.mOperator.loadMetadata();
+    }
+}
@@ -0,0 +1,116 @@
+package com.gmail.boiledorange73.and4.bench;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Parses tile paths the general way of MBTilesProvider#openFile, taken for
+ * paths TileRequest rejects, and the only way before TileRequest:
+ * Uri#getPathSegments() decodes and splits the path, empty segments are
+ * copied out to a new list, the extension is cut with substring, openTile
+ * parses integers and MBTilesOperator#getTile matches them again with a
+ * regular expression.
+ */
+public final class OpenFilePath {
+    /** Same as MBTilesOperator. */
+    private static final Pattern PTN_INTEGER = Pattern.compile("^-?[0-9]+$");
+
+    private OpenFilePath() {
+    }
+
+    /**
+     * Parses the encoded path of a tile.
+     * 
+     * @param encodedPath
+     *            Encoded path, "/(db)/(z)/(x)/(y).(ext)".
+     * @return Sum of z, x and y, so that the work is not eliminated. -1 if the
+     *         path is not a tile.
+     */
+    public static int parseTile(String encodedPath) {
+        List<String> pathSegments = OpenFilePath
+                .getPathSegments(OpenFilePath.decodeSegments(encodedPath));
+        if (pathSegments.size() != 4) {
+            return -1;
+        }
+        String sz = pathSegments.get(1);
+        String sx = pathSegments.get(2);
+        String sye = pathSegments.get(3);
+        if (sye.endsWith(".bundle")) {
+            return -1;
+        }
+        String sy;
+        if (sye.indexOf('.') >= 0) {
+            sy = sye.substring(0, sye.indexOf('.'));
+        } else {
+            sy = sye;
+        }
+        int z, x, y;
+        try {
+            z = Integer.parseInt(sz);
+            x = Integer.parseInt(sx);
+            y = Integer.parseInt(sy);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (PTN_INTEGER.matcher(sz).find() == false
+                || PTN_INTEGER.matcher(sx).find() == false
+                || PTN_INTEGER.matcher(sy).find() == false) {
+            return -1;
+        }
+        return z + x + y;
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Splits and decodes the path, as Uri#getPathSegments().
+     * 
+     * @param encodedPath
+     *            Encoded path.
+     * @return Decoded segments.
+     */
+    private static List<String> decodeSegments(String encodedPath) {
+        ArrayList<String> ret = new ArrayList<String>();
+        int start = 0;
+        while (start <= encodedPath.length()) {
+            int end = encodedPath.indexOf('/', start);
+            if (end < 0) {
+                end = encodedPath.length();
+            }
+            if (end > start) {
+                String segment = encodedPath.substring(start, end);
+                try {
+                    ret.add(URLDecoder.decode(segment.replace("+", "%2B"),
+                            "UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            start = end + 1;
+        }
+        return ret;
+    }
+
+    /**
+     * Copies non-empty segments, as MBTilesProvider#getPathSegments(Uri).
+     * 
+     * @param rowPathSegments
+     *            Decoded segments.
+     * @return Non-empty path segments.
+     */
+    private static List<String> getPathSegments(List<String> rowPathSegments) {
+        ArrayList<String> pathSegments = new ArrayList<String>();
+        if (rowPathSegments != null) {
+            for (String segment : rowPathSegments) {
+                if (segment != null && segment.length() > 0) {
+                    pathSegments.add(segment);
+                }
+            }
+        }
+        return pathSegments;
+    }
+}
@@ -0,0 +1,214 @@
+package com.gmail.boiledorange73.and4.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.gmail.boiledorange73.and4.ut.pmtiles.PMTilesConverter;
+import com.gmail.boiledorange73.and4.ut.pmtiles.PMTilesReader;
+
+/**
+ * Converts a MBTiles file to PMTiles and reads every tile back (not a JMH
+ * benchmark). Exits with status 1 if any tile differs.
+ * 
+ * The MBTiles file has empty tiles, as empty vector tiles are, and contents
+ * shared by many tiles. Small runs and a small deduplication table make
+ * the converter merge many runs and copy shared contents again.
+ * 
+ * "java -cp target/benchmarks.jar
+ * com.gmail.boiledorange73.and4.bench.PMTilesRoundTrip [maxZoom [seed]]"
+ */
+public final class PMTilesRoundTrip {
+    /** Records sorted in memory at once. Not a power of two on purpose. */
+    private static final int RUN_SIZE = 257;
+    /** Content hashes remembered. */
+    private static final int DEDUP_SIZE = 7;
+    /** The number of contents shared by tiles. */
+    private static final int SHARED_CONTENTS = 3;
+    private static final int BATCH_SIZE = 1000;
+
+    private PMTilesRoundTrip() {
+    }
+
+    /**
+     * Runs the check.
+     * 
+     * @param args
+     *            [maxZoom [seed]]
+     * @throws Exception
+     *             Thrown if files cannot be written or read.
+     */
+    public static void main(String[] args) throws Exception {
+        int maxZoom = args.length > 0 ? Integer.parseInt(args[0]) : 7;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        File dir = MBTilesFixture.getDefaultDirectory();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File mbtiles = File.createTempFile("roundtrip", ".mbtiles", dir);
+        File pmtiles = File.createTempFile("roundtrip", ".pmtiles", dir);
+        try {
+            byte[][][][] tiles = PMTilesRoundTrip.write(mbtiles, maxZoom,
+                    seed);
+            PMTilesConverter.Stats stats = new PMTilesConverter(dir,
+                    PMTilesRoundTrip.RUN_SIZE, PMTilesRoundTrip.DEDUP_SIZE)
+                    .convert(new MappedTileSource(mbtiles), pmtiles, null);
+            System.out.println(stats);
+            int errors = PMTilesRoundTrip.verify(pmtiles, tiles);
+            if (errors > 0) {
+                System.out.println(errors + " tiles differ.");
+                System.exit(1);
+            }
+            System.out.println("All tiles match.");
+        } finally {
+            mbtiles.delete();
+            pmtiles.delete();
+        }
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Writes the MBTiles file. Half of tiles exist. Of existing tiles, a
+     * quarter are empty and a quarter share contents.
+     * 
+     * @param file
+     *            Destination.
+     * @param maxZoom
+     *            Maximum zoom level.
+     * @param seed
+     *            Seed.
+     * @return Contents by z, x and y (TMS). Null if the tile does not exist.
+     * @throws SQLException
+     *             Thrown if failed to write.
+     */
+    private static byte[][][][] write(File file, int maxZoom, long seed)
+            throws SQLException {
+        Random random = new Random(seed);
+        byte[][] shared = new byte[PMTilesRoundTrip.SHARED_CONTENTS][];
+        for (int n = 0; n < shared.length; n++) {
+            shared[n] = PMTilesRoundTrip.createContent(random);
+        }
+        byte[][][][] ret = new byte[maxZoom + 1][][][];
+        file.delete();
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:"
+                + file.getPath());
+        try {
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate("PRAGMA journal_mode=OFF");
+            stmt.executeUpdate("CREATE TABLE metadata (name text, value text)");
+            stmt.executeUpdate("CREATE TABLE tiles (zoom_level integer, tile_column integer, tile_row integer, tile_data blob)");
+            stmt.executeUpdate("INSERT INTO metadata (name, value) VALUES ('name', 'roundtrip')");
+            stmt.executeUpdate("INSERT INTO metadata (name, value) VALUES ('format', 'pbf')");
+            stmt.close();
+            conn.setAutoCommit(false);
+            PreparedStatement tile = conn
+                    .prepareStatement("INSERT INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+            int batch = 0;
+            for (int z = 0; z <= maxZoom; z++) {
+                int size = 1 << z;
+                ret[z] = new byte[size][size][];
+                for (int x = 0; x < size; x++) {
+                    for (int y = 0; y < size; y++) {
+                        int kind = random.nextInt(8);
+                        byte[] content;
+                        if (kind < 4) {
+                            continue;
+                        } else if (kind == 4) {
+                            content = new byte[0];
+                        } else if (kind == 5) {
+                            content = shared[random.nextInt(shared.length)];
+                        } else {
+                            content = PMTilesRoundTrip.createContent(random);
+                        }
+                        ret[z][x][y] = content;
+                        tile.setInt(1, z);
+                        tile.setInt(2, x);
+                        tile.setInt(3, y);
+                        tile.setBytes(4, content);
+                        tile.addBatch();
+                        if (++batch == PMTilesRoundTrip.BATCH_SIZE) {
+                            tile.executeBatch();
+                            batch = 0;
+                        }
+                    }
+                }
+            }
+            tile.executeBatch();
+            tile.close();
+            conn.commit();
+            conn.setAutoCommit(true);
+            stmt = conn.createStatement();
+            stmt.executeUpdate("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)");
+            stmt.close();
+        } finally {
+            conn.close();
+        }
+        return ret;
+    }
+
+    /**
+     * Reads all tiles of the PMTiles file and compares them.
+     * 
+     * @param file
+     *            PMTiles file.
+     * @param tiles
+     *            Expected contents.
+     * @return The number of tiles which differ or are missing or are extra.
+     * @throws IOException
+     *             Thrown if the file cannot be read.
+     */
+    private static int verify(File file, byte[][][][] tiles)
+            throws IOException {
+        PMTilesReader reader = new PMTilesReader(file);
+        int errors = 0;
+        try {
+            for (int z = 0; z < tiles.length; z++) {
+                for (int x = 0; x < tiles[z].length; x++) {
+                    for (int y = 0; y < tiles[z][x].length; y++) {
+                        byte[] want = tiles[z][x][y];
+                        byte[] got;
+                        try {
+                            got = reader.getTile(z, x, y);
+                        } catch (FileNotFoundException e) {
+                            got = null;
+                        }
+                        if (want == null ? got != null : !Arrays.equals(
+                                want, got)) {
+                            errors++;
+                            System.out.println(z + "/" + x + "/" + y
+                                    + " want="
+                                    + (want != null ? want.length : "none")
+                                    + " got="
+                                    + (got != null ? got.length : "none"));
+                        }
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return errors;
+    }
+
+    /**
+     * Creates random content of 16 to 1039 bytes.
+     * 
+     * @param random
+     *            Random.
+     * @return Content.
+     */
+    private static byte[] createContent(Random random) {
+        byte[] ret = new byte[16 + random.nextInt(1024)];
+        random.nextBytes(ret);
+        return ret;
+    }
+}
@@ -0,0 +1,68 @@
+package com.gmail.boiledorange73.and4.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gmail.boiledorange73.and4.prv.TileRequest;
+
+/**
+ * Parses tile paths by the general way of MBTilesProvider#openFile
+ * ({@link OpenFilePath}) and by {@link TileRequest}, which openFile tries
+ * first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathParseBenchmark {
+    /** The number of paths cycled through. */
+    private static final int KEYS = 1024;
+
+    private String[] mPaths;
+    private int mNext = 0;
+    private final TileRequest mRequest = new TileRequest();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.mPaths = new String[PathParseBenchmark.KEYS];
+        Random random = new Random(1);
+        for (int n = 0; n < this.mPaths.length; n++) {
+            int z = 10 + random.nextInt(8);
+            this.mPaths[n] = "/world%2Fbase.mbtiles/" + z + "/"
+                    + random.nextInt(1 << z) + "/" + random.nextInt(1 << z)
+                    + ".png";
+        }
+    }
+
+    @Benchmark
+    public int parseTilePath() {
+        String path = this.mPaths[this.mNext];
+        this.mNext = (this.mNext + 1) & (PathParseBenchmark.KEYS - 1);
+        return OpenFilePath.parseTile(path);
+    }
+
+    @Benchmark
+    public int parseTileRequest() {
+        String path = this.mPaths[this.mNext];
+        this.mNext = (this.mNext + 1) & (PathParseBenchmark.KEYS - 1);
+        TileRequest request = this.mRequest;
+        if (!request.parse(path)) {
+            return -1;
+        }
+        return request.getZ() + request.getX() + request.getY();
+    }
+}
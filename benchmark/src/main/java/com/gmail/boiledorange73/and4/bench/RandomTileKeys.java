@@ -0,0 +1,54 @@
+package com.gmail.boiledorange73.and4.bench;
+
+import java.util.Random;
+
+import com.gmail.boiledorange73.and4.ut.collection.LongIntMap;
+import com.gmail.boiledorange73.and4.ut.collection.TileKey;
+
+/**
+ * Distinct random tile keys at zoom levels 12 to 16, as a viewport-driven
+ * cache or counter table would hold.
+ */
+public final class RandomTileKeys {
+    private static final int MIN_ZOOM = 12;
+    private static final int MAX_ZOOM = 16;
+
+    private RandomTileKeys() {
+    }
+
+    /**
+     * Creates distinct keys.
+     * 
+     * @param count
+     *            The number of keys.
+     * @param seed
+     *            Seed.
+     * @param excluded
+     *            Keys not to create. Can be null.
+     * @return Keys packed by {@link TileKey}.
+     */
+    public static long[] create(int count, long seed, long[] excluded) {
+        LongIntMap seen = new LongIntMap(count
+                + (excluded != null ? excluded.length : 0));
+        if (excluded != null) {
+            for (long key : excluded) {
+                seen.put(key, 0);
+            }
+        }
+        Random random = new Random(seed);
+        long[] ret = new long[count];
+        int n = 0;
+        while (n < count) {
+            int z = RandomTileKeys.MIN_ZOOM
+                    + random.nextInt(RandomTileKeys.MAX_ZOOM
+                            - RandomTileKeys.MIN_ZOOM + 1);
+            long key = TileKey.pack(z, random.nextInt(1 << z),
+                    random.nextInt(1 << z));
+            if (!seen.containsKey(key)) {
+                seen.put(key, 0);
+                ret[n++] = key;
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,62 @@
+package com.gmail.boiledorange73.and4.bench;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.content.Context;
+
+import com.gmail.boiledorange73.and4.ut.TemporaryFileManager;
+
+/**
+ * Writes contents to temporary files, as MBTilesProvider does when streaming
+ * is disabled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemporaryFileManagerBenchmark {
+    @Param({ "1024", "16384" })
+    public int contentBytes;
+
+    private File mDir;
+    private TemporaryFileManager mTFM;
+    private byte[] mContent;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.mDir = new File(MBTilesFixture.getDefaultDirectory(), "files");
+        this.mDir.mkdirs();
+        this.mTFM = new TemporaryFileManager(new Context(this.mDir),
+                "TemporaryFileManagerBenchmark");
+        this.mContent = new byte[this.contentBytes];
+        new Random(1).nextBytes(this.mContent);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.mTFM.clear();
+    }
+
+    @Benchmark
+    public String add() {
+        return this.mTFM.add(this.mContent);
+    }
+}
@@ -0,0 +1,111 @@
+package com.gmail.boiledorange73.and4.bench;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gmail.boiledorange73.and4.ut.collection.LongIntMap;
+import com.gmail.boiledorange73.and4.ut.collection.LongObjectMap;
+
+/**
+ * Looks up tile keys in {@link LongObjectMap} and {@link LongIntMap} against
+ * HashMap with boxed keys, holding the given number of tiles. Keys are looked
+ * up in random order, so that most lookups miss the CPU caches. For memory
+ * per entry, run {@link TileKeyMapFootprint}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class TileKeyMapBenchmark {
+    @Param({ "1000000" })
+    public int entries;
+
+    private final Object mValue = new Object();
+    private LongObjectMap<Object> mPrimitive;
+    private HashMap<Long, Object> mBoxed;
+    private LongIntMap mCounter;
+    private HashMap<Long, Integer> mBoxedCounter;
+    private long[] mHits;
+    private long[] mMisses;
+    private int mNext = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.mHits = RandomTileKeys.create(this.entries, 1, null);
+        this.mMisses = RandomTileKeys.create(this.entries, 2, this.mHits);
+        this.mPrimitive = new LongObjectMap<Object>(this.entries);
+        this.mBoxed = new HashMap<Long, Object>(this.entries * 4 / 3 + 1);
+        this.mCounter = new LongIntMap(this.entries);
+        this.mBoxedCounter = new HashMap<Long, Integer>(
+                this.entries * 4 / 3 + 1);
+        for (long key : this.mHits) {
+            this.mPrimitive.put(key, this.mValue);
+            this.mBoxed.put(Long.valueOf(key), this.mValue);
+            this.mCounter.put(key, 1000);
+            this.mBoxedCounter.put(Long.valueOf(key), Integer.valueOf(1000));
+        }
+    }
+
+    @Benchmark
+    public Object getHitPrimitive() {
+        return this.mPrimitive.get(this.mHits[this.next()]);
+    }
+
+    @Benchmark
+    public Object getHitBoxed() {
+        return this.mBoxed.get(Long.valueOf(this.mHits[this.next()]));
+    }
+
+    @Benchmark
+    public Object getMissPrimitive() {
+        return this.mPrimitive.get(this.mMisses[this.next()]);
+    }
+
+    @Benchmark
+    public Object getMissBoxed() {
+        return this.mBoxed.get(Long.valueOf(this.mMisses[this.next()]));
+    }
+
+    @Benchmark
+    public int incrementPrimitive() {
+        return this.mCounter.increment(this.mHits[this.next()], 1);
+    }
+
+    @Benchmark
+    public int incrementBoxed() {
+        Long key = Long.valueOf(this.mHits[this.next()]);
+        Integer v = this.mBoxedCounter.get(key);
+        int ret = (v != null ? v.intValue() : 0) + 1;
+        this.mBoxedCounter.put(key, Integer.valueOf(ret));
+        return ret;
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Gets the next index of keys.
+     * 
+     * @return Index.
+     */
+    private int next() {
+        int ret = this.mNext;
+        this.mNext = ret + 1 < this.entries ? ret + 1 : 0;
+        return ret;
+    }
+}
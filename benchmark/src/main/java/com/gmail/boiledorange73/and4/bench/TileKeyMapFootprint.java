@@ -0,0 +1,123 @@
+package com.gmail.boiledorange73.and4.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.HashMap;
+
+import com.gmail.boiledorange73.and4.ut.collection.LongIntMap;
+import com.gmail.boiledorange73.and4.ut.collection.LongObjectMap;
+
+/**
+ * Prints retained heap per entry of {@link LongObjectMap},
+ * {@link LongIntMap} and HashMap with boxed keys holding the same tiles.
+ * Values of object maps are one shared object, so that only the map is
+ * counted. Counters are not in the Integer cache, as hit counts grow past it.
+ * 
+ * Measured by heap usage after full GC, so run with a fixed heap, e.g.
+ * "java -Xms2g -Xmx2g -cp target/benchmarks.jar
+ * com.gmail.boiledorange73.and4.bench.TileKeyMapFootprint 1000000".
+ */
+public final class TileKeyMapFootprint {
+    private TileKeyMapFootprint() {
+    }
+
+    /**
+     * Builds each map and prints bytes per entry.
+     * 
+     * @param args
+     *            [entries]
+     */
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        long[] keys = RandomTileKeys.create(entries, 1, null);
+        Object value = new Object();
+        String[] names = { "LongObjectMap", "HashMap<Long,Object>",
+                "LongIntMap", "HashMap<Long,Integer>" };
+        for (int n = 0; n < names.length; n++) {
+            long before = TileKeyMapFootprint.usedHeap();
+            Object map = TileKeyMapFootprint.build(n, keys, value);
+            long after = TileKeyMapFootprint.usedHeap();
+            System.out.printf("%-22s %8.1f bytes/entry (%d entries)%n",
+                    names[n], (double) (after - before) / entries,
+                    Integer.valueOf(TileKeyMapFootprint.size(map)));
+        }
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Builds one map.
+     * 
+     * @param type
+     *            Index of the name.
+     * @param keys
+     *            Keys.
+     * @param value
+     *            Shared value.
+     * @return Map.
+     */
+    private static Object build(int type, long[] keys, Object value) {
+        int capacity = keys.length * 4 / 3 + 1;
+        switch (type) {
+        case 0:
+            LongObjectMap<Object> primitive = new LongObjectMap<Object>(
+                    keys.length);
+            for (long key : keys) {
+                primitive.put(key, value);
+            }
+            return primitive;
+        case 1:
+            HashMap<Long, Object> boxed = new HashMap<Long, Object>(capacity);
+            for (long key : keys) {
+                boxed.put(Long.valueOf(key), value);
+            }
+            return boxed;
+        case 2:
+            LongIntMap counter = new LongIntMap(keys.length);
+            for (int n = 0; n < keys.length; n++) {
+                counter.put(keys[n], 1000 + n);
+            }
+            return counter;
+        default:
+            HashMap<Long, Integer> boxedCounter = new HashMap<Long, Integer>(
+                    capacity);
+            for (int n = 0; n < keys.length; n++) {
+                boxedCounter.put(Long.valueOf(keys[n]),
+                        Integer.valueOf(1000 + n));
+            }
+            return boxedCounter;
+        }
+    }
+
+    /**
+     * Gets the size of the map, which also keeps the map reachable.
+     * 
+     * @param map
+     *            Map.
+     * @return The number of entries.
+     */
+    private static int size(Object map) {
+        if (map instanceof LongObjectMap) {
+            return ((LongObjectMap<?>) map).size();
+        } else if (map instanceof LongIntMap) {
+            return ((LongIntMap) map).size();
+        }
+        return ((HashMap<?, ?>) map).size();
+    }
+
+    /**
+     * Gets used heap after full GC.
+     * 
+     * @return Bytes.
+     */
+    private static long usedHeap() {
+        MemoryMXBean bean = ManagementFactory.getMemoryMXBean();
+        long ret = Long.MAX_VALUE;
+        for (int n = 0; n < 5; n++) {
+            System.gc();
+            ret = Math.min(ret, bean.getHeapMemoryUsage().getUsed());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,137 @@
+package com.gmail.boiledorange73.and4.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.gmail.boiledorange73.and4.ut.mbtiles.MappedMBTilesReader;
+
+/**
+ * Reads tiles which exist (hit) and which do not (miss) at the maximum zoom
+ * level of the fixture, in random order, through sqlite-jdbc and through
+ * {@link MappedMBTilesReader}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileReadBenchmark {
+    /** The number of coordinates cycled through. */
+    private static final int KEYS = 4096;
+
+    @Param({ "7" })
+    public int maxZoom;
+    @Param({ "0.5" })
+    public double density;
+    @Param({ "1024" })
+    public int tileBytes;
+
+    private JdbcMBTilesOperator mOperator;
+    private MappedMBTilesReader mMapped;
+    private String[][] mHits;
+    private String[][] mMisses;
+    private int mNext = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        MBTilesFixture fixture = new MBTilesFixture(this.maxZoom,
+                this.density, this.tileBytes, MBTilesFixture.DEFAULT_SEED);
+        File file = fixture.getFile(MBTilesFixture.getDefaultDirectory());
+        this.mOperator = new JdbcMBTilesOperator(file.getPath(), 1);
+        this.mMapped = new MappedMBTilesReader(file);
+        this.mHits = new String[TileReadBenchmark.KEYS][];
+        this.mMisses = new String[TileReadBenchmark.KEYS][];
+        Random random = new Random(1);
+        int z = this.maxZoom;
+        int size = 1 << z;
+        int hits = 0;
+        int misses = 0;
+        while (hits < TileReadBenchmark.KEYS
+                || misses < TileReadBenchmark.KEYS) {
+            int x = random.nextInt(size);
+            int y = random.nextInt(size);
+            if (fixture.contains(z, x, y)) {
+                if (hits < TileReadBenchmark.KEYS) {
+                    this.mHits[hits++] = TileReadBenchmark.toStrings(z, x, y);
+                }
+            } else if (misses < TileReadBenchmark.KEYS) {
+                this.mMisses[misses++] = TileReadBenchmark.toStrings(z, x, y);
+            }
+            if (this.density >= 1.0 && misses < TileReadBenchmark.KEYS) {
+                // No tile is missing at the zoom level. Goes one level up.
+                this.mMisses[misses++] = TileReadBenchmark.toStrings(z + 1,
+                        x, y);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.mOperator.close();
+        this.mMapped = null;
+    }
+
+    @Benchmark
+    public byte[] getTileHit() throws FileNotFoundException {
+        String[] k = this.mHits[this.next()];
+        return this.mOperator.getTile(k[0], k[1], k[2]);
+    }
+
+    @Benchmark
+    public boolean getTileMiss() {
+        String[] k = this.mMisses[this.next()];
+        try {
+            this.mOperator.getTile(k[0], k[1], k[2]);
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer getTileHitMapped() throws IOException {
+        String[] k = this.mHits[this.next()];
+        return this.mMapped.getTile(Integer.parseInt(k[0]),
+                Integer.parseInt(k[1]), Integer.parseInt(k[2]));
+    }
+
+    @Benchmark
+    public boolean getTileMissMapped() throws IOException {
+        String[] k = this.mMisses[this.next()];
+        return this.mMapped.getTile(Integer.parseInt(k[0]),
+                Integer.parseInt(k[1]), Integer.parseInt(k[2])) != null;
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    private int next() {
+        int ret = this.mNext;
+        this.mNext = (ret + 1) & (TileReadBenchmark.KEYS - 1);
+        return ret;
+    }
+
+    private static String[] toStrings(int z, int x, int y) {
+        return new String[] { String.valueOf(z), String.valueOf(x),
+                String.valueOf(y) };
+    }
+}
@@ -0,0 +1,250 @@
+package com.gmail.boiledorange73.and4.prv;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records events in a ring buffer of fixed-size binary records. When the
+ * buffer is full, the oldest events are overwritten. Recording allocates
+ * nothing except when a dataset appears for the first time.
+ * 
+ * Each record has {@link #RECORD_SIZE} bytes, big-endian: event (8 bits) and
+ * dataset index (24 bits) as an int, z, x and y as ints, request id, time by
+ * {@link System#nanoTime()} and bytes as longs.
+ * 
+ * {@link #writeTo(OutputStream)} writes: "MBTE" (int), version (int), record
+ * size (int), the number of datasets (int), dataset names (modified UTF-8 of
+ * {@link DataOutputStream#writeUTF(String)}) in the order of indexes, the
+ * number of records (int), and records from the oldest.
+ */
+public class EventLogTileRequestListener implements TileRequestListener {
+    /** Event of {@link #onRequestParsed}. */
+    public static final int EVENT_REQUEST_PARSED = 1;
+    /** Event of {@link #onCacheLookup}. */
+    public static final int EVENT_CACHE_LOOKUP = 2;
+    /** Event of {@link #onOperatorAcquired}. */
+    public static final int EVENT_OPERATOR_ACQUIRED = 3;
+    /** Event of {@link #onQueryDone}. */
+    public static final int EVENT_QUERY_DONE = 4;
+    /** Event of {@link #onDelivered}. */
+    public static final int EVENT_DELIVERED = 5;
+    /** Event of {@link #onFailed}. */
+    public static final int EVENT_FAILED = 6;
+
+    /** Bytes of each record. */
+    public static final int RECORD_SIZE = 40;
+    /** Default number of records. */
+    public static final int DEFAULT_CAPACITY = 4096;
+    /** Dataset index used if the dataset is null or indexes run out. */
+    public static final int NO_DATASET = 0xffffff;
+
+    /** Magic bytes of the log, "MBTE". */
+    private static final int MAGIC = 0x4d425445;
+    private static final int VERSION = 1;
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+    /** The number of records written since created or cleared. */
+    private long mWritten = 0;
+    private final ConcurrentHashMap<String, Integer> mDatasetIndexes = new ConcurrentHashMap<String, Integer>();
+    private final ArrayList<String> mDatasets = new ArrayList<String>();
+
+    /**
+     * Constructor. Holds {@link #DEFAULT_CAPACITY} records.
+     */
+    public EventLogTileRequestListener() {
+        this(EventLogTileRequestListener.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param capacity
+     *            The number of records.
+     */
+    public EventLogTileRequestListener(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive.");
+        }
+        this.mCapacity = capacity;
+        this.mBuffer = ByteBuffer.allocate(capacity
+                * EventLogTileRequestListener.RECORD_SIZE);
+    }
+
+    @Override
+    public void onRequestParsed(long requestId, long timeNanos,
+            String dataset, int z, int x, int y, long bytes) {
+        this.record(EventLogTileRequestListener.EVENT_REQUEST_PARSED,
+                requestId, timeNanos, dataset, z, x, y, bytes);
+    }
+
+    @Override
+    public void onCacheLookup(long requestId, long timeNanos, String dataset,
+            int z, int x, int y, long bytes) {
+        this.record(EventLogTileRequestListener.EVENT_CACHE_LOOKUP,
+                requestId, timeNanos, dataset, z, x, y, bytes);
+    }
+
+    @Override
+    public void onOperatorAcquired(long requestId, long timeNanos,
+            String dataset, int z, int x, int y, long bytes) {
+        this.record(EventLogTileRequestListener.EVENT_OPERATOR_ACQUIRED,
+                requestId, timeNanos, dataset, z, x, y, bytes);
+    }
+
+    @Override
+    public void onQueryDone(long requestId, long timeNanos, String dataset,
+            int z, int x, int y, long bytes) {
+        this.record(EventLogTileRequestListener.EVENT_QUERY_DONE, requestId,
+                timeNanos, dataset, z, x, y, bytes);
+    }
+
+    @Override
+    public void onDelivered(long requestId, long timeNanos, String dataset,
+            int z, int x, int y, long bytes) {
+        this.record(EventLogTileRequestListener.EVENT_DELIVERED, requestId,
+                timeNanos, dataset, z, x, y, bytes);
+    }
+
+    @Override
+    public void onFailed(long requestId, long timeNanos, String dataset,
+            int z, int x, int y, long bytes, Exception error) {
+        this.record(EventLogTileRequestListener.EVENT_FAILED, requestId,
+                timeNanos, dataset, z, x, y, bytes);
+    }
+
+    /**
+     * Gets the number of records written since created or cleared,
+     * including overwritten ones.
+     * 
+     * @return The number of records.
+     */
+    public long getWrittenCount() {
+        synchronized (this) {
+            return this.mWritten;
+        }
+    }
+
+    /**
+     * Discards all records. Dataset indexes are kept.
+     */
+    public void clear() {
+        synchronized (this) {
+            this.mWritten = 0;
+        }
+    }
+
+    /**
+     * Writes the log. Records are copied at first, so that recording is not
+     * blocked while writing.
+     * 
+     * @param os
+     *            Destination. Not closed.
+     * @throws IOException
+     *             Thrown if failed to write.
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        byte[] records;
+        String[] datasets;
+        synchronized (this) {
+            int count = (int) Math.min(this.mWritten, this.mCapacity);
+            int first = (int) ((this.mWritten - count) % this.mCapacity);
+            records = new byte[count * EventLogTileRequestListener.RECORD_SIZE];
+            int head = Math.min(count, this.mCapacity - first)
+                    * EventLogTileRequestListener.RECORD_SIZE;
+            System.arraycopy(this.mBuffer.array(), first
+                    * EventLogTileRequestListener.RECORD_SIZE, records, 0,
+                    head);
+            System.arraycopy(this.mBuffer.array(), 0, records, head,
+                    records.length - head);
+            datasets = this.mDatasets.toArray(new String[0]);
+        }
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.writeInt(EventLogTileRequestListener.MAGIC);
+        dos.writeInt(EventLogTileRequestListener.VERSION);
+        dos.writeInt(EventLogTileRequestListener.RECORD_SIZE);
+        dos.writeInt(datasets.length);
+        for (String dataset : datasets) {
+            dos.writeUTF(dataset);
+        }
+        dos.writeInt(records.length / EventLogTileRequestListener.RECORD_SIZE);
+        dos.write(records);
+        dos.flush();
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Writes one record.
+     * 
+     * @param event
+     *            One of EVENT_*.
+     * @param requestId
+     *            Request id.
+     * @param timeNanos
+     *            Time by {@link System#nanoTime()}.
+     * @param dataset
+     *            Dataset name.
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param bytes
+     *            Byte count.
+     */
+    private void record(int event, long requestId, long timeNanos,
+            String dataset, int z, int x, int y, long bytes) {
+        int index = this.getDatasetIndex(dataset);
+        synchronized (this) {
+            int pos = (int) (this.mWritten % this.mCapacity)
+                    * EventLogTileRequestListener.RECORD_SIZE;
+            ByteBuffer buf = this.mBuffer;
+            buf.putInt(pos, (event << 24) | index);
+            buf.putInt(pos + 4, z);
+            buf.putInt(pos + 8, x);
+            buf.putInt(pos + 12, y);
+            buf.putLong(pos + 16, requestId);
+            buf.putLong(pos + 24, timeNanos);
+            buf.putLong(pos + 32, bytes);
+            this.mWritten++;
+        }
+    }
+
+    /**
+     * Gets the index of the dataset. If not indexed, will index it.
+     * 
+     * @param dataset
+     *            Dataset name.
+     * @return Index. {@link #NO_DATASET} if the dataset is null or indexes
+     *         run out.
+     */
+    private int getDatasetIndex(String dataset) {
+        if (dataset == null) {
+            return EventLogTileRequestListener.NO_DATASET;
+        }
+        Integer index = this.mDatasetIndexes.get(dataset);
+        if (index != null) {
+            return index.intValue();
+        }
+        synchronized (this) {
+            index = this.mDatasetIndexes.get(dataset);
+            if (index != null) {
+                return index.intValue();
+            }
+            if (this.mDatasets.size() >= EventLogTileRequestListener.NO_DATASET) {
+                return EventLogTileRequestListener.NO_DATASET;
+            }
+            index = Integer.valueOf(this.mDatasets.size());
+            this.mDatasets.add(dataset);
+            this.mDatasetIndexes.put(dataset, index);
+            return index.intValue();
+        }
+    }
+}
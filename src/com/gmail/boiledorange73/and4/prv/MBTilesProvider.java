@@ -1,28 +1,70 @@
 package com.gmail.boiledorange73.and4.prv;
 
 import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import com.gmail.boiledorange73.and4.ut.ContentPipe;
+import com.gmail.boiledorange73.and4.ut.ServingStats;
 import com.gmail.boiledorange73.and4.ut.TemporaryFileManager;
+import com.gmail.boiledorange73.and4.ut.mbtiles.CoverageIndex;
+import com.gmail.boiledorange73.and4.ut.mbtiles.MappedMBTilesReader;
+import com.gmail.boiledorange73.and4.ut.mbtiles.MBTilesMetadata;
 import com.gmail.boiledorange73.and4.ut.mbtiles.MBTilesOperator;
+import com.gmail.boiledorange73.and4.ut.mbtiles.RowidIndex;
+import com.gmail.boiledorange73.and4.ut.mbtiles.SQLiteTuningProfile;
+import com.gmail.boiledorange73.and4.ut.mbtiles.SlabTileCache;
+import com.gmail.boiledorange73.and4.ut.mbtiles.TileBundleWriter;
+import com.gmail.boiledorange73.and4.ut.mbtiles.TileCache;
+import com.gmail.boiledorange73.and4.ut.mbtiles.TilePrefetcher;
+import com.gmail.boiledorange73.and4.ut.mbtiles.TileSource;
+import com.gmail.boiledorange73.and4.ut.mbtiles.TileVariant;
+import com.gmail.boiledorange73.and4.ut.mbtiles.TileVariantCache;
+import com.gmail.boiledorange73.and4.ut.pmtiles.PMTilesReader;
 import com.gmail.boiledorange73.ut.FileUtil;
 
+import android.content.ComponentCallbacks2;
+import android.content.ComponentName;
 import android.content.ContentProvider;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 
 /**
  * MBTiles provider. Tiles can be got by
@@ -43,6 +85,28 @@ import android.os.ParcelFileDescriptor;
  * 
  * Function name must match /^[\\$_a-zA-Z][\\$_0-9a-zA-Z]*$/
  * 
+ * Tiles in a range can be got at once by
+ * "content://(authority)/(encoded mbtiles path)/(z)/(x0)-(x1)/(y0)-(y1).bundle"
+ * . Ranges are inclusive. Read the content with
+ * {@link com.gmail.boiledorange73.and4.ut.mbtiles.TileBundleReader}.
+ * 
+ * Existing tiles can be listed by querying
+ * "content://(authority)/(encoded mbtiles path)/tiles?z=(z)". See
+ * {@link #query(Uri, String[], String, String[], String)}.
+ * 
+ * Raster tiles can be re-encoded and/or downscaled by adding "?fmt=(png,
+ * jpeg or webp)" and/or "?scale=(0.0625 to 1)", e.g.
+ * "content://(authority)/(encoded mbtiles path)/(z)/(x)/(y).png?fmt=webp&scale=0.5"
+ * . Variants are made in background once, and kept in the cache directory.
+ * See {@link #getVariantCacheSize()}.
+ * 
+ * PMTiles (version 3) files can be used as well. The file name must end with
+ * ".pmtiles". Rows are counted from the bottom as MBTiles.
+ * 
+ * Serving metrics (counts, bytes and latency histograms per dataset and
+ * request type) can be read as JSON at "content://(authority)/_stats". See
+ * {@link #openStats(Uri)}.
+ * 
  * Acceptable metadata are: name, type, version, description, format - mandatory
  * bounds, attribution - optional minzoom, maxzoom - not in spec.
  * 
@@ -50,355 +114,2261 @@ import android.os.ParcelFileDescriptor;
  * 
  */
 public class MBTilesProvider extends ContentProvider {
+    /** Default maximum number of tiles in a bundle. */
+    public static final int DEFAULT_MAX_BUNDLE_TILES = 256;
+    /** Default maximum number of open datasets. */
+    public static final int DEFAULT_MAX_OPEN_DATASETS = 8;
+    /** Default maximum bytes of the disk cache of tile variants. */
+    public static final long DEFAULT_VARIANT_CACHE_SIZE = 32 * 1024 * 1024L;
+    /** Default time after which unused datasets are closed. */
+    public static final long DEFAULT_DATASET_IDLE_MILLIS = 5 * 60 * 1000L;
+    /**
+     * Datasets used within this time are hot, and are kept open unless the
+     * memory pressure is critical.
+     */
+    public static final long HOT_DATASET_MILLIS = 10 * 1000L;
+    /**
+     * Name of meta-data of the provider in the manifest, which lists datasets
+     * to warm up. Value is encoded paths, as in URIs, separated by commas.
+     */
+    public static final String META_WARM_UP = "com.gmail.boiledorange73.and4.prv.MBTilesProvider.WARM_UP";
+    /** Reserved path of serving metrics. See {@link #openStats(Uri)}. */
+    public static final String STATS_PATH = "_stats";
+
+    /** Column of zoom level for {@link #query}. */
+    public static final String COLUMN_ZOOM_LEVEL = "zoom_level";
+    /** Column of tile column for {@link #query}. */
+    public static final String COLUMN_TILE_COLUMN = "tile_column";
+    /** Column of tile row for {@link #query}. */
+    public static final String COLUMN_TILE_ROW = "tile_row";
+    /** Column of content length for {@link #query}. */
+    public static final String COLUMN_LENGTH = "length";
+    /** Column of content for {@link #query}. */
+    public static final String COLUMN_TILE_DATA = "tile_data";
+    /** Default projection of {@link #query}, coverage only. */
+    public static final String[] COVERAGE_PROJECTION = {
+            MBTilesProvider.COLUMN_ZOOM_LEVEL,
+            MBTilesProvider.COLUMN_TILE_COLUMN,
+            MBTilesProvider.COLUMN_TILE_ROW, MBTilesProvider.COLUMN_LENGTH };
+    /** Maximum rows of a coverage page. */
+    public static final int MAX_COVERAGE_PAGE_ROWS = 4096;
+    /** Maximum rows of a page including contents. */
+    public static final int MAX_DATA_PAGE_ROWS = 256;
+    /**
+     * Contents in a page are limited to this size, so that the page fits in a
+     * CursorWindow (2MiB by default).
+     */
+    public static final int MAX_DATA_PAGE_BYTES = 1024 * 1024;
+
+    /** Column types for {@link #query}. */
+    private static final int COLUMN_TYPE_ZOOM_LEVEL = 0;
+    private static final int COLUMN_TYPE_TILE_COLUMN = 1;
+    private static final int COLUMN_TYPE_TILE_ROW = 2;
+    private static final int COLUMN_TYPE_LENGTH = 3;
+    private static final int COLUMN_TYPE_TILE_DATA = 4;
+
+    /**
+     * ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, which is added in API level
+     * 16. Written as the literal so that builds against API level 14 pass.
+     */
+    private static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    /** ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL, as above. */
+    private static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+
+    /** Maximum threads making tile variants, limited by processors. */
+    private static final int MAX_VARIANT_THREADS = 4;
+
     /** Function name pattern */
     private static final Pattern PTN_FUNCTIONNAME = Pattern
             .compile("^[\\$_a-zA-Z][\\$_0-9a-zA-Z]*$");
 
-    /** White list for metadata name. */
-    private static final String[] PERMISSIVE_METADATA_NAMES = { "name", "type",
-            "version", "description", "format", "bounds", "attribution",
-            "minzoom", "maxzoom" };
+    /**
+     * Holds TileSource of one database. Opens the database at most once.
+     */
+    private static final class OperatorHolder {
+        private boolean mInitialized = false;
+        private TileSource mOperator = null;
+        /** Coverage index. Null until built or loaded. */
+        private volatile CoverageIndex mCoverage = null;
+        /** Set when closed, to stop building the coverage index. */
+        private final AtomicBoolean mClosed = new AtomicBoolean(false);
+        /**
+         * Held by background scans instead of the read lock, so that closing
+         * waits only for scans of this dataset.
+         */
+        private final Object mScanLock = new Object();
+        /** Whether the operator reads the memory-mapped file. */
+        private volatile boolean mMapped = false;
+        /** Last time used, by {@link SystemClock#elapsedRealtime()}. */
+        private volatile long mLastUsed = 0;
+        /** Off-heap tile cache. Null if disabled. */
+        private volatile SlabTileCache mSlabCache = null;
+        /** Modification time of the file when opened, to key variants. */
+        private volatile long mLastModified = 0;
+    }
 
-    private HashMap<String, MBTilesOperator> mMBTiles = new HashMap<String, MBTilesOperator>();
-    private TemporaryFileManager mTFM = null;
+    private final ConcurrentHashMap<String, OperatorHolder> mMBTiles = new ConcurrentHashMap<String, OperatorHolder>();
+    /**
+     * Readers (tiles, metadata) hold the read lock. Lifecycle operations
+     * (close) hold the write lock.
+     */
+    private final ReadWriteLock mLifecycleLock = new ReentrantReadWriteLock();
+    // Created lazily. Volatile, so that getters read them without the
+    // monitor once created, and Binder threads serving tiles do not meet on
+    // it.
+    private volatile TemporaryFileManager mTFM = null;
+    private volatile ContentPipe mContentPipe = null;
+    private volatile TileCache mTileCache = null;
+    private volatile TilePrefetcher mTilePrefetcher = null;
+    /** Set when {@link #mTilePrefetcher} is decided, even if disabled. */
+    private volatile boolean mTilePrefetcherDecided = false;
+    private volatile ScheduledThreadPoolExecutor mBackgroundExecutor = null;
+    private volatile TileVariantCache mVariantCache = null;
+    /** Set when {@link #mVariantCache} is decided, even if disabled. */
+    private volatile boolean mVariantCacheDecided = false;
+    private volatile ThreadPoolExecutor mVariantExecutor = null;
+    /** Variants being made, by keys, so that each is made once. */
+    private final ConcurrentHashMap<String, FutureTask<byte[]>> mVariantJobs = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+    /** Set while the idle sweep is scheduled. */
+    private final AtomicBoolean mSweepScheduled = new AtomicBoolean(false);
+    private final ServingStats mStats = new ServingStats();
+    /** Set by {@link #createTileRequestListener()} when created. */
+    private volatile TileRequestListener mListener = null;
+    /** Reused by each serving thread to parse tile paths. */
+    private final ThreadLocal<TileRequest> mTileRequest = new ThreadLocal<TileRequest>() {
+        @Override
+        protected TileRequest initialValue() {
+            return new TileRequest();
+        }
+    };
 
     // ----------------
     // Private methods
     // ----------------
     /**
-     * Creates temporary file and open it and create ParcelFileDescriptor.
+     * Creates ParcelFileDescriptor to read the content. If streaming is
+     * enabled, returns the read end of a pipe. Otherwise, creates temporary
+     * file and open it.
      * 
      * @param content
      *            Cotent binary.
      * @return ParcelFileDescriptor instane.
      * @throws FileNotFoundException
-     *             Thrown if temporary file cannot be opened.
+     *             Thrown if the pipe or temporary file cannot be opened.
      */
     private ParcelFileDescriptor createParcelFileDescriptor(byte[] content)
             throws FileNotFoundException {
-        String path = this.mTFM.add(content);
+        if (this.isStreamingEnabled()) {
+            return this.getContentPipe().open(content);
+        }
+        String path = this.getTemporaryFileManager().add(content);
+        if (path == null) {
+            throw new FileNotFoundException("Cannot write temporary file.");
+        }
         return ParcelFileDescriptor.open(new File(path),
                 ParcelFileDescriptor.MODE_READ_ONLY);
     }
 
     /**
-     * Closes all MBTilesOperator instances.
+     * Creates ParcelFileDescriptor to read the content, and records time and
+     * bytes of delivery.
+     * 
+     * @param content
+     *            Cotent binary.
+     * @param sample
+     *            Sample of the request.
+     * @return ParcelFileDescriptor instane.
+     * @throws FileNotFoundException
+     *             Thrown if the pipe or temporary file cannot be opened.
+     */
+    private ParcelFileDescriptor deliver(byte[] content,
+            ServingStats.Sample sample) throws FileNotFoundException {
+        long t = System.nanoTime();
+        ParcelFileDescriptor ret = this.createParcelFileDescriptor(content);
+        sample.addDeliveryTime(System.nanoTime() - t);
+        sample.addBytes(content.length);
+        return ret;
+    }
+
+    /**
+     * Creates ParcelFileDescriptor to read the cached content, and records
+     * time and bytes of delivery. Releases the lease after the content is
+     * written; if streaming, the content is written from the slab directly.
+     * 
+     * @param lease
+     *            Lease of the cached content.
+     * @param sample
+     *            Sample of the request.
+     * @return ParcelFileDescriptor instane.
+     * @throws FileNotFoundException
+     *             Thrown if the pipe or temporary file cannot be opened.
+     */
+    private ParcelFileDescriptor deliver(final SlabTileCache.Lease lease,
+            ServingStats.Sample sample) throws FileNotFoundException {
+        long t = System.nanoTime();
+        ByteBuffer content = lease.getBuffer();
+        int length = content.remaining();
+        ParcelFileDescriptor ret;
+        if (this.isStreamingEnabled()) {
+            ret = this.getContentPipe().open(content, new Runnable() {
+                @Override
+                public void run() {
+                    lease.release();
+                }
+            });
+        } else {
+            byte[] bytes = new byte[length];
+            try {
+                content.get(bytes);
+            } finally {
+                lease.release();
+            }
+            ret = this.createParcelFileDescriptor(bytes);
+        }
+        sample.addDeliveryTime(System.nanoTime() - t);
+        sample.addBytes(length);
+        return ret;
+    }
+
+    /**
+     * Acquires the read lock, and records time waiting for it.
+     * 
+     * @param sample
+     *            Sample of the request.
+     */
+    private void lockForRead(ServingStats.Sample sample) {
+        long t = System.nanoTime();
+        this.mLifecycleLock.readLock().lock();
+        sample.addLockWait(System.nanoTime() - t);
+    }
+
+    /**
+     * Gets ContentPipe instance. If not created, will create it.
+     * 
+     * @return ContentPipe.
+     */
+    private ContentPipe getContentPipe() {
+        ContentPipe ret = this.mContentPipe;
+        if (ret != null) {
+            return ret;
+        }
+        synchronized (this) {
+            if (this.mContentPipe == null) {
+                this.mContentPipe = new ContentPipe("MBTilesProvider");
+            }
+            return this.mContentPipe;
+        }
+    }
+
+    /**
+     * Gets TemporaryFileManager instance. If not created, will create it.
+     * 
+     * @return TemporaryFileManager.
+     */
+    private TemporaryFileManager getTemporaryFileManager() {
+        TemporaryFileManager ret = this.mTFM;
+        if (ret != null) {
+            return ret;
+        }
+        synchronized (this) {
+            if (this.mTFM == null) {
+                this.mTFM = new TemporaryFileManager(this.getContext(),
+                        "MBTilesProvider");
+            }
+            return this.mTFM;
+        }
+    }
+
+    /**
+     * Gets TileCache instance. If not created, will create it. Subclasses can
+     * read hit and miss counters from it.
+     * 
+     * @return TileCache.
+     */
+    protected TileCache getTileCache() {
+        TileCache ret = this.mTileCache;
+        if (ret != null) {
+            return ret;
+        }
+        synchronized (this) {
+            if (this.mTileCache == null) {
+                this.mTileCache = new TileCache(this.getTileCacheSize());
+            }
+            return this.mTileCache;
+        }
+    }
+
+    /**
+     * Gets TileVariantCache instance. If not created, will create it in the
+     * cache directory.
+     * 
+     * @return TileVariantCache. Null if the cache directory is not available
+     *         or the cache is disabled.
      */
-    private void closeAllMBTilesOperators() {
+    private TileVariantCache getVariantCache() {
+        if (this.mVariantCacheDecided) {
+            return this.mVariantCache;
+        }
         synchronized (this) {
-            for (String db : this.mMBTiles.keySet()) {
-                MBTilesOperator op = this.mMBTiles.get(db);
-                if (op != null) {
-                    op.close();
+            if (!this.mVariantCacheDecided && this.getContext() != null) {
+                long maxBytes = this.getVariantCacheSize();
+                if (maxBytes > 0) {
+                    this.mVariantCache = new TileVariantCache(new File(this
+                            .getContext().getCacheDir(),
+                            "MBTilesProvider-variants"), maxBytes);
                 }
+                this.mVariantCacheDecided = true;
             }
-            this.mMBTiles.clear();
+            return this.mVariantCache;
+        }
+    }
+
+    /**
+     * Gets serving metrics. Subclasses can read or reset them directly.
+     * 
+     * @return ServingStats.
+     */
+    protected ServingStats getServingStats() {
+        return this.mStats;
+    }
+
+    /**
+     * Gets TilePrefetcher instance. If not created, will create it. Subclasses
+     * can read the prefetch hit rate from it. Whether prefetch is enabled is
+     * decided at the first call.
+     * 
+     * @return TilePrefetcher. Null if prefetch is disabled.
+     */
+    protected TilePrefetcher getTilePrefetcher() {
+        if (this.mTilePrefetcherDecided) {
+            return this.mTilePrefetcher;
+        }
+        TileCache cache = this.getTileCache();
+        synchronized (this) {
+            if (!this.mTilePrefetcherDecided && this.isPrefetchEnabled()
+                    && cache.getMaxBytes() > 0) {
+                this.mTilePrefetcher = new TilePrefetcher(cache,
+                        new TilePrefetcher.Source() {
+                            @Override
+                            public int getTiles(String dataset, int z,
+                                    int xmin, int xmax, int ymin, int ymax,
+                                    int limit,
+                                    TileSource.TileVisitor visitor)
+                                    throws FileNotFoundException {
+                                return MBTilesProvider.this.readTiles(dataset,
+                                        z, xmin, xmax, ymin, ymax, limit,
+                                        visitor);
+                            }
+                        });
+            }
+            this.mTilePrefetcherDecided = true;
+            return this.mTilePrefetcher;
         }
     }
 
     /**
-     * Closes one MBTilesOperator which handles specified database.
+     * Reads tiles in the range holding the read lock.
      * 
      * @param db
      *            Database name (encoded filename)
+     * @param z
+     *            Zoom level.
+     * @param xmin
+     *            Minimum column.
+     * @param xmax
+     *            Maximum column.
+     * @param ymin
+     *            Minimum row.
+     * @param ymax
+     *            Maximum row.
+     * @param limit
+     *            Maximum number of tiles.
+     * @param visitor
+     *            Receives tiles.
+     * @return The number of tiles visited.
      * @throws FileNotFoundException
-     *             Thrown when failed to close.
+     *             Thrown if the file is not found.
      */
-    private void closeMBTilesOperator(String db) throws FileNotFoundException {
-        synchronized (this) {
-            if (!this.mMBTiles.containsKey(db)) {
+    private int readTiles(String db, int z, int xmin, int xmax, int ymin,
+            int ymax, int limit, TileSource.TileVisitor visitor)
+            throws FileNotFoundException {
+        this.mLifecycleLock.readLock().lock();
+        try {
+            TileSource op = this.getTileSource(db, true);
+            if (op == null) {
                 throw new FileNotFoundException("MBTiles file not found.");
             }
-            MBTilesOperator op = this.mMBTiles.get(db);
-            if (op != null) {
-                op.close();
-            }
-            this.mMBTiles.remove(db);
+            return op.getTiles(z, xmin, xmax, ymin, ymax, 0, limit, visitor);
+        } finally {
+            this.mLifecycleLock.readLock().unlock();
         }
     }
 
     /**
-     * Gets MBTilesOperator instane. If not created, will create it.
+     * Opens the tile from the cache, or from the MBTiles file if not cached.
+     * If the cache is disabled and the platform supports it, the descriptor
+     * is given by SQLite directly and the content is not copied to the Java
+     * heap.
      * 
      * @param db
      *            Database name (encoded filename)
-     * @param readonly
-     *            Opens the db with READONLY mode if db is not opened.
-     * @return MBTilesOperator.
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param sample
+     *            Sample of the request.
+     * @return ParcelFileDescriptor instane.
+     * @throws FileNotFoundException
+     *             Thrown if the file or the tile is not found.
      */
-    private MBTilesOperator getMBTilesOperator(String db, boolean readonly) {
-        synchronized (this) {
-            if (this.mMBTiles.containsKey(db)) {
-                return this.mMBTiles.get(db);
-            } else {
-                String dbpath;
-                try {
-                    dbpath = URLDecoder.decode(db, "UTF-8");
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-                String relPath = this.getRelativeDirectoryPath();
-                if (relPath != null) {
-                    dbpath = relPath + File.separator + dbpath;
-                }
-                String path = FileUtil.calculatePath(dbpath,
-                        Environment.getExternalStorageDirectory());
-                MBTilesOperator op = null;
-                if (path != null) {
-                    try {
-                        op = new MBTilesOperator(path, readonly);
-                    } catch (SQLiteException e) {
-                        e.printStackTrace();
-                    }
+    private ParcelFileDescriptor openTile(String db, int z, int x, int y,
+            ServingStats.Sample sample) throws FileNotFoundException {
+        sample.setTile(z, x, y);
+        TileRequestListener listener = this.mListener;
+        if (listener != null) {
+            listener.onRequestParsed(sample.getRequestId(), System.nanoTime(),
+                    db, z, x, y, 0);
+        }
+        // Rejects missing tiles without touching the cache nor the database.
+        OperatorHolder holder = this.mMBTiles.get(db);
+        if (holder != null) {
+            CoverageIndex coverage = holder.mCoverage;
+            if (coverage != null && !coverage.mayContain(z, x, y)) {
+                sample.setRejected();
+                throw new FileNotFoundException();
+            }
+        }
+        if (holder != null && holder.mMapped) {
+            // Mapped pages are cached by the kernel.
+            return this.openMappedTile(db, z, x, y, sample);
+        }
+        TileCache cache = this.getTileCache();
+        TilePrefetcher prefetcher = this.getTilePrefetcher();
+        if (prefetcher != null) {
+            prefetcher.onRequest(db, z, x, y);
+        }
+        byte[] tile = cache.get(db, z, x, y);
+        SlabTileCache slab = holder != null ? holder.mSlabCache : null;
+        SlabTileCache.Lease lease = null;
+        if (tile == null && slab != null) {
+            lease = slab.acquire(z, x, y);
+        }
+        if (listener != null) {
+            int length = -1;
+            if (tile != null) {
+                length = tile.length;
+            } else if (lease != null) {
+                length = lease.getBuffer().remaining();
+            }
+            listener.onCacheLookup(sample.getRequestId(), System.nanoTime(),
+                    db, z, x, y, length);
+        }
+        if (tile != null) {
+            sample.setCacheHit();
+            return this.deliver(tile, sample);
+        }
+        if (lease != null) {
+            sample.setCacheHit();
+            return this.deliver(lease, sample);
+        }
+        this.lockForRead(sample);
+        try {
+            long t = System.nanoTime();
+            TileSource op = this.getTileSource(db, true);
+            if (op == null) {
+                throw new FileNotFoundException("MBTiles file not found.");
+            }
+            if (listener != null) {
+                listener.onOperatorAcquired(sample.getRequestId(),
+                        System.nanoTime(), db, z, x, y, 0);
+            }
+            // Holder is set once the dataset is opened.
+            holder = this.mMBTiles.get(db);
+            slab = holder != null ? holder.mSlabCache : null;
+            if (cache.getMaxBytes() == 0 && slab == null
+                    && op instanceof MBTilesOperator
+                    && MBTilesOperator.isTileDescriptorSupported()) {
+                // SQLite writes the content to the descriptor.
+                ParcelFileDescriptor ret = ((MBTilesOperator) op).openTile(z,
+                        x, y);
+                long t1 = System.nanoTime();
+                sample.addSourceTime(t1 - t);
+                sample.addBytes(ret.getStatSize());
+                if (listener != null) {
+                    listener.onQueryDone(sample.getRequestId(), t1, db, z, x,
+                            y, ret.getStatSize());
                 }
-                this.mMBTiles.put(db, op);
-                return op;
+                return ret;
+            }
+            tile = op.getTile(z, x, y);
+            long t1 = System.nanoTime();
+            sample.addSourceTime(t1 - t);
+            if (listener != null) {
+                listener.onQueryDone(sample.getRequestId(), t1, db, z, x, y,
+                        tile.length);
+            }
+            cache.put(db, z, x, y, tile);
+            if (slab != null) {
+                slab.put(z, x, y, tile);
             }
+        } finally {
+            this.mLifecycleLock.readLock().unlock();
         }
+        return this.deliver(tile, sample);
     }
 
     /**
-     * Returns relative directory path on
-     * {@link android.os.Enironment#getExternalStorageDirectory()}.
+     * Opens the tile, or its variant if specified.
      * 
-     * @return Relative directory path. Returning null means that medium
-     *         relative path does not exist.
+     * @param db
+     *            Database name (encoded filename)
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param variant
+     *            Variant. Null for the tile itself.
+     * @param sample
+     *            Sample of the request.
+     * @return ParcelFileDescriptor instane.
+     * @throws FileNotFoundException
+     *             Thrown if the file or the tile is not found.
      */
-    protected String getRelativeDirectoryPath() {
-        return null;
+    private ParcelFileDescriptor openTile(String db, int z, int x, int y,
+            TileVariant variant, ServingStats.Sample sample)
+            throws FileNotFoundException {
+        if (variant == null) {
+            return this.openTile(db, z, x, y, sample);
+        }
+        return this.openTileVariant(db, z, x, y, variant, sample);
     }
 
     /**
-     * Opens the file.
+     * Opens the variant of the tile. Cached variants are opened as files.
+     * Others are made on a variant thread, which is waited for, and are
+     * put into the cache. Requests for a variant being made wait for the
+     * same job.
+     * 
+     * @param db
+     *            Database name (encoded filename)
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param variant
+     *            Variant.
+     * @param sample
+     *            Sample of the request.
+     * @return ParcelFileDescriptor instane.
+     * @throws FileNotFoundException
+     *             Thrown if the file or the tile is not found, or the tile
+     *             is not an image.
      */
-    @Override
-    public ParcelFileDescriptor openFile(Uri uri, String mode)
+    private ParcelFileDescriptor openTileVariant(String db, int z, int x,
+            int y, TileVariant variant, ServingStats.Sample sample)
             throws FileNotFoundException {
-        synchronized (this) {
-            if (this.mTFM == null) {
-                this.mTFM = new TemporaryFileManager(this.getContext(),
-                        "MBTilesProvider");
+        sample.setTile(z, x, y);
+        OperatorHolder holder = this.mMBTiles.get(db);
+        if (holder != null) {
+            CoverageIndex coverage = holder.mCoverage;
+            if (coverage != null && !coverage.mayContain(z, x, y)) {
+                sample.setRejected();
+                throw new FileNotFoundException();
             }
-            // removes empty segments
-            List<String> rowPathSegments = uri.getPathSegments();
-            ArrayList<String> pathSegments = new ArrayList<String>();
-            if (rowPathSegments != null) {
-                for (String segment : rowPathSegments) {
-                    if (segment != null && segment.length() > 0) {
-                        pathSegments.add(segment);
-                    }
-                }
+        }
+        TileVariantCache cache = this.getVariantCache();
+        String key;
+        byte[] tile;
+        this.lockForRead(sample);
+        try {
+            long t = System.nanoTime();
+            TileSource op = this.getTileSource(db, true);
+            holder = this.mMBTiles.get(db);
+            if (op == null || holder == null) {
+                throw new FileNotFoundException("MBTiles file not found.");
             }
-            MBTilesOperator op;
-            switch (pathSegments.size()) {
-            case 4:
-                // /db/x/y/z.ext
-                String sz = pathSegments.get(1);
-                String sx = pathSegments.get(2);
-                String sye = pathSegments.get(3);
-                String sy;
-                if (sye.indexOf('.') >= 0) {
-                    sy = sye.substring(0, sye.indexOf('.'));
-                } else {
-                    sy = sye;
-                }
-                op = this.getMBTilesOperator(pathSegments.get(0), true);
-                if (op == null) {
-                    throw new FileNotFoundException("MBTiles file not found.");
-                }
-                return this.createParcelFileDescriptor(op.getTile(sz, sx, sy));
-            case 2:
-                // /(db)/metadata | (metaname)
-                if ("metadata".equals(pathSegments.get(1))) {
-                    op = this.getMBTilesOperator(pathSegments.get(0), true);
-                    if (op == null) {
-                        throw new FileNotFoundException();
-                    }
-                    HashMap<String, String> meta = new HashMap<String, String>();
-                    for (String pmn : MBTilesProvider.PERMISSIVE_METADATA_NAMES) {
-                        try {
-                            String metaValue = op.getMeta(pmn);
-                            if (metaValue != null) {
-                                meta.put(pmn, metaValue);
-                            }
-                        } catch (FileNotFoundException e) {
-                            // DOES NOTHING
-                        }
-                    }
-                    if (meta.isEmpty()) {
-                        throw new FileNotFoundException("No metadata found.");
-                    }
-                    String content = null;
-                    if (uri.getQueryParameter("json") != null) {
-                        content = this.createMetadataJson(meta);
-                    } else if (uri.getQueryParameter("callback") != null) {
-                        content = this.createMetadataJson(meta);
-                        String callback = uri.getQueryParameter("callback");
-                        if (MBTilesProvider.PTN_FUNCTIONNAME.matcher(callback)
-                                .find()) {
-                            content = callback + "(" + content + ");";
-                        }
-                    } else {
-                        // simple value
-                        content = this.createMetadataText(meta);
-                    }
-                    try {
-                        return this.createParcelFileDescriptor(content
-                                .getBytes("UTF-8"));
-                    } catch (UnsupportedEncodingException e) {
-                        throw new FileNotFoundException(e.getMessage());
-                    }
-                } else {
-                    // (db)/(metaname)
-                    op = this.getMBTilesOperator(pathSegments.get(0), true);
-                    if (op == null) {
-                        throw new FileNotFoundException();
-                    }
-                    String metaValue = null;
-                    for (String pnm : MBTilesProvider.PERMISSIVE_METADATA_NAMES) {
-                        if (pnm.equals(pathSegments.get(1))) {
-                            metaValue = op.getMeta(pathSegments.get(1));
-                            break;
-                        }
-                    }
-                    if (metaValue == null) {
-                        throw new FileNotFoundException(
-                                "Speified metadata not found.");
-                    }
-                    String content = null;
-                    if (uri.getQueryParameter("json") != null) {
-                        content = this.createSingleMetadataJson(
-                                pathSegments.get(1), metaValue);
-                    } else if (uri.getQueryParameter("callback") != null) {
-                        content = this.createSingleMetadataJson(
-                                pathSegments.get(1), metaValue);
-                        String callback = uri.getQueryParameter("callback");
-                        if (MBTilesProvider.PTN_FUNCTIONNAME.matcher(callback)
-                                .find()) {
-                            content = callback + "(" + content + ");";
-                        }
-                    } else {
-                        // simple value
-                        content = metaValue;
-                    }
-                    try {
-                        return this.createParcelFileDescriptor(content
-                                .getBytes("UTF-8"));
-                    } catch (UnsupportedEncodingException e) {
-                        throw new FileNotFoundException(e.getMessage());
-                    }
-                }
-            case 1:
-                // (db)
-                String c1 = uri.getQueryParameter("c");
-                if ("close".equals(c1)) {
-                    this.closeMBTilesOperator(pathSegments.get(0));
-                }
-                return this.createParcelFileDescriptor(new byte[] {});
-            case 0:
-                String c0 = uri.getQueryParameter("c");
-                if ("close".equals(c0)) {
-                    this.closeAllMBTilesOperators();
+            key = TileVariantCache.keyOf(new File(op.getPath()),
+                    holder.mLastModified, z, x, y, variant);
+            File file = cache != null ? cache.get(key) : null;
+            if (file != null) {
+                try {
+                    ParcelFileDescriptor ret = ParcelFileDescriptor.open(
+                            file, ParcelFileDescriptor.MODE_READ_ONLY);
+                    sample.setCacheHit();
+                    sample.addBytes(ret.getStatSize());
+                    return ret;
+                } catch (FileNotFoundException e) {
+                    // evicted after lookup.
                 }
-                return this.createParcelFileDescriptor(new byte[] {});
             }
-            throw new FileNotFoundException("Invalid path");
+            tile = this.getTileCache().get(db, z, x, y);
+            if (tile == null) {
+                tile = op.getTile(z, x, y);
+            }
+            sample.addSourceTime(System.nanoTime() - t);
+        } finally {
+            this.mLifecycleLock.readLock().unlock();
+        }
+        long t = System.nanoTime();
+        byte[] content = this.makeVariant(key, tile, variant, cache);
+        sample.addSourceTime(System.nanoTime() - t);
+        if (content == null) {
+            throw new FileNotFoundException("Not an image.");
         }
+        return this.deliver(content, sample);
     }
 
-    // --------
-    // subs
-    // --------
     /**
-     * Creates metadata JSON from HashMap.
+     * Makes the variant on a variant thread and puts it into the cache, or
+     * waits for the job making the same variant.
      * 
-     * @param meta
-     *            HashMap containing complex of name and value.
-     * @return JSON text.
+     * @param key
+     *            Key of the variant.
+     * @param tile
+     *            Source tile.
+     * @param variant
+     *            Variant.
+     * @param cache
+     *            Cache to put the variant into. Can be null.
+     * @return Variant. Null if the tile is not an image.
+     * @throws FileNotFoundException
+     *             Thrown if the job cannot run or is interrupted.
      */
-    private String createMetadataJson(HashMap<String, String> meta) {
-        JSONObject ret = new JSONObject();
-        for (String k : meta.keySet()) {
-            String v = meta.get(k);
+    private byte[] makeVariant(final String key, final byte[] tile,
+            final TileVariant variant, final TileVariantCache cache)
+            throws FileNotFoundException {
+        FutureTask<byte[]> job = new FutureTask<byte[]>(
+                new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        byte[] ret = variant.transcode(tile);
+                        if (ret != null && cache != null) {
+                            cache.put(key, ret);
+                        }
+                        return ret;
+                    }
+                }) {
+            @Override
+            protected void done() {
+                MBTilesProvider.this.mVariantJobs.remove(key, this);
+            }
+        };
+        FutureTask<byte[]> running = this.mVariantJobs.putIfAbsent(key, job);
+        if (running == null) {
+            running = job;
             try {
-                ret.put(k, v);
-            } catch (JSONException e) {
-                e.printStackTrace();
+                this.getVariantExecutor().execute(job);
+            } catch (RejectedExecutionException e) {
+                this.mVariantJobs.remove(key, job);
+                throw new FileNotFoundException(e.getMessage());
             }
         }
-        return ret.toString();
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileNotFoundException("Interrupted.");
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
     /**
-     * Creates one metadata JSON.
+     * Opens the tile of the memory-mapped file. If streaming is enabled, the
+     * slice of the mapped file is written to the pipe without copy.
      * 
-     * @param metaName
-     *            Name of a metadata.
-     * @param metaValue
-     *            Value of metadata.
-     * @return JSON text.
+     * @param db
+     *            Database name (encoded filename)
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param sample
+     *            Sample of the request.
+     * @return ParcelFileDescriptor instane.
+     * @throws FileNotFoundException
+     *             Thrown if the file or the tile is not found.
      */
-    private String createSingleMetadataJson(String metaName, String metaValue) {
-        JSONObject ret = new JSONObject();
+    private ParcelFileDescriptor openMappedTile(String db, int z, int x,
+            int y, ServingStats.Sample sample) throws FileNotFoundException {
+        ByteBuffer tile;
+        this.lockForRead(sample);
         try {
-            ret.put(metaName, metaValue);
-            return ret.toString();
-        } catch (JSONException e) {
-            e.printStackTrace();
+            long t = System.nanoTime();
+            TileSource op = this.getTileSource(db, true);
+            if (op == null) {
+                throw new FileNotFoundException("MBTiles file not found.");
+            }
+            TileRequestListener listener = this.mListener;
+            if (listener != null) {
+                listener.onOperatorAcquired(sample.getRequestId(),
+                        System.nanoTime(), db, z, x, y, 0);
+            }
+            tile = op.getTileBuffer(z, x, y);
+            long t1 = System.nanoTime();
+            sample.addSourceTime(t1 - t);
+            if (listener != null) {
+                listener.onQueryDone(sample.getRequestId(), t1, db, z, x, y,
+                        tile.remaining());
+            }
+        } finally {
+            this.mLifecycleLock.readLock().unlock();
+        }
+        if (this.isStreamingEnabled()) {
+            long t = System.nanoTime();
+            ParcelFileDescriptor ret = this.getContentPipe().open(tile);
+            sample.addDeliveryTime(System.nanoTime() - t);
+            sample.addBytes(tile.remaining());
+            return ret;
         }
-        return "{\"+metaName+\":null}";
+        byte[] content = new byte[tile.remaining()];
+        tile.get(content);
+        return this.deliver(content, sample);
     }
 
     /**
-     * Creates metadata text from HashMap. For each line of metadata is
-     * represented with "(name)\t(value)"; where "\t" is tab character. Name
-     * must not contain any space. Tab character and Line-Feed character are
-     * changed as "\t" and "\n".
+     * Opens tiles in the range as a bundle. All tiles are read with one query
+     * and written to one descriptor. See {@link TileBundleWriter} for the
+     * format.
      * 
-     * @param meta
-     *            HashMap containing complex of name and value.
-     * @return JSON text.
+     * @param db
+     *            Database name (encoded filename)
+     * @param z
+     *            Zoom level.
+     * @param xmin
+     *            Minimum column.
+     * @param xmax
+     *            Maximum column.
+     * @param ymin
+     *            Minimum row.
+     * @param ymax
+     *            Maximum row.
+     * @param sample
+     *            Sample of the request.
+     * @return ParcelFileDescriptor instane.
+     * @throws FileNotFoundException
+     *             Thrown if the file is not found or the range is too large.
      */
-
-    private String createMetadataText(HashMap<String, String> meta) {
-        String ret = "";
-        for (String k : meta.keySet()) {
-            String v = meta.get(k);
-            ret = ret + k + "\t";
-            if (v == null) {
-                ret = ret + "\\N";
+    private ParcelFileDescriptor openBundle(String db, final int z,
+            int xmin, int xmax, int ymin, int ymax,
+            ServingStats.Sample sample) throws FileNotFoundException {
+        sample.setTile(z, xmin, ymin);
+        TileRequestListener listener = this.mListener;
+        if (listener != null) {
+            listener.onRequestParsed(sample.getRequestId(), System.nanoTime(),
+                    db, z, xmin, ymin, 0);
+        }
+        long count = ((long) xmax - xmin + 1) * ((long) ymax - ymin + 1);
+        if (count > this.getMaxBundleTiles()) {
+            throw new FileNotFoundException("Too many tiles requested.");
+        }
+        final ArrayList<int[]> coords = new ArrayList<int[]>();
+        final ArrayList<byte[]> contents = new ArrayList<byte[]>();
+        final TileCache cache = this.getTileCache();
+        final String fdb = db;
+        final long[] bytes = { 0 };
+        this.lockForRead(sample);
+        try {
+            long t = System.nanoTime();
+            TileSource op = this.getTileSource(db, true);
+            if (op == null) {
+                throw new FileNotFoundException("MBTiles file not found.");
             }
-            for (int n = 0; n < v.length(); n++) {
-                char c = v.charAt(n);
-                switch (c) {
-                case '\t':
-                    ret = ret + "\\t";
-                    break;
-                case '\n':
-                    ret = ret + "\\n";
-                    break;
-                default:
-                    ret = ret + c;
-                }
+            if (listener != null) {
+                listener.onOperatorAcquired(sample.getRequestId(),
+                        System.nanoTime(), db, z, xmin, ymin, 0);
+            }
+            op.getTiles(z, xmin, xmax, ymin, ymax, 0, -1,
+                    new TileSource.TileVisitor() {
+                        @Override
+                        public boolean visit(int z, int x, int y,
+                                byte[] content) {
+                            coords.add(new int[] { x, y });
+                            contents.add(content);
+                            bytes[0] += content.length;
+                            cache.put(fdb, z, x, y, content);
+                            return true;
+                        }
+                    });
+            long t1 = System.nanoTime();
+            sample.addSourceTime(t1 - t);
+            if (listener != null) {
+                listener.onQueryDone(sample.getRequestId(), t1, db, z, xmin,
+                        ymin, bytes[0]);
             }
-            ret = ret + "\n";
+        } finally {
+            this.mLifecycleLock.readLock().unlock();
         }
-        return ret;
+        ContentPipe.Writer writer = new ContentPipe.Writer() {
+            @Override
+            public void write(FileOutputStream os) throws IOException {
+                MBTilesProvider.writeBundle(os, z, coords, contents);
+            }
+        };
+        if (this.isStreamingEnabled()) {
+            // Written on a writer thread, so that only opening is recorded.
+            long t = System.nanoTime();
+            ParcelFileDescriptor ret = this.getContentPipe().open(writer);
+            sample.addDeliveryTime(System.nanoTime() - t);
+            sample.addBytes(bytes[0]);
+            return ret;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            MBTilesProvider.writeBundle(bos, z, coords, contents);
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+        return this.deliver(bos.toByteArray(), sample);
     }
 
-    @Override
-    public void onLowMemory() {
-        this.closeAllMBTilesOperators();
+    /**
+     * Closes all TileSource instances.
+     */
+    private void closeAllTileSources() {
+        this.mLifecycleLock.writeLock().lock();
+        try {
+            if (this.mTileCache != null) {
+                this.mTileCache.evictAll();
+            }
+            for (OperatorHolder holder : this.mMBTiles.values()) {
+                MBTilesProvider.closeHolder(holder);
+            }
+            this.mMBTiles.clear();
+        } finally {
+            this.mLifecycleLock.writeLock().unlock();
+        }
     }
 
-    @Override
-    public int delete(Uri arg0, String arg1, String[] arg2) {
-        // DOES NOTHING
-        return 0;
+    /**
+     * Closes one TileSource which handles specified database.
+     * 
+     * @param db
+     *            Database name (encoded filename)
+     * @throws FileNotFoundException
+     *             Thrown when failed to close.
+     */
+    private void closeTileSource(String db) throws FileNotFoundException {
+        this.mLifecycleLock.writeLock().lock();
+        try {
+            OperatorHolder holder = this.mMBTiles.remove(db);
+            if (holder == null) {
+                throw new FileNotFoundException("MBTiles file not found.");
+            }
+            if (this.mTileCache != null) {
+                this.mTileCache.remove(db);
+            }
+            if (this.mTilePrefetcher != null) {
+                this.mTilePrefetcher.remove(db);
+            }
+            MBTilesProvider.closeHolder(holder);
+        } finally {
+            this.mLifecycleLock.writeLock().unlock();
+        }
     }
 
-    @Override
+    /**
+     * Gets TileSource instane. If not created, will create it. Lookup
+     * does not lock, and each database is opened once even if requested by
+     * multiple threads at the same time. Caller must hold the read lock.
+     * 
+     * Failures are not remembered, so the next request opens the file again.
+     * If open datasets exceed {@link #getMaxOpenDatasets()}, least recently
+     * used ones are closed in background.
+     * 
+     * @param db
+     *            Database name (encoded filename)
+     * @param readonly
+     *            Opens the db with READONLY mode if db is not opened.
+     * @return TileSource.
+     */
+    private TileSource getTileSource(String db, boolean readonly) {
+        OperatorHolder holder = this.mMBTiles.get(db);
+        if (holder == null) {
+            OperatorHolder newHolder = new OperatorHolder();
+            holder = this.mMBTiles.putIfAbsent(db, newHolder);
+            if (holder == null) {
+                holder = newHolder;
+            }
+        }
+        holder.mLastUsed = SystemClock.elapsedRealtime();
+        boolean opened = false;
+        TileSource ret;
+        synchronized (holder) {
+            if (!holder.mInitialized) {
+                holder.mOperator = this.openTileSource(db, readonly);
+                holder.mMapped = holder.mOperator != null
+                        && holder.mOperator.isMapped();
+                holder.mInitialized = true;
+                if (holder.mOperator == null) {
+                    this.mMBTiles.remove(db, holder);
+                } else {
+                    opened = true;
+                    holder.mLastModified = new File(holder.mOperator.getPath())
+                            .lastModified();
+                    long slabBytes = this.getOffHeapCacheSize(db);
+                    if (!holder.mMapped && slabBytes > 0) {
+                        holder.mSlabCache = new SlabTileCache(slabBytes);
+                    }
+                    if (holder.mOperator instanceof MBTilesOperator
+                            && ((MBTilesOperator) holder.mOperator)
+                                    .isTileIndexMissing()) {
+                        if (((MBTilesOperator) holder.mOperator)
+                                .isTileIndexCreatable()) {
+                            this.scheduleTileIndex(holder);
+                        } else {
+                            this.scheduleRowidIndex(holder);
+                        }
+                    }
+                    // A miss in PMTiles is a few searches in directories.
+                    if (this.isCoverageIndexEnabled()
+                            && !(holder.mOperator instanceof PMTilesReader)) {
+                        this.scheduleCoverageIndex(holder);
+                    }
+                }
+            }
+            ret = holder.mOperator;
+        }
+        if (opened) {
+            this.closeInBackground(this.evictDatasets(
+                    this.getMaxOpenDatasets(), -1));
+            this.scheduleIdleSweep();
+        }
+        return ret;
+    }
+
+    /**
+     * Removes datasets from the pool. Removed datasets are marked as closed,
+     * and must be closed by {@link #closeEvicted(List)}. Datasets being
+     * opened are not removed.
+     * 
+     * @param maxCount
+     *            Maximum number of datasets to keep. Least recently used ones
+     *            are removed.
+     * @param idleMillis
+     *            Datasets not used within this time are removed. Negative
+     *            means no limit.
+     * @return Removed datasets.
+     */
+    private List<OperatorHolder> evictDatasets(int maxCount, long idleMillis) {
+        ArrayList<Map.Entry<String, OperatorHolder>> entries = new ArrayList<Map.Entry<String, OperatorHolder>>();
+        for (Map.Entry<String, OperatorHolder> e : this.mMBTiles.entrySet()) {
+            if (e.getValue().mOperator != null) {
+                entries.add(e);
+            }
+        }
+        // most recently used first.
+        Collections.sort(entries,
+                new Comparator<Map.Entry<String, OperatorHolder>>() {
+                    @Override
+                    public int compare(Map.Entry<String, OperatorHolder> a,
+                            Map.Entry<String, OperatorHolder> b) {
+                        long ta = a.getValue().mLastUsed;
+                        long tb = b.getValue().mLastUsed;
+                        return ta > tb ? -1 : (ta == tb ? 0 : 1);
+                    }
+                });
+        long now = SystemClock.elapsedRealtime();
+        ArrayList<OperatorHolder> ret = new ArrayList<OperatorHolder>();
+        for (int n = 0; n < entries.size(); n++) {
+            OperatorHolder holder = entries.get(n).getValue();
+            if (n >= maxCount
+                    || (idleMillis >= 0 && now - holder.mLastUsed > idleMillis)) {
+                if (this.mMBTiles.remove(entries.get(n).getKey(), holder)) {
+                    holder.mClosed.set(true);
+                    ret.add(holder);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Closes removed datasets, waiting until readers finish. Cached tiles are
+     * kept, because the files are not changed.
+     * 
+     * @param holders
+     *            Datasets removed by {@link #evictDatasets(int, long)}.
+     */
+    private void closeEvicted(List<OperatorHolder> holders) {
+        if (holders.isEmpty()) {
+            return;
+        }
+        this.mLifecycleLock.writeLock().lock();
+        try {
+            for (OperatorHolder holder : holders) {
+                MBTilesProvider.closeHolder(holder);
+            }
+        } finally {
+            this.mLifecycleLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes removed datasets in background. Used where the caller may hold
+     * the read lock.
+     * 
+     * @param holders
+     *            Datasets removed by {@link #evictDatasets(int, long)}.
+     */
+    private void closeInBackground(final List<OperatorHolder> holders) {
+        if (holders.isEmpty()) {
+            return;
+        }
+        this.getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                MBTilesProvider.this.closeEvicted(holders);
+            }
+        });
+    }
+
+    /**
+     * Closes the dataset. Stops its background scan and waits until the scan
+     * ends. Caller must hold the write lock.
+     * 
+     * @param holder
+     *            Holder of the dataset.
+     */
+    private static void closeHolder(OperatorHolder holder) {
+        holder.mClosed.set(true);
+        synchronized (holder.mScanLock) {
+            MBTilesProvider.evictSlabCache(holder);
+            if (holder.mOperator != null) {
+                holder.mOperator.close();
+            }
+        }
+    }
+
+    /**
+     * Drops the off-heap tile cache of the dataset. Contents being written
+     * are kept until their leases are released.
+     * 
+     * @param holder
+     *            Holder of the dataset.
+     */
+    private static void evictSlabCache(OperatorHolder holder) {
+        SlabTileCache slab = holder.mSlabCache;
+        if (slab != null) {
+            slab.evictAll();
+        }
+    }
+
+    /**
+     * Drops the off-heap tile caches of all datasets.
+     */
+    private void evictSlabCaches() {
+        for (OperatorHolder holder : this.mMBTiles.values()) {
+            MBTilesProvider.evictSlabCache(holder);
+        }
+    }
+
+    /**
+     * Schedules the sweep which closes idle datasets, if not scheduled. The
+     * sweep reschedules itself while datasets are open.
+     */
+    private void scheduleIdleSweep() {
+        final long idleMillis = this.getDatasetIdleMillis();
+        if (idleMillis <= 0 || !this.mSweepScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        this.getBackgroundExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                MBTilesProvider.this.mSweepScheduled.set(false);
+                MBTilesProvider.this.closeEvicted(MBTilesProvider.this
+                        .evictDatasets(Integer.MAX_VALUE, idleMillis));
+                if (!MBTilesProvider.this.mMBTiles.isEmpty()) {
+                    MBTilesProvider.this.scheduleIdleSweep();
+                }
+            }
+        }, idleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Loads the coverage index from the sidecar file, or builds it, in
+     * background. Until it is ready, all tiles are looked up.
+     * 
+     * The scan holds the scan lock of the dataset instead of the read lock,
+     * so closing another dataset does not wait for it.
+     * 
+     * @param holder
+     *            Holder of the opened operator.
+     */
+    private void scheduleCoverageIndex(final OperatorHolder holder) {
+        this.getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (holder.mScanLock) {
+                    MBTilesProvider.this.buildCoverageIndex(holder);
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the coverage index from the sidecar file, or builds it. Caller
+     * must hold the scan lock of the holder.
+     * 
+     * @param holder
+     *            Holder of the opened operator.
+     */
+    private void buildCoverageIndex(OperatorHolder holder) {
+        try {
+            if (holder.mClosed.get()) {
+                return;
+            }
+            TileSource op = holder.mOperator;
+            File file = new File(op.getPath());
+            File sidecar = this.getCoverageIndexFile(file);
+            CoverageIndex coverage = null;
+            if (sidecar != null) {
+                coverage = CoverageIndex.load(sidecar, file);
+            }
+            if (coverage == null) {
+                coverage = CoverageIndex.build(op, holder.mClosed);
+                if (coverage != null && sidecar != null) {
+                    try {
+                        coverage.save(sidecar);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            holder.mCoverage = coverage;
+        } catch (FileNotFoundException e) {
+            // closed.
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Creates the index on tiles table in background, for a writable MBTiles
+     * file which has no index. Until it is created, lookups scan the table.
+     * If creating fails, the rowid index is used instead.
+     * 
+     * The index is created on a connection of its own and does not hold the
+     * read lock, so closing datasets is not blocked for minutes.
+     * 
+     * @param holder
+     *            Holder of the opened operator.
+     */
+    private void scheduleTileIndex(final OperatorHolder holder) {
+        this.getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (holder.mClosed.get()) {
+                    return;
+                }
+                MBTilesOperator op = (MBTilesOperator) holder.mOperator;
+                if (!op.createTileIndex() && !holder.mClosed.get()) {
+                    MBTilesProvider.this.scheduleRowidIndex(holder);
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the rowid index from the sidecar file, or builds it, in
+     * background, for a MBTiles file whose tiles table has no index. Until it
+     * is ready, lookups scan the table.
+     * 
+     * @param holder
+     *            Holder of the opened operator.
+     */
+    private void scheduleRowidIndex(final OperatorHolder holder) {
+        this.getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (holder.mScanLock) {
+                    MBTilesProvider.this.buildRowidIndex(holder);
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the rowid index from the sidecar file, or builds it. Caller must
+     * hold the scan lock of the holder.
+     * 
+     * @param holder
+     *            Holder of the opened operator.
+     */
+    private void buildRowidIndex(OperatorHolder holder) {
+        try {
+            if (holder.mClosed.get()) {
+                return;
+            }
+            MBTilesOperator op = (MBTilesOperator) holder.mOperator;
+            File file = new File(op.getPath());
+            File sidecar = this.getSidecarFile(file, "MBTilesProvider-rowid",
+                    ".rid");
+            if (sidecar == null) {
+                return;
+            }
+            RowidIndex index = RowidIndex.load(sidecar, file);
+            if (index == null) {
+                index = RowidIndex.build(op, sidecar, holder.mClosed);
+            }
+            op.setRowidIndex(index);
+        } catch (FileNotFoundException e) {
+            // closed.
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Gets the sidecar file of the coverage index in the cache directory.
+     * 
+     * @param file
+     *            MBTiles file.
+     * @return Sidecar file. Null if the cache directory is not available.
+     */
+    private File getCoverageIndexFile(File file) {
+        return this.getSidecarFile(file, "MBTilesProvider-coverage", ".cov");
+    }
+
+    /**
+     * Gets the sidecar file in the cache directory.
+     * 
+     * @param file
+     *            MBTiles file.
+     * @param dirName
+     *            Name of the directory in the cache directory.
+     * @param suffix
+     *            Suffix of the sidecar file.
+     * @return Sidecar file. Null if the cache directory is not available.
+     */
+    private File getSidecarFile(File file, String dirName, String suffix) {
+        if (this.getContext() == null) {
+            return null;
+        }
+        File dir = new File(this.getContext().getCacheDir(), dirName);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return null;
+        }
+        String path = file.getAbsolutePath();
+        return new File(dir, Integer.toHexString(path.hashCode()) + "-"
+                + file.getName() + suffix);
+    }
+
+    /**
+     * Opens datasets to warm up, prepares their statements and reads root
+     * pages of indexes in background. Also prepares the temporary file
+     * manager, which cleans its directory when created.
+     */
+    private void scheduleWarmUp() {
+        final String[] datasets = this.getWarmUpDatasets();
+        if (datasets == null || datasets.length == 0) {
+            return;
+        }
+        this.getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!MBTilesProvider.this.isStreamingEnabled()) {
+                    MBTilesProvider.this.getTemporaryFileManager();
+                }
+                int max = Math.min(datasets.length,
+                        MBTilesProvider.this.getMaxOpenDatasets());
+                for (int n = 0; n < max; n++) {
+                    MBTilesProvider.this.warmUp(datasets[n]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Warms up one dataset.
+     * 
+     * @param db
+     *            Database name (encoded filename)
+     */
+    private void warmUp(String db) {
+        this.mLifecycleLock.readLock().lock();
+        try {
+            TileSource op = this.getTileSource(db, true);
+            if (op != null) {
+                op.warmUp();
+            }
+        } catch (FileNotFoundException e) {
+            // closed.
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        } finally {
+            this.mLifecycleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the executor for background tasks. If not created, will create
+     * it. Tasks run one by one with background priority.
+     * 
+     * @return ScheduledExecutorService.
+     */
+    private ScheduledExecutorService getBackgroundExecutor() {
+        ScheduledThreadPoolExecutor ret = this.mBackgroundExecutor;
+        if (ret != null) {
+            return ret;
+        }
+        synchronized (this) {
+            if (this.mBackgroundExecutor == null) {
+                ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                        1, MBTilesProvider
+                                .createBackgroundThreadFactory("MBTilesProvider"));
+                executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+                executor.allowCoreThreadTimeOut(true);
+                this.mBackgroundExecutor = executor;
+            }
+            return this.mBackgroundExecutor;
+        }
+    }
+
+    /**
+     * Gets the executor which makes tile variants. If not created, will
+     * create it. Separated from the background executor, so that variants
+     * are not delayed by building indexes. Runs up to
+     * {@link #MAX_VARIANT_THREADS} jobs at once, so that misses of
+     * different variants are not serialized.
+     * 
+     * @return ThreadPoolExecutor.
+     */
+    private ThreadPoolExecutor getVariantExecutor() {
+        ThreadPoolExecutor ret = this.mVariantExecutor;
+        if (ret != null) {
+            return ret;
+        }
+        synchronized (this) {
+            if (this.mVariantExecutor == null) {
+                int threads = Math.max(1, Math.min(
+                        MBTilesProvider.MAX_VARIANT_THREADS, Runtime
+                                .getRuntime().availableProcessors()));
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+                        threads, 30, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        MBTilesProvider
+                                .createBackgroundThreadFactory("MBTilesProvider-variant"));
+                executor.allowCoreThreadTimeOut(true);
+                this.mVariantExecutor = executor;
+            }
+            return this.mVariantExecutor;
+        }
+    }
+
+    /**
+     * Creates the factory of daemon threads with background priority.
+     * 
+     * @param name
+     *            Name of threads.
+     * @return ThreadFactory.
+     */
+    private static ThreadFactory createBackgroundThreadFactory(
+            final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Opens TileSource. Files whose name ends with ".pmtiles" are read by
+     * {@link PMTilesReader}, and others by {@link MBTilesOperator}.
+     * 
+     * @param db
+     *            Database name (encoded filename)
+     * @param readonly
+     *            Opens the db with READONLY mode.
+     * @return TileSource. Null if failed to open.
+     */
+    private TileSource openTileSource(String db, boolean readonly) {
+        String dbpath;
+        try {
+            dbpath = URLDecoder.decode(db, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return null;
+        }
+        String relPath = this.getRelativeDirectoryPath();
+        if (relPath != null) {
+            dbpath = relPath + File.separator + dbpath;
+        }
+        String path = FileUtil.calculatePath(dbpath,
+                Environment.getExternalStorageDirectory());
+        TileSource op = null;
+        if (path != null && path.toLowerCase().endsWith(".pmtiles")) {
+            try {
+                op = new PMTilesReader(new File(path));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (path != null) {
+            try {
+                op = new MBTilesOperator(path, readonly,
+                        this.getConnectionPoolSize(),
+                        this.isMappedReaderEnabled(),
+                        this.getTuningProfile(path));
+            } catch (SQLiteException e) {
+                e.printStackTrace();
+            }
+        }
+        return op;
+    }
+
+    /**
+     * Returns maximum number of datasets open at once. Default is
+     * {@link #DEFAULT_MAX_OPEN_DATASETS}.
+     * 
+     * @return Maximum number of open datasets.
+     */
+    protected int getMaxOpenDatasets() {
+        return MBTilesProvider.DEFAULT_MAX_OPEN_DATASETS;
+    }
+
+    /**
+     * Returns time after which unused datasets are closed. Default is
+     * {@link #DEFAULT_DATASET_IDLE_MILLIS}. Returning 0 keeps them open.
+     * 
+     * @return Milliseconds.
+     */
+    protected long getDatasetIdleMillis() {
+        return MBTilesProvider.DEFAULT_DATASET_IDLE_MILLIS;
+    }
+
+    /**
+     * Returns datasets to warm up when the provider is created. Default reads
+     * {@link #META_WARM_UP} meta-data of the provider in the manifest, for
+     * example:
+     * 
+     * <pre>
+     * &lt;provider ...&gt;
+     *   &lt;meta-data
+     *     android:name="com.gmail.boiledorange73.and4.prv.MBTilesProvider.WARM_UP"
+     *     android:value="world.mbtiles,city%2Fcity.mbtiles" /&gt;
+     * &lt;/provider&gt;
+     * </pre>
+     * 
+     * Datasets after {@link #getMaxOpenDatasets()} are ignored.
+     * 
+     * @return Database names (encoded filenames). Null or empty for no warm
+     *         up.
+     */
+    protected String[] getWarmUpDatasets() {
+        Context context = this.getContext();
+        if (context == null) {
+            return null;
+        }
+        String value = null;
+        try {
+            ProviderInfo info = context.getPackageManager().getProviderInfo(
+                    new ComponentName(context, this.getClass()),
+                    PackageManager.GET_META_DATA);
+            if (info.metaData != null) {
+                value = info.metaData.getString(MBTilesProvider.META_WARM_UP);
+            }
+        } catch (NameNotFoundException e) {
+            e.printStackTrace();
+        }
+        if (value == null || value.trim().length() == 0) {
+            return null;
+        }
+        String[] ret = value.split(",");
+        for (int n = 0; n < ret.length; n++) {
+            ret[n] = ret[n].trim();
+        }
+        return ret;
+    }
+
+    /**
+     * Returns SQLite settings for the MBTiles file. Default is
+     * {@link SQLiteTuningProfile#createReadOptimized()}. Override to tune for
+     * the device or the file, e.g. smaller cache_size on devices with little
+     * RAM, or EXCLUSIVE locking mode for files no other process writes.
+     * Values in effect can be read by
+     * {@link MBTilesOperator#getEffectiveSettings()}.
+     * 
+     * @param path
+     *            Path of the MBTiles file.
+     * @return Profile.
+     */
+    protected SQLiteTuningProfile getTuningProfile(String path) {
+        return SQLiteTuningProfile.createReadOptimized();
+    }
+
+    /**
+     * Creates the listener of tile and bundle requests. Called once when the
+     * provider is created. Default is null, and then requests are served
+     * without allocation for events. See {@link TraceTileRequestListener}
+     * and {@link EventLogTileRequestListener}.
+     * 
+     * @return Listener. Null if not needed.
+     */
+    protected TileRequestListener createTileRequestListener() {
+        return null;
+    }
+
+    /**
+     * Gets the listener created by {@link #createTileRequestListener()}, e.g.
+     * to write the event log.
+     * 
+     * @return Listener. Null if not created.
+     */
+    protected TileRequestListener getTileRequestListener() {
+        return this.mListener;
+    }
+
+    /**
+     * Returns relative directory path on
+     * {@link android.os.Enironment#getExternalStorageDirectory()}.
+     * 
+     * @return Relative directory path. Returning null means that medium
+     *         relative path does not exist.
+     */
+    protected String getRelativeDirectoryPath() {
+        return null;
+    }
+
+    /**
+     * Returns maximum number of tiles in a bundle. Default is
+     * {@link #DEFAULT_MAX_BUNDLE_TILES}.
+     * 
+     * @return Maximum number of tiles in a bundle.
+     */
+    protected int getMaxBundleTiles() {
+        return MBTilesProvider.DEFAULT_MAX_BUNDLE_TILES;
+    }
+
+    /**
+     * Returns maximum bytes of the in-memory tile cache. Default is 1/8 of the
+     * memory class of the device. Returning 0 disables the cache, and then
+     * tiles are handed over as descriptors given by SQLite on API level 11 or
+     * higher.
+     * 
+     * @return Maximum bytes of the tile cache.
+     */
+    protected long getTileCacheSize() {
+        return TileCache.calculateDefaultMaxBytes(this.getContext());
+    }
+
+    /**
+     * Returns maximum bytes of the off-heap tile cache of the dataset. Default
+     * is 0, which disables it. The cache is held in direct buffers for each
+     * dataset, in addition to {@link #getTileCacheSize()}, and is not used
+     * for memory-mapped datasets. See {@link SlabTileCache}.
+     * 
+     * @param db
+     *            Database name (encoded filename)
+     * @return Maximum bytes of the off-heap tile cache.
+     */
+    protected long getOffHeapCacheSize(String db) {
+        return 0;
+    }
+
+    /**
+     * Returns maximum number of read-only connections for each MBTiles file.
+     * Default is {@link MBTilesOperator#DEFAULT_POOL_SIZE}.
+     * 
+     * @return Maximum number of connections.
+     */
+    protected int getConnectionPoolSize() {
+        return MBTilesOperator.DEFAULT_POOL_SIZE;
+    }
+
+    /**
+     * Returns maximum bytes of the disk cache of tile variants, requested with
+     * "fmt" and "scale" parameters. Default is
+     * {@link #DEFAULT_VARIANT_CACHE_SIZE}. Returning 0 disables the cache, and
+     * then variants are made for each request.
+     * 
+     * @return Maximum bytes of the variant cache.
+     */
+    protected long getVariantCacheSize() {
+        return MBTilesProvider.DEFAULT_VARIANT_CACHE_SIZE;
+    }
+
+    /**
+     * Whether tiles around requested ones are read into the tile cache in
+     * background. Default is true. Prefetch is disabled if the tile cache is
+     * disabled.
+     * 
+     * @return True if prefetch is enabled.
+     */
+    protected boolean isPrefetchEnabled() {
+        return true;
+    }
+
+    /**
+     * Whether missing tiles are rejected by the coverage index without
+     * querying the database. The index is built in background when a MBTiles
+     * file is opened, and saved in the cache directory. PMTiles files do not
+     * use it. Default is true.
+     * 
+     * @return True if the coverage index is used.
+     */
+    protected boolean isCoverageIndexEnabled() {
+        return true;
+    }
+
+    /**
+     * Whether tiles of read-only MBTiles files are read from memory-mapped
+     * files by {@link MappedMBTilesReader} instead of SQLite. Suitable for hot
+     * datasets which are not modified while opened. Tiles are not held in the
+     * tile cache, because mapped pages are cached by the kernel. Default is
+     * false.
+     * 
+     * @return True if memory-mapped files are used.
+     */
+    protected boolean isMappedReaderEnabled() {
+        return false;
+    }
+
+    /**
+     * Whether contents are streamed through pipes. If false, contents are
+     * written to temporary files. Default is true if the platform supports
+     * pipes (API level 9 or higher).
+     * 
+     * @return True if contents are streamed through pipes.
+     */
+    protected boolean isStreamingEnabled() {
+        return ContentPipe.isSupported();
+    }
+
+    /**
+     * Opens the file. Each request is recorded in serving metrics, which are
+     * read at {@link #STATS_PATH}.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode)
+            throws FileNotFoundException {
+        // Tiles and bundles are parsed without making segments.
+        TileRequest request = this.mTileRequest.get();
+        List<String> pathSegments = null;
+        String dataset;
+        int type;
+        if (request.parse(uri.getEncodedPath())) {
+            dataset = request.getDataset();
+            type = request.isBundle() ? ServingStats.TYPE_BUNDLE
+                    : ServingStats.TYPE_TILE;
+        } else {
+            request = null;
+            pathSegments = MBTilesProvider.getPathSegments(uri);
+            if (pathSegments.size() == 1
+                    && MBTilesProvider.STATS_PATH.equals(pathSegments.get(0))) {
+                return this.openStats(uri);
+            }
+            dataset = pathSegments.isEmpty() ? null : pathSegments.get(0);
+            type = MBTilesProvider.getRequestType(pathSegments);
+        }
+        ServingStats.Sample sample = this.mStats.begin(dataset, type);
+        // Events are for tiles and bundles.
+        TileRequestListener listener = type == ServingStats.TYPE_TILE
+                || type == ServingStats.TYPE_BUNDLE ? this.mListener : null;
+        boolean found = false;
+        try {
+            ParcelFileDescriptor ret;
+            if (request == null) {
+                ret = this.openFile(uri, pathSegments, sample);
+            } else if (request.isBundle()) {
+                ret = this.openBundle(dataset, request.getZ(),
+                        request.getX(), request.getXMax(), request.getY(),
+                        request.getYMax(), sample);
+            } else {
+                ret = this.openTile(dataset, request.getZ(), request.getX(),
+                        request.getY(), MBTilesProvider.getTileVariant(uri),
+                        sample);
+            }
+            found = true;
+            if (listener != null) {
+                listener.onDelivered(sample.getRequestId(), System.nanoTime(),
+                        sample.getDataset(), sample.getZ(), sample.getX(),
+                        sample.getY(), sample.getBytes());
+            }
+            return ret;
+        } catch (FileNotFoundException e) {
+            MBTilesProvider.notifyFailed(listener, sample, e);
+            throw e;
+        } catch (RuntimeException e) {
+            MBTilesProvider.notifyFailed(listener, sample, e);
+            throw e;
+        } finally {
+            this.mStats.end(sample, found);
+        }
+    }
+
+    /**
+     * Opens the file of the request.
+     * 
+     * @param uri
+     *            The URI.
+     * @param pathSegments
+     *            Non-empty path segments.
+     * @param sample
+     *            Sample of the request.
+     * @return ParcelFileDescriptor instane.
+     * @throws FileNotFoundException
+     *             Thrown if the content is not found or the path is invalid.
+     */
+    private ParcelFileDescriptor openFile(Uri uri, List<String> pathSegments,
+            ServingStats.Sample sample) throws FileNotFoundException {
+        switch (pathSegments.size()) {
+        case 4:
+            // /db/x/y/z.ext
+            String sz = pathSegments.get(1);
+            String sx = pathSegments.get(2);
+            String sye = pathSegments.get(3);
+            int z;
+            try {
+                z = Integer.parseInt(sz);
+            } catch (NumberFormatException e) {
+                throw new FileNotFoundException();
+            }
+            if (sye.endsWith(".bundle")) {
+                // /db/z/(x0-x1)/(y0-y1).bundle
+                int[] xr = MBTilesProvider.parseRange(sx);
+                int[] yr = MBTilesProvider.parseRange(sye.substring(0,
+                        sye.length() - 7));
+                return this.openBundle(pathSegments.get(0), z, xr[0], xr[1],
+                        yr[0], yr[1], sample);
+            }
+            String sy;
+            if (sye.indexOf('.') >= 0) {
+                sy = sye.substring(0, sye.indexOf('.'));
+            } else {
+                sy = sye;
+            }
+            int x, y;
+            try {
+                x = Integer.parseInt(sx);
+                y = Integer.parseInt(sy);
+            } catch (NumberFormatException e) {
+                throw new FileNotFoundException();
+            }
+            return this.openTile(pathSegments.get(0), z, x, y,
+                    MBTilesProvider.getTileVariant(uri), sample);
+        case 2:
+            // /(db)/metadata | (metaname)
+            this.lockForRead(sample);
+            try {
+                return this.openMetadata(uri, pathSegments, sample);
+            } finally {
+                this.mLifecycleLock.readLock().unlock();
+            }
+        case 1:
+            // (db)
+            String c1 = uri.getQueryParameter("c");
+            if ("close".equals(c1)) {
+                this.closeTileSource(pathSegments.get(0));
+            }
+            return this.deliver(new byte[] {}, sample);
+        case 0:
+            String c0 = uri.getQueryParameter("c");
+            if ("close".equals(c0)) {
+                this.closeAllTileSources();
+            }
+            return this.deliver(new byte[] {}, sample);
+        }
+        throw new FileNotFoundException("Invalid path");
+    }
+
+    /**
+     * Opens serving metrics as JSON, at
+     * "content://(authority)/_stats". Add "?c=reset" to clear metrics after
+     * reading them, or "?callback=(function name)" for JSONP.
+     * 
+     * The object has "since" (milliseconds since the epoch when metrics started
+     * or were reset), "now", "openDatasets", "tileCache" (counters of the tile
+     * cache, if created), "offHeapCache" (counters summed over off-heap caches
+     * of open datasets, if any), "variantCache" (counters of the disk cache of
+     * tile variants, if created) and "datasets". "datasets" maps each dataset
+     * name, or "_provider" for requests without a dataset, to metrics of each
+     * request type: "tile", "bundle", "metadata", "query" and "control".
+     * Metrics have "requests", "notFound", "cacheHits", "rejected" (by the
+     * coverage index), "bytes", and histograms "latency", "lockWait", "source"
+     * (SQLite or the mapped file) and "delivery" (opening the pipe or the
+     * temporary file). See {@link ServingStats}.
+     * 
+     * @param uri
+     *            The URI.
+     * @return ParcelFileDescriptor instane.
+     * @throws FileNotFoundException
+     *             Thrown if the content cannot be opened.
+     */
+    private ParcelFileDescriptor openStats(Uri uri)
+            throws FileNotFoundException {
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        this.mStats.appendJsonMembers(sb);
+        sb.append(",\"now\":").append(System.currentTimeMillis());
+        sb.append(",\"openDatasets\":").append(this.mMBTiles.size());
+        TileCache cache = this.mTileCache;
+        if (cache != null) {
+            sb.append(",\"tileCache\":{\"bytes\":").append(cache.getBytes());
+            sb.append(",\"maxBytes\":").append(cache.getMaxBytes());
+            sb.append(",\"hits\":").append(cache.getHitCount());
+            sb.append(",\"misses\":").append(cache.getMissCount());
+            sb.append(",\"evictions\":").append(cache.getEvictionCount());
+            sb.append(",\"prefetched\":").append(cache.getPrefetchCount());
+            sb.append(",\"prefetchHits\":").append(
+                    cache.getPrefetchHitCount());
+            sb.append('}');
+        }
+        this.appendOffHeapCacheJson(sb);
+        TileVariantCache variants = this.mVariantCache;
+        if (variants != null) {
+            sb.append(",\"variantCache\":{\"bytes\":").append(
+                    variants.getBytes());
+            sb.append(",\"maxBytes\":").append(variants.getMaxBytes());
+            sb.append(",\"count\":").append(variants.getCount());
+            sb.append(",\"hits\":").append(variants.getHitCount());
+            sb.append(",\"misses\":").append(variants.getMissCount());
+            sb.append(",\"evictions\":").append(variants.getEvictionCount());
+            sb.append(",\"puts\":").append(variants.getPutCount());
+            sb.append('}');
+        }
+        sb.append('}');
+        if ("reset".equals(uri.getQueryParameter("c"))) {
+            this.mStats.reset();
+        }
+        byte[] json;
+        try {
+            json = sb.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+        String callback = uri.getQueryParameter("callback");
+        if (callback != null) {
+            return this.createParcelFileDescriptor(this.wrapCallback(callback,
+                    json));
+        }
+        return this.createParcelFileDescriptor(json);
+    }
+
+    /**
+     * Appends "offHeapCache" member, counters summed over off-heap caches of
+     * open datasets. Appends nothing if no dataset has the cache.
+     * 
+     * @param sb
+     *            Receives the member, preceded by a comma.
+     */
+    private void appendOffHeapCacheJson(StringBuilder sb) {
+        int datasets = 0;
+        long bytes = 0;
+        long allocatedBytes = 0;
+        long maxBytes = 0;
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        for (OperatorHolder holder : this.mMBTiles.values()) {
+            SlabTileCache slab = holder.mSlabCache;
+            if (slab != null) {
+                datasets++;
+                bytes += slab.getBytes();
+                allocatedBytes += slab.getAllocatedBytes();
+                maxBytes += slab.getMaxBytes();
+                hits += slab.getHitCount();
+                misses += slab.getMissCount();
+                evictions += slab.getEvictionCount();
+            }
+        }
+        if (datasets == 0) {
+            return;
+        }
+        sb.append(",\"offHeapCache\":{\"datasets\":").append(datasets);
+        sb.append(",\"bytes\":").append(bytes);
+        sb.append(",\"allocatedBytes\":").append(allocatedBytes);
+        sb.append(",\"maxBytes\":").append(maxBytes);
+        sb.append(",\"hits\":").append(hits);
+        sb.append(",\"misses\":").append(misses);
+        sb.append(",\"evictions\":").append(evictions);
+        sb.append('}');
+    }
+
+    /**
+     * Opens metadata. Caller must hold the read lock.
+     * 
+     * @param uri
+     *            The URI.
+     * @param pathSegments
+     *            Non-empty path segments; (db) and "metadata" or (metaname).
+     * @param sample
+     *            Sample of the request.
+     * @return ParcelFileDescriptor instane.
+     * @throws FileNotFoundException
+     *             Thrown if the file or the metadata is not found.
+     */
+    private ParcelFileDescriptor openMetadata(Uri uri,
+            List<String> pathSegments, ServingStats.Sample sample)
+            throws FileNotFoundException {
+        long t = System.nanoTime();
+        TileSource op = this.getTileSource(pathSegments.get(0), true);
+        if (op == null) {
+            throw new FileNotFoundException();
+        }
+        MBTilesMetadata meta = op.getMetadata();
+        sample.addSourceTime(System.nanoTime() - t);
+        String callback = uri.getQueryParameter("callback");
+        byte[] content;
+        if ("metadata".equals(pathSegments.get(1))) {
+            // /(db)/metadata
+            if (meta.isEmpty()) {
+                throw new FileNotFoundException("No metadata found.");
+            }
+            if (uri.getQueryParameter("json") != null) {
+                content = meta.getJson();
+            } else if (callback != null) {
+                content = this.wrapCallback(callback, meta.getJson());
+            } else {
+                // simple value
+                content = meta.getText();
+            }
+        } else {
+            // (db)/(metaname)
+            String name = pathSegments.get(1);
+            byte[] json = meta.getSingleJson(name);
+            if (json == null) {
+                throw new FileNotFoundException(
+                        "Speified metadata not found.");
+            }
+            if (uri.getQueryParameter("json") != null) {
+                content = json;
+            } else if (callback != null) {
+                content = this.wrapCallback(callback, json);
+            } else {
+                // simple value
+                content = meta.getValueBytes(name);
+                if (content == null) {
+                    throw new FileNotFoundException(
+                            "Speified metadata not found.");
+                }
+            }
+        }
+        return this.deliver(content, sample);
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Calls {@link TileRequestListener#onFailed} if the listener is given.
+     * 
+     * @param listener
+     *            Listener. Can be null.
+     * @param sample
+     *            Sample of the request.
+     * @param error
+     *            Exception thrown.
+     */
+    private static void notifyFailed(TileRequestListener listener,
+            ServingStats.Sample sample, Exception error) {
+        if (listener != null) {
+            listener.onFailed(sample.getRequestId(), System.nanoTime(),
+                    sample.getDataset(), sample.getZ(), sample.getX(),
+                    sample.getY(), 0, error);
+        }
+    }
+
+    /**
+     * Gets the request type of the path for serving metrics.
+     * 
+     * @param pathSegments
+     *            Non-empty path segments.
+     * @return One of ServingStats.TYPE_*.
+     */
+    private static int getRequestType(List<String> pathSegments) {
+        switch (pathSegments.size()) {
+        case 4:
+            if (pathSegments.get(3).endsWith(".bundle")) {
+                return ServingStats.TYPE_BUNDLE;
+            }
+            return ServingStats.TYPE_TILE;
+        case 2:
+            return ServingStats.TYPE_METADATA;
+        default:
+            return ServingStats.TYPE_CONTROL;
+        }
+    }
+
+    /**
+     * Gets path segments removing empty ones.
+     * 
+     * @param uri
+     *            The URI.
+     * @return Non-empty path segments.
+     */
+    private static List<String> getPathSegments(Uri uri) {
+        // removes empty segments
+        List<String> rowPathSegments = uri.getPathSegments();
+        ArrayList<String> pathSegments = new ArrayList<String>();
+        if (rowPathSegments != null) {
+            for (String segment : rowPathSegments) {
+                if (segment != null && segment.length() > 0) {
+                    pathSegments.add(segment);
+                }
+            }
+        }
+        return pathSegments;
+    }
+
+    /**
+     * Gets the column type.
+     * 
+     * @param column
+     *            Column name.
+     * @return Column type.
+     * @throws IllegalArgumentException
+     *             Thrown if the column is unknown.
+     */
+    private static int getColumnType(String column) {
+        if (MBTilesProvider.COLUMN_ZOOM_LEVEL.equals(column)) {
+            return MBTilesProvider.COLUMN_TYPE_ZOOM_LEVEL;
+        } else if (MBTilesProvider.COLUMN_TILE_COLUMN.equals(column)) {
+            return MBTilesProvider.COLUMN_TYPE_TILE_COLUMN;
+        } else if (MBTilesProvider.COLUMN_TILE_ROW.equals(column)) {
+            return MBTilesProvider.COLUMN_TYPE_TILE_ROW;
+        } else if (MBTilesProvider.COLUMN_LENGTH.equals(column)) {
+            return MBTilesProvider.COLUMN_TYPE_LENGTH;
+        } else if (MBTilesProvider.COLUMN_TILE_DATA.equals(column)) {
+            return MBTilesProvider.COLUMN_TYPE_TILE_DATA;
+        }
+        throw new IllegalArgumentException("Unknown column: " + column);
+    }
+
+    /**
+     * Creates a row for {@link #query}.
+     * 
+     * @param columnTypes
+     *            Column types.
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param length
+     *            Length of the content.
+     * @param content
+     *            Content. Null if not read.
+     * @return Row.
+     */
+    private static Object[] createRow(int[] columnTypes, int z, int x, int y,
+            int length, byte[] content) {
+        Object[] row = new Object[columnTypes.length];
+        for (int n = 0; n < columnTypes.length; n++) {
+            switch (columnTypes[n]) {
+            case MBTilesProvider.COLUMN_TYPE_ZOOM_LEVEL:
+                row[n] = Integer.valueOf(z);
+                break;
+            case MBTilesProvider.COLUMN_TYPE_TILE_COLUMN:
+                row[n] = Integer.valueOf(x);
+                break;
+            case MBTilesProvider.COLUMN_TYPE_TILE_ROW:
+                row[n] = Integer.valueOf(y);
+                break;
+            case MBTilesProvider.COLUMN_TYPE_LENGTH:
+                row[n] = Integer.valueOf(length);
+                break;
+            case MBTilesProvider.COLUMN_TYPE_TILE_DATA:
+                row[n] = content;
+                break;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Parses integer query parameter.
+     * 
+     * @param uri
+     *            The URI.
+     * @param name
+     *            Parameter name.
+     * @param defaultValue
+     *            Returned if the parameter is not set.
+     * @return Parameter value.
+     * @throws IllegalArgumentException
+     *             Thrown if the value is not an integer.
+     */
+    private static int parseIntParameter(Uri uri, String name,
+            int defaultValue) {
+        String v = uri.getQueryParameter(name);
+        if (v == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + v);
+        }
+    }
+
+    /**
+     * Gets the variant requested by "fmt" and "scale" parameters.
+     * 
+     * @param uri
+     *            The URI.
+     * @return Variant. Null if not requested.
+     * @throws FileNotFoundException
+     *             Thrown if the parameters are invalid.
+     */
+    private static TileVariant getTileVariant(Uri uri)
+            throws FileNotFoundException {
+        if (uri.getEncodedQuery() == null) {
+            return null;
+        }
+        try {
+            return TileVariant.parse(uri.getQueryParameter("fmt"),
+                    uri.getQueryParameter("scale"));
+        } catch (IllegalArgumentException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+    }
+
+    /**
+     * Parses the range "(min)-(max)" or "(value)".
+     * 
+     * @param text
+     *            Range text.
+     * @return Minimum and maximum.
+     * @throws FileNotFoundException
+     *             Thrown if the text is invalid.
+     */
+    private static int[] parseRange(String text) throws FileNotFoundException {
+        int ix = text.indexOf('-', 1);
+        try {
+            int[] ret;
+            if (ix > 0) {
+                ret = new int[] { Integer.parseInt(text.substring(0, ix)),
+                        Integer.parseInt(text.substring(ix + 1)) };
+            } else {
+                int v = Integer.parseInt(text);
+                ret = new int[] { v, v };
+            }
+            if (ret[0] > ret[1]) {
+                throw new FileNotFoundException("Invalid range.");
+            }
+            return ret;
+        } catch (NumberFormatException e) {
+            throw new FileNotFoundException("Invalid range.");
+        }
+    }
+
+    /**
+     * Writes tiles as a bundle.
+     * 
+     * @param os
+     *            Destination.
+     * @param z
+     *            Zoom level.
+     * @param coords
+     *            Columns and rows.
+     * @param contents
+     *            Contents.
+     * @throws IOException
+     *             Thrown if failed to write.
+     */
+    private static void writeBundle(OutputStream os, int z,
+            List<int[]> coords, List<byte[]> contents) throws IOException {
+        TileBundleWriter writer = new TileBundleWriter(os);
+        for (int n = 0; n < coords.size(); n++) {
+            int[] xy = coords.get(n);
+            writer.writeTile(z, xy[0], xy[1], contents.get(n));
+        }
+        writer.finish();
+    }
+
+    /**
+     * Wraps JSON with the callback function for JSONP. If the function name is
+     * invalid, returns JSON as is.
+     * 
+     * @param callback
+     *            Function name.
+     * @param json
+     *            UTF-8 JSON text.
+     * @return UTF-8 JSONP text.
+     */
+    private byte[] wrapCallback(String callback, byte[] json) {
+        if (!MBTilesProvider.PTN_FUNCTIONNAME.matcher(callback).find()) {
+            return json;
+        }
+        // Function name consists of ASCII characters.
+        int len = callback.length();
+        byte[] ret = new byte[len + 1 + json.length + 2];
+        for (int n = 0; n < len; n++) {
+            ret[n] = (byte) callback.charAt(n);
+        }
+        ret[len] = '(';
+        System.arraycopy(json, 0, ret, len + 1, json.length);
+        ret[ret.length - 2] = ')';
+        ret[ret.length - 1] = ';';
+        return ret;
+    }
+
+    @Override
+    public void onLowMemory() {
+        // Releases cached tiles before closing databases.
+        if (this.mTileCache != null) {
+            this.mTileCache.evictAll();
+        }
+        this.evictSlabCaches();
+        this.closeAllTileSources();
+    }
+
+    /**
+     * Releases resources in stages. At first the tile cache is shrunk. Under
+     * more pressure, the caches, including off-heap ones, are cleared and
+     * datasets not used recently are closed. Hot datasets are closed only if
+     * the pressure is critical.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || level == MBTilesProvider.TRIM_MEMORY_RUNNING_CRITICAL) {
+            this.onLowMemory();
+            return;
+        }
+        TileCache cache = this.mTileCache;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == MBTilesProvider.TRIM_MEMORY_RUNNING_LOW) {
+            if (cache != null) {
+                cache.evictAll();
+            }
+            this.evictSlabCaches();
+            this.closeInBackground(this.evictDatasets(Integer.MAX_VALUE,
+                    MBTilesProvider.HOT_DATASET_MILLIS));
+        } else if (cache != null) {
+            cache.trimToSize(cache.getMaxBytes() / 2);
+        }
+    }
+
+    @Override
+    public int delete(Uri arg0, String arg1, String[] arg2) {
+        // DOES NOTHING
+        return 0;
+    }
+
+    @Override
     public String getType(Uri arg0) {
         // DOES NOTHING
         return null;
@@ -412,15 +2382,113 @@ public class MBTilesProvider extends ContentProvider {
 
     @Override
     public boolean onCreate() {
-        // DOES NOTHING
+        this.mListener = this.createTileRequestListener();
+        this.scheduleWarmUp();
         return false;
     }
 
+    /**
+     * Lists tiles. Queries
+     * "content://(authority)/(encoded mbtiles path)/tiles?z=(z)" with optional
+     * parameters xmin, xmax, ymin, ymax (inclusive), offset and limit.
+     * selection, selectionArgs and sortOrder are ignored. Rows are ordered by
+     * column and row.
+     * 
+     * Projection is made from {@link #COLUMN_ZOOM_LEVEL},
+     * {@link #COLUMN_TILE_COLUMN}, {@link #COLUMN_TILE_ROW},
+     * {@link #COLUMN_LENGTH} and {@link #COLUMN_TILE_DATA}. Default is
+     * {@link #COVERAGE_PROJECTION}. Without {@link #COLUMN_TILE_DATA}, contents
+     * are not read and a page has up to {@link #MAX_COVERAGE_PAGE_ROWS} rows.
+     * With it, a page has up to {@link #MAX_DATA_PAGE_ROWS} rows and ends
+     * after contents reach {@link #MAX_DATA_PAGE_BYTES}. To read next page,
+     * add the row count to offset.
+     * 
+     * @return Cursor. Null if the URI is not for tiles or the file is not
+     *         found.
+     * @throws IllegalArgumentException
+     *             Thrown if a parameter or the projection is invalid.
+     */
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
-        // DOES NOTHING
-        return null;
+        List<String> pathSegments = MBTilesProvider.getPathSegments(uri);
+        if (pathSegments.size() != 2 || !"tiles".equals(pathSegments.get(1))) {
+            return null;
+        }
+        final String[] columns = projection != null ? projection
+                : MBTilesProvider.COVERAGE_PROJECTION;
+        final int[] columnTypes = new int[columns.length];
+        boolean withData = false;
+        for (int n = 0; n < columns.length; n++) {
+            columnTypes[n] = MBTilesProvider.getColumnType(columns[n]);
+            if (columnTypes[n] == MBTilesProvider.COLUMN_TYPE_TILE_DATA) {
+                withData = true;
+            }
+        }
+        if (uri.getQueryParameter("z") == null) {
+            throw new IllegalArgumentException("z is required.");
+        }
+        int z = MBTilesProvider.parseIntParameter(uri, "z", 0);
+        int xmin = MBTilesProvider.parseIntParameter(uri, "xmin", 0);
+        int xmax = MBTilesProvider.parseIntParameter(uri, "xmax",
+                Integer.MAX_VALUE);
+        int ymin = MBTilesProvider.parseIntParameter(uri, "ymin", 0);
+        int ymax = MBTilesProvider.parseIntParameter(uri, "ymax",
+                Integer.MAX_VALUE);
+        int offset = MBTilesProvider.parseIntParameter(uri, "offset", 0);
+        int maxRows = withData ? MBTilesProvider.MAX_DATA_PAGE_ROWS
+                : MBTilesProvider.MAX_COVERAGE_PAGE_ROWS;
+        int limit = MBTilesProvider.parseIntParameter(uri, "limit", maxRows);
+        if (limit < 0 || limit > maxRows) {
+            limit = maxRows;
+        }
+        final MatrixCursor cursor = new MatrixCursor(columns, limit);
+        ServingStats.Sample sample = this.mStats.begin(pathSegments.get(0),
+                ServingStats.TYPE_QUERY);
+        boolean found = false;
+        this.lockForRead(sample);
+        try {
+            long t = System.nanoTime();
+            TileSource op = this.getTileSource(pathSegments.get(0), true);
+            if (op == null) {
+                return null;
+            }
+            if (withData) {
+                op.getTiles(z, xmin, xmax, ymin, ymax, offset, limit,
+                        new TileSource.TileVisitor() {
+                            private int mBytes = 0;
+
+                            @Override
+                            public boolean visit(int z, int x, int y,
+                                    byte[] content) {
+                                cursor.addRow(MBTilesProvider.createRow(
+                                        columnTypes, z, x, y, content.length,
+                                        content));
+                                this.mBytes += content.length;
+                                return this.mBytes < MBTilesProvider.MAX_DATA_PAGE_BYTES;
+                            }
+                        });
+            } else {
+                op.getCoverage(z, xmin, xmax, ymin, ymax, offset, limit,
+                        new TileSource.CoverageVisitor() {
+                            @Override
+                            public boolean visit(int z, int x, int y,
+                                    int length) {
+                                cursor.addRow(MBTilesProvider.createRow(
+                                        columnTypes, z, x, y, length, null));
+                                return true;
+                            }
+                        });
+            }
+            sample.addSourceTime(System.nanoTime() - t);
+            found = true;
+        } catch (FileNotFoundException e) {
+            return null;
+        } finally {
+            this.mLifecycleLock.readLock().unlock();
+            this.mStats.end(sample, found);
+        }
+        return cursor;
     }
 
     @Override
@@ -0,0 +1,402 @@
+package com.gmail.boiledorange73.and4.prv;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Tile or bundle request parsed from the encoded path,
+ * "/(db)/(z)/(x)/(y).(ext)" or "/(db)/(z)/(x0)-(x1)/(y0)-(y1).bundle".
+ * 
+ * The path is read once, character by character, into primitive fields, so
+ * that no segment list, substring nor regular expression is made. The object
+ * is mutable and reused by one thread; the decoded dataset name is kept while
+ * following paths have the same dataset segment. Paths not parsed cleanly,
+ * such as escapes in coordinates or invalid ranges, are rejected, and then
+ * must be parsed by the general way which reports the error.
+ */
+public class TileRequest {
+    /** Extension of the last segment. */
+    public enum Extension {
+        /** Means no extension. */
+        none,
+        /** Means ".png". */
+        png,
+        /** Means ".jpg". */
+        jpg,
+        /** Means ".jpeg". */
+        jpeg,
+        /** Means ".webp". */
+        webp,
+        /** Means ".pbf". */
+        pbf,
+        /** Means ".mvt". */
+        mvt,
+        /** Means ".bundle", the range of tiles. */
+        bundle,
+        /** Means other extensions. */
+        unknown
+    }
+
+    private static final Extension[] EXTENSIONS = { Extension.png,
+            Extension.jpg, Extension.jpeg, Extension.webp, Extension.pbf,
+            Extension.mvt, Extension.bundle };
+
+    private String mEncodedDataset = null;
+    private String mDataset = null;
+    private int mZ, mX, mY, mXMax, mYMax;
+    private Extension mExtension = Extension.none;
+
+    /** Set by {@link #parseRange}. */
+    private int mMin, mMax;
+    /** Set by {@link #parseInt}. */
+    private int mParsed;
+
+    /**
+     * Parses the encoded path. Empty segments are ignored, as
+     * MBTilesProvider does.
+     * 
+     * @param encodedPath
+     *            Encoded path of the URI. Can be null.
+     * @return True if the path is a tile or a bundle and all fields are set.
+     *         False if the path must be parsed by the general way.
+     */
+    public boolean parse(String encodedPath) {
+        if (encodedPath == null) {
+            return false;
+        }
+        int length = encodedPath.length();
+        // finds 4 non-empty segments
+        int ds = -1, de = -1, zs = -1, ze = -1, xs = -1, xe = -1;
+        int ys = -1, ye = -1;
+        int count = 0;
+        int pos = 0;
+        while (pos < length) {
+            if (encodedPath.charAt(pos) == '/') {
+                pos++;
+                continue;
+            }
+            int end = encodedPath.indexOf('/', pos);
+            if (end < 0) {
+                end = length;
+            }
+            switch (count) {
+            case 0:
+                ds = pos;
+                de = end;
+                break;
+            case 1:
+                zs = pos;
+                ze = end;
+                break;
+            case 2:
+                xs = pos;
+                xe = end;
+                break;
+            case 3:
+                ys = pos;
+                ye = end;
+                break;
+            default:
+                return false;
+            }
+            count++;
+            pos = end;
+        }
+        if (count != 4) {
+            return false;
+        }
+        // y and the extension
+        int yEnd = encodedPath.indexOf('.', ys);
+        Extension extension;
+        if (yEnd < 0 || yEnd >= ye) {
+            yEnd = ye;
+            extension = Extension.none;
+        } else {
+            extension = TileRequest.getExtension(encodedPath, yEnd + 1, ye);
+            if (extension == Extension.unknown
+                    && encodedPath.regionMatches(ye - 7, ".bundle", 0, 7)) {
+                // e.g. "(y).x.bundle", which the general way rejects.
+                return false;
+            }
+        }
+        // z
+        if (!this.parseRange(encodedPath, zs, ze, false)) {
+            return false;
+        }
+        int z = this.mMin;
+        boolean isBundle = extension == Extension.bundle;
+        if (!this.parseRange(encodedPath, xs, xe, isBundle)) {
+            return false;
+        }
+        int x = this.mMin;
+        int xMax = this.mMax;
+        if (!this.parseRange(encodedPath, ys, yEnd, isBundle)) {
+            return false;
+        }
+        if (!this.setDataset(encodedPath, ds, de)) {
+            return false;
+        }
+        this.mZ = z;
+        this.mX = x;
+        this.mXMax = xMax;
+        this.mY = this.mMin;
+        this.mYMax = this.mMax;
+        this.mExtension = extension;
+        return true;
+    }
+
+    /**
+     * Gets the dataset, the decoded first segment.
+     * 
+     * @return Dataset name (encoded filename).
+     */
+    public String getDataset() {
+        return this.mDataset;
+    }
+
+    /**
+     * Gets the zoom level.
+     * 
+     * @return Zoom level.
+     */
+    public int getZ() {
+        return this.mZ;
+    }
+
+    /**
+     * Gets the column. For bundles, the first column of the range.
+     * 
+     * @return Column.
+     */
+    public int getX() {
+        return this.mX;
+    }
+
+    /**
+     * Gets the row. For bundles, the first row of the range.
+     * 
+     * @return Row.
+     */
+    public int getY() {
+        return this.mY;
+    }
+
+    /**
+     * Gets the last column of the range. Same as {@link #getX()} for tiles.
+     * 
+     * @return Column.
+     */
+    public int getXMax() {
+        return this.mXMax;
+    }
+
+    /**
+     * Gets the last row of the range. Same as {@link #getY()} for tiles.
+     * 
+     * @return Row.
+     */
+    public int getYMax() {
+        return this.mYMax;
+    }
+
+    /**
+     * Gets the extension.
+     * 
+     * @return Extension. {@link Extension#bundle} for bundles.
+     */
+    public Extension getExtension() {
+        return this.mExtension;
+    }
+
+    /**
+     * Whether the request is a bundle.
+     * 
+     * @return True if a bundle.
+     */
+    public boolean isBundle() {
+        return this.mExtension == Extension.bundle;
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Parses "(value)", or "(min)-(max)" if allowed, into {@link #mMin} and
+     * {@link #mMax}.
+     * 
+     * @param text
+     *            Text.
+     * @param start
+     *            Start index, inclusive.
+     * @param end
+     *            End index, exclusive.
+     * @param allowRange
+     *            Whether "(min)-(max)" is allowed.
+     * @return True if parsed.
+     */
+    private boolean parseRange(String text, int start, int end,
+            boolean allowRange) {
+        int pos = this.parseInt(text, start, end);
+        if (pos < 0) {
+            return false;
+        }
+        this.mMin = this.mMax = this.mParsed;
+        if (pos == end) {
+            return true;
+        }
+        if (!allowRange || text.charAt(pos) != '-') {
+            return false;
+        }
+        int min = this.mParsed;
+        pos = this.parseInt(text, pos + 1, end);
+        if (pos != end || this.mParsed < min) {
+            return false;
+        }
+        this.mMin = min;
+        this.mMax = this.mParsed;
+        return true;
+    }
+
+    /**
+     * Sets the dataset. Decodes the segment only if it differs from the
+     * previous one.
+     * 
+     * @param text
+     *            Encoded path.
+     * @param start
+     *            Start index, inclusive.
+     * @param end
+     *            End index, exclusive.
+     * @return True if set. False if the segment has an invalid escape.
+     */
+    private boolean setDataset(String text, int start, int end) {
+        String prev = this.mEncodedDataset;
+        if (prev != null && prev.length() == end - start
+                && text.regionMatches(start, prev, 0, end - start)) {
+            return true;
+        }
+        String encoded = text.substring(start, end);
+        String decoded = TileRequest.decode(encoded);
+        if (decoded == null) {
+            return false;
+        }
+        this.mEncodedDataset = encoded;
+        this.mDataset = decoded;
+        return true;
+    }
+
+    /**
+     * Parses "-?[0-9]+" at the start into {@link #mParsed}.
+     * 
+     * @param text
+     *            Text.
+     * @param start
+     *            Start index, inclusive.
+     * @param end
+     *            End index, exclusive.
+     * @return Index after the number. -1 if no number or overflow.
+     */
+    private int parseInt(String text, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && text.charAt(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+        int digitsStart = pos;
+        // accumulates negatively so that Integer.MIN_VALUE can be parsed
+        long value = 0;
+        while (pos < end) {
+            char c = text.charAt(pos);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 - (c - '0');
+            if (value < Integer.MIN_VALUE) {
+                return -1;
+            }
+            pos++;
+        }
+        if (pos == digitsStart) {
+            return -1;
+        }
+        if (!negative) {
+            if (value == Integer.MIN_VALUE) {
+                return -1;
+            }
+            value = -value;
+        }
+        this.mParsed = (int) value;
+        return pos;
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Gets the extension of the text.
+     * 
+     * @param text
+     *            Text.
+     * @param start
+     *            Start index of the extension, after the dot.
+     * @param end
+     *            End index, exclusive.
+     * @return Extension. {@link Extension#unknown} if not known.
+     */
+    private static Extension getExtension(String text, int start, int end) {
+        int length = end - start;
+        for (Extension e : TileRequest.EXTENSIONS) {
+            String name = e.name();
+            if (name.length() == length
+                    && text.regionMatches(start, name, 0, length)) {
+                return e;
+            }
+        }
+        return Extension.unknown;
+    }
+
+    /**
+     * Decodes escapes "%XX" as UTF-8, as Uri#decode(String) does. "+" is not
+     * decoded.
+     * 
+     * @param encoded
+     *            Encoded text.
+     * @return Decoded text. Null if an escape is invalid.
+     */
+    private static String decode(String encoded) {
+        if (encoded.indexOf('%') < 0) {
+            return encoded;
+        }
+        StringBuilder sb = new StringBuilder(encoded.length());
+        byte[] bytes = new byte[encoded.length() / 3];
+        int pos = 0;
+        int length = encoded.length();
+        while (pos < length) {
+            char c = encoded.charAt(pos);
+            if (c != '%') {
+                sb.append(c);
+                pos++;
+                continue;
+            }
+            int n = 0;
+            while (pos < length && encoded.charAt(pos) == '%') {
+                if (pos + 2 >= length) {
+                    return null;
+                }
+                int hi = Character.digit(encoded.charAt(pos + 1), 16);
+                int lo = Character.digit(encoded.charAt(pos + 2), 16);
+                if (hi < 0 || lo < 0) {
+                    return null;
+                }
+                bytes[n++] = (byte) ((hi << 4) | lo);
+                pos += 3;
+            }
+            try {
+                sb.append(new String(bytes, 0, n, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                return null;
+            }
+        }
+        return sb.toString();
+    }
+}
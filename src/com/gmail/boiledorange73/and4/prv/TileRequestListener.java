@@ -0,0 +1,150 @@
+package com.gmail.boiledorange73.and4.prv;
+
+/**
+ * Receives lifecycle events of tile and bundle requests served by
+ * {@link MBTilesProvider}. Install it by overriding
+ * {@link MBTilesProvider#createTileRequestListener()}.
+ * 
+ * Events of one request are called on the thread serving it, in this order:
+ * request parsed, cache lookup (skipped for memory-mapped datasets), operator
+ * acquired, query done, and either delivered or failed. A request served from
+ * the cache skips operator acquired and query done. Failed can be called
+ * after any event, or without other events if the path is invalid.
+ * 
+ * Every event has the request id, which is unique in the provider, the time
+ * by {@link System#nanoTime()}, the dataset, z, x, y and a byte count. For
+ * bundles, x and y are the first column and row of the range. Coordinates
+ * not known yet are -1. Implementations are called on the serving path, so
+ * they must return quickly and must be thread-safe.
+ */
+public interface TileRequestListener {
+    /**
+     * Called when the path is parsed.
+     * 
+     * @param requestId
+     *            Request id.
+     * @param timeNanos
+     *            Time by {@link System#nanoTime()}.
+     * @param dataset
+     *            Dataset name (encoded filename).
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param bytes
+     *            Always 0.
+     */
+    void onRequestParsed(long requestId, long timeNanos, String dataset,
+            int z, int x, int y, long bytes);
+
+    /**
+     * Called when the tile cache is looked up.
+     * 
+     * @param requestId
+     *            Request id.
+     * @param timeNanos
+     *            Time by {@link System#nanoTime()}.
+     * @param dataset
+     *            Dataset name (encoded filename).
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param bytes
+     *            Size of the cached tile. -1 if missed.
+     */
+    void onCacheLookup(long requestId, long timeNanos, String dataset, int z,
+            int x, int y, long bytes);
+
+    /**
+     * Called when the operator of the dataset is acquired, after waiting for
+     * the lock and opening the dataset if not opened.
+     * 
+     * @param requestId
+     *            Request id.
+     * @param timeNanos
+     *            Time by {@link System#nanoTime()}.
+     * @param dataset
+     *            Dataset name (encoded filename).
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param bytes
+     *            Always 0.
+     */
+    void onOperatorAcquired(long requestId, long timeNanos, String dataset,
+            int z, int x, int y, long bytes);
+
+    /**
+     * Called when the query of SQLite or the mapped file is done.
+     * 
+     * @param requestId
+     *            Request id.
+     * @param timeNanos
+     *            Time by {@link System#nanoTime()}.
+     * @param dataset
+     *            Dataset name (encoded filename).
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param bytes
+     *            Bytes read. -1 if unknown.
+     */
+    void onQueryDone(long requestId, long timeNanos, String dataset, int z,
+            int x, int y, long bytes);
+
+    /**
+     * Called when the descriptor is handed to the client. Large contents may
+     * be still written to the pipe on a writer thread.
+     * 
+     * @param requestId
+     *            Request id.
+     * @param timeNanos
+     *            Time by {@link System#nanoTime()}.
+     * @param dataset
+     *            Dataset name (encoded filename).
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param bytes
+     *            Bytes delivered.
+     */
+    void onDelivered(long requestId, long timeNanos, String dataset, int z,
+            int x, int y, long bytes);
+
+    /**
+     * Called when the request fails, e.g. the tile is not found.
+     * 
+     * @param requestId
+     *            Request id.
+     * @param timeNanos
+     *            Time by {@link System#nanoTime()}.
+     * @param dataset
+     *            Dataset name (encoded filename).
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param bytes
+     *            Always 0.
+     * @param error
+     *            Exception thrown.
+     */
+    void onFailed(long requestId, long timeNanos, String dataset, int z,
+            int x, int y, long bytes, Exception error);
+}
@@ -0,0 +1,157 @@
+package com.gmail.boiledorange73.and4.prv;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Writes sections of {@link Trace}, which are shown by systrace. Each request
+ * is section "MBTiles request", and reading the dataset after a cache miss is
+ * nested section "MBTiles source". Does nothing below API level 18.
+ * 
+ * If detailed, the request section is named with the dataset and the
+ * coordinates, which allocates a string for each request.
+ */
+public class TraceTileRequestListener implements TileRequestListener {
+    /** Name of the section of each request. */
+    public static final String SECTION_REQUEST = "MBTiles request";
+    /** Name of the section reading the dataset. */
+    public static final String SECTION_SOURCE = "MBTiles source";
+    /** Maximum length of section names accepted by Trace. */
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+
+    private final boolean mDetailed;
+    /** Depth of open sections of each thread. */
+    private final ThreadLocal<int[]> mDepth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /**
+     * Constructor. Sections are not detailed.
+     */
+    public TraceTileRequestListener() {
+        this(false);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param detailed
+     *            Whether the request section is named with the dataset and
+     *            the coordinates.
+     */
+    public TraceTileRequestListener(boolean detailed) {
+        this.mDetailed = detailed;
+    }
+
+    /**
+     * Whether the platform supports Trace.
+     * 
+     * @return True if API level is 18 or higher.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= 18;
+    }
+
+    @Override
+    public void onRequestParsed(long requestId, long timeNanos,
+            String dataset, int z, int x, int y, long bytes) {
+        if (!TraceTileRequestListener.isSupported()) {
+            return;
+        }
+        this.endAll();
+        String name = TraceTileRequestListener.SECTION_REQUEST;
+        if (this.mDetailed) {
+            name = name + " " + dataset + "/" + z + "/" + x + "/" + y;
+            if (name.length() > TraceTileRequestListener.MAX_SECTION_NAME_LENGTH) {
+                name = name.substring(0,
+                        TraceTileRequestListener.MAX_SECTION_NAME_LENGTH);
+            }
+        }
+        this.begin(name);
+    }
+
+    @Override
+    public void onCacheLookup(long requestId, long timeNanos, String dataset,
+            int z, int x, int y, long bytes) {
+        if (!TraceTileRequestListener.isSupported()) {
+            return;
+        }
+        if (bytes < 0) {
+            this.begin(TraceTileRequestListener.SECTION_SOURCE);
+        }
+    }
+
+    @Override
+    public void onOperatorAcquired(long requestId, long timeNanos,
+            String dataset, int z, int x, int y, long bytes) {
+        // DOES NOTHING
+    }
+
+    @Override
+    public void onQueryDone(long requestId, long timeNanos, String dataset,
+            int z, int x, int y, long bytes) {
+        if (!TraceTileRequestListener.isSupported()) {
+            return;
+        }
+        // Ends the source section, if opened by the cache miss.
+        if (this.mDepth.get()[0] > 1) {
+            this.end();
+        }
+    }
+
+    @Override
+    public void onDelivered(long requestId, long timeNanos, String dataset,
+            int z, int x, int y, long bytes) {
+        if (TraceTileRequestListener.isSupported()) {
+            this.endAll();
+        }
+    }
+
+    @Override
+    public void onFailed(long requestId, long timeNanos, String dataset,
+            int z, int x, int y, long bytes, Exception error) {
+        if (TraceTileRequestListener.isSupported()) {
+            this.endAll();
+        }
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Begins the section.
+     * 
+     * @param name
+     *            Section name.
+     */
+    private void begin(String name) {
+        Trace.beginSection(name);
+        this.mDepth.get()[0]++;
+    }
+
+    /**
+     * Ends the innermost section.
+     */
+    private void end() {
+        int[] depth = this.mDepth.get();
+        if (depth[0] > 0) {
+            Trace.endSection();
+            depth[0]--;
+        }
+    }
+
+    /**
+     * Ends all sections opened on this thread, so that sections are
+     * balanced even if an event is skipped.
+     */
+    private void endAll() {
+        int[] depth = this.mDepth.get();
+        while (depth[0] > 0) {
+            Trace.endSection();
+            depth[0]--;
+        }
+    }
+}
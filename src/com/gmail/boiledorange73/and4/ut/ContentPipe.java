@@ -0,0 +1,302 @@
+package com.gmail.boiledorange73.and4.ut;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+
+/**
+ * Hands content to clients through a pipe instead of a temporary file. The
+ * client receives the read end and a writer pushes the content into the write
+ * end.
+ * 
+ * Requires {@link ParcelFileDescriptor#createPipe()} (API level 9). Check
+ * {@link #isSupported()} before using.
+ */
+public class ContentPipe {
+    /**
+     * Writes the content into the write end of the pipe.
+     */
+    public interface Writer {
+        /**
+         * Writes the content. The stream is closed by the caller.
+         * 
+         * @param os
+         *            Write end of the pipe.
+         * @throws IOException
+         *             Thrown if failed to write, e.g. the reader has gone.
+         */
+        void write(FileOutputStream os) throws IOException;
+    }
+
+    /**
+     * Size which every pipe can hold, PIPE_BUF of POSIX. Linux pipes are
+     * usually larger, but are shrunk to a page or two once the user has many
+     * pipes (pipe-user-pages-soft).
+     */
+    public static final int PIPE_BUF = 4096;
+    /**
+     * Contents up to this size are written on the calling thread. They fit in
+     * the pipe buffer so writing does not block. Writing more could block
+     * forever, because the client receives the read end only after writing.
+     */
+    public static final int DEFAULT_SYNC_WRITE_LIMIT = ContentPipe.PIPE_BUF;
+
+    private final String mName;
+    private final int mSyncWriteLimit;
+    private ExecutorService mExecutor = null;
+
+    /**
+     * Constructor.
+     * 
+     * @param name
+     *            Used to name writer threads, important only for debugging.
+     */
+    public ContentPipe(String name) {
+        this(name, ContentPipe.DEFAULT_SYNC_WRITE_LIMIT);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param name
+     *            Used to name writer threads, important only for debugging.
+     * @param syncWriteLimit
+     *            Contents up to this size are written on the calling thread.
+     *            Limited to {@link #PIPE_BUF}.
+     */
+    public ContentPipe(String name, int syncWriteLimit) {
+        this.mName = name;
+        this.mSyncWriteLimit = Math.min(syncWriteLimit, ContentPipe.PIPE_BUF);
+    }
+
+    /**
+     * Whether the platform supports pipes.
+     * 
+     * @return True if {@link ParcelFileDescriptor#createPipe()} is available.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= 9;
+    }
+
+    /**
+     * Opens a pipe and writes the content into it.
+     * 
+     * @param content
+     *            Content binary.
+     * @return Read end of the pipe.
+     * @throws FileNotFoundException
+     *             Thrown if the pipe cannot be created.
+     */
+    public ParcelFileDescriptor open(final byte[] content)
+            throws FileNotFoundException {
+        Writer writer = new Writer() {
+            @Override
+            public void write(FileOutputStream os) throws IOException {
+                os.write(content);
+            }
+        };
+        return this.open(writer, content.length <= this.mSyncWriteLimit);
+    }
+
+    /**
+     * Opens a pipe and writes the content into it. The buffer is written
+     * through the channel, so a mapped buffer is not copied to the Java heap.
+     * 
+     * @param content
+     *            Content from the position to the limit. Must not be modified
+     *            until written.
+     * @return Read end of the pipe.
+     * @throws FileNotFoundException
+     *             Thrown if the pipe cannot be created.
+     */
+    public ParcelFileDescriptor open(ByteBuffer content)
+            throws FileNotFoundException {
+        return this.open(content, null);
+    }
+
+    /**
+     * Opens a pipe and writes the content into it, and then runs the
+     * callback, e.g. to unpin the buffer. See {@link #open(ByteBuffer)}.
+     * 
+     * @param content
+     *            Content from the position to the limit. Must not be modified
+     *            until written.
+     * @param written
+     *            Run once after the content is written or failed to be
+     *            written, including when the pipe cannot be created. Can be
+     *            null.
+     * @return Read end of the pipe.
+     * @throws FileNotFoundException
+     *             Thrown if the pipe cannot be created.
+     */
+    public ParcelFileDescriptor open(ByteBuffer content,
+            final Runnable written) throws FileNotFoundException {
+        final ByteBuffer src = content.duplicate();
+        Writer writer = new Writer() {
+            @Override
+            public void write(FileOutputStream os) throws IOException {
+                try {
+                    FileChannel ch = os.getChannel();
+                    while (src.hasRemaining()) {
+                        ch.write(src);
+                    }
+                } finally {
+                    if (written != null) {
+                        written.run();
+                    }
+                }
+            }
+        };
+        try {
+            return this.open(writer, src.remaining() <= this.mSyncWriteLimit);
+        } catch (FileNotFoundException e) {
+            // The writer has not run.
+            if (written != null) {
+                written.run();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a pipe and lets the writer write into it on a writer thread.
+     * 
+     * @param writer
+     *            Writer which pushes the content.
+     * @return Read end of the pipe.
+     * @throws FileNotFoundException
+     *             Thrown if the pipe cannot be created.
+     */
+    public ParcelFileDescriptor open(Writer writer)
+            throws FileNotFoundException {
+        return this.open(writer, false);
+    }
+
+    /**
+     * Stops writer threads. Writers already running are not interrupted.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (this.mExecutor != null) {
+                this.mExecutor.shutdown();
+                this.mExecutor = null;
+            }
+        }
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Opens a pipe and runs the writer.
+     * 
+     * @param writer
+     *            Writer which pushes the content.
+     * @param sync
+     *            Whether runs the writer on the calling thread.
+     * @return Read end of the pipe.
+     * @throws FileNotFoundException
+     *             Thrown if the pipe cannot be created.
+     */
+    private ParcelFileDescriptor open(final Writer writer, boolean sync)
+            throws FileNotFoundException {
+        ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+        final ParcelFileDescriptor out = pipe[1];
+        if (sync) {
+            ContentPipe.write(writer, out);
+            return pipe[0];
+        }
+        try {
+            this.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    ContentPipe.write(writer, out);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            ContentPipe.closeQuietly(out);
+            ContentPipe.closeQuietly(pipe[0]);
+            throw new FileNotFoundException(e.getMessage());
+        }
+        return pipe[0];
+    }
+
+    /**
+     * Gets the executor for writer threads. If not created, will create it.
+     * 
+     * @return Executor.
+     */
+    private ExecutorService getExecutor() {
+        synchronized (this) {
+            if (this.mExecutor == null) {
+                final String name = this.mName;
+                this.mExecutor = Executors
+                        .newCachedThreadPool(new ThreadFactory() {
+                            private final AtomicInteger mCount = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, name + "-pipe-"
+                                        + this.mCount.incrementAndGet());
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+            }
+            return this.mExecutor;
+        }
+    }
+
+    /**
+     * Runs the writer and closes the write end.
+     * 
+     * @param writer
+     *            Writer which pushes the content.
+     * @param out
+     *            Write end of the pipe.
+     */
+    private static void write(Writer writer, ParcelFileDescriptor out) {
+        FileOutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(
+                out);
+        try {
+            writer.write(os);
+        } catch (IOException e) {
+            // The reader has closed the pipe. DOES NOTHING
+        } finally {
+            try {
+                os.close();
+            } catch (IOException e) {
+                // DOES NOTHING
+            }
+        }
+    }
+
+    /**
+     * Closes the descriptor ignoring errors.
+     * 
+     * @param pfd
+     *            Descriptor to close.
+     */
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        try {
+            pfd.close();
+        } catch (IOException e) {
+            // DOES NOTHING
+        }
+    }
+}
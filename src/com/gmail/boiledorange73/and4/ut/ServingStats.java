@@ -0,0 +1,655 @@
+package com.gmail.boiledorange73.and4.ut;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counters and latency histograms of requests served by a provider, per
+ * dataset and per request type. Recording takes a few atomic operations and
+ * allocates nothing after the first request of each dataset and type.
+ * 
+ * A request is recorded between {@link #begin(String, int)} and
+ * {@link #end(Sample, boolean)}. The sample is per thread, so a thread must
+ * end a request before beginning the next one.
+ * 
+ * Histograms have buckets of powers of 2 microseconds. Bucket 0 counts times
+ * less than 1 us, and bucket n counts times from 2^(n-1) us to less than 2^n
+ * us. Percentiles are upper bounds of buckets.
+ */
+public class ServingStats {
+    /** Tile requests. */
+    public static final int TYPE_TILE = 0;
+    /** Bundle requests. */
+    public static final int TYPE_BUNDLE = 1;
+    /** Metadata requests. */
+    public static final int TYPE_METADATA = 2;
+    /** Queries of tile lists. */
+    public static final int TYPE_QUERY = 3;
+    /** Control requests, e.g. closing datasets. */
+    public static final int TYPE_CONTROL = 4;
+    /** Names of types used in JSON. */
+    private static final String[] TYPE_NAMES = { "tile", "bundle",
+            "metadata", "query", "control" };
+
+    /** Dataset name of requests which do not target a dataset. */
+    public static final String PROVIDER_DATASET = "_provider";
+    /** Dataset name which aggregates datasets over the limit. */
+    public static final String OTHER_DATASET = "_other";
+    /**
+     * Maximum number of datasets counted separately, so that requests for
+     * random names do not grow the table without limit.
+     */
+    public static final int MAX_DATASETS = 64;
+    /** The number of histogram buckets. */
+    public static final int BUCKETS = 32;
+
+    /**
+     * Latency histogram.
+     */
+    public static final class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(
+                ServingStats.BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSumMicros = new AtomicLong();
+        private final AtomicLong mMaxMicros = new AtomicLong();
+
+        /**
+         * Records the time.
+         * 
+         * @param nanos
+         *            Time in nanoseconds.
+         */
+        public void record(long nanos) {
+            long micros = nanos / 1000;
+            if (micros < 0) {
+                micros = 0;
+            }
+            int bucket = micros == 0 ? 0 : 64 - Long
+                    .numberOfLeadingZeros(micros);
+            if (bucket >= ServingStats.BUCKETS) {
+                bucket = ServingStats.BUCKETS - 1;
+            }
+            this.mBuckets.incrementAndGet(bucket);
+            this.mCount.incrementAndGet();
+            this.mSumMicros.addAndGet(micros);
+            long max = this.mMaxMicros.get();
+            while (micros > max
+                    && !this.mMaxMicros.compareAndSet(max, micros)) {
+                max = this.mMaxMicros.get();
+            }
+        }
+
+        /**
+         * Gets the number of recorded times.
+         * 
+         * @return The number of times.
+         */
+        public long getCount() {
+            return this.mCount.get();
+        }
+
+        /**
+         * Gets the upper bound of the percentile.
+         * 
+         * @param percent
+         *            Percentile, from 0 to 100.
+         * @return Microseconds. 0 if nothing is recorded.
+         */
+        public long getPercentileMicros(double percent) {
+            long[] buckets = new long[ServingStats.BUCKETS];
+            long count = 0;
+            for (int n = 0; n < buckets.length; n++) {
+                buckets[n] = this.mBuckets.get(n);
+                count += buckets[n];
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percent / 100.0);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int n = 0; n < buckets.length; n++) {
+                seen += buckets[n];
+                if (seen >= rank) {
+                    return Math.min(1L << n, this.mMaxMicros.get());
+                }
+            }
+            return this.mMaxMicros.get();
+        }
+
+        /**
+         * Clears recorded times.
+         */
+        public void reset() {
+            for (int n = 0; n < ServingStats.BUCKETS; n++) {
+                this.mBuckets.set(n, 0);
+            }
+            this.mCount.set(0);
+            this.mSumMicros.set(0);
+            this.mMaxMicros.set(0);
+        }
+
+        /**
+         * Appends the histogram as a JSON object. Trailing empty buckets are
+         * omitted.
+         * 
+         * @param sb
+         *            Destination.
+         */
+        public void appendJson(StringBuilder sb) {
+            sb.append("{\"count\":").append(this.mCount.get());
+            sb.append(",\"sumUs\":").append(this.mSumMicros.get());
+            sb.append(",\"maxUs\":").append(this.mMaxMicros.get());
+            sb.append(",\"p50Us\":").append(this.getPercentileMicros(50));
+            sb.append(",\"p90Us\":").append(this.getPercentileMicros(90));
+            sb.append(",\"p99Us\":").append(this.getPercentileMicros(99));
+            int last = ServingStats.BUCKETS - 1;
+            while (last >= 0 && this.mBuckets.get(last) == 0) {
+                last--;
+            }
+            sb.append(",\"buckets\":[");
+            for (int n = 0; n <= last; n++) {
+                if (n > 0) {
+                    sb.append(',');
+                }
+                sb.append(this.mBuckets.get(n));
+            }
+            sb.append("]}");
+        }
+    }
+
+    /**
+     * Metrics of one request type of one dataset.
+     */
+    public static final class Metrics {
+        private final AtomicLong mRequests = new AtomicLong();
+        private final AtomicLong mNotFound = new AtomicLong();
+        private final AtomicLong mCacheHits = new AtomicLong();
+        private final AtomicLong mRejected = new AtomicLong();
+        private final AtomicLong mBytes = new AtomicLong();
+        private final Histogram mLatency = new Histogram();
+        private final Histogram mLockWait = new Histogram();
+        private final Histogram mSource = new Histogram();
+        private final Histogram mDelivery = new Histogram();
+
+        /**
+         * Gets the number of requests.
+         * 
+         * @return The number of requests.
+         */
+        public long getRequestCount() {
+            return this.mRequests.get();
+        }
+
+        /**
+         * Gets the number of requests which failed, e.g. missing tiles.
+         * 
+         * @return The number of failed requests.
+         */
+        public long getNotFoundCount() {
+            return this.mNotFound.get();
+        }
+
+        /**
+         * Gets the number of requests served from the cache.
+         * 
+         * @return The number of cache hits.
+         */
+        public long getCacheHitCount() {
+            return this.mCacheHits.get();
+        }
+
+        /**
+         * Gets the number of requests rejected without reading the source,
+         * e.g. by the coverage index.
+         * 
+         * @return The number of rejected requests.
+         */
+        public long getRejectedCount() {
+            return this.mRejected.get();
+        }
+
+        /**
+         * Gets bytes served.
+         * 
+         * @return Bytes.
+         */
+        public long getBytes() {
+            return this.mBytes.get();
+        }
+
+        /**
+         * Gets the histogram of the whole time of requests.
+         * 
+         * @return Histogram.
+         */
+        public Histogram getLatency() {
+            return this.mLatency;
+        }
+
+        /**
+         * Gets the histogram of time waiting for the lock.
+         * 
+         * @return Histogram.
+         */
+        public Histogram getLockWait() {
+            return this.mLockWait;
+        }
+
+        /**
+         * Gets the histogram of time reading the source, SQLite or the mapped
+         * file.
+         * 
+         * @return Histogram.
+         */
+        public Histogram getSourceTime() {
+            return this.mSource;
+        }
+
+        /**
+         * Gets the histogram of time handing contents to the client, opening
+         * the pipe or the temporary file and writing small contents.
+         * 
+         * @return Histogram.
+         */
+        public Histogram getDeliveryTime() {
+            return this.mDelivery;
+        }
+
+        /**
+         * Clears all counters and histograms.
+         */
+        public void reset() {
+            this.mRequests.set(0);
+            this.mNotFound.set(0);
+            this.mCacheHits.set(0);
+            this.mRejected.set(0);
+            this.mBytes.set(0);
+            this.mLatency.reset();
+            this.mLockWait.reset();
+            this.mSource.reset();
+            this.mDelivery.reset();
+        }
+
+        /**
+         * Appends the metrics as a JSON object.
+         * 
+         * @param sb
+         *            Destination.
+         */
+        public void appendJson(StringBuilder sb) {
+            sb.append("{\"requests\":").append(this.mRequests.get());
+            sb.append(",\"notFound\":").append(this.mNotFound.get());
+            sb.append(",\"cacheHits\":").append(this.mCacheHits.get());
+            sb.append(",\"rejected\":").append(this.mRejected.get());
+            sb.append(",\"bytes\":").append(this.mBytes.get());
+            sb.append(",\"latency\":");
+            this.mLatency.appendJson(sb);
+            sb.append(",\"lockWait\":");
+            this.mLockWait.appendJson(sb);
+            sb.append(",\"source\":");
+            this.mSource.appendJson(sb);
+            sb.append(",\"delivery\":");
+            this.mDelivery.appendJson(sb);
+            sb.append('}');
+        }
+    }
+
+    /**
+     * One request being recorded. Times are added up, so a stage can be
+     * measured in pieces.
+     */
+    public static final class Sample {
+        private long mRequestId;
+        private String mDataset;
+        private int mType;
+        private int mZ;
+        private int mX;
+        private int mY;
+        private long mStart;
+        private long mLockWait;
+        private long mSource;
+        private long mDelivery;
+        private long mBytes;
+        private boolean mCacheHit;
+        private boolean mRejected;
+        private boolean mActive;
+
+        /**
+         * Gets the request id, which is unique in the ServingStats instance.
+         * 
+         * @return Request id.
+         */
+        public long getRequestId() {
+            return this.mRequestId;
+        }
+
+        /**
+         * Gets the dataset.
+         * 
+         * @return Dataset name. Null for requests which do not target a
+         *         dataset.
+         */
+        public String getDataset() {
+            return this.mDataset;
+        }
+
+        /**
+         * Gets the zoom level.
+         * 
+         * @return Zoom level. -1 if not set.
+         */
+        public int getZ() {
+            return this.mZ;
+        }
+
+        /**
+         * Gets the column.
+         * 
+         * @return Column. -1 if not set.
+         */
+        public int getX() {
+            return this.mX;
+        }
+
+        /**
+         * Gets the row.
+         * 
+         * @return Row. -1 if not set.
+         */
+        public int getY() {
+            return this.mY;
+        }
+
+        /**
+         * Sets coordinates of the tile, after they are parsed.
+         * 
+         * @param z
+         *            Zoom level.
+         * @param x
+         *            Column.
+         * @param y
+         *            Row.
+         */
+        public void setTile(int z, int x, int y) {
+            this.mZ = z;
+            this.mX = x;
+            this.mY = y;
+        }
+
+        /**
+         * Gets bytes served so far.
+         * 
+         * @return Bytes.
+         */
+        public long getBytes() {
+            return this.mBytes;
+        }
+
+        /**
+         * Sets the dataset, if it is not known when the request begins.
+         * 
+         * @param dataset
+         *            Dataset name.
+         */
+        public void setDataset(String dataset) {
+            this.mDataset = dataset;
+        }
+
+        /**
+         * Adds time waiting for the lock.
+         * 
+         * @param nanos
+         *            Nanoseconds.
+         */
+        public void addLockWait(long nanos) {
+            this.mLockWait += nanos;
+        }
+
+        /**
+         * Adds time reading the source.
+         * 
+         * @param nanos
+         *            Nanoseconds.
+         */
+        public void addSourceTime(long nanos) {
+            this.mSource += nanos;
+        }
+
+        /**
+         * Adds time handing the content to the client.
+         * 
+         * @param nanos
+         *            Nanoseconds.
+         */
+        public void addDeliveryTime(long nanos) {
+            this.mDelivery += nanos;
+        }
+
+        /**
+         * Adds bytes served.
+         * 
+         * @param bytes
+         *            Bytes. Ignored if negative (unknown).
+         */
+        public void addBytes(long bytes) {
+            if (bytes > 0) {
+                this.mBytes += bytes;
+            }
+        }
+
+        /**
+         * Marks the request as served from the cache.
+         */
+        public void setCacheHit() {
+            this.mCacheHit = true;
+        }
+
+        /**
+         * Marks the request as rejected without reading the source.
+         */
+        public void setRejected() {
+            this.mRejected = true;
+        }
+    }
+
+    private final ConcurrentHashMap<String, AtomicReferenceArray<Metrics>> mDatasets = new ConcurrentHashMap<String, AtomicReferenceArray<Metrics>>();
+    private final ThreadLocal<Sample> mSamples = new ThreadLocal<Sample>() {
+        @Override
+        protected Sample initialValue() {
+            return new Sample();
+        }
+    };
+    private volatile long mSince = System.currentTimeMillis();
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * Begins recording a request on this thread.
+     * 
+     * @param dataset
+     *            Dataset name. Null for requests which do not target a
+     *            dataset.
+     * @param type
+     *            One of TYPE_*.
+     * @return Sample of this thread.
+     */
+    public Sample begin(String dataset, int type) {
+        Sample s = this.mSamples.get();
+        s.mRequestId = this.mSequence.incrementAndGet();
+        s.mDataset = dataset;
+        s.mType = type;
+        s.mZ = -1;
+        s.mX = -1;
+        s.mY = -1;
+        s.mLockWait = 0;
+        s.mSource = 0;
+        s.mDelivery = 0;
+        s.mBytes = 0;
+        s.mCacheHit = false;
+        s.mRejected = false;
+        s.mActive = true;
+        s.mStart = System.nanoTime();
+        return s;
+    }
+
+    /**
+     * Ends recording the request and adds it to the metrics.
+     * 
+     * @param sample
+     *            Sample returned by {@link #begin(String, int)}.
+     * @param found
+     *            False if the request failed.
+     */
+    public void end(Sample sample, boolean found) {
+        if (!sample.mActive) {
+            return;
+        }
+        sample.mActive = false;
+        long latency = System.nanoTime() - sample.mStart;
+        Metrics m = this.getMetrics(sample.mDataset, sample.mType);
+        m.mRequests.incrementAndGet();
+        if (!found) {
+            m.mNotFound.incrementAndGet();
+        }
+        if (sample.mCacheHit) {
+            m.mCacheHits.incrementAndGet();
+        }
+        if (sample.mRejected) {
+            m.mRejected.incrementAndGet();
+        }
+        if (sample.mBytes > 0) {
+            m.mBytes.addAndGet(sample.mBytes);
+        }
+        m.mLatency.record(latency);
+        m.mLockWait.record(sample.mLockWait);
+        if (sample.mSource > 0) {
+            m.mSource.record(sample.mSource);
+        }
+        if (sample.mDelivery > 0) {
+            m.mDelivery.record(sample.mDelivery);
+        }
+    }
+
+    /**
+     * Gets metrics of the dataset and the type. If not created, will create
+     * it.
+     * 
+     * @param dataset
+     *            Dataset name. Null for requests which do not target a
+     *            dataset.
+     * @param type
+     *            One of TYPE_*.
+     * @return Metrics.
+     */
+    public Metrics getMetrics(String dataset, int type) {
+        String key = dataset != null ? dataset : ServingStats.PROVIDER_DATASET;
+        AtomicReferenceArray<Metrics> types = this.mDatasets.get(key);
+        if (types == null) {
+            if (this.mDatasets.size() >= ServingStats.MAX_DATASETS) {
+                key = ServingStats.OTHER_DATASET;
+            }
+            AtomicReferenceArray<Metrics> newTypes = new AtomicReferenceArray<Metrics>(
+                    ServingStats.TYPE_NAMES.length);
+            types = this.mDatasets.putIfAbsent(key, newTypes);
+            if (types == null) {
+                types = newTypes;
+            }
+        }
+        Metrics m = types.get(type);
+        if (m == null) {
+            Metrics newMetrics = new Metrics();
+            if (types.compareAndSet(type, null, newMetrics)) {
+                m = newMetrics;
+            } else {
+                m = types.get(type);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Clears all metrics. Requests being recorded are added after reset.
+     */
+    public void reset() {
+        this.mDatasets.clear();
+        this.mSince = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the time when recording started or was reset.
+     * 
+     * @return Milliseconds since the epoch.
+     */
+    public long getSince() {
+        return this.mSince;
+    }
+
+    /**
+     * Appends members "since" and "datasets" of a JSON object.
+     * 
+     * @param sb
+     *            Destination.
+     */
+    public void appendJsonMembers(StringBuilder sb) {
+        sb.append("\"since\":").append(this.mSince);
+        sb.append(",\"datasets\":{");
+        boolean first = true;
+        for (Map.Entry<String, AtomicReferenceArray<Metrics>> entry : this.mDatasets
+                .entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            ServingStats.appendJsonString(sb, entry.getKey());
+            sb.append(":{");
+            AtomicReferenceArray<Metrics> types = entry.getValue();
+            boolean firstType = true;
+            for (int n = 0; n < types.length(); n++) {
+                Metrics m = types.get(n);
+                if (m == null) {
+                    continue;
+                }
+                if (!firstType) {
+                    sb.append(',');
+                }
+                firstType = false;
+                ServingStats.appendJsonString(sb, ServingStats.TYPE_NAMES[n]);
+                sb.append(':');
+                m.appendJson(sb);
+            }
+            sb.append('}');
+        }
+        sb.append('}');
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Appends quoted JSON string.
+     * 
+     * @param sb
+     *            Destination.
+     * @param v
+     *            String.
+     */
+    public static void appendJsonString(StringBuilder sb, String v) {
+        sb.append('"');
+        for (int n = 0; n < v.length(); n++) {
+            char c = v.charAt(n);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", Integer.valueOf(c)));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
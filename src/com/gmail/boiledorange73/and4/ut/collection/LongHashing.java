@@ -0,0 +1,68 @@
+package com.gmail.boiledorange73.and4.ut.collection;
+
+/**
+ * Sizing and hashing shared by open-addressing maps of long keys. Tables
+ * have power-of-two capacity and are filled up to 3/4.
+ */
+final class LongHashing {
+    /** Minimum capacity of tables. */
+    static final int MIN_CAPACITY = 8;
+    /** Maximum capacity of tables. */
+    static final int MAX_CAPACITY = 1 << 30;
+
+    private LongHashing() {
+    }
+
+    /**
+     * Gets the capacity which holds the entries without growing.
+     * 
+     * @param expectedSize
+     *            Expected number of entries.
+     * @return Power of two.
+     */
+    static int capacityFor(int expectedSize) {
+        long needed = (long) expectedSize * 4 / 3 + 1;
+        int capacity = LongHashing.MIN_CAPACITY;
+        while (capacity < needed && capacity < LongHashing.MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Gets the number of entries after which the table grows.
+     * 
+     * @param capacity
+     *            Capacity.
+     * @return Threshold.
+     */
+    static int thresholdOf(int capacity) {
+        return capacity / 4 * 3;
+    }
+
+    /**
+     * Gets the shift of {@link #slot(long, int)}.
+     * 
+     * @param capacity
+     *            Capacity, power of two.
+     * @return 64 - log2(capacity).
+     */
+    static int shiftOf(int capacity) {
+        return Long.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    /**
+     * Gets the home slot of the key. Multiplies by the golden ratio and takes
+     * the upper bits, so that packed coordinates, whose lower bits vary
+     * little, spread over the table.
+     * 
+     * @param key
+     *            Key.
+     * @param shift
+     *            Made by {@link #shiftOf(int)}.
+     * @return Slot.
+     */
+    static int slot(long key, int shift) {
+        return (int) ((key * 0x9e3779b97f4a7c15L) >>> shift);
+    }
+}
@@ -0,0 +1,329 @@
+package com.gmail.boiledorange73.and4.ut.collection;
+
+import java.util.Arrays;
+
+/**
+ * Map from long keys to int values, e.g. counters per tile, without boxing.
+ * Same table as {@link LongObjectMap}: keys and values in two arrays probed
+ * linearly, and removal without tombstones.
+ * 
+ * Not thread-safe.
+ */
+public class LongIntMap {
+    /**
+     * Receives entries of {@link LongIntMap#forEach(Visitor)}.
+     */
+    public interface Visitor {
+        /**
+         * Called for each entry. The map must not be modified.
+         * 
+         * @param key
+         *            Key.
+         * @param value
+         *            Value.
+         * @return False to stop.
+         */
+        boolean visit(long key, int value);
+    }
+
+    /** Key marking free slots. Entry of this key is held out of the table. */
+    private static final long FREE = 0;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int mShift;
+    private int mMask;
+    private int mThreshold;
+    /** The number of entries in the table, excluding the free key. */
+    private int mTableSize = 0;
+    private boolean mHasFreeKey = false;
+    private int mFreeKeyValue = 0;
+
+    /**
+     * Constructor.
+     */
+    public LongIntMap() {
+        this(LongHashing.MIN_CAPACITY / 2);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param expectedSize
+     *            Expected number of entries. Held without growing.
+     */
+    public LongIntMap(int expectedSize) {
+        this.allocate(LongHashing.capacityFor(expectedSize));
+    }
+
+    /**
+     * Gets the number of entries.
+     * 
+     * @return The number of entries.
+     */
+    public int size() {
+        return this.mTableSize + (this.mHasFreeKey ? 1 : 0);
+    }
+
+    /**
+     * Whether the map has no entry.
+     * 
+     * @return True if empty.
+     */
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * Gets the value.
+     * 
+     * @param key
+     *            Key.
+     * @param defaultValue
+     *            Returned if not found.
+     * @return Value.
+     */
+    public int get(long key, int defaultValue) {
+        if (key == LongIntMap.FREE) {
+            return this.mHasFreeKey ? this.mFreeKeyValue : defaultValue;
+        }
+        int i = this.indexOf(key);
+        return i >= 0 ? this.mValues[i] : defaultValue;
+    }
+
+    /**
+     * Whether the map has the key.
+     * 
+     * @param key
+     *            Key.
+     * @return True if found.
+     */
+    public boolean containsKey(long key) {
+        if (key == LongIntMap.FREE) {
+            return this.mHasFreeKey;
+        }
+        return this.indexOf(key) >= 0;
+    }
+
+    /**
+     * Puts the value.
+     * 
+     * @param key
+     *            Key.
+     * @param value
+     *            Value.
+     */
+    public void put(long key, int value) {
+        if (key == LongIntMap.FREE) {
+            this.mHasFreeKey = true;
+            this.mFreeKeyValue = value;
+            return;
+        }
+        int i = this.indexOf(key);
+        if (i < 0) {
+            i = this.insert(key, i);
+        }
+        this.mValues[i] = value;
+    }
+
+    /**
+     * Adds to the value. Entries not found start at 0.
+     * 
+     * @param key
+     *            Key.
+     * @param delta
+     *            Value to add.
+     * @return New value.
+     */
+    public int increment(long key, int delta) {
+        if (key == LongIntMap.FREE) {
+            if (!this.mHasFreeKey) {
+                this.mHasFreeKey = true;
+                this.mFreeKeyValue = 0;
+            }
+            return this.mFreeKeyValue += delta;
+        }
+        int i = this.indexOf(key);
+        if (i < 0) {
+            i = this.insert(key, i);
+            this.mValues[i] = 0;
+        }
+        return this.mValues[i] += delta;
+    }
+
+    /**
+     * Removes the entry.
+     * 
+     * @param key
+     *            Key.
+     * @return True if removed.
+     */
+    public boolean remove(long key) {
+        if (key == LongIntMap.FREE) {
+            boolean ret = this.mHasFreeKey;
+            this.mHasFreeKey = false;
+            return ret;
+        }
+        int i = this.indexOf(key);
+        if (i < 0) {
+            return false;
+        }
+        this.removeAt(i);
+        return true;
+    }
+
+    /**
+     * Removes all entries. Keeps the capacity.
+     */
+    public void clear() {
+        Arrays.fill(this.mKeys, LongIntMap.FREE);
+        this.mTableSize = 0;
+        this.mHasFreeKey = false;
+    }
+
+    /**
+     * Visits all entries in no particular order.
+     * 
+     * @param visitor
+     *            Receives entries.
+     * @return The number of entries visited.
+     */
+    public int forEach(Visitor visitor) {
+        int count = 0;
+        if (this.mHasFreeKey) {
+            count++;
+            if (!visitor.visit(LongIntMap.FREE, this.mFreeKeyValue)) {
+                return count;
+            }
+        }
+        long[] keys = this.mKeys;
+        int[] values = this.mValues;
+        for (int n = 0; n < keys.length; n++) {
+            if (keys[n] != LongIntMap.FREE) {
+                count++;
+                if (!visitor.visit(keys[n], values[n])) {
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Finds the slot of the key.
+     * 
+     * @param key
+     *            Key, not {@link #FREE}.
+     * @return Slot. If not found, -1 - (free slot to insert).
+     */
+    private int indexOf(long key) {
+        long[] keys = this.mKeys;
+        int mask = this.mMask;
+        int i = LongHashing.slot(key, this.mShift);
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                return i;
+            }
+            if (k == LongIntMap.FREE) {
+                return -1 - i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Inserts the key not found. Grows the table if needed.
+     * 
+     * @param key
+     *            Key, not {@link #FREE}.
+     * @param notFound
+     *            Returned by {@link #indexOf(long)}.
+     * @return Slot of the key. The value is not set.
+     */
+    private int insert(long key, int notFound) {
+        if (this.mTableSize >= this.mThreshold) {
+            this.grow();
+            notFound = this.indexOf(key);
+        }
+        int i = -1 - notFound;
+        this.mKeys[i] = key;
+        this.mTableSize++;
+        return i;
+    }
+
+    /**
+     * Removes the entry of the slot, shifting back following entries which
+     * cannot be found past the gap.
+     * 
+     * @param i
+     *            Slot.
+     */
+    private void removeAt(int i) {
+        long[] keys = this.mKeys;
+        int[] values = this.mValues;
+        int mask = this.mMask;
+        int gap = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            long k = keys[j];
+            if (k == LongIntMap.FREE) {
+                break;
+            }
+            int home = LongHashing.slot(k, this.mShift);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = k;
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = LongIntMap.FREE;
+        this.mTableSize--;
+    }
+
+    /**
+     * Allocates empty table.
+     * 
+     * @param capacity
+     *            Capacity, power of two.
+     */
+    private void allocate(int capacity) {
+        this.mKeys = new long[capacity];
+        this.mValues = new int[capacity];
+        this.mShift = LongHashing.shiftOf(capacity);
+        this.mMask = capacity - 1;
+        this.mThreshold = LongHashing.thresholdOf(capacity);
+    }
+
+    /**
+     * Doubles the table.
+     * 
+     * @throws IllegalStateException
+     *             Thrown if the table cannot grow.
+     */
+    private void grow() {
+        long[] oldKeys = this.mKeys;
+        int[] oldValues = this.mValues;
+        if (oldKeys.length >= LongHashing.MAX_CAPACITY) {
+            throw new IllegalStateException("Map is full.");
+        }
+        this.allocate(oldKeys.length * 2);
+        long[] keys = this.mKeys;
+        int mask = this.mMask;
+        for (int n = 0; n < oldKeys.length; n++) {
+            long k = oldKeys[n];
+            if (k != LongIntMap.FREE) {
+                int i = LongHashing.slot(k, this.mShift);
+                while (keys[i] != LongIntMap.FREE) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = k;
+                this.mValues[i] = oldValues[n];
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.gmail.boiledorange73.and4.ut.collection;
+
+import java.util.Arrays;
+
+/**
+ * Map from long keys to objects, without boxing keys nor entry objects. Keys
+ * and values are held in two arrays probed linearly, so that a lookup reads
+ * neighboring slots of one array. Removal shifts following entries back
+ * instead of leaving tombstones.
+ * 
+ * Null values are not allowed. Not thread-safe.
+ * 
+ * @param <V>
+ *            Type of values.
+ */
+public class LongObjectMap<V> {
+    /**
+     * Receives entries of {@link LongObjectMap#forEach(Visitor)}.
+     * 
+     * @param <V>
+     *            Type of values.
+     */
+    public interface Visitor<V> {
+        /**
+         * Called for each entry. The map must not be modified.
+         * 
+         * @param key
+         *            Key.
+         * @param value
+         *            Value.
+         * @return False to stop.
+         */
+        boolean visit(long key, V value);
+    }
+
+    /** Key marking free slots. Entry of this key is held out of the table. */
+    private static final long FREE = 0;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mShift;
+    private int mMask;
+    private int mThreshold;
+    /** The number of entries in the table, excluding the free key. */
+    private int mTableSize = 0;
+    private Object mFreeKeyValue = null;
+
+    /**
+     * Constructor.
+     */
+    public LongObjectMap() {
+        this(LongHashing.MIN_CAPACITY / 2);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param expectedSize
+     *            Expected number of entries. Held without growing.
+     */
+    public LongObjectMap(int expectedSize) {
+        this.allocate(LongHashing.capacityFor(expectedSize));
+    }
+
+    /**
+     * Gets the number of entries.
+     * 
+     * @return The number of entries.
+     */
+    public int size() {
+        return this.mTableSize + (this.mFreeKeyValue != null ? 1 : 0);
+    }
+
+    /**
+     * Whether the map has no entry.
+     * 
+     * @return True if empty.
+     */
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * Gets the value.
+     * 
+     * @param key
+     *            Key.
+     * @return Value. Null if not found.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key == LongObjectMap.FREE) {
+            return (V) this.mFreeKeyValue;
+        }
+        long[] keys = this.mKeys;
+        int mask = this.mMask;
+        int i = LongHashing.slot(key, this.mShift);
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                return (V) this.mValues[i];
+            }
+            if (k == LongObjectMap.FREE) {
+                return null;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Whether the map has the key.
+     * 
+     * @param key
+     *            Key.
+     * @return True if found.
+     */
+    public boolean containsKey(long key) {
+        return this.get(key) != null;
+    }
+
+    /**
+     * Puts the value.
+     * 
+     * @param key
+     *            Key.
+     * @param value
+     *            Value. Must not be null.
+     * @return Previous value. Null if not found.
+     * @throws IllegalArgumentException
+     *             Thrown if the value is null.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not allowed.");
+        }
+        if (key == LongObjectMap.FREE) {
+            Object old = this.mFreeKeyValue;
+            this.mFreeKeyValue = value;
+            return (V) old;
+        }
+        int i = this.indexOf(key);
+        if (i >= 0) {
+            Object old = this.mValues[i];
+            this.mValues[i] = value;
+            return (V) old;
+        }
+        if (this.mTableSize >= this.mThreshold) {
+            this.grow();
+            i = this.indexOf(key);
+        }
+        i = -1 - i;
+        this.mKeys[i] = key;
+        this.mValues[i] = value;
+        this.mTableSize++;
+        return null;
+    }
+
+    /**
+     * Removes the entry.
+     * 
+     * @param key
+     *            Key.
+     * @return Removed value. Null if not found.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if (key == LongObjectMap.FREE) {
+            Object old = this.mFreeKeyValue;
+            this.mFreeKeyValue = null;
+            return (V) old;
+        }
+        int i = this.indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        Object old = this.mValues[i];
+        this.removeAt(i);
+        return (V) old;
+    }
+
+    /**
+     * Removes all entries. Keeps the capacity.
+     */
+    public void clear() {
+        Arrays.fill(this.mKeys, LongObjectMap.FREE);
+        Arrays.fill(this.mValues, null);
+        this.mTableSize = 0;
+        this.mFreeKeyValue = null;
+    }
+
+    /**
+     * Visits all entries in no particular order.
+     * 
+     * @param visitor
+     *            Receives entries.
+     * @return The number of entries visited.
+     */
+    @SuppressWarnings("unchecked")
+    public int forEach(Visitor<? super V> visitor) {
+        int count = 0;
+        if (this.mFreeKeyValue != null) {
+            count++;
+            if (!visitor.visit(LongObjectMap.FREE, (V) this.mFreeKeyValue)) {
+                return count;
+            }
+        }
+        long[] keys = this.mKeys;
+        Object[] values = this.mValues;
+        for (int n = 0; n < keys.length; n++) {
+            if (keys[n] != LongObjectMap.FREE) {
+                count++;
+                if (!visitor.visit(keys[n], (V) values[n])) {
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Finds the slot of the key.
+     * 
+     * @param key
+     *            Key, not {@link #FREE}.
+     * @return Slot. If not found, -1 - (free slot to insert).
+     */
+    private int indexOf(long key) {
+        long[] keys = this.mKeys;
+        int mask = this.mMask;
+        int i = LongHashing.slot(key, this.mShift);
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                return i;
+            }
+            if (k == LongObjectMap.FREE) {
+                return -1 - i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Removes the entry of the slot, shifting back following entries which
+     * cannot be found past the gap.
+     * 
+     * @param i
+     *            Slot.
+     */
+    private void removeAt(int i) {
+        long[] keys = this.mKeys;
+        Object[] values = this.mValues;
+        int mask = this.mMask;
+        int gap = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            long k = keys[j];
+            if (k == LongObjectMap.FREE) {
+                break;
+            }
+            int home = LongHashing.slot(k, this.mShift);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = k;
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = LongObjectMap.FREE;
+        values[gap] = null;
+        this.mTableSize--;
+    }
+
+    /**
+     * Allocates empty table.
+     * 
+     * @param capacity
+     *            Capacity, power of two.
+     */
+    private void allocate(int capacity) {
+        this.mKeys = new long[capacity];
+        this.mValues = new Object[capacity];
+        this.mShift = LongHashing.shiftOf(capacity);
+        this.mMask = capacity - 1;
+        this.mThreshold = LongHashing.thresholdOf(capacity);
+    }
+
+    /**
+     * Doubles the table.
+     * 
+     * @throws IllegalStateException
+     *             Thrown if the table cannot grow.
+     */
+    private void grow() {
+        long[] oldKeys = this.mKeys;
+        Object[] oldValues = this.mValues;
+        if (oldKeys.length >= LongHashing.MAX_CAPACITY) {
+            throw new IllegalStateException("Map is full.");
+        }
+        this.allocate(oldKeys.length * 2);
+        long[] keys = this.mKeys;
+        int mask = this.mMask;
+        for (int n = 0; n < oldKeys.length; n++) {
+            long k = oldKeys[n];
+            if (k != LongObjectMap.FREE) {
+                int i = LongHashing.slot(k, this.mShift);
+                while (keys[i] != LongObjectMap.FREE) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = k;
+                this.mValues[i] = oldValues[n];
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.gmail.boiledorange73.and4.ut.collection;
+
+/**
+ * Packs tile coordinates into one long, 6 bits of z, 29 bits of x and 29 bits
+ * of y, so that per-tile tables can be keyed without objects. Keys sort by
+ * z, x and y, the same order as the index of MBTiles tiles table.
+ * 
+ * Bit packing is used rather than Morton order because it costs three shifts;
+ * {@link LongObjectMap} and {@link LongIntMap} mix keys anyway.
+ */
+public final class TileKey {
+    /** Maximum zoom level which can be packed. */
+    public static final int MAX_ZOOM = 29;
+    /** Returned by {@link #pack(int, int, int)} if cannot be packed. */
+    public static final long INVALID = -1;
+
+    private static final int COORD_BITS = 29;
+    private static final long COORD_MASK = (1L << TileKey.COORD_BITS) - 1;
+
+    private TileKey() {
+    }
+
+    /**
+     * Packs coordinates into a key.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return Key, not negative. {@link #INVALID} if the coordinates are out
+     *         of the zoom level.
+     */
+    public static long pack(int z, int x, int y) {
+        if (z < 0 || z > TileKey.MAX_ZOOM || x < 0 || y < 0
+                || x >= (1 << z) || y >= (1 << z)) {
+            return TileKey.INVALID;
+        }
+        return ((long) z << (2 * TileKey.COORD_BITS))
+                | ((long) x << TileKey.COORD_BITS) | y;
+    }
+
+    /**
+     * Gets the zoom level of the key.
+     * 
+     * @param key
+     *            Key made by {@link #pack(int, int, int)}.
+     * @return Zoom level.
+     */
+    public static int getZ(long key) {
+        return (int) (key >>> (2 * TileKey.COORD_BITS));
+    }
+
+    /**
+     * Gets the column of the key.
+     * 
+     * @param key
+     *            Key made by {@link #pack(int, int, int)}.
+     * @return Column.
+     */
+    public static int getX(long key) {
+        return (int) ((key >>> TileKey.COORD_BITS) & TileKey.COORD_MASK);
+    }
+
+    /**
+     * Gets the row of the key.
+     * 
+     * @param key
+     *            Key made by {@link #pack(int, int, int)}.
+     * @return Row.
+     */
+    public static int getY(long key) {
+        return (int) (key & TileKey.COORD_MASK);
+    }
+}
@@ -0,0 +1,581 @@
+package com.gmail.boiledorange73.and4.ut.mbtiles;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Index of existing tiles, used to reject requests for missing tiles without
+ * querying the database.
+ * 
+ * Each zoom level has the bounding range of its tiles and a bitmap of present
+ * tiles. Small zoom levels use a plain bitmap over the bounding range. Others
+ * use a compressed bitmap, runs of present rows for each column, searched by
+ * bisection. If runs exceed {@link #MAX_RUNS}, remaining zoom levels keep the
+ * bounding range only.
+ * 
+ * The index is built from a scan of tile coordinates, which SQLite reads from
+ * the index on tiles without touching contents, and can be saved in a sidecar
+ * file keyed by the size and modified time of the MBTiles file.
+ */
+public class CoverageIndex {
+    /** Zoom levels whose bounding range has up to this bits use plain bitmap. */
+    public static final long MAX_PLAIN_BITS = 1L << 20;
+    /** Maximum runs of all zoom levels. */
+    public static final int MAX_RUNS = 256 * 1024;
+
+    /** Magic bytes of the sidecar file, "MBTC". */
+    private static final int MAGIC = 0x4d425443;
+    private static final int VERSION = 1;
+    private static final int MAX_ZOOM = 32;
+
+    private static final byte TYPE_BOUNDS = 0;
+    private static final byte TYPE_PLAIN = 1;
+    private static final byte TYPE_RUNS = 2;
+
+    /**
+     * Coverage of one zoom level.
+     */
+    private static final class Level {
+        private int mXmin, mXmax, mYmin, mYmax;
+        private byte mType = CoverageIndex.TYPE_BOUNDS;
+        /** Plain bitmap, rows of (xmax-xmin+1) bits. */
+        private long[] mBits;
+        /** Columns which have tiles, ascending. */
+        private int[] mColumns;
+        /** Index of the first run of each column, plus the end. */
+        private int[] mRunIndex;
+        /** First and last rows of runs. */
+        private int[] mRunMin;
+        private int[] mRunMax;
+
+        private boolean contains(int x, int y) {
+            if (x < this.mXmin || x > this.mXmax || y < this.mYmin
+                    || y > this.mYmax) {
+                return false;
+            }
+            switch (this.mType) {
+            case CoverageIndex.TYPE_PLAIN:
+                long bit = (long) (y - this.mYmin)
+                        * (this.mXmax - this.mXmin + 1) + (x - this.mXmin);
+                return (this.mBits[(int) (bit >>> 6)] & (1L << (bit & 63))) != 0;
+            case CoverageIndex.TYPE_RUNS:
+                int c = CoverageIndex.search(this.mColumns, 0,
+                        this.mColumns.length, x);
+                if (c < 0) {
+                    return false;
+                }
+                int from = this.mRunIndex[c];
+                int to = this.mRunIndex[c + 1];
+                // last run whose first row is not greater than y.
+                int r = CoverageIndex.search(this.mRunMin, from, to, y);
+                if (r < 0) {
+                    r = -r - 2;
+                    if (r < from) {
+                        return false;
+                    }
+                }
+                return y <= this.mRunMax[r];
+            default:
+                return true;
+            }
+        }
+
+        /**
+         * Whether the bounding range and arrays are consistent, so that
+         * {@link #contains(int, int)} does not read out of arrays.
+         * 
+         * @return True if valid.
+         */
+        private boolean isValid() {
+            if (this.mXmin < 0 || this.mXmin > this.mXmax || this.mYmin < 0
+                    || this.mYmin > this.mYmax) {
+                return false;
+            }
+            switch (this.mType) {
+            case CoverageIndex.TYPE_BOUNDS:
+                return true;
+            case CoverageIndex.TYPE_PLAIN:
+                long bits = ((long) this.mXmax - this.mXmin + 1)
+                        * ((long) this.mYmax - this.mYmin + 1);
+                return bits <= CoverageIndex.MAX_PLAIN_BITS
+                        && this.mBits.length == (bits + 63) >>> 6;
+            case CoverageIndex.TYPE_RUNS:
+                return this.isValidRuns();
+            default:
+                return false;
+            }
+        }
+
+        private boolean isValidRuns() {
+            int columns = this.mColumns.length;
+            int runs = this.mRunMin.length;
+            if (columns == 0 || this.mRunIndex.length != columns + 1
+                    || this.mRunMax.length != runs
+                    || this.mRunIndex[0] != 0
+                    || this.mRunIndex[columns] != runs) {
+                return false;
+            }
+            for (int c = 0; c < columns; c++) {
+                int x = this.mColumns[c];
+                if (x < this.mXmin || x > this.mXmax
+                        || (c > 0 && x <= this.mColumns[c - 1])
+                        || this.mRunIndex[c] >= this.mRunIndex[c + 1]) {
+                    return false;
+                }
+                // runs of a column are ascending and do not overlap.
+                int last = this.mYmin - 1;
+                for (int r = this.mRunIndex[c]; r < this.mRunIndex[c + 1]; r++) {
+                    if (this.mRunMin[r] <= last
+                            || this.mRunMin[r] > this.mRunMax[r]
+                            || this.mRunMax[r] > this.mYmax) {
+                        return false;
+                    }
+                    last = this.mRunMax[r];
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Growable int array.
+     */
+    private static final class IntList {
+        private int[] mValues = new int[64];
+        private int mSize = 0;
+
+        private void add(int v) {
+            if (this.mSize == this.mValues.length) {
+                int[] n = new int[this.mSize * 2];
+                System.arraycopy(this.mValues, 0, n, 0, this.mSize);
+                this.mValues = n;
+            }
+            this.mValues[this.mSize++] = v;
+        }
+
+        private int[] toArray() {
+            int[] ret = new int[this.mSize];
+            System.arraycopy(this.mValues, 0, ret, 0, this.mSize);
+            return ret;
+        }
+    }
+
+    private final Level[] mLevels = new Level[CoverageIndex.MAX_ZOOM];
+    private final long mFileSize;
+    private final long mLastModified;
+
+    /**
+     * Constructor.
+     * 
+     * @param fileSize
+     *            Size of the MBTiles file.
+     * @param lastModified
+     *            Modified time of the MBTiles file.
+     */
+    private CoverageIndex(long fileSize, long lastModified) {
+        this.mFileSize = fileSize;
+        this.mLastModified = lastModified;
+    }
+
+    /**
+     * Whether the tile may exist. False means the tile surely does not exist.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return False if the tile does not exist.
+     */
+    public boolean mayContain(int z, int x, int y) {
+        if (z < 0 || z >= CoverageIndex.MAX_ZOOM) {
+            return false;
+        }
+        Level level = this.mLevels[z];
+        return level != null && level.contains(x, y);
+    }
+
+    /**
+     * Whether the MBTiles file is changed after the index is built.
+     * 
+     * @param file
+     *            MBTiles file.
+     * @return True if the size or the modified time is changed.
+     */
+    public boolean isStale(File file) {
+        return file.length() != this.mFileSize
+                || file.lastModified() != this.mLastModified;
+    }
+
+    /**
+     * Builds the index by scanning tile coordinates.
+     * 
+     * @param op
+     *            Tile source.
+     * @param canceled
+     *            Scan stops if this becomes true. Can be null.
+     * @return The index. Null if canceled.
+     * @throws FileNotFoundException
+     *             Thrown if the file is closed.
+     */
+    public static CoverageIndex build(TileSource op,
+            final AtomicBoolean canceled)
+            throws FileNotFoundException {
+        File file = new File(op.getPath());
+        final CoverageIndex ret = new CoverageIndex(file.length(),
+                file.lastModified());
+        final Builder builder = new Builder(ret);
+        op.scanCoverage(new TileSource.CoverageVisitor() {
+            @Override
+            public boolean visit(int z, int x, int y, int length) {
+                if (canceled != null && canceled.get()) {
+                    return false;
+                }
+                builder.add(z, x, y);
+                return true;
+            }
+        });
+        if (canceled != null && canceled.get()) {
+            return null;
+        }
+        builder.finish();
+        return ret;
+    }
+
+    /**
+     * Loads the index from the sidecar file.
+     * 
+     * @param sidecar
+     *            Sidecar file.
+     * @param file
+     *            MBTiles file.
+     * @return The index. Null if the sidecar does not exist, is broken or is
+     *         stale, or its arrays do not match the bounding ranges.
+     */
+    public static CoverageIndex load(File sidecar, File file) {
+        if (!sidecar.exists()) {
+            return null;
+        }
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(sidecar)));
+            if (is.readInt() != CoverageIndex.MAGIC
+                    || is.readInt() != CoverageIndex.VERSION) {
+                return null;
+            }
+            long fileSize = is.readLong();
+            long lastModified = is.readLong();
+            if (fileSize != file.length() || lastModified != file.lastModified()) {
+                return null;
+            }
+            CoverageIndex ret = new CoverageIndex(fileSize, lastModified);
+            int levels = is.readInt();
+            for (int n = 0; n < levels; n++) {
+                int z = is.readInt();
+                if (z < 0 || z >= CoverageIndex.MAX_ZOOM
+                        || ret.mLevels[z] != null) {
+                    return null;
+                }
+                Level level = new Level();
+                level.mXmin = is.readInt();
+                level.mXmax = is.readInt();
+                level.mYmin = is.readInt();
+                level.mYmax = is.readInt();
+                level.mType = is.readByte();
+                switch (level.mType) {
+                case CoverageIndex.TYPE_PLAIN:
+                    int length = is.readInt();
+                    if (length < 0
+                            || length > CoverageIndex.MAX_PLAIN_BITS >>> 6) {
+                        return null;
+                    }
+                    level.mBits = new long[length];
+                    for (int i = 0; i < level.mBits.length; i++) {
+                        level.mBits[i] = is.readLong();
+                    }
+                    break;
+                case CoverageIndex.TYPE_RUNS:
+                    level.mColumns = CoverageIndex.readInts(is);
+                    level.mRunIndex = CoverageIndex.readInts(is);
+                    level.mRunMin = CoverageIndex.readInts(is);
+                    level.mRunMax = CoverageIndex.readInts(is);
+                    break;
+                }
+                if (!level.isValid()) {
+                    return null;
+                }
+                ret.mLevels[z] = level;
+            }
+            return ret;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // DOES NOTHING
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the index to the sidecar file.
+     * 
+     * @param sidecar
+     *            Sidecar file.
+     * @throws IOException
+     *             Thrown if failed to write.
+     */
+    public void save(File sidecar) throws IOException {
+        File tmp = new File(sidecar.getAbsolutePath() + ".tmp");
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            os.writeInt(CoverageIndex.MAGIC);
+            os.writeInt(CoverageIndex.VERSION);
+            os.writeLong(this.mFileSize);
+            os.writeLong(this.mLastModified);
+            int levels = 0;
+            for (Level level : this.mLevels) {
+                if (level != null) {
+                    levels++;
+                }
+            }
+            os.writeInt(levels);
+            for (int z = 0; z < this.mLevels.length; z++) {
+                Level level = this.mLevels[z];
+                if (level == null) {
+                    continue;
+                }
+                os.writeInt(z);
+                os.writeInt(level.mXmin);
+                os.writeInt(level.mXmax);
+                os.writeInt(level.mYmin);
+                os.writeInt(level.mYmax);
+                os.writeByte(level.mType);
+                switch (level.mType) {
+                case CoverageIndex.TYPE_PLAIN:
+                    os.writeInt(level.mBits.length);
+                    for (long v : level.mBits) {
+                        os.writeLong(v);
+                    }
+                    break;
+                case CoverageIndex.TYPE_RUNS:
+                    CoverageIndex.writeInts(os, level.mColumns);
+                    CoverageIndex.writeInts(os, level.mRunIndex);
+                    CoverageIndex.writeInts(os, level.mRunMin);
+                    CoverageIndex.writeInts(os, level.mRunMax);
+                    break;
+                }
+            }
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(sidecar)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp);
+        }
+    }
+
+    // ----------------
+    // Builder
+    // ----------------
+    /**
+     * Builds levels from coordinates ordered by zoom level, column and row.
+     * A zoom level whose coordinates are out of order keeps the bounding
+     * range only, so that no existing tile is rejected.
+     */
+    private static final class Builder {
+        private final CoverageIndex mIndex;
+        private int mRuns = 0;
+        private int mZ = -1;
+        private Level mLevel = null;
+        private IntList mColumns, mRunIndex, mRunMin, mRunMax;
+        private int mLastX, mLastY;
+
+        private Builder(CoverageIndex index) {
+            this.mIndex = index;
+        }
+
+        private void add(int z, int x, int y) {
+            if (z < 0 || z >= CoverageIndex.MAX_ZOOM) {
+                return;
+            }
+            if (z != this.mZ) {
+                this.finish();
+                this.mZ = z;
+                this.mLevel = new Level();
+                this.mLevel.mXmin = this.mLevel.mXmax = x;
+                this.mLevel.mYmin = this.mLevel.mYmax = y;
+                this.mColumns = new IntList();
+                this.mRunIndex = new IntList();
+                this.mRunMin = new IntList();
+                this.mRunMax = new IntList();
+                this.newColumn(x, y);
+                return;
+            }
+            Level level = this.mLevel;
+            level.mXmin = Math.min(level.mXmin, x);
+            level.mXmax = Math.max(level.mXmax, x);
+            level.mYmin = Math.min(level.mYmin, y);
+            level.mYmax = Math.max(level.mYmax, y);
+            if (this.mColumns == null) {
+                // too many runs. bounds only.
+                return;
+            }
+            if (x < this.mLastX || (x == this.mLastX && y < this.mLastY)) {
+                this.dropRuns();
+            } else if (x != this.mLastX) {
+                this.newColumn(x, y);
+            } else if (y == this.mLastY + 1) {
+                this.mRunMax.mValues[this.mRunMax.mSize - 1] = y;
+                this.mLastY = y;
+            } else if (y > this.mLastY) {
+                this.newRun(y);
+            }
+        }
+
+        private void newColumn(int x, int y) {
+            this.mColumns.add(x);
+            this.mRunIndex.add(this.mRunMin.mSize);
+            this.mLastX = x;
+            this.newRun(y);
+        }
+
+        private void newRun(int y) {
+            if (this.mRuns >= CoverageIndex.MAX_RUNS) {
+                this.mColumns = null;
+                this.mRunIndex = null;
+                this.mRunMin = null;
+                this.mRunMax = null;
+                return;
+            }
+            this.mRuns++;
+            this.mRunMin.add(y);
+            this.mRunMax.add(y);
+            this.mLastY = y;
+        }
+
+        /**
+         * Makes the current zoom level keep the bounding range only. Runs
+         * already added are not counted to the limit.
+         */
+        private void dropRuns() {
+            this.mRuns -= this.mRunMin.mSize;
+            this.mColumns = null;
+            this.mRunIndex = null;
+            this.mRunMin = null;
+            this.mRunMax = null;
+        }
+
+        private void finish() {
+            Level level = this.mLevel;
+            if (level == null) {
+                return;
+            }
+            if (this.mColumns != null) {
+                this.mRunIndex.add(this.mRunMin.mSize);
+                long width = (long) level.mXmax - level.mXmin + 1;
+                long bits = width * ((long) level.mYmax - level.mYmin + 1);
+                if (bits <= CoverageIndex.MAX_PLAIN_BITS) {
+                    level.mType = CoverageIndex.TYPE_PLAIN;
+                    level.mBits = new long[(int) ((bits + 63) >>> 6)];
+                    for (int c = 0; c < this.mColumns.mSize; c++) {
+                        int x = this.mColumns.mValues[c];
+                        for (int r = this.mRunIndex.mValues[c]; r < this.mRunIndex.mValues[c + 1]; r++) {
+                            for (int y = this.mRunMin.mValues[r]; y <= this.mRunMax.mValues[r]; y++) {
+                                long bit = (y - level.mYmin) * width
+                                        + (x - level.mXmin);
+                                level.mBits[(int) (bit >>> 6)] |= 1L << (bit & 63);
+                            }
+                        }
+                    }
+                    this.mRuns -= this.mRunMin.mSize;
+                } else {
+                    level.mType = CoverageIndex.TYPE_RUNS;
+                    level.mColumns = this.mColumns.toArray();
+                    level.mRunIndex = this.mRunIndex.toArray();
+                    level.mRunMin = this.mRunMin.toArray();
+                    level.mRunMax = this.mRunMax.toArray();
+                }
+            }
+            this.mIndex.mLevels[this.mZ] = level;
+            this.mLevel = null;
+        }
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Binary search in the range of the sorted array.
+     * 
+     * @param a
+     *            Sorted array.
+     * @param from
+     *            First index (inclusive).
+     * @param to
+     *            Last index (exclusive).
+     * @param key
+     *            Value to search.
+     * @return Index if found, otherwise (-(insertion point) - 1).
+     */
+    private static int search(int[] a, int from, int to, int key) {
+        int lo = from;
+        int hi = to - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int v = a[mid];
+            if (v < key) {
+                lo = mid + 1;
+            } else if (v > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    /**
+     * Reads an array written by {@link #writeInts(DataOutputStream, int[])}.
+     * 
+     * @param is
+     *            Stream.
+     * @return Array.
+     * @throws IOException
+     *             Thrown if failed to read, or the length is out of range.
+     */
+    private static int[] readInts(DataInputStream is) throws IOException {
+        int length = is.readInt();
+        // A column has one run at least, so no array exceeds runs + 1.
+        if (length < 0 || length > CoverageIndex.MAX_RUNS + 1) {
+            throw new IOException("Invalid length: " + length);
+        }
+        int[] ret = new int[length];
+        for (int n = 0; n < ret.length; n++) {
+            ret[n] = is.readInt();
+        }
+        return ret;
+    }
+
+    private static void writeInts(DataOutputStream os, int[] values)
+            throws IOException {
+        os.writeInt(values.length);
+        for (int v : values) {
+            os.writeInt(v);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.gmail.boiledorange73.and4.ut.mbtiles;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the metadata table. Responses are serialized when the
+ * snapshot is created, so serving metadata is a lookup.
+ * 
+ * Text, JSON and per-key payloads contain permissive metadata only. Acceptable
+ * metadata are: name, type, version, description, format - mandatory bounds,
+ * attribution - optional minzoom, maxzoom - not in spec.
+ */
+public final class MBTilesMetadata {
+    /** White list for metadata name. */
+    public static final String[] PERMISSIVE_NAMES = { "name", "type",
+            "version", "description", "format", "bounds", "attribution",
+            "minzoom", "maxzoom" };
+
+    private final Map<String, String> mValues;
+    private final long mFileSize;
+    private final long mLastModified;
+    private final byte[] mText;
+    private final byte[] mJson;
+    private final HashMap<String, byte[]> mValueBytes = new HashMap<String, byte[]>();
+    private final HashMap<String, byte[]> mSingleJsons = new HashMap<String, byte[]>();
+
+    /**
+     * Constructor.
+     * 
+     * @param values
+     *            All rows of metadata table. Copied.
+     * @param fileSize
+     *            Size of the file when the snapshot is read.
+     * @param lastModified
+     *            Modified time of the file when the snapshot is read.
+     */
+    public MBTilesMetadata(Map<String, String> values, long fileSize,
+            long lastModified) {
+        this.mValues = Collections
+                .unmodifiableMap(new LinkedHashMap<String, String>(values));
+        this.mFileSize = fileSize;
+        this.mLastModified = lastModified;
+        StringBuilder text = new StringBuilder();
+        StringBuilder json = new StringBuilder();
+        json.append('{');
+        for (String k : MBTilesMetadata.PERMISSIVE_NAMES) {
+            if (!values.containsKey(k)) {
+                continue;
+            }
+            String v = values.get(k);
+            // text
+            text.append(k).append('\t');
+            MBTilesMetadata.appendTextValue(text, v);
+            text.append('\n');
+            // json
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            MBTilesMetadata.appendJsonMember(json, k, v);
+            // per-key
+            StringBuilder single = new StringBuilder();
+            single.append('{');
+            MBTilesMetadata.appendJsonMember(single, k, v);
+            single.append('}');
+            this.mSingleJsons.put(k, MBTilesMetadata.toBytes(single));
+            if (v != null) {
+                this.mValueBytes.put(k, MBTilesMetadata.toBytes(v));
+            }
+        }
+        json.append('}');
+        this.mText = MBTilesMetadata.toBytes(text);
+        this.mJson = MBTilesMetadata.toBytes(json);
+    }
+
+    /**
+     * Whether the name is permissive.
+     * 
+     * @param name
+     *            Name of one of metadata.
+     * @return True if the name is in {@link #PERMISSIVE_NAMES}.
+     */
+    public static boolean isPermissive(String name) {
+        for (String pnm : MBTilesMetadata.PERMISSIVE_NAMES) {
+            if (pnm.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the metadata value. Not limited to permissive names.
+     * 
+     * @param name
+     *            Name of one of metadata.
+     * @return Metadata value. Null if not found.
+     */
+    public String get(String name) {
+        return this.mValues.get(name);
+    }
+
+    /**
+     * Gets all metadata.
+     * 
+     * @return Unmodifiable map of all rows.
+     */
+    public Map<String, String> getValues() {
+        return this.mValues;
+    }
+
+    /**
+     * Whether no permissive metadata is found.
+     * 
+     * @return True if no permissive metadata is found.
+     */
+    public boolean isEmpty() {
+        return this.mSingleJsons.isEmpty();
+    }
+
+    /**
+     * Gets permissive metadata as text. For each line of metadata is
+     * represented with "(name)\t(value)"; where "\t" is tab character. Tab
+     * character and Line-Feed character are changed as "\t" and "\n". Null is
+     * represented with "\N".
+     * 
+     * @return UTF-8 text. Must not be modified.
+     */
+    public byte[] getText() {
+        return this.mText;
+    }
+
+    /**
+     * Gets permissive metadata as JSON.
+     * 
+     * @return UTF-8 JSON text. Must not be modified.
+     */
+    public byte[] getJson() {
+        return this.mJson;
+    }
+
+    /**
+     * Gets one permissive metadata value.
+     * 
+     * @param name
+     *            Name of one of metadata.
+     * @return UTF-8 value. Null if not permissive or not found. Must not be
+     *         modified.
+     */
+    public byte[] getValueBytes(String name) {
+        return this.mValueBytes.get(name);
+    }
+
+    /**
+     * Gets one permissive metadata as JSON.
+     * 
+     * @param name
+     *            Name of one of metadata.
+     * @return UTF-8 JSON text. Null if not permissive or not found. Must not
+     *         be modified.
+     */
+    public byte[] getSingleJson(String name) {
+        return this.mSingleJsons.get(name);
+    }
+
+    /**
+     * Whether the file is changed after the snapshot is read.
+     * 
+     * @param file
+     *            MBTiles file.
+     * @return True if the size or the modified time is changed.
+     */
+    public boolean isStale(File file) {
+        return file.length() != this.mFileSize
+                || file.lastModified() != this.mLastModified;
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Appends text value escaping tab and line-feed.
+     * 
+     * @param sb
+     *            Destination.
+     * @param v
+     *            Value.
+     */
+    private static void appendTextValue(StringBuilder sb, String v) {
+        if (v == null) {
+            sb.append("\\N");
+            return;
+        }
+        for (int n = 0; n < v.length(); n++) {
+            char c = v.charAt(n);
+            switch (c) {
+            case '\t':
+                sb.append("\\t");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * Appends "(name)":(value) as JSON.
+     * 
+     * @param sb
+     *            Destination.
+     * @param k
+     *            Name.
+     * @param v
+     *            Value. Null is written as null.
+     */
+    private static void appendJsonMember(StringBuilder sb, String k, String v) {
+        MBTilesMetadata.appendJsonString(sb, k);
+        sb.append(':');
+        if (v == null) {
+            sb.append("null");
+        } else {
+            MBTilesMetadata.appendJsonString(sb, v);
+        }
+    }
+
+    /**
+     * Appends quoted JSON string.
+     * 
+     * @param sb
+     *            Destination.
+     * @param v
+     *            String.
+     */
+    private static void appendJsonString(StringBuilder sb, String v) {
+        sb.append('"');
+        for (int n = 0; n < v.length(); n++) {
+            char c = v.charAt(n);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '/':
+                sb.append("\\/");
+                break;
+            case '\b':
+                sb.append("\\b");
+                break;
+            case '\f':
+                sb.append("\\f");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20 || (c >= 0x7f && c <= 0x9f) || c == 0x2028
+                        || c == 0x2029) {
+                    String hex = Integer.toHexString(c);
+                    sb.append("\\u");
+                    for (int i = hex.length(); i < 4; i++) {
+                        sb.append('0');
+                    }
+                    sb.append(hex);
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Encodes text with UTF-8.
+     * 
+     * @param text
+     *            Text.
+     * @return UTF-8 bytes.
+     */
+    private static byte[] toBytes(CharSequence text) {
+        try {
+            return text.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,13 +1,31 @@
 package com.gmail.boiledorange73.and4.ut.mbtiles;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
 
-public class MBTilesOperator {
+public class MBTilesOperator implements TileSource {
     /** Image format type */
     private enum ImageFormat {
         /** Means not set. */
@@ -20,11 +38,769 @@ public class MBTilesOperator {
         unknown
     }
 
+    /** Default number of read-only connections. */
+    public static final int DEFAULT_POOL_SIZE = 2;
+    /**
+     * Default maximum bytes of images cached by tile_id, for files with
+     * map/images schema.
+     */
+    public static final int DEFAULT_IMAGE_CACHE_BYTES = 1024 * 1024;
+
+    /** SQL to get a tile. Constant text lets SQLite reuse the statement. */
+    private static final String SQL_TILE = "SELECT tile_data FROM tiles WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+    /** SQL to get tiles in a range. */
+    private static final String SQL_TILE_RANGE = "SELECT tile_column, tile_row, tile_data FROM tiles WHERE zoom_level=? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ? ORDER BY tile_column, tile_row LIMIT ? OFFSET ?";
+    /**
+     * SQL to get coverage in a range. length() of a blob is got from the
+     * record header, so contents are not read.
+     */
+    private static final String SQL_COVERAGE_RANGE = "SELECT tile_column, tile_row, length(tile_data) FROM tiles WHERE zoom_level=? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ? ORDER BY tile_column, tile_row LIMIT ? OFFSET ?";
+    /**
+     * SQL to get coordinates of all tiles. Only columns of the index on tiles
+     * are used, so SQLite scans the index without reading contents.
+     */
+    private static final String SQL_COVERAGE_ALL = "SELECT zoom_level, tile_column, tile_row FROM tiles ORDER BY zoom_level, tile_column, tile_row";
+    /** SQL to find map/images tables. */
+    private static final String SQL_NORMALIZED = "SELECT count(*) FROM sqlite_master WHERE type='table' AND name IN ('map','images')";
+    /** SQL to get tile_id of a tile on map/images schema. */
+    private static final String SQL_TILE_ID = "SELECT tile_id FROM map WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+    /**
+     * SQL to get the image of a tile on map/images schema. tile_id is not
+     * bound as an argument, because its type depends on the file.
+     */
+    private static final String SQL_IMAGE = "SELECT tile_data FROM images WHERE tile_id=(SELECT tile_id FROM map WHERE zoom_level=? AND tile_column=? AND tile_row=?)";
+    /** SQL to get tile_ids in a range on map/images schema. */
+    private static final String SQL_TILE_ID_RANGE = "SELECT tile_column, tile_row, tile_id FROM map WHERE zoom_level=? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ? ORDER BY tile_column, tile_row LIMIT ? OFFSET ?";
+    /** SQL to get coordinates of all tiles on map/images schema. */
+    private static final String SQL_MAP_COVERAGE_ALL = "SELECT zoom_level, tile_column, tile_row FROM map ORDER BY zoom_level, tile_column, tile_row";
+    /** SQL to get all metadata. */
+    private static final String SQL_METADATA = "SELECT name, value FROM metadata";
+    /** Type of tiles in sqlite_master. */
+    private static final String SQL_TILES_TYPE = "SELECT type FROM sqlite_master WHERE name='tiles'";
+    /** Columns which an index for tile lookups must start with. */
+    private static final String[] TILE_INDEX_COLUMNS = { "zoom_level",
+            "tile_column", "tile_row" };
+    /** Creates the index for tile lookups, with the name mb-util uses. */
+    private static final String SQL_CREATE_TILE_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)";
+    /** Reads tile content by rowid, for {@link RowidIndex}. */
+    private static final String SQL_TILE_BY_ROWID = "SELECT tile_data FROM tiles WHERE rowid=?";
+    /** Reads coordinates and rowids of all tiles, for {@link RowidIndex}. */
+    private static final String SQL_ROWID_ALL = "SELECT zoom_level, tile_column, tile_row, rowid FROM tiles";
+    /** Estimates the number of tiles without scanning. */
+    private static final String SQL_MAX_ROWID = "SELECT max(rowid) FROM tiles";
+    private static final String TAG = "MBTilesOperator";
+    /** Settings read back by {@link #getEffectiveSettings()}. */
+    private static final String[] TUNING_PRAGMAS = { "mmap_size",
+            "cache_size", "temp_store", "query_only", "locking_mode" };
+
+    /**
+     * Receives rowids read by
+     * {@link MBTilesOperator#scanRowids(RowidVisitor)}.
+     */
+    public interface RowidVisitor {
+        /**
+         * Called for each tile.
+         * 
+         * @param z
+         *            Zoom level.
+         * @param x
+         *            Column.
+         * @param y
+         *            Row.
+         * @param rowid
+         *            Rowid.
+         * @return False to stop reading.
+         */
+        boolean visit(int z, int x, int y, long rowid);
+    }
+
+    /**
+     * Connection with statements prepared once and reused.
+     */
+    private static final class Connection {
+        private final SQLiteDatabase mDb;
+        /** Images by tile_id. Null unless the file has map/images schema. */
+        private final ImageCache mImages;
+        private SQLiteStatement mTileStatement = null;
+        private SQLiteStatement mTileIdStatement = null;
+        private SQLiteStatement mRowidStatement = null;
+        /** Coordinates bound by {@link #mTileCursorFactory}. */
+        private long mBindZ, mBindX, mBindY;
+        /**
+         * Binds coordinates as integers to queries of one tile, so that
+         * neither strings nor argument arrays are created.
+         */
+        private final SQLiteDatabase.CursorFactory mTileCursorFactory = new SQLiteDatabase.CursorFactory() {
+            @Override
+            public Cursor newCursor(SQLiteDatabase db,
+                    SQLiteCursorDriver masterQuery, String editTable,
+                    SQLiteQuery query) {
+                query.bindLong(1, Connection.this.mBindZ);
+                query.bindLong(2, Connection.this.mBindX);
+                query.bindLong(3, Connection.this.mBindY);
+                return new SQLiteCursor(masterQuery, editTable, query);
+            }
+        };
+
+        private Connection(SQLiteDatabase db, ImageCache images) {
+            this.mDb = db;
+            this.mImages = images;
+        }
+
+        /**
+         * Queries one tile with integer bind arguments. Below API level 11,
+         * where SQLiteCursor cannot be created by factories, arguments are
+         * strings.
+         * 
+         * @param sql
+         *            SQL with parameters z, x and y.
+         * @param z
+         *            Zoom level.
+         * @param x
+         *            Column.
+         * @param y
+         *            Row.
+         * @return Cursor.
+         */
+        private Cursor rawQueryTile(String sql, int z, int x, int y) {
+            if (Build.VERSION.SDK_INT < 11) {
+                return this.mDb.rawQuery(sql,
+                        new String[] { String.valueOf(z), String.valueOf(x),
+                                String.valueOf(y) });
+            }
+            this.mBindZ = z;
+            this.mBindX = x;
+            this.mBindY = y;
+            return this.mDb.rawQueryWithFactory(this.mTileCursorFactory, sql,
+                    null, null);
+        }
+
+        /**
+         * Whether the file has map/images schema.
+         * 
+         * @return True if both map and images tables exist.
+         */
+        private boolean isNormalized() {
+            Cursor cur = this.mDb.rawQuery(MBTilesOperator.SQL_NORMALIZED,
+                    null);
+            try {
+                return cur.moveToFirst() && cur.getInt(0) == 2;
+            } finally {
+                cur.close();
+            }
+        }
+
+        /**
+         * Prepares statements and looks up a missing tile, which reads root
+         * pages of the index into the page cache.
+         */
+        private void warmUp() {
+            if (this.mTileStatement == null) {
+                this.mTileStatement = this.mDb
+                        .compileStatement(MBTilesOperator.SQL_TILE);
+            }
+            try {
+                if (this.mImages != null) {
+                    this.queryTileId(-1, 0, 0);
+                } else {
+                    this.queryTile(-1, 0, 0);
+                }
+            } catch (FileNotFoundException e) {
+                // expected.
+            }
+        }
+
+        /**
+         * Whether tiles is a table which has no index starting with
+         * zoom_level, tile_column and tile_row. Views (map/images schema) are
+         * not inspected.
+         * 
+         * @return True if lookups scan the table.
+         */
+        private boolean isTileIndexMissing() {
+            Cursor cur = this.mDb.rawQuery(MBTilesOperator.SQL_TILES_TYPE,
+                    null);
+            try {
+                if (!cur.moveToFirst() || !"table".equals(cur.getString(0))) {
+                    return false;
+                }
+            } finally {
+                cur.close();
+            }
+            ArrayList<String> indexes = new ArrayList<String>();
+            cur = this.mDb.rawQuery("PRAGMA index_list(tiles)", null);
+            try {
+                while (cur.moveToNext()) {
+                    // seq, name, unique, ...
+                    indexes.add(cur.getString(1));
+                }
+            } finally {
+                cur.close();
+            }
+            for (String index : indexes) {
+                String[] columns = new String[MBTilesOperator.TILE_INDEX_COLUMNS.length];
+                cur = this.mDb.rawQuery("PRAGMA index_info(\""
+                        + index.replace("\"", "\"\"") + "\")", null);
+                try {
+                    while (cur.moveToNext()) {
+                        // seqno, cid, name
+                        int seqno = cur.getInt(0);
+                        if (seqno >= 0 && seqno < columns.length) {
+                            columns[seqno] = cur.getString(2);
+                        }
+                    }
+                } finally {
+                    cur.close();
+                }
+                boolean match = true;
+                for (int n = 0; n < columns.length; n++) {
+                    match &= MBTilesOperator.TILE_INDEX_COLUMNS[n]
+                            .equalsIgnoreCase(columns[n]);
+                }
+                if (match) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Estimates the number of tiles by the maximum rowid.
+         * 
+         * @return The estimated number of tiles.
+         */
+        private long estimateTileCount() {
+            Cursor cur = this.mDb.rawQuery(MBTilesOperator.SQL_MAX_ROWID,
+                    null);
+            try {
+                return cur.moveToFirst() ? cur.getLong(0) : 0;
+            } finally {
+                cur.close();
+            }
+        }
+
+        /**
+         * Reads coordinates and rowids of all tiles, scanning the table.
+         * 
+         * @param visitor
+         *            Receives rowids.
+         * @return The number of tiles visited.
+         */
+        private int scanRowids(RowidVisitor visitor) {
+            Cursor cur = this.mDb.rawQuery(MBTilesOperator.SQL_ROWID_ALL,
+                    null);
+            int count = 0;
+            try {
+                while (cur.moveToNext()) {
+                    count++;
+                    if (!visitor.visit(cur.getInt(0), cur.getInt(1),
+                            cur.getInt(2), cur.getLong(3))) {
+                        break;
+                    }
+                }
+            } finally {
+                cur.close();
+            }
+            return count;
+        }
+
+        /**
+         * Gets the tile by rowid.
+         * 
+         * @param rowid
+         *            Rowid found by {@link RowidIndex}.
+         * @return The content.
+         * @throws FileNotFoundException
+         *             Thrown if specified record is not found.
+         */
+        private byte[] queryTileByRowid(long rowid)
+                throws FileNotFoundException {
+            Cursor cur = this.mDb.rawQuery(MBTilesOperator.SQL_TILE_BY_ROWID,
+                    new String[] { String.valueOf(rowid) });
+            try {
+                if (!cur.moveToFirst()) {
+                    throw new FileNotFoundException();
+                }
+                return cur.getBlob(0);
+            } finally {
+                cur.close();
+            }
+        }
+
+        /**
+         * Gets the tile by rowid as a file descriptor with the prepared
+         * statement. Requires API level 11.
+         * 
+         * @param rowid
+         *            Rowid found by {@link RowidIndex}.
+         * @return Descriptor to read the content.
+         * @throws FileNotFoundException
+         *             Thrown if specified record is not found.
+         */
+        private ParcelFileDescriptor queryTileDescriptorByRowid(long rowid)
+                throws FileNotFoundException {
+            if (this.mRowidStatement == null) {
+                this.mRowidStatement = this.mDb
+                        .compileStatement(MBTilesOperator.SQL_TILE_BY_ROWID);
+            }
+            this.mRowidStatement.bindLong(1, rowid);
+            try {
+                ParcelFileDescriptor ret = this.mRowidStatement
+                        .simpleQueryForBlobFileDescriptor();
+                if (ret == null) {
+                    throw new FileNotFoundException();
+                }
+                return ret;
+            } catch (SQLiteDoneException e) {
+                throw new FileNotFoundException();
+            } finally {
+                this.mRowidStatement.clearBindings();
+            }
+        }
+
+        /**
+         * Reads all rows of metadata table in one pass.
+         * 
+         * @return Complexes of name and value.
+         */
+        private HashMap<String, String> queryMetadata() {
+            HashMap<String, String> ret = new HashMap<String, String>();
+            Cursor cur = this.mDb.rawQuery(MBTilesOperator.SQL_METADATA, null);
+            try {
+                while (cur.moveToNext()) {
+                    String name = cur.getString(0);
+                    if (name != null) {
+                        ret.put(name, cur.isNull(1) ? null : cur.getString(1));
+                    }
+                }
+            } finally {
+                cur.close();
+            }
+            return ret;
+        }
+
+        /**
+         * Gets the tile as a file descriptor with the prepared statement.
+         * Requires API level 11.
+         * 
+         * @param z
+         *            Zoom level.
+         * @param x
+         *            Column.
+         * @param y
+         *            Row.
+         * @return Descriptor to read the content.
+         * @throws FileNotFoundException
+         *             Thrown if specified record is not found.
+         */
+        private ParcelFileDescriptor queryTileDescriptor(long z, long x, long y)
+                throws FileNotFoundException {
+            if (this.mTileStatement == null) {
+                this.mTileStatement = this.mDb
+                        .compileStatement(MBTilesOperator.SQL_TILE);
+            }
+            this.mTileStatement.bindLong(1, z);
+            this.mTileStatement.bindLong(2, x);
+            this.mTileStatement.bindLong(3, y);
+            try {
+                ParcelFileDescriptor ret = this.mTileStatement
+                        .simpleQueryForBlobFileDescriptor();
+                if (ret == null) {
+                    throw new FileNotFoundException();
+                }
+                return ret;
+            } catch (SQLiteDoneException e) {
+                throw new FileNotFoundException();
+            } finally {
+                this.mTileStatement.clearBindings();
+            }
+        }
+
+        /**
+         * Gets the tile. Cursor is used because statements cannot return
+         * blobs. SQL text is constant so the compiled statement is reused.
+         * 
+         * @param z
+         *            Zoom level.
+         * @param x
+         *            Column.
+         * @param y
+         *            Row.
+         * @return The content.
+         * @throws FileNotFoundException
+         *             Thrown if specified record is not found.
+         */
+        private byte[] queryTile(int z, int x, int y)
+                throws FileNotFoundException {
+            if (this.mImages != null) {
+                return this.queryImage(this.queryTileId(z, x, y), z, x, y);
+            }
+            Cursor cur = this.rawQueryTile(MBTilesOperator.SQL_TILE, z, x, y);
+            try {
+                if (!cur.moveToFirst()) {
+                    throw new FileNotFoundException();
+                }
+                return cur.getBlob(0);
+            } finally {
+                cur.close();
+            }
+        }
+
+        /**
+         * Gets tile_id of the tile on map/images schema with the prepared
+         * statement. Looks up the index of map only.
+         * 
+         * @param z
+         *            Zoom level.
+         * @param x
+         *            Column.
+         * @param y
+         *            Row.
+         * @return tile_id.
+         * @throws FileNotFoundException
+         *             Thrown if specified record is not found.
+         */
+        private String queryTileId(int z, int x, int y)
+                throws FileNotFoundException {
+            if (this.mTileIdStatement == null) {
+                this.mTileIdStatement = this.mDb
+                        .compileStatement(MBTilesOperator.SQL_TILE_ID);
+            }
+            this.mTileIdStatement.bindLong(1, z);
+            this.mTileIdStatement.bindLong(2, x);
+            this.mTileIdStatement.bindLong(3, y);
+            try {
+                String ret = this.mTileIdStatement.simpleQueryForString();
+                if (ret == null) {
+                    throw new FileNotFoundException();
+                }
+                return ret;
+            } catch (SQLiteDoneException e) {
+                throw new FileNotFoundException();
+            } finally {
+                this.mTileIdStatement.clearBindings();
+            }
+        }
+
+        /**
+         * Gets the image of tile_id from the image cache, or from images
+         * table if not cached. Tiles sharing tile_id get the same array.
+         * 
+         * @param tileId
+         *            tile_id.
+         * @param z
+         *            Zoom level of one of tiles which have tile_id.
+         * @param x
+         *            Column of one of tiles which have tile_id.
+         * @param y
+         *            Row of one of tiles which have tile_id.
+         * @return The content.
+         * @throws FileNotFoundException
+         *             Thrown if the image is not found.
+         */
+        private byte[] queryImage(String tileId, int z, int x, int y)
+                throws FileNotFoundException {
+            byte[] ret = this.mImages.get(tileId);
+            if (ret != null) {
+                return ret;
+            }
+            Cursor cur = this.rawQueryTile(MBTilesOperator.SQL_IMAGE, z, x, y);
+            try {
+                if (!cur.moveToFirst()) {
+                    throw new FileNotFoundException();
+                }
+                ret = cur.getBlob(0);
+            } finally {
+                cur.close();
+            }
+            return this.mImages.put(tileId, ret);
+        }
+
+        /**
+         * Reads tiles in the range with one query.
+         * 
+         * @param z
+         *            Zoom level.
+         * @param xmin
+         *            Minimum column.
+         * @param xmax
+         *            Maximum column.
+         * @param ymin
+         *            Minimum row.
+         * @param ymax
+         *            Maximum row.
+         * @param offset
+         *            The number of tiles to skip.
+         * @param limit
+         *            Maximum number of tiles. Negative means no limit.
+         * @param visitor
+         *            Receives tiles.
+         * @return The number of tiles visited.
+         */
+        private int queryTiles(int z, int xmin, int xmax, int ymin, int ymax,
+                int offset, int limit, TileVisitor visitor) {
+            if (this.mImages != null) {
+                return this.queryNormalizedTiles(z, xmin, xmax, ymin, ymax,
+                        offset, limit, visitor);
+            }
+            Cursor cur = this.mDb.rawQuery(MBTilesOperator.SQL_TILE_RANGE,
+                    MBTilesOperator.createRangeArgs(z, xmin, xmax, ymin, ymax,
+                            offset, limit));
+            int count = 0;
+            try {
+                while (cur.moveToNext()) {
+                    count++;
+                    if (!visitor.visit(z, cur.getInt(0), cur.getInt(1),
+                            cur.getBlob(2))) {
+                        break;
+                    }
+                }
+            } finally {
+                cur.close();
+            }
+            return count;
+        }
+
+        /**
+         * Reads tiles in the range on map/images schema. Each image is read
+         * once even if shared by tiles in the range.
+         * 
+         * @param z
+         *            Zoom level.
+         * @param xmin
+         *            Minimum column.
+         * @param xmax
+         *            Maximum column.
+         * @param ymin
+         *            Minimum row.
+         * @param ymax
+         *            Maximum row.
+         * @param offset
+         *            The number of tiles to skip.
+         * @param limit
+         *            Maximum number of tiles. Negative means no limit.
+         * @param visitor
+         *            Receives tiles.
+         * @return The number of tiles visited.
+         */
+        private int queryNormalizedTiles(int z, int xmin, int xmax, int ymin,
+                int ymax, int offset, int limit, TileVisitor visitor) {
+            Cursor cur = this.mDb.rawQuery(MBTilesOperator.SQL_TILE_ID_RANGE,
+                    MBTilesOperator.createRangeArgs(z, xmin, xmax, ymin, ymax,
+                            offset, limit));
+            int count = 0;
+            try {
+                while (cur.moveToNext()) {
+                    int x = cur.getInt(0);
+                    int y = cur.getInt(1);
+                    byte[] content;
+                    try {
+                        content = this.queryImage(cur.getString(2), z, x, y);
+                    } catch (FileNotFoundException e) {
+                        // dangling tile_id.
+                        continue;
+                    }
+                    count++;
+                    if (!visitor.visit(z, x, y, content)) {
+                        break;
+                    }
+                }
+            } finally {
+                cur.close();
+            }
+            return count;
+        }
+
+        /**
+         * Reads coverage in the range with one query. Contents are not read.
+         * 
+         * @param z
+         *            Zoom level.
+         * @param xmin
+         *            Minimum column.
+         * @param xmax
+         *            Maximum column.
+         * @param ymin
+         *            Minimum row.
+         * @param ymax
+         *            Maximum row.
+         * @param offset
+         *            The number of tiles to skip.
+         * @param limit
+         *            Maximum number of tiles. Negative means no limit.
+         * @param visitor
+         *            Receives coverage.
+         * @return The number of tiles visited.
+         */
+        private int queryCoverage(int z, int xmin, int xmax, int ymin,
+                int ymax, int offset, int limit, CoverageVisitor visitor) {
+            Cursor cur = this.mDb.rawQuery(
+                    MBTilesOperator.SQL_COVERAGE_RANGE,
+                    MBTilesOperator.createRangeArgs(z, xmin, xmax, ymin, ymax,
+                            offset, limit));
+            int count = 0;
+            try {
+                while (cur.moveToNext()) {
+                    count++;
+                    if (!visitor.visit(z, cur.getInt(0), cur.getInt(1),
+                            cur.getInt(2))) {
+                        break;
+                    }
+                }
+            } finally {
+                cur.close();
+            }
+            return count;
+        }
+
+        private int scanCoverage(CoverageVisitor visitor) {
+            Cursor cur = this.mDb.rawQuery(
+                    this.mImages != null ? MBTilesOperator.SQL_MAP_COVERAGE_ALL
+                            : MBTilesOperator.SQL_COVERAGE_ALL, null);
+            int count = 0;
+            try {
+                while (cur.moveToNext()) {
+                    count++;
+                    if (!visitor.visit(cur.getInt(0), cur.getInt(1),
+                            cur.getInt(2), -1)) {
+                        break;
+                    }
+                }
+            } finally {
+                cur.close();
+            }
+            return count;
+        }
+
+        /**
+         * Closes statements and the database.
+         */
+        private void close() {
+            if (this.mTileStatement != null) {
+                this.mTileStatement.close();
+                this.mTileStatement = null;
+            }
+            if (this.mTileIdStatement != null) {
+                this.mTileIdStatement.close();
+                this.mTileIdStatement = null;
+            }
+            if (this.mRowidStatement != null) {
+                this.mRowidStatement.close();
+                this.mRowidStatement = null;
+            }
+            if (this.mDb.isOpen()) {
+                this.mDb.close();
+            }
+        }
+    }
+
+    /**
+     * LRU cache of images by tile_id, for files with map/images schema. Many
+     * tiles share one image (blank, water and so on), so the shared image is
+     * read and held once.
+     */
+    private static final class ImageCache {
+        private final LinkedHashMap<String, byte[]> mMap = new LinkedHashMap<String, byte[]>(
+                64, 0.75f, true);
+        private final long mMaxBytes;
+        private long mBytes = 0;
+        private long mHitCount = 0;
+        private long mMissCount = 0;
+
+        private ImageCache(long maxBytes) {
+            this.mMaxBytes = maxBytes;
+        }
+
+        private byte[] get(String tileId) {
+            synchronized (this) {
+                byte[] ret = this.mMap.get(tileId);
+                if (ret != null) {
+                    this.mHitCount++;
+                } else {
+                    this.mMissCount++;
+                }
+                return ret;
+            }
+        }
+
+        /**
+         * Puts the image. If another thread put it already, returns that one
+         * so that callers share the array.
+         * 
+         * @param tileId
+         *            tile_id.
+         * @param content
+         *            Content.
+         * @return Cached content.
+         */
+        private byte[] put(String tileId, byte[] content) {
+            synchronized (this) {
+                byte[] old = this.mMap.get(tileId);
+                if (old != null) {
+                    return old;
+                }
+                if (content.length > this.mMaxBytes) {
+                    return content;
+                }
+                this.mMap.put(tileId, content);
+                this.mBytes += content.length;
+                Iterator<Map.Entry<String, byte[]>> it = this.mMap.entrySet()
+                        .iterator();
+                while (this.mBytes > this.mMaxBytes && it.hasNext()) {
+                    this.mBytes -= it.next().getValue().length;
+                    it.remove();
+                }
+                return content;
+            }
+        }
+
+        private void clear() {
+            synchronized (this) {
+                this.mMap.clear();
+                this.mBytes = 0;
+            }
+        }
+    }
+
     private static final Pattern PTN_INTEGER = Pattern.compile("^-?[0-9]+$");
 
     private String mDbPath;
+    private volatile MBTilesMetadata mMetadata = null;
     private ImageFormat mImageFormat = ImageFormat.none;
-    private SQLiteDatabase mDb;
+    private final int mPoolSize;
+    private boolean mReadonly = true;
+    private boolean mOpened = false;
+    /** Images by tile_id. Null unless the file has map/images schema. */
+    private volatile ImageCache mImageCache = null;
+    /** Whether tiles are read by {@link MappedMBTilesReader}. */
+    private final boolean mMappedRequested;
+    /** Reader of the mapped file. Null if not used. */
+    private volatile MappedMBTilesReader mMappedReader = null;
+    /** SQLite settings applied to each connection. */
+    private final SQLiteTuningProfile mProfile;
+    /** Whether tiles table has no index for lookups. */
+    private volatile boolean mTileIndexMissing = false;
+    /** Estimated number of tiles, if the index is missing. */
+    private volatile long mEstimatedTileCount = 0;
+    /** Sidecar index used if the index is missing. */
+    private volatile RowidIndex mRowidIndex = null;
+    /** Settings in effect, read from the last opened connection. */
+    private volatile Map<String, String> mEffectiveSettings = Collections
+            .emptyMap();
+
+    /** Lock for the pool. */
+    private final Object mPoolLock = new Object();
+    /** All opened connections, including borrowed ones. */
+    private final ArrayList<Connection> mConnections = new ArrayList<Connection>();
+    /** Connections which are not borrowed. */
+    private final LinkedList<Connection> mIdleConnections = new LinkedList<Connection>();
+    /** The number of connections being opened. */
+    private int mOpeningConnections = 0;
+
+    private long mAcquireCount = 0;
+    private long mWaitCount = 0;
+    private long mTotalWaitNanos = 0;
+    private long mMaxWaitNanos = 0;
 
     /**
      * Constructor.
@@ -38,7 +814,79 @@ public class MBTilesOperator {
      */
     public MBTilesOperator(String dbPath, boolean readonly)
             throws SQLiteException {
+        this(dbPath, readonly, MBTilesOperator.DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param dbPath
+     *            Path to MBTiles file.
+     * @param readonly
+     *            Whether opens with read-only mode.
+     * @param poolSize
+     *            Maximum number of connections. Read-write mode always uses
+     *            one connection.
+     * @throws SQLiteException
+     *             Thrown when fails to open the file.
+     */
+    public MBTilesOperator(String dbPath, boolean readonly, int poolSize)
+            throws SQLiteException {
+        this(dbPath, readonly, poolSize, false);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param dbPath
+     *            Path to MBTiles file.
+     * @param readonly
+     *            Whether opens with read-only mode.
+     * @param poolSize
+     *            Maximum number of connections. Read-write mode always uses
+     *            one connection.
+     * @param mapped
+     *            Whether tiles are read from the memory-mapped file by
+     *            {@link MappedMBTilesReader} instead of SQLite. Ignored unless
+     *            read-only. If the file is not supported, SQLite is used.
+     *            Metadata are always read by SQLite.
+     * @throws SQLiteException
+     *             Thrown when fails to open the file.
+     */
+    public MBTilesOperator(String dbPath, boolean readonly, int poolSize,
+            boolean mapped) throws SQLiteException {
+        this(dbPath, readonly, poolSize, mapped, SQLiteTuningProfile
+                .createReadOptimized());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param dbPath
+     *            Path to MBTiles file.
+     * @param readonly
+     *            Whether opens with read-only mode.
+     * @param poolSize
+     *            Maximum number of connections. Read-write mode always uses
+     *            one connection.
+     * @param mapped
+     *            Whether tiles are read from the memory-mapped file by
+     *            {@link MappedMBTilesReader} instead of SQLite.
+     * @param profile
+     *            SQLite settings applied to each connection. Other
+     *            constructors use
+     *            {@link SQLiteTuningProfile#createReadOptimized()}.
+     * @throws SQLiteException
+     *             Thrown when fails to open the file.
+     */
+    public MBTilesOperator(String dbPath, boolean readonly, int poolSize,
+            boolean mapped, SQLiteTuningProfile profile)
+            throws SQLiteException {
         this.mDbPath = dbPath;
+        this.mPoolSize = poolSize > 0 ? poolSize : 1;
+        this.mMappedRequested = mapped;
+        this.mProfile = profile != null ? profile : SQLiteTuningProfile
+                .createDefault();
         this.open(readonly);
     }
 
@@ -50,18 +898,36 @@ public class MBTilesOperator {
      * @return Specified metadata value.
      * @throws FileNotFoundException
      */
+    @Override
     public String getMeta(String name) throws FileNotFoundException {
-        if (this.mDb == null) {
+        MBTilesMetadata meta = this.getMetadata();
+        if (!meta.getValues().containsKey(name)) {
             throw new FileNotFoundException();
         }
-        // SELECT value FROM metadata WHERE name=?
-        Cursor cur = this.mDb.query("metadata", new String[] { "value" },
-                "name=?", new String[] { name }, null, null, null);
-        if (!(cur.getCount() > 0)) {
-            throw new FileNotFoundException();
+        return meta.get(name);
+    }
+
+    /**
+     * Gets the snapshot of metadata table. The snapshot is read when the file
+     * is opened, and read again if the size or the modified time of the file
+     * is changed.
+     * 
+     * @return Snapshot of metadata.
+     * @throws FileNotFoundException
+     *             Thrown if the file is closed.
+     */
+    @Override
+    public MBTilesMetadata getMetadata() throws FileNotFoundException {
+        MBTilesMetadata meta = this.mMetadata;
+        if (meta == null || meta.isStale(new File(this.mDbPath))) {
+            Connection conn = this.acquireConnection();
+            try {
+                meta = this.loadMetadata(conn);
+            } finally {
+                this.releaseConnection(conn);
+            }
         }
-        cur.moveToFirst();
-        return cur.getString(0);
+        return meta;
     }
 
     /**
@@ -77,6 +943,7 @@ public class MBTilesOperator {
      * @throws FileNotFoundException
      *             Thrown if specified record is not found.
      */
+    @Override
     public byte[] getTile(String sz, String sx, String sy)
             throws FileNotFoundException {
         if (PTN_INTEGER.matcher(sz).find() == false
@@ -84,24 +951,449 @@ public class MBTilesOperator {
                 || PTN_INTEGER.matcher(sy).find() == false) {
             throw new FileNotFoundException();
         }
-        // SELECT tile_data FROM tiles WHERE zoom_level=? AND tile_column=? AND
-        // tile_wor=?
-        Cursor cur = this.mDb.query("tiles", new String[] { "tile_data" },
-                "zoom_level=? AND tile_column=? AND tile_row=?", new String[] {
-                        sz, sx, sy }, null, null, null);
-        if (!(cur.getCount() > 0)) {
+        try {
+            return this.getTile(Integer.parseInt(sz), Integer.parseInt(sx),
+                    Integer.parseInt(sy));
+        } catch (NumberFormatException e) {
+            throw new FileNotFoundException();
+        }
+    }
+
+    /**
+     * Gets the tile. Coordinates are bound as integers, so that no string is
+     * created nor matched.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return The content.
+     * @throws FileNotFoundException
+     *             Thrown if specified record is not found.
+     */
+    @Override
+    public byte[] getTile(int z, int x, int y) throws FileNotFoundException {
+        MappedMBTilesReader reader = this.mMappedReader;
+        if (reader != null) {
+            ByteBuffer buf = this.getTileBuffer(reader, z, x, y);
+            byte[] ret = new byte[buf.remaining()];
+            buf.get(ret);
+            return ret;
+        }
+        long rowid = this.findRowid(z, x, y);
+        Connection conn = this.acquireConnection();
+        try {
+            if (rowid >= 0) {
+                return conn.queryTileByRowid(rowid);
+            }
+            return conn.queryTile(z, x, y);
+        } finally {
+            this.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Gets the tile as a buffer. If the file is mapped, the buffer is a slice
+     * of the mapped file and the content is not copied.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return Read-only buffer of the content.
+     * @throws FileNotFoundException
+     *             Thrown if specified record is not found.
+     */
+    @Override
+    public ByteBuffer getTileBuffer(int z, int x, int y)
+            throws FileNotFoundException {
+        MappedMBTilesReader reader = this.mMappedReader;
+        if (reader != null) {
+            return this.getTileBuffer(reader, z, x, y);
+        }
+        return ByteBuffer.wrap(this.getTile(z, x, y)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Whether tiles are read from the memory-mapped file.
+     * 
+     * @return True if {@link MappedMBTilesReader} is used.
+     */
+    @Override
+    public boolean isMapped() {
+        return this.mMappedReader != null;
+    }
+
+    /**
+     * Opens all connections of the pool, prepares statements and reads root
+     * pages of the index. If the file is mapped, looks up a tile in the
+     * mapped file instead.
+     */
+    @Override
+    public void warmUp() throws FileNotFoundException {
+        this.getMetadata();
+        MappedMBTilesReader reader = this.mMappedReader;
+        if (reader != null) {
+            try {
+                this.getTileBuffer(reader, -1, 0, 0);
+            } catch (FileNotFoundException e) {
+                // expected.
+            }
+            return;
+        }
+        ArrayList<Connection> conns = new ArrayList<Connection>();
+        try {
+            int size = this.getPoolSize();
+            for (int n = 0; n < size; n++) {
+                Connection conn = this.acquireConnection();
+                conns.add(conn);
+                if (!this.mTileIndexMissing) {
+                    // a lookup would scan the table.
+                    conn.warmUp();
+                }
+            }
+        } finally {
+            for (Connection conn : conns) {
+                this.releaseConnection(conn);
+            }
+        }
+    }
+
+    /**
+     * Reads tiles in the range with one query. Ranges are inclusive.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param xmin
+     *            Minimum column.
+     * @param xmax
+     *            Maximum column.
+     * @param ymin
+     *            Minimum row.
+     * @param ymax
+     *            Maximum row.
+     * @param visitor
+     *            Receives tiles. Called while a connection is borrowed, so it
+     *            should return quickly.
+     * @return The number of tiles visited.
+     * @throws FileNotFoundException
+     *             Thrown if the file is closed.
+     */
+    public int getTiles(int z, int xmin, int xmax, int ymin, int ymax,
+            TileVisitor visitor) throws FileNotFoundException {
+        return this.getTiles(z, xmin, xmax, ymin, ymax, 0, -1, visitor);
+    }
+
+    /**
+     * Reads a page of tiles in the range with one query. Ranges are
+     * inclusive. Tiles are ordered by column and row.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param xmin
+     *            Minimum column.
+     * @param xmax
+     *            Maximum column.
+     * @param ymin
+     *            Minimum row.
+     * @param ymax
+     *            Maximum row.
+     * @param offset
+     *            The number of tiles to skip.
+     * @param limit
+     *            Maximum number of tiles. Negative means no limit.
+     * @param visitor
+     *            Receives tiles. Called while a connection is borrowed, so it
+     *            should return quickly.
+     * @return The number of tiles visited.
+     * @throws FileNotFoundException
+     *             Thrown if the file is closed.
+     */
+    @Override
+    public int getTiles(int z, int xmin, int xmax, int ymin, int ymax,
+            int offset, int limit, TileVisitor visitor)
+            throws FileNotFoundException {
+        MappedMBTilesReader reader = this.mMappedReader;
+        if (reader != null) {
+            try {
+                return reader.getTiles(z, xmin, xmax, ymin, ymax, offset,
+                        limit, visitor);
+            } catch (IOException e) {
+                throw new FileNotFoundException(e.getMessage());
+            }
+        }
+        Connection conn = this.acquireConnection();
+        try {
+            return conn.queryTiles(z, xmin, xmax, ymin, ymax, offset, limit,
+                    visitor);
+        } finally {
+            this.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Reads a page of coverage, which tiles exist and their lengths, in the
+     * range with one query. Contents are not read. Ranges are inclusive.
+     * Tiles are ordered by column and row.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param xmin
+     *            Minimum column.
+     * @param xmax
+     *            Maximum column.
+     * @param ymin
+     *            Minimum row.
+     * @param ymax
+     *            Maximum row.
+     * @param offset
+     *            The number of tiles to skip.
+     * @param limit
+     *            Maximum number of tiles. Negative means no limit.
+     * @param visitor
+     *            Receives coverage. Called while a connection is borrowed, so
+     *            it should return quickly.
+     * @return The number of tiles visited.
+     * @throws FileNotFoundException
+     *             Thrown if the file is closed.
+     */
+    @Override
+    public int getCoverage(int z, int xmin, int xmax, int ymin, int ymax,
+            int offset, int limit, CoverageVisitor visitor)
+            throws FileNotFoundException {
+        MappedMBTilesReader reader = this.mMappedReader;
+        if (reader != null) {
+            try {
+                return reader.getCoverage(z, xmin, xmax, ymin, ymax, offset,
+                        limit, visitor);
+            } catch (IOException e) {
+                throw new FileNotFoundException(e.getMessage());
+            }
+        }
+        Connection conn = this.acquireConnection();
+        try {
+            return conn.queryCoverage(z, xmin, xmax, ymin, ymax, offset,
+                    limit, visitor);
+        } finally {
+            this.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Reads coordinates of all tiles, ordered by zoom level, column and row.
+     * Lengths are not read and always -1.
+     * 
+     * @param visitor
+     *            Receives coordinates. Called while a connection is borrowed.
+     * @return The number of tiles visited.
+     * @throws FileNotFoundException
+     *             Thrown if the file is closed.
+     */
+    @Override
+    public int scanCoverage(CoverageVisitor visitor)
+            throws FileNotFoundException {
+        MappedMBTilesReader reader = this.mMappedReader;
+        if (reader != null) {
+            try {
+                return reader.scanCoverage(visitor);
+            } catch (IOException e) {
+                throw new FileNotFoundException(e.getMessage());
+            }
+        }
+        Connection conn = this.acquireConnection();
+        try {
+            return conn.scanCoverage(visitor);
+        } finally {
+            this.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Gets the path of the MBTiles file.
+     * 
+     * @return Path.
+     */
+    @Override
+    public String getPath() {
+        return this.mDbPath;
+    }
+
+    /**
+     * Whether {@link #openTile(String, String, String)} is supported. Requires
+     * API level 11.
+     * 
+     * @return True if tiles can be got as file descriptors.
+     */
+    public static boolean isTileDescriptorSupported() {
+        return Build.VERSION.SDK_INT >= 11;
+    }
+
+    /**
+     * Gets the tile as a file descriptor. The content is not copied to the
+     * Java heap. Requires API level 11, see
+     * {@link #isTileDescriptorSupported()}.
+     * 
+     * @param sz
+     *            String z. Must match /^-?[0-9]+$/
+     * @param sx
+     *            String x. Must match /^-?[0-9]+$/
+     * @param sy
+     *            String y. Must match /^-?[0-9]+$/
+     * @return Descriptor to read the content.
+     * @throws FileNotFoundException
+     *             Thrown if specified record is not found.
+     */
+    public ParcelFileDescriptor openTile(String sz, String sx, String sy)
+            throws FileNotFoundException {
+        if (PTN_INTEGER.matcher(sz).find() == false
+                || PTN_INTEGER.matcher(sx).find() == false
+                || PTN_INTEGER.matcher(sy).find() == false) {
+            throw new FileNotFoundException();
+        }
+        try {
+            return this.openTile(Integer.parseInt(sz), Integer.parseInt(sx),
+                    Integer.parseInt(sy));
+        } catch (NumberFormatException e) {
             throw new FileNotFoundException();
         }
-        cur.moveToFirst();
-        return cur.getBlob(0);
     }
 
     /**
-     * Closes MBTiles file.
+     * Gets the tile as a file descriptor, with integer coordinates. See
+     * {@link #openTile(String, String, String)}.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return Descriptor to read the content.
+     * @throws FileNotFoundException
+     *             Thrown if specified record is not found.
+     */
+    public ParcelFileDescriptor openTile(int z, int x, int y)
+            throws FileNotFoundException {
+        long rowid = this.findRowid(z, x, y);
+        Connection conn = this.acquireConnection();
+        try {
+            if (rowid >= 0) {
+                return conn.queryTileDescriptorByRowid(rowid);
+            }
+            return conn.queryTileDescriptor(z, x, y);
+        } finally {
+            this.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Reads coordinates and rowids of all tiles. Scans the table, so takes
+     * time on large files.
+     * 
+     * @param visitor
+     *            Receives rowids. Called while a connection is borrowed.
+     * @return The number of tiles visited.
+     * @throws FileNotFoundException
+     *             Thrown if the file is closed.
+     */
+    public int scanRowids(RowidVisitor visitor) throws FileNotFoundException {
+        Connection conn = this.acquireConnection();
+        try {
+            return conn.scanRowids(visitor);
+        } finally {
+            this.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Whether tiles table has no index for lookups by coordinates, so that
+     * each lookup scans the table. Checked when opened. The index can be
+     * created by {@link #createTileIndex()} if the file is writable.
+     * 
+     * @return True if the index is missing.
+     */
+    public boolean isTileIndexMissing() {
+        return this.mTileIndexMissing;
+    }
+
+    /**
+     * Whether {@link #createTileIndex()} can write the file.
+     * 
+     * @return True if opened writable or the file is writable.
+     */
+    public boolean isTileIndexCreatable() {
+        return !this.mReadonly || new File(this.mDbPath).canWrite();
+    }
+
+    /**
+     * Creates the index for tile lookups on a connection of its own. Takes
+     * minutes for large files, so call it in background. Lookups scan the
+     * table, or use the sidecar index, until it is created. Does not need
+     * the file to stay open, and logs a warning with the reason if fails.
+     * 
+     * @return True if the index is created.
+     */
+    public boolean createTileIndex() {
+        if (!this.isTileIndexCreatable()) {
+            this.warnTileIndexMissing("the file is read-only");
+            return false;
+        }
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(this.mDbPath, null,
+                    SQLiteDatabase.OPEN_READWRITE);
+            long start = System.currentTimeMillis();
+            db.execSQL(MBTilesOperator.SQL_CREATE_TILE_INDEX);
+            Log.w(MBTilesOperator.TAG, "Created tile_index on "
+                    + this.mDbPath + " (about " + this.mEstimatedTileCount
+                    + " tiles) in " + (System.currentTimeMillis() - start)
+                    + " ms. Lookups no longer scan the table.");
+            // Prepared statements are compiled again with the index.
+            this.mTileIndexMissing = false;
+            return true;
+        } catch (SQLiteException e) {
+            this.warnTileIndexMissing("creating tile_index failed ("
+                    + e.getMessage() + ")");
+            return false;
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * Sets the sidecar index used for lookups instead of scanning the table.
+     * 
+     * @param index
+     *            Index built or loaded for this file. Null to stop using it.
+     */
+    public void setRowidIndex(RowidIndex index) {
+        this.mRowidIndex = index;
+    }
+
+    /**
+     * Closes MBTiles file. Borrowed connections are closed when returned.
      */
+    @Override
     public void close() {
-        if (this.mDb != null && this.mDb.isOpen()) {
-            this.mDb.close();
+        synchronized (this.mPoolLock) {
+            for (Connection conn : this.mIdleConnections) {
+                this.mConnections.remove(conn);
+                conn.close();
+            }
+            this.mIdleConnections.clear();
+            this.mOpened = false;
+            this.mMappedReader = null;
+            this.mRowidIndex = null;
+            if (this.mImageCache != null) {
+                this.mImageCache.clear();
+            }
+            this.mPoolLock.notifyAll();
         }
     }
 
@@ -113,24 +1405,49 @@ public class MBTilesOperator {
      * @throws SQLiteException
      */
     public void open(boolean readonly) throws SQLiteException {
-        if (this.mDb != null && this.mDb.isOpen()) {
-            return;
-        }
-        if (this.mDbPath == null) {
-            // has no path information.
-            throw new SQLiteException();
-        }
-
-        int openFlag = readonly ? SQLiteDatabase.OPEN_READONLY
-                : SQLiteDatabase.OPEN_READWRITE;
-        this.mDb = SQLiteDatabase.openDatabase(this.mDbPath, null, openFlag);
-        // Gets image format if not yet gotten.
-        if (this.mImageFormat == ImageFormat.none) {
-            Cursor cur = this.mDb.query("metadata", new String[] { "value" },
-                    "name=?", new String[] { "format" }, null, null, null);
-            if (cur.getCount() > 0) {
-                cur.moveToFirst();
-                String format = cur.getString(0);
+        synchronized (this.mPoolLock) {
+            if (this.mOpened) {
+                return;
+            }
+            if (this.mDbPath == null) {
+                // has no path information.
+                throw new SQLiteException();
+            }
+            this.mReadonly = readonly;
+            Connection conn = this.openConnection();
+            if (conn.isNormalized()) {
+                // Reopens the connection with the image cache.
+                this.mImageCache = new ImageCache(
+                        MBTilesOperator.DEFAULT_IMAGE_CACHE_BYTES);
+                conn.close();
+                conn = this.openConnection();
+            } else {
+                this.mImageCache = null;
+                this.mTileIndexMissing = conn.isTileIndexMissing();
+                if (this.mTileIndexMissing) {
+                    this.mEstimatedTileCount = conn.estimateTileCount();
+                    if (!this.isTileIndexCreatable()) {
+                        this.warnTileIndexMissing("the file is read-only");
+                    }
+                }
+            }
+            this.mConnections.add(conn);
+            this.mIdleConnections.add(conn);
+            this.mOpened = true;
+            if (this.mMappedRequested && readonly) {
+                try {
+                    this.mMappedReader = new MappedMBTilesReader(new File(
+                            this.mDbPath));
+                } catch (IOException e) {
+                    // falls back to SQLite.
+                    e.printStackTrace();
+                }
+            }
+            MBTilesMetadata meta = this.loadMetadata(conn);
+            // Gets image format if not yet gotten.
+            if (this.mImageFormat == ImageFormat.none
+                    && meta.getValues().containsKey("format")) {
+                String format = meta.get("format");
                 if ("jpg".equals(format)) {
                     this.mImageFormat = ImageFormat.jpg;
                 } else if ("png".equals(format)) {
@@ -141,4 +1458,430 @@ public class MBTilesOperator {
             }
         }
     }
+
+    /**
+     * Logs a warning that lookups scan the table, with the estimated cost.
+     * 
+     * @param reason
+     *            Why the index is not created.
+     */
+    private void warnTileIndexMissing(String reason) {
+        long tiles = this.mEstimatedTileCount;
+        // about 100 entries per index page.
+        int depth = 1;
+        for (long n = tiles; n >= 100; n /= 100) {
+            depth++;
+        }
+        Log.w(MBTilesOperator.TAG, "tiles of " + this.mDbPath
+                + " has no index on (zoom_level, tile_column, tile_row)"
+                + " and it is not created: " + reason
+                + ". Each lookup scans about " + tiles
+                + " rows, while an index would read about " + (depth + 1)
+                + " pages. Build a sidecar RowidIndex and set it by"
+                + " setRowidIndex().");
+    }
+
+    /**
+     * Finds rowid of the tile with the sidecar index.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return Rowid. Negative if the index is not used for this tile.
+     * @throws FileNotFoundException
+     *             Thrown if the index says the tile is not found.
+     */
+    private long findRowid(int z, int x, int y) throws FileNotFoundException {
+        RowidIndex index = this.mRowidIndex;
+        if (index == null) {
+            return RowidIndex.NOT_INDEXED;
+        }
+        long rowid = index.find(z, x, y);
+        if (rowid == RowidIndex.NOT_FOUND) {
+            throw new FileNotFoundException();
+        }
+        return rowid;
+    }
+
+    /**
+     * Gets the SQLite settings applied to each connection.
+     * 
+     * @return Profile.
+     */
+    public SQLiteTuningProfile getTuningProfile() {
+        return this.mProfile;
+    }
+
+    /**
+     * Gets SQLite settings in effect, read back after the profile is
+     * applied: mmap_size, cache_size, temp_store, query_only, locking_mode
+     * and no_localized_collators. Settings SQLite does not support are
+     * missing.
+     * 
+     * @return Unmodifiable map of names and values.
+     */
+    public Map<String, String> getEffectiveSettings() {
+        return this.mEffectiveSettings;
+    }
+
+    /**
+     * Whether the file stores tiles with map/images schema, where tiles is a
+     * view and tiles may share one image by tile_id. If true, images are
+     * cached by tile_id.
+     * 
+     * @return True if the file has map and images tables.
+     */
+    public boolean isNormalized() {
+        return this.mImageCache != null;
+    }
+
+    /**
+     * Gets the number of images found in the cache by tile_id.
+     * 
+     * @return The number of hits. 0 if not normalized.
+     */
+    public long getImageHitCount() {
+        ImageCache images = this.mImageCache;
+        if (images == null) {
+            return 0;
+        }
+        synchronized (images) {
+            return images.mHitCount;
+        }
+    }
+
+    /**
+     * Gets the number of images read from images table.
+     * 
+     * @return The number of misses. 0 if not normalized.
+     */
+    public long getImageMissCount() {
+        ImageCache images = this.mImageCache;
+        if (images == null) {
+            return 0;
+        }
+        synchronized (images) {
+            return images.mMissCount;
+        }
+    }
+
+    /**
+     * Gets maximum number of connections.
+     * 
+     * @return Maximum number of connections.
+     */
+    public int getPoolSize() {
+        return this.mReadonly ? this.mPoolSize : 1;
+    }
+
+    /**
+     * Gets the number of times connections are borrowed.
+     * 
+     * @return The number of times connections are borrowed.
+     */
+    public long getAcquireCount() {
+        synchronized (this.mPoolLock) {
+            return this.mAcquireCount;
+        }
+    }
+
+    /**
+     * Gets the number of times callers had to wait for a connection.
+     * 
+     * @return The number of waits.
+     */
+    public long getWaitCount() {
+        synchronized (this.mPoolLock) {
+            return this.mWaitCount;
+        }
+    }
+
+    /**
+     * Gets total time callers waited for connections.
+     * 
+     * @return Total wait time in nanoseconds.
+     */
+    public long getTotalWaitNanos() {
+        synchronized (this.mPoolLock) {
+            return this.mTotalWaitNanos;
+        }
+    }
+
+    /**
+     * Gets the longest time a caller waited for a connection.
+     * 
+     * @return Maximum wait time in nanoseconds.
+     */
+    public long getMaxWaitNanos() {
+        synchronized (this.mPoolLock) {
+            return this.mMaxWaitNanos;
+        }
+    }
+
+    /**
+     * Gets the tile from the mapped file.
+     * 
+     * @param reader
+     *            Reader.
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return Read-only buffer of the content.
+     * @throws FileNotFoundException
+     *             Thrown if specified record is not found.
+     */
+    private ByteBuffer getTileBuffer(MappedMBTilesReader reader, int z,
+            int x, int y) throws FileNotFoundException {
+        ByteBuffer ret;
+        try {
+            ret = reader.getTile(z, x, y);
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+        if (ret == null) {
+            throw new FileNotFoundException();
+        }
+        return ret;
+    }
+
+    /**
+     * Creates arguments for range queries.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param xmin
+     *            Minimum column.
+     * @param xmax
+     *            Maximum column.
+     * @param ymin
+     *            Minimum row.
+     * @param ymax
+     *            Maximum row.
+     * @param offset
+     *            The number of tiles to skip.
+     * @param limit
+     *            Maximum number of tiles. Negative means no limit.
+     * @return Arguments.
+     */
+    private static String[] createRangeArgs(int z, int xmin, int xmax,
+            int ymin, int ymax, int offset, int limit) {
+        return new String[] { String.valueOf(z), String.valueOf(xmin),
+                String.valueOf(xmax), String.valueOf(ymin),
+                String.valueOf(ymax), String.valueOf(limit < 0 ? -1 : limit),
+                String.valueOf(offset < 0 ? 0 : offset) };
+    }
+
+    /**
+     * Reads metadata table and replaces the snapshot.
+     * 
+     * @param conn
+     *            Borrowed connection.
+     * @return New snapshot.
+     */
+    private MBTilesMetadata loadMetadata(Connection conn) {
+        // Stats before reading, so that a change while reading makes the
+        // snapshot stale.
+        File f = new File(this.mDbPath);
+        long fileSize = f.length();
+        long lastModified = f.lastModified();
+        MBTilesMetadata meta = new MBTilesMetadata(conn.queryMetadata(),
+                fileSize, lastModified);
+        this.mMetadata = meta;
+        return meta;
+    }
+
+    // ----------------
+    // Connection pool
+    // ----------------
+    /**
+     * Borrows a connection. Opens new one if all are borrowed and the pool is
+     * not full, otherwise waits for one to be returned. Must be returned by
+     * {@link #releaseConnection(Connection)}.
+     * 
+     * @return Connection.
+     * @throws FileNotFoundException
+     *             Thrown if the file is closed or cannot be opened.
+     */
+    private Connection acquireConnection() throws FileNotFoundException {
+        boolean waited = false;
+        long start = 0;
+        synchronized (this.mPoolLock) {
+            while (true) {
+                if (!this.mOpened) {
+                    throw new FileNotFoundException();
+                }
+                if (!this.mIdleConnections.isEmpty()) {
+                    Connection conn = this.mIdleConnections.removeLast();
+                    this.recordAcquire(waited, start);
+                    return conn;
+                }
+                if (this.mConnections.size() + this.mOpeningConnections < this
+                        .getPoolSize()) {
+                    this.mOpeningConnections++;
+                    break;
+                }
+                if (!waited) {
+                    waited = true;
+                    start = System.nanoTime();
+                }
+                try {
+                    this.mPoolLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new FileNotFoundException(e.getMessage());
+                }
+            }
+            this.recordAcquire(waited, start);
+        }
+        // Opens new connection outside the lock.
+        Connection conn = null;
+        try {
+            conn = this.openConnection();
+        } catch (SQLiteException e) {
+            throw new FileNotFoundException(e.getMessage());
+        } finally {
+            synchronized (this.mPoolLock) {
+                this.mOpeningConnections--;
+                if (conn != null) {
+                    this.mConnections.add(conn);
+                } else {
+                    this.mPoolLock.notifyAll();
+                }
+            }
+        }
+        return conn;
+    }
+
+    /**
+     * Returns the connection to the pool. Closes it if the file is closed.
+     * 
+     * @param conn
+     *            Connection.
+     */
+    private void releaseConnection(Connection conn) {
+        synchronized (this.mPoolLock) {
+            if (this.mOpened) {
+                this.mIdleConnections.add(conn);
+            } else {
+                this.mConnections.remove(conn);
+                conn.close();
+            }
+            this.mPoolLock.notifyAll();
+        }
+    }
+
+    /**
+     * Records the wait statistics. Caller must hold the pool lock.
+     * 
+     * @param waited
+     *            Whether the caller waited.
+     * @param start
+     *            Time the caller started to wait (nanoseconds).
+     */
+    private void recordAcquire(boolean waited, long start) {
+        this.mAcquireCount++;
+        if (waited) {
+            long wait = System.nanoTime() - start;
+            this.mWaitCount++;
+            this.mTotalWaitNanos += wait;
+            if (wait > this.mMaxWaitNanos) {
+                this.mMaxWaitNanos = wait;
+            }
+        }
+    }
+
+    /**
+     * Opens a connection.
+     * 
+     * @return Connection.
+     * @throws SQLiteException
+     *             Thrown when fails to open the file.
+     */
+    private Connection openConnection() throws SQLiteException {
+        int openFlag = this.mReadonly ? SQLiteDatabase.OPEN_READONLY
+                : SQLiteDatabase.OPEN_READWRITE;
+        if (this.mProfile.isNoLocalizedCollators()) {
+            openFlag |= SQLiteDatabase.NO_LOCALIZED_COLLATORS;
+        }
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(this.mDbPath, null,
+                openFlag);
+        try {
+            this.mEffectiveSettings = Collections.unmodifiableMap(this
+                    .applyProfile(db));
+        } catch (SQLiteException e) {
+            db.close();
+            throw e;
+        }
+        return new Connection(db, this.mImageCache);
+    }
+
+    /**
+     * Applies the tuning profile to the connection and reads back the
+     * settings.
+     * 
+     * @param db
+     *            Opened database.
+     * @return Settings in effect.
+     * @throws SQLiteException
+     *             Thrown if a PRAGMA fails.
+     */
+    private LinkedHashMap<String, String> applyProfile(SQLiteDatabase db)
+            throws SQLiteException {
+        SQLiteTuningProfile p = this.mProfile;
+        if (p.getMmapSize() != SQLiteTuningProfile.DEFAULT) {
+            MBTilesOperator.pragma(db, "mmap_size=" + p.getMmapSize());
+        }
+        if (p.getCacheSize() != SQLiteTuningProfile.DEFAULT) {
+            MBTilesOperator.pragma(db, "cache_size=" + p.getCacheSize());
+        }
+        if (p.getTempStore() != SQLiteTuningProfile.TEMP_STORE_DEFAULT) {
+            MBTilesOperator.pragma(db, "temp_store=" + p.getTempStore());
+        }
+        if (p.isQueryOnly() && this.mReadonly) {
+            MBTilesOperator.pragma(db, "query_only=1");
+        }
+        if (p.isExclusiveLocking()) {
+            MBTilesOperator.pragma(db, "locking_mode=EXCLUSIVE");
+        }
+        LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+        for (String name : MBTilesOperator.TUNING_PRAGMAS) {
+            String value = MBTilesOperator.pragma(db, name);
+            if (value != null) {
+                ret.put(name, value);
+            }
+        }
+        ret.put("no_localized_collators",
+                String.valueOf(p.isNoLocalizedCollators()));
+        return ret;
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Runs PRAGMA statement.
+     * 
+     * @param db
+     *            Database.
+     * @param pragma
+     *            Statement after "PRAGMA ".
+     * @return Value of the first row. Null if no row.
+     * @throws SQLiteException
+     *             Thrown if the statement fails.
+     */
+    private static String pragma(SQLiteDatabase db, String pragma)
+            throws SQLiteException {
+        Cursor cur = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return cur.moveToFirst() ? cur.getString(0) : null;
+        } finally {
+            cur.close();
+        }
+    }
 }
@@ -0,0 +1,427 @@
+package com.gmail.boiledorange73.and4.ut.mbtiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+
+import com.gmail.boiledorange73.ut.sqlite.Record;
+import com.gmail.boiledorange73.ut.sqlite.SQLiteFile;
+import com.gmail.boiledorange73.ut.sqlite.SQLiteFormatException;
+
+/**
+ * Read-only MBTiles reader without android.database.sqlite. Maps the file to
+ * memory with {@link SQLiteFile}, and looks up tiles with the index on
+ * (zoom_level, tile_column, tile_row). Tiles are returned as slices of the
+ * mapped file, so contents are not copied unless split into overflow pages.
+ * 
+ * Supports tiles table, and map/images schema where tiles is a view. Runs on
+ * plain JVM. The file must not be modified while opened.
+ */
+public class MappedMBTilesReader {
+    private static final String[] TILE_INDEX_COLUMNS = { "zoom_level",
+            "tile_column", "tile_row" };
+    private static final String[] IMAGE_INDEX_COLUMNS = { "tile_id" };
+
+    private final SQLiteFile mFile;
+    /** tiles table, or map table of map/images schema. */
+    private final int mTileRoot;
+    private final int mTileIndexRoot;
+    /** tile_data column of tiles, or tile_id column of map. */
+    private final int mTileColumn;
+    /** images table. 0 unless map/images schema. */
+    private final int mImageRoot;
+    private final int mImageIndexRoot;
+    private final int mImageColumn;
+    private final int mMetadataRoot;
+    private final int mMetadataNameColumn;
+    private final int mMetadataValueColumn;
+
+    /**
+     * Constructor.
+     * 
+     * @param file
+     *            MBTiles file.
+     * @throws IOException
+     *             Thrown if the file cannot be read, or has no index on tiles.
+     */
+    public MappedMBTilesReader(File file) throws IOException {
+        this.mFile = new SQLiteFile(file);
+        SQLiteFile.SchemaEntry tiles = this.mFile.findSchemaEntry("table",
+                "tiles");
+        if (tiles != null) {
+            this.mTileRoot = MappedMBTilesReader.checkTable(tiles);
+            this.mTileIndexRoot = this.findIndexRoot("tiles",
+                    MappedMBTilesReader.TILE_INDEX_COLUMNS);
+            this.mTileColumn = MappedMBTilesReader.findColumn(tiles,
+                    "tile_data");
+            this.mImageRoot = 0;
+            this.mImageIndexRoot = 0;
+            this.mImageColumn = -1;
+        } else {
+            SQLiteFile.SchemaEntry map = this.mFile.findSchemaEntry("table",
+                    "map");
+            SQLiteFile.SchemaEntry images = this.mFile.findSchemaEntry(
+                    "table", "images");
+            if (map == null || images == null) {
+                throw new SQLiteFormatException("No tiles table.");
+            }
+            this.mTileRoot = MappedMBTilesReader.checkTable(map);
+            this.mTileIndexRoot = this.findIndexRoot("map",
+                    MappedMBTilesReader.TILE_INDEX_COLUMNS);
+            this.mTileColumn = MappedMBTilesReader.findColumn(map, "tile_id");
+            this.mImageRoot = MappedMBTilesReader.checkTable(images);
+            this.mImageIndexRoot = this.findIndexRoot("images",
+                    MappedMBTilesReader.IMAGE_INDEX_COLUMNS);
+            this.mImageColumn = MappedMBTilesReader.findColumn(images,
+                    "tile_data");
+        }
+        SQLiteFile.SchemaEntry metadata = this.mFile.findSchemaEntry("table",
+                "metadata");
+        if (metadata != null) {
+            this.mMetadataRoot = MappedMBTilesReader.checkTable(metadata);
+            this.mMetadataNameColumn = MappedMBTilesReader.findColumn(
+                    metadata, "name");
+            this.mMetadataValueColumn = MappedMBTilesReader.findColumn(
+                    metadata, "value");
+        } else {
+            this.mMetadataRoot = 0;
+            this.mMetadataNameColumn = -1;
+            this.mMetadataValueColumn = -1;
+        }
+    }
+
+    /**
+     * Whether the file has map/images schema.
+     * 
+     * @return True if tiles is a view over map and images.
+     */
+    public boolean isNormalized() {
+        return this.mImageRoot != 0;
+    }
+
+    /**
+     * Gets the tile.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return Read-only buffer of the content, a slice of the mapped file if
+     *         the content is in one page. Null if not found.
+     * @throws IOException
+     *             Thrown if the file is broken.
+     */
+    public ByteBuffer getTile(int z, int x, int y) throws IOException {
+        Record entry = this.mFile.seekIndex(this.mTileIndexRoot, new Object[] {
+                Long.valueOf(z), Long.valueOf(x), Long.valueOf(y) });
+        if (entry == null) {
+            return null;
+        }
+        return this.readContent(entry);
+    }
+
+    /**
+     * Reads a page of tiles in the range. Ranges are inclusive. Tiles are
+     * ordered by column and row.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param xmin
+     *            Minimum column.
+     * @param xmax
+     *            Maximum column.
+     * @param ymin
+     *            Minimum row.
+     * @param ymax
+     *            Maximum row.
+     * @param offset
+     *            The number of tiles to skip.
+     * @param limit
+     *            Maximum number of tiles. Negative means no limit.
+     * @param visitor
+     *            Receives tiles. Contents are copied to arrays.
+     * @return The number of tiles visited.
+     * @throws IOException
+     *             Thrown if the file is broken.
+     */
+    public int getTiles(final int z, int xmin, int xmax, final int ymin,
+            final int ymax, final int offset, final int limit,
+            final TileSource.TileVisitor visitor) throws IOException {
+        final int[] count = new int[2];
+        this.scanRange(z, xmin, xmax, ymin, ymax, new SQLiteFile.RecordVisitor() {
+            @Override
+            public boolean visit(Record entry) throws IOException {
+                int y = (int) entry.getLong(2);
+                if (y < ymin || y > ymax) {
+                    return true;
+                }
+                if (count[1]++ < offset) {
+                    return true;
+                }
+                if (limit >= 0 && count[0] >= limit) {
+                    return false;
+                }
+                ByteBuffer content = MappedMBTilesReader.this
+                        .readContent(entry);
+                if (content == null) {
+                    return true;
+                }
+                byte[] bytes = new byte[content.remaining()];
+                content.get(bytes);
+                count[0]++;
+                return visitor.visit(z, (int) entry.getLong(1), y, bytes);
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Reads a page of coverage in the range. Ranges are inclusive. Tiles are
+     * ordered by column and row.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param xmin
+     *            Minimum column.
+     * @param xmax
+     *            Maximum column.
+     * @param ymin
+     *            Minimum row.
+     * @param ymax
+     *            Maximum row.
+     * @param offset
+     *            The number of tiles to skip.
+     * @param limit
+     *            Maximum number of tiles. Negative means no limit.
+     * @param visitor
+     *            Receives coverage.
+     * @return The number of tiles visited.
+     * @throws IOException
+     *             Thrown if the file is broken.
+     */
+    public int getCoverage(final int z, int xmin, int xmax, final int ymin,
+            final int ymax, final int offset, final int limit,
+            final TileSource.CoverageVisitor visitor) throws IOException {
+        final int[] count = new int[2];
+        this.scanRange(z, xmin, xmax, ymin, ymax, new SQLiteFile.RecordVisitor() {
+            @Override
+            public boolean visit(Record entry) throws IOException {
+                int y = (int) entry.getLong(2);
+                if (y < ymin || y > ymax) {
+                    return true;
+                }
+                if (count[1]++ < offset) {
+                    return true;
+                }
+                if (limit >= 0 && count[0] >= limit) {
+                    return false;
+                }
+                Record row = MappedMBTilesReader.this.readRow(entry);
+                if (row == null) {
+                    return true;
+                }
+                count[0]++;
+                return visitor.visit(z, (int) entry.getLong(1), y,
+                        row.getLength(MappedMBTilesReader.this.mImageRoot != 0 ? MappedMBTilesReader.this.mImageColumn
+                                : MappedMBTilesReader.this.mTileColumn));
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Reads coordinates of all tiles from the index, ordered by zoom level,
+     * column and row. Lengths are always -1.
+     * 
+     * @param visitor
+     *            Receives coordinates.
+     * @return The number of tiles visited.
+     * @throws IOException
+     *             Thrown if the file is broken.
+     */
+    public int scanCoverage(final TileSource.CoverageVisitor visitor)
+            throws IOException {
+        final int[] count = new int[1];
+        this.mFile.scanIndex(this.mTileIndexRoot, null, null,
+                new SQLiteFile.RecordVisitor() {
+                    @Override
+                    public boolean visit(Record entry) {
+                        count[0]++;
+                        return visitor.visit((int) entry.getLong(0),
+                                (int) entry.getLong(1), (int) entry.getLong(2),
+                                -1);
+                    }
+                });
+        return count[0];
+    }
+
+    /**
+     * Reads all rows of metadata table.
+     * 
+     * @return Complexes of name and value. Empty if no metadata table.
+     * @throws IOException
+     *             Thrown if the file is broken.
+     */
+    public HashMap<String, String> readMetadata() throws IOException {
+        final HashMap<String, String> ret = new HashMap<String, String>();
+        if (this.mMetadataRoot == 0) {
+            return ret;
+        }
+        this.mFile.scanTable(this.mMetadataRoot,
+                new SQLiteFile.RecordVisitor() {
+                    @Override
+                    public boolean visit(Record r) {
+                        String name = r
+                                .getString(MappedMBTilesReader.this.mMetadataNameColumn);
+                        if (name != null) {
+                            ret.put(name,
+                                    r.getString(MappedMBTilesReader.this.mMetadataValueColumn));
+                        }
+                        return true;
+                    }
+                });
+        return ret;
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Scans index entries from (z, xmin, ymin) to (z, xmax, ymax). Entries
+     * whose row is out of the range are also visited.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param xmin
+     *            Minimum column.
+     * @param xmax
+     *            Maximum column.
+     * @param ymin
+     *            Minimum row.
+     * @param ymax
+     *            Maximum row.
+     * @param visitor
+     *            Receives index entries.
+     * @throws IOException
+     *             Thrown if the file is broken.
+     */
+    private void scanRange(int z, int xmin, int xmax, int ymin, int ymax,
+            SQLiteFile.RecordVisitor visitor) throws IOException {
+        if (xmin > xmax || ymin > ymax) {
+            return;
+        }
+        this.mFile.scanIndex(this.mTileIndexRoot, new Object[] {
+                Long.valueOf(z), Long.valueOf(xmin), Long.valueOf(ymin) },
+                new Object[] { Long.valueOf(z), Long.valueOf(xmax),
+                        Long.valueOf(ymax) }, visitor);
+    }
+
+    /**
+     * Reads the row which has the content, the row of tiles or images.
+     * 
+     * @param entry
+     *            Index entry of tiles or map. The last column is rowid.
+     * @return Row. Null if not found.
+     * @throws IOException
+     *             Thrown if the file is broken.
+     */
+    private Record readRow(Record entry) throws IOException {
+        Record row = this.mFile.findRow(this.mTileRoot,
+                entry.getLong(entry.getColumnCount() - 1));
+        if (row == null || this.mImageRoot == 0) {
+            return row;
+        }
+        Record image = this.mFile.seekIndex(this.mImageIndexRoot,
+                new Object[] { row.getValue(this.mTileColumn) });
+        if (image == null) {
+            return null;
+        }
+        return this.mFile.findRow(this.mImageRoot,
+                image.getLong(image.getColumnCount() - 1));
+    }
+
+    /**
+     * Reads the content of the tile.
+     * 
+     * @param entry
+     *            Index entry of tiles or map.
+     * @return Content. Null if not found.
+     * @throws IOException
+     *             Thrown if the file is broken.
+     */
+    private ByteBuffer readContent(Record entry) throws IOException {
+        Record row = this.readRow(entry);
+        if (row == null) {
+            return null;
+        }
+        return row.getBlob(this.mImageRoot != 0 ? this.mImageColumn
+                : this.mTileColumn);
+    }
+
+    /**
+     * Finds the root page of the index.
+     * 
+     * @param table
+     *            Table name.
+     * @param columns
+     *            Leading columns.
+     * @return Root page.
+     * @throws SQLiteFormatException
+     *             Thrown if no index is found.
+     */
+    private int findIndexRoot(String table, String[] columns)
+            throws SQLiteFormatException {
+        SQLiteFile.SchemaEntry index = this.mFile.findIndex(table, columns);
+        if (index == null) {
+            throw new SQLiteFormatException("No index on " + table);
+        }
+        return index.getRootPage();
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Checks that the table is supported.
+     * 
+     * @param table
+     *            Table.
+     * @return Root page.
+     * @throws SQLiteFormatException
+     *             Thrown if WITHOUT ROWID.
+     */
+    private static int checkTable(SQLiteFile.SchemaEntry table)
+            throws SQLiteFormatException {
+        if (table.isWithoutRowid()) {
+            throw new SQLiteFormatException("WITHOUT ROWID is not supported: "
+                    + table.getName());
+        }
+        return table.getRootPage();
+    }
+
+    /**
+     * Finds the column. Columns which are aliases of rowid are not supported.
+     * 
+     * @param table
+     *            Table.
+     * @param name
+     *            Column name.
+     * @return Column index.
+     * @throws SQLiteFormatException
+     *             Thrown if not found.
+     */
+    private static int findColumn(SQLiteFile.SchemaEntry table, String name)
+            throws SQLiteFormatException {
+        List<String> columns = table.getColumns();
+        int ret = columns.indexOf(name);
+        if (ret < 0 || ret == table.getRowidAliasColumn()) {
+            throw new SQLiteFormatException("No column " + name + " in "
+                    + table.getName());
+        }
+        return ret;
+    }
+}
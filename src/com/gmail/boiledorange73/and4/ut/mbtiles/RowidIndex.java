@@ -0,0 +1,328 @@
+package com.gmail.boiledorange73.and4.ut.mbtiles;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.gmail.boiledorange73.and4.ut.collection.TileKey;
+
+/**
+ * Sidecar index from tile coordinates to rowid of tiles table, for MBTiles
+ * files which have no index on tiles(zoom_level, tile_column, tile_row). On
+ * such files each lookup scans the whole table; with this index a lookup is a
+ * few bisections of the memory-mapped sidecar and one rowid lookup.
+ * 
+ * The sidecar has segments of (key, rowid) pairs sorted by key, where key
+ * packs z, x and y by {@link TileKey}. Each segment is sorted in memory, so
+ * building needs memory for one segment only. The sidecar is keyed by the
+ * size and modified time of the MBTiles file.
+ */
+public class RowidIndex {
+    /** Returned by {@link #find(int, int, int)} if the tile is not found. */
+    public static final long NOT_FOUND = -1;
+    /**
+     * Returned by {@link #find(int, int, int)} if the coordinates cannot be
+     * indexed. Look up the table instead.
+     */
+    public static final long NOT_INDEXED = -2;
+    /** Number of pairs sorted in memory at once. */
+    public static final int SEGMENT_SIZE = 256 * 1024;
+
+    /** Magic bytes of the sidecar file, "MBTR". */
+    private static final int MAGIC = 0x4d425452;
+    private static final int VERSION = 1;
+    /** Size of the header: magic, version, file size, mtime, segments. */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+    private final ByteBuffer mBuffer;
+    /** Position of the first pair of each segment. */
+    private final int[] mSegmentOffsets;
+    /** Number of pairs of each segment. */
+    private final int[] mSegmentSizes;
+
+    /**
+     * Constructor.
+     * 
+     * @param buffer
+     *            Mapped sidecar.
+     * @param segmentOffsets
+     *            Position of the first pair of each segment.
+     * @param segmentSizes
+     *            Number of pairs of each segment.
+     */
+    private RowidIndex(ByteBuffer buffer, int[] segmentOffsets,
+            int[] segmentSizes) {
+        this.mBuffer = buffer;
+        this.mSegmentOffsets = segmentOffsets;
+        this.mSegmentSizes = segmentSizes;
+    }
+
+    /**
+     * Finds rowid of the tile.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return Rowid. {@link #NOT_FOUND} or {@link #NOT_INDEXED}.
+     */
+    public long find(int z, int x, int y) {
+        long key = TileKey.pack(z, x, y);
+        if (key < 0) {
+            return RowidIndex.NOT_INDEXED;
+        }
+        for (int s = 0; s < this.mSegmentOffsets.length; s++) {
+            int base = this.mSegmentOffsets[s];
+            int lo = 0;
+            int hi = this.mSegmentSizes[s] - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long v = this.mBuffer.getLong(base + mid * 16);
+                if (v < key) {
+                    lo = mid + 1;
+                } else if (v > key) {
+                    hi = mid - 1;
+                } else {
+                    return this.mBuffer.getLong(base + mid * 16 + 8);
+                }
+            }
+        }
+        return RowidIndex.NOT_FOUND;
+    }
+
+    /**
+     * Gets the number of indexed tiles.
+     * 
+     * @return The number of tiles.
+     */
+    public long size() {
+        long ret = 0;
+        for (int n : this.mSegmentSizes) {
+            ret += n;
+        }
+        return ret;
+    }
+
+    /**
+     * Builds the sidecar by scanning rowids, and maps it.
+     * 
+     * @param op
+     *            MBTilesOperator.
+     * @param sidecar
+     *            Sidecar file. Written to a temporary file and renamed.
+     * @param canceled
+     *            Scan stops if this becomes true. Can be null.
+     * @return The index. Null if canceled.
+     * @throws IOException
+     *             Thrown if failed to read the file or write the sidecar.
+     */
+    public static RowidIndex build(MBTilesOperator op, File sidecar,
+            final AtomicBoolean canceled) throws IOException {
+        File file = new File(op.getPath());
+        long fileSize = file.length();
+        long lastModified = file.lastModified();
+        File tmp = new File(sidecar.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        final int[] segments = { 0 };
+        final IOException[] error = { null };
+        try {
+            raf.setLength(0);
+            final DataOutputStream os = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(raf.getFD())));
+            os.writeInt(RowidIndex.MAGIC);
+            os.writeInt(RowidIndex.VERSION);
+            os.writeLong(fileSize);
+            os.writeLong(lastModified);
+            os.writeInt(0);
+            final long[] keys = new long[RowidIndex.SEGMENT_SIZE];
+            final long[] rowids = new long[RowidIndex.SEGMENT_SIZE];
+            final int[] size = { 0 };
+            op.scanRowids(new MBTilesOperator.RowidVisitor() {
+                @Override
+                public boolean visit(int z, int x, int y, long rowid) {
+                    if (canceled != null && canceled.get()) {
+                        return false;
+                    }
+                    long key = TileKey.pack(z, x, y);
+                    if (key < 0) {
+                        return true;
+                    }
+                    keys[size[0]] = key;
+                    rowids[size[0]] = rowid;
+                    size[0]++;
+                    if (size[0] == keys.length) {
+                        try {
+                            RowidIndex.writeSegment(os, keys, rowids, size[0]);
+                        } catch (IOException e) {
+                            error[0] = e;
+                            return false;
+                        }
+                        segments[0]++;
+                        size[0] = 0;
+                    }
+                    return true;
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            if (canceled != null && canceled.get()) {
+                os.close();
+                tmp.delete();
+                return null;
+            }
+            if (size[0] > 0) {
+                RowidIndex.writeSegment(os, keys, rowids, size[0]);
+                segments[0]++;
+            }
+            os.flush();
+            raf.seek(RowidIndex.HEADER_SIZE - 4);
+            raf.writeInt(segments[0]);
+        } finally {
+            raf.close();
+        }
+        if (sidecar.exists() && !sidecar.delete()) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + sidecar);
+        }
+        if (!tmp.renameTo(sidecar)) {
+            tmp.delete();
+            throw new IOException("Cannot rename to " + sidecar);
+        }
+        RowidIndex ret = RowidIndex.load(sidecar, file);
+        if (ret == null) {
+            throw new IOException("Broken sidecar " + sidecar);
+        }
+        return ret;
+    }
+
+    /**
+     * Maps the sidecar file.
+     * 
+     * @param sidecar
+     *            Sidecar file.
+     * @param file
+     *            MBTiles file.
+     * @return The index. Null if the sidecar does not exist, is broken or is
+     *         stale.
+     */
+    public static RowidIndex load(File sidecar, File file) {
+        if (!sidecar.exists()) {
+            return null;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(sidecar, "r");
+            ByteBuffer buf;
+            try {
+                long length = raf.length();
+                if (length < RowidIndex.HEADER_SIZE
+                        || length > Integer.MAX_VALUE) {
+                    return null;
+                }
+                buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        length);
+            } finally {
+                raf.close();
+            }
+            if (buf.getInt(0) != RowidIndex.MAGIC
+                    || buf.getInt(4) != RowidIndex.VERSION
+                    || buf.getLong(8) != file.length()
+                    || buf.getLong(16) != file.lastModified()) {
+                return null;
+            }
+            int count = buf.getInt(24);
+            if (count < 0) {
+                return null;
+            }
+            int[] offsets = new int[count];
+            int[] sizes = new int[count];
+            long pos = RowidIndex.HEADER_SIZE;
+            for (int n = 0; n < count; n++) {
+                if (pos + 4 > buf.capacity()) {
+                    return null;
+                }
+                sizes[n] = buf.getInt((int) pos);
+                offsets[n] = (int) pos + 4;
+                pos += 4 + (long) sizes[n] * 16;
+                if (sizes[n] < 0 || pos > buf.capacity()) {
+                    return null;
+                }
+            }
+            return new RowidIndex(buf, offsets, sizes);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Sorts pairs by key and writes them as one segment.
+     * 
+     * @param os
+     *            Output.
+     * @param keys
+     *            Keys.
+     * @param rowids
+     *            Rowids.
+     * @param size
+     *            The number of pairs.
+     * @throws IOException
+     *             Thrown if failed to write.
+     */
+    private static void writeSegment(DataOutputStream os, long[] keys,
+            long[] rowids, int size) throws IOException {
+        // heap sort, which needs no extra memory.
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            RowidIndex.siftDown(keys, rowids, i, size);
+        }
+        for (int end = size - 1; end > 0; end--) {
+            RowidIndex.swap(keys, rowids, 0, end);
+            RowidIndex.siftDown(keys, rowids, 0, end);
+        }
+        os.writeInt(size);
+        for (int n = 0; n < size; n++) {
+            os.writeLong(keys[n]);
+            os.writeLong(rowids[n]);
+        }
+    }
+
+    private static void siftDown(long[] keys, long[] rowids, int i, int n) {
+        while (true) {
+            int c = 2 * i + 1;
+            if (c >= n) {
+                return;
+            }
+            if (c + 1 < n && keys[c + 1] > keys[c]) {
+                c++;
+            }
+            if (keys[i] >= keys[c]) {
+                return;
+            }
+            RowidIndex.swap(keys, rowids, i, c);
+            i = c;
+        }
+    }
+
+    private static void swap(long[] keys, long[] rowids, int a, int b) {
+        long t = keys[a];
+        keys[a] = keys[b];
+        keys[b] = t;
+        t = rowids[a];
+        rowids[a] = rowids[b];
+        rowids[b] = t;
+    }
+}
@@ -0,0 +1,192 @@
+package com.gmail.boiledorange73.and4.ut.mbtiles;
+
+/**
+ * SQLite settings applied to each connection of {@link MBTilesOperator} when
+ * opened. Settings are given by PRAGMA statements and open flags. SQLite
+ * ignores settings it does not support (e.g. mmap_size before 3.7.17), so
+ * read {@link MBTilesOperator#getEffectiveSettings()} for values in effect.
+ * 
+ * Setters return this instance for chaining.
+ */
+public class SQLiteTuningProfile {
+    /** Value which means "leaves the default of SQLite". */
+    public static final long DEFAULT = Long.MIN_VALUE;
+
+    /** temp_store: default of the build. */
+    public static final int TEMP_STORE_DEFAULT = 0;
+    /** temp_store: temporary tables and indexes in files. */
+    public static final int TEMP_STORE_FILE = 1;
+    /** temp_store: temporary tables and indexes in memory. */
+    public static final int TEMP_STORE_MEMORY = 2;
+
+    /** mmap_size of {@link #createReadOptimized()}. */
+    public static final long READ_OPTIMIZED_MMAP_SIZE = 64L * 1024 * 1024;
+    /** cache_size of {@link #createReadOptimized()}, in KiB if negative. */
+    public static final long READ_OPTIMIZED_CACHE_SIZE = -2048;
+
+    private long mMmapSize = SQLiteTuningProfile.DEFAULT;
+    private long mCacheSize = SQLiteTuningProfile.DEFAULT;
+    private int mTempStore = SQLiteTuningProfile.TEMP_STORE_DEFAULT;
+    private boolean mQueryOnly = false;
+    private boolean mNoLocalizedCollators = false;
+    private boolean mExclusiveLocking = false;
+
+    /**
+     * Creates the profile which leaves all settings default.
+     * 
+     * @return New profile.
+     */
+    public static SQLiteTuningProfile createDefault() {
+        return new SQLiteTuningProfile();
+    }
+
+    /**
+     * Creates the profile for serving tiles from read-only files: 64 MiB
+     * mmap_size, 2 MiB cache_size, temp_store in memory, query_only, and no
+     * localized collators. Locking mode is left normal, so that other
+     * processes can write the file.
+     * 
+     * @return New profile.
+     */
+    public static SQLiteTuningProfile createReadOptimized() {
+        return new SQLiteTuningProfile()
+                .setMmapSize(SQLiteTuningProfile.READ_OPTIMIZED_MMAP_SIZE)
+                .setCacheSize(SQLiteTuningProfile.READ_OPTIMIZED_CACHE_SIZE)
+                .setTempStore(SQLiteTuningProfile.TEMP_STORE_MEMORY)
+                .setQueryOnly(true).setNoLocalizedCollators(true);
+    }
+
+    /**
+     * Gets mmap_size.
+     * 
+     * @return Bytes. {@link #DEFAULT} if not set.
+     */
+    public long getMmapSize() {
+        return this.mMmapSize;
+    }
+
+    /**
+     * Sets mmap_size, maximum bytes of the file accessed by memory-mapped
+     * I/O. 0 disables it.
+     * 
+     * @param mmapSize
+     *            Bytes. {@link #DEFAULT} leaves it default.
+     * @return This profile.
+     */
+    public SQLiteTuningProfile setMmapSize(long mmapSize) {
+        this.mMmapSize = mmapSize;
+        return this;
+    }
+
+    /**
+     * Gets cache_size.
+     * 
+     * @return Pages if positive, KiB if negative. {@link #DEFAULT} if not set.
+     */
+    public long getCacheSize() {
+        return this.mCacheSize;
+    }
+
+    /**
+     * Sets cache_size, the size of the page cache of each connection.
+     * 
+     * @param cacheSize
+     *            Pages if positive, KiB if negative. {@link #DEFAULT} leaves
+     *            it default.
+     * @return This profile.
+     */
+    public SQLiteTuningProfile setCacheSize(long cacheSize) {
+        this.mCacheSize = cacheSize;
+        return this;
+    }
+
+    /**
+     * Gets temp_store.
+     * 
+     * @return One of TEMP_STORE_*.
+     */
+    public int getTempStore() {
+        return this.mTempStore;
+    }
+
+    /**
+     * Sets temp_store, where temporary tables and indexes (e.g. for ORDER BY
+     * without an index) are stored.
+     * 
+     * @param tempStore
+     *            One of TEMP_STORE_*.
+     * @return This profile.
+     */
+    public SQLiteTuningProfile setTempStore(int tempStore) {
+        this.mTempStore = tempStore;
+        return this;
+    }
+
+    /**
+     * Whether query_only is set.
+     * 
+     * @return True if set.
+     */
+    public boolean isQueryOnly() {
+        return this.mQueryOnly;
+    }
+
+    /**
+     * Sets query_only, which rejects all changes to the file. Ignored if the
+     * file is opened with read-write mode.
+     * 
+     * @param queryOnly
+     *            True to set.
+     * @return This profile.
+     */
+    public SQLiteTuningProfile setQueryOnly(boolean queryOnly) {
+        this.mQueryOnly = queryOnly;
+        return this;
+    }
+
+    /**
+     * Whether the file is opened without localized collators.
+     * 
+     * @return True if NO_LOCALIZED_COLLATORS is given.
+     */
+    public boolean isNoLocalizedCollators() {
+        return this.mNoLocalizedCollators;
+    }
+
+    /**
+     * Sets whether the file is opened with NO_LOCALIZED_COLLATORS, which
+     * skips setting up the LOCALIZED collator for each connection.
+     * 
+     * @param noLocalizedCollators
+     *            True to give the flag.
+     * @return This profile.
+     */
+    public SQLiteTuningProfile setNoLocalizedCollators(
+            boolean noLocalizedCollators) {
+        this.mNoLocalizedCollators = noLocalizedCollators;
+        return this;
+    }
+
+    /**
+     * Whether locking_mode is EXCLUSIVE.
+     * 
+     * @return True if EXCLUSIVE.
+     */
+    public boolean isExclusiveLocking() {
+        return this.mExclusiveLocking;
+    }
+
+    /**
+     * Sets locking_mode to EXCLUSIVE, which keeps the lock after the first
+     * read and skips checking the file for changes. Only for files which no
+     * other process writes.
+     * 
+     * @param exclusiveLocking
+     *            True for EXCLUSIVE.
+     * @return This profile.
+     */
+    public SQLiteTuningProfile setExclusiveLocking(boolean exclusiveLocking) {
+        this.mExclusiveLocking = exclusiveLocking;
+        return this;
+    }
+}
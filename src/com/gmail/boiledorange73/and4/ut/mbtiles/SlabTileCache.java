@@ -0,0 +1,712 @@
+package com.gmail.boiledorange73.and4.ut.mbtiles;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.gmail.boiledorange73.and4.ut.collection.LongIntMap;
+import com.gmail.boiledorange73.and4.ut.collection.TileKey;
+
+/**
+ * Off-heap LRU cache of tiles of one dataset. Contents are held in direct
+ * ByteBuffer slabs out of the Java heap, so that a large cache neither
+ * causes GC pauses nor counts against the heap limit of the application.
+ * 
+ * Each slab is divided into chunks of one size class when it is taken into
+ * use, and a tile is copied into a chunk of the smallest class it fits in.
+ * Classes grow by 1.25 times, from {@link #MIN_CHUNK_SIZE} to a quarter of
+ * the slab; larger tiles are not cached. Chunks are indexed by
+ * {@link TileKey} in a {@link LongIntMap}, and their keys, lengths and LRU
+ * links are held in primitive arrays per slab.
+ * 
+ * Slabs are allocated on demand up to the maximum bytes. After that, the
+ * least recently used tile of the same class is evicted, or if the class
+ * has no tile, a whole slab is taken from the class holding the most slabs.
+ * 
+ * Cached contents are read through {@link Lease}s, which pin chunks so that
+ * they are not overwritten while being written to the client. Thread-safe.
+ */
+public class SlabTileCache {
+    /** Default size of a slab. */
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    /** Size of the smallest chunks. */
+    public static final int MIN_CHUNK_SIZE = 256;
+
+    /** Chunk sizes are rounded up to this. */
+    private static final int CHUNK_ALIGN = 64;
+    /** Entry id is (slab << CHUNK_BITS) | chunk. */
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_MASK = (1 << SlabTileCache.CHUNK_BITS) - 1;
+    /** No entry, also the key of free chunks. */
+    private static final int NONE = -1;
+    /** Previous link of entries removed while pinned. */
+    private static final int ORPHAN = -2;
+
+    /**
+     * Pinned content of the cache. Must be released once, after the buffer
+     * is read.
+     */
+    public final class Lease {
+        private final ByteBuffer mBuffer;
+        private final int mEntry;
+        private final int mGeneration;
+        private boolean mReleased = false;
+
+        private Lease(ByteBuffer buffer, int entry, int generation) {
+            this.mBuffer = buffer;
+            this.mEntry = entry;
+            this.mGeneration = generation;
+        }
+
+        /**
+         * Gets the content. The buffer is read-only, and valid until
+         * released.
+         * 
+         * @return Content from the position to the limit.
+         */
+        public ByteBuffer getBuffer() {
+            return this.mBuffer;
+        }
+
+        /**
+         * Unpins the content. Does nothing if already released.
+         */
+        public void release() {
+            SlabTileCache.this.release(this);
+        }
+    }
+
+    private final int mSlabSize;
+    private final int[] mClassSizes;
+    private final int mMaxSlabs;
+
+    private final LongIntMap mIndex = new LongIntMap();
+    private final ByteBuffer[] mSlabs;
+    private final int[] mSlabClasses;
+    /** Keys of chunks. {@link #NONE} if free. */
+    private final long[][] mKeys;
+    private final int[][] mLengths;
+    private final int[][] mPins;
+    /** LRU links if used, free list links (next only) if free. */
+    private final int[][] mPrev;
+    private final int[][] mNext;
+    private int mSlabCount = 0;
+    /** Available slabs. Lowered if direct memory runs out. */
+    private int mSlabLimit;
+    /** Most recently used entry of each class. */
+    private final int[] mLruHeads;
+    /** Least recently used entry of each class. */
+    private final int[] mLruTails;
+    private final int[] mFreeHeads;
+    private final int[] mClassSlabCounts;
+    /** Incremented by {@link #evictAll()}, to ignore older leases. */
+    private int mGeneration = 0;
+
+    private long mBytes = 0;
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mEvictionCount = 0;
+
+    /**
+     * Constructor. Slabs are {@link #DEFAULT_SLAB_SIZE} bytes.
+     * 
+     * @param maxBytes
+     *            Maximum bytes of slabs. Less than one slab disables the
+     *            cache.
+     */
+    public SlabTileCache(long maxBytes) {
+        this(maxBytes, SlabTileCache.DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param maxBytes
+     *            Maximum bytes of slabs. Less than one slab disables the
+     *            cache.
+     * @param slabSize
+     *            Size of a slab. From 4 * {@link #MIN_CHUNK_SIZE} to 16 MiB.
+     * @throws IllegalArgumentException
+     *             Thrown if the slab size is out of the range.
+     */
+    public SlabTileCache(long maxBytes, int slabSize) {
+        int maxChunks = 1 << SlabTileCache.CHUNK_BITS;
+        if (slabSize < 4 * SlabTileCache.MIN_CHUNK_SIZE
+                || slabSize / SlabTileCache.MIN_CHUNK_SIZE > maxChunks) {
+            throw new IllegalArgumentException("Invalid slab size: "
+                    + slabSize);
+        }
+        this.mSlabSize = slabSize;
+        this.mClassSizes = SlabTileCache.createClassSizes(slabSize);
+        this.mMaxSlabs = (int) Math.min(Math.max(maxBytes / slabSize, 0),
+                Integer.MAX_VALUE >> SlabTileCache.CHUNK_BITS);
+        this.mSlabLimit = this.mMaxSlabs;
+        this.mSlabs = new ByteBuffer[this.mMaxSlabs];
+        this.mSlabClasses = new int[this.mMaxSlabs];
+        this.mKeys = new long[this.mMaxSlabs][];
+        this.mLengths = new int[this.mMaxSlabs][];
+        this.mPins = new int[this.mMaxSlabs][];
+        this.mPrev = new int[this.mMaxSlabs][];
+        this.mNext = new int[this.mMaxSlabs][];
+        int classes = this.mClassSizes.length;
+        this.mLruHeads = new int[classes];
+        this.mLruTails = new int[classes];
+        this.mFreeHeads = new int[classes];
+        this.mClassSlabCounts = new int[classes];
+        this.resetClasses();
+    }
+
+    /**
+     * Gets the tile and pins it. Release the lease after reading.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return Lease of the content. Null if not cached.
+     */
+    public Lease acquire(int z, int x, int y) {
+        long key = TileKey.pack(z, x, y);
+        synchronized (this) {
+            int e = key == TileKey.INVALID ? SlabTileCache.NONE : this.mIndex
+                    .get(key, SlabTileCache.NONE);
+            if (e == SlabTileCache.NONE) {
+                this.mMissCount++;
+                return null;
+            }
+            this.mHitCount++;
+            int s = e >>> SlabTileCache.CHUNK_BITS;
+            int i = e & SlabTileCache.CHUNK_MASK;
+            int c = this.mSlabClasses[s];
+            this.unlink(c, e);
+            this.linkHead(c, e);
+            this.mPins[s][i]++;
+            int offset = i * this.mClassSizes[c];
+            ByteBuffer buf = this.mSlabs[s].duplicate();
+            buf.limit(offset + this.mLengths[s][i]);
+            buf.position(offset);
+            return new Lease(buf.slice().asReadOnlyBuffer(), e,
+                    this.mGeneration);
+        }
+    }
+
+    /**
+     * Whether the tile is cached. Does not change counters nor the order.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return True if cached.
+     */
+    public boolean contains(int z, int x, int y) {
+        long key = TileKey.pack(z, x, y);
+        if (key == TileKey.INVALID) {
+            return false;
+        }
+        synchronized (this) {
+            return this.mIndex.containsKey(key);
+        }
+    }
+
+    /**
+     * Copies the tile into the cache. Replaces the old content, if cached.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param content
+     *            Content.
+     * @return True if put. False if too large, or all chunks it could use
+     *         are pinned.
+     */
+    public boolean put(int z, int x, int y, byte[] content) {
+        long key = TileKey.pack(z, x, y);
+        if (key == TileKey.INVALID || this.mMaxSlabs == 0
+                || content.length > this.getMaxContentLength()) {
+            return false;
+        }
+        int c = this.classOf(content.length);
+        synchronized (this) {
+            int old = this.mIndex.get(key, SlabTileCache.NONE);
+            if (old != SlabTileCache.NONE) {
+                this.removeEntry(old, false);
+            }
+            int e = this.allocate(c);
+            if (e == SlabTileCache.NONE) {
+                return false;
+            }
+            int s = e >>> SlabTileCache.CHUNK_BITS;
+            int i = e & SlabTileCache.CHUNK_MASK;
+            ByteBuffer buf = this.mSlabs[s].duplicate();
+            buf.position(i * this.mClassSizes[c]);
+            buf.put(content);
+            this.mKeys[s][i] = key;
+            this.mLengths[s][i] = content.length;
+            this.linkHead(c, e);
+            this.mIndex.put(key, e);
+            this.mBytes += content.length;
+            return true;
+        }
+    }
+
+    /**
+     * Evicts all tiles and drops slabs, so that direct memory is freed by
+     * GC. Contents of leases not released stay readable.
+     */
+    public void evictAll() {
+        synchronized (this) {
+            this.mEvictionCount += this.mIndex.size();
+            this.mIndex.clear();
+            Arrays.fill(this.mSlabs, null);
+            Arrays.fill(this.mKeys, null);
+            Arrays.fill(this.mLengths, null);
+            Arrays.fill(this.mPins, null);
+            Arrays.fill(this.mPrev, null);
+            Arrays.fill(this.mNext, null);
+            this.mSlabCount = 0;
+            this.mSlabLimit = this.mMaxSlabs;
+            this.mBytes = 0;
+            this.mGeneration++;
+            this.resetClasses();
+        }
+    }
+
+    /**
+     * Gets maximum bytes of slabs.
+     * 
+     * @return Maximum bytes.
+     */
+    public long getMaxBytes() {
+        return (long) this.mMaxSlabs * this.mSlabSize;
+    }
+
+    /**
+     * Gets bytes of slabs allocated.
+     * 
+     * @return Allocated bytes.
+     */
+    public long getAllocatedBytes() {
+        synchronized (this) {
+            return (long) this.mSlabCount * this.mSlabSize;
+        }
+    }
+
+    /**
+     * Gets bytes of cached contents.
+     * 
+     * @return Current bytes.
+     */
+    public long getBytes() {
+        synchronized (this) {
+            return this.mBytes;
+        }
+    }
+
+    /**
+     * Gets the largest content which can be cached.
+     * 
+     * @return Bytes.
+     */
+    public int getMaxContentLength() {
+        return this.mClassSizes[this.mClassSizes.length - 1];
+    }
+
+    /**
+     * Gets the number of cached tiles.
+     * 
+     * @return The number of tiles.
+     */
+    public int getCount() {
+        synchronized (this) {
+            return this.mIndex.size();
+        }
+    }
+
+    /**
+     * Gets the number of hits.
+     * 
+     * @return The number of hits.
+     */
+    public long getHitCount() {
+        synchronized (this) {
+            return this.mHitCount;
+        }
+    }
+
+    /**
+     * Gets the number of misses.
+     * 
+     * @return The number of misses.
+     */
+    public long getMissCount() {
+        synchronized (this) {
+            return this.mMissCount;
+        }
+    }
+
+    /**
+     * Gets the number of evicted tiles.
+     * 
+     * @return The number of evicted tiles.
+     */
+    public long getEvictionCount() {
+        synchronized (this) {
+            return this.mEvictionCount;
+        }
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Unpins the content of the lease. Frees the chunk if it was removed
+     * while pinned.
+     * 
+     * @param lease
+     *            Lease.
+     */
+    private void release(Lease lease) {
+        synchronized (this) {
+            if (lease.mReleased) {
+                return;
+            }
+            lease.mReleased = true;
+            if (lease.mGeneration != this.mGeneration) {
+                return;
+            }
+            int e = lease.mEntry;
+            int s = e >>> SlabTileCache.CHUNK_BITS;
+            int i = e & SlabTileCache.CHUNK_MASK;
+            if (--this.mPins[s][i] == 0
+                    && this.mPrev[s][i] == SlabTileCache.ORPHAN) {
+                this.freeEntry(e);
+            }
+        }
+    }
+
+    /**
+     * Takes a free chunk of the class. Caller must hold the monitor.
+     * 
+     * @param c
+     *            Class.
+     * @return Entry. {@link #NONE} if all chunks are pinned.
+     */
+    private int allocate(int c) {
+        if (this.mFreeHeads[c] == SlabTileCache.NONE
+                && !this.addSlab(c)
+                && !this.evictLeastRecentlyUsed(c)
+                && !this.stealSlab(c)) {
+            return SlabTileCache.NONE;
+        }
+        int e = this.mFreeHeads[c];
+        this.mFreeHeads[c] = this.mNext[e >>> SlabTileCache.CHUNK_BITS][e
+                & SlabTileCache.CHUNK_MASK];
+        return e;
+    }
+
+    /**
+     * Allocates a new slab for the class, if below maximum bytes. Caller
+     * must hold the monitor.
+     * 
+     * @param c
+     *            Class.
+     * @return True if added.
+     */
+    private boolean addSlab(int c) {
+        if (this.mSlabCount >= this.mSlabLimit) {
+            return false;
+        }
+        ByteBuffer slab;
+        try {
+            slab = ByteBuffer.allocateDirect(this.mSlabSize);
+        } catch (OutOfMemoryError e) {
+            // Works with slabs already allocated.
+            this.mSlabLimit = this.mSlabCount;
+            return false;
+        }
+        int s = this.mSlabCount++;
+        this.mSlabs[s] = slab;
+        this.assignSlab(s, c);
+        return true;
+    }
+
+    /**
+     * Evicts the least recently used tile of the class which is not pinned.
+     * Caller must hold the monitor.
+     * 
+     * @param c
+     *            Class.
+     * @return True if evicted.
+     */
+    private boolean evictLeastRecentlyUsed(int c) {
+        int e = this.mLruTails[c];
+        while (e != SlabTileCache.NONE) {
+            int s = e >>> SlabTileCache.CHUNK_BITS;
+            int i = e & SlabTileCache.CHUNK_MASK;
+            if (this.mPins[s][i] == 0) {
+                this.removeEntry(e, true);
+                return true;
+            }
+            e = this.mPrev[s][i];
+        }
+        return false;
+    }
+
+    /**
+     * Moves a slab without pinned chunks from the class holding the most
+     * slabs to the class, evicting its tiles. Caller must hold the monitor.
+     * 
+     * @param c
+     *            Class to move to.
+     * @return True if moved.
+     */
+    private boolean stealSlab(int c) {
+        int donor = SlabTileCache.NONE;
+        int most = 0;
+        for (int d = 0; d < this.mClassSlabCounts.length; d++) {
+            if (d != c && this.mClassSlabCounts[d] > most) {
+                donor = d;
+                most = this.mClassSlabCounts[d];
+            }
+        }
+        if (donor == SlabTileCache.NONE) {
+            return false;
+        }
+        for (int s = 0; s < this.mSlabCount; s++) {
+            if (this.mSlabClasses[s] != donor || this.isPinned(s)) {
+                continue;
+            }
+            long[] keys = this.mKeys[s];
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != SlabTileCache.NONE) {
+                    this.removeEntry((s << SlabTileCache.CHUNK_BITS) | i,
+                            true);
+                }
+            }
+            // drops free chunks of the slab from the free list
+            int prev = SlabTileCache.NONE;
+            int e = this.mFreeHeads[donor];
+            while (e != SlabTileCache.NONE) {
+                int next = this.mNext[e >>> SlabTileCache.CHUNK_BITS][e
+                        & SlabTileCache.CHUNK_MASK];
+                if (e >>> SlabTileCache.CHUNK_BITS == s) {
+                    if (prev == SlabTileCache.NONE) {
+                        this.mFreeHeads[donor] = next;
+                    } else {
+                        this.mNext[prev >>> SlabTileCache.CHUNK_BITS][prev
+                                & SlabTileCache.CHUNK_MASK] = next;
+                    }
+                } else {
+                    prev = e;
+                }
+                e = next;
+            }
+            this.mClassSlabCounts[donor]--;
+            this.assignSlab(s, c);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether any chunk of the slab is pinned. Caller must hold the monitor.
+     * 
+     * @param s
+     *            Slab.
+     * @return True if pinned.
+     */
+    private boolean isPinned(int s) {
+        int[] pins = this.mPins[s];
+        for (int i = 0; i < pins.length; i++) {
+            if (pins[i] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Divides the slab into chunks of the class and adds them to the free
+     * list. Caller must hold the monitor.
+     * 
+     * @param s
+     *            Slab.
+     * @param c
+     *            Class.
+     */
+    private void assignSlab(int s, int c) {
+        int count = this.mSlabSize / this.mClassSizes[c];
+        this.mSlabClasses[s] = c;
+        this.mKeys[s] = new long[count];
+        Arrays.fill(this.mKeys[s], SlabTileCache.NONE);
+        this.mLengths[s] = new int[count];
+        this.mPins[s] = new int[count];
+        this.mPrev[s] = new int[count];
+        this.mNext[s] = new int[count];
+        for (int i = count - 1; i >= 0; i--) {
+            this.mNext[s][i] = this.mFreeHeads[c];
+            this.mFreeHeads[c] = (s << SlabTileCache.CHUNK_BITS) | i;
+        }
+        this.mClassSlabCounts[c]++;
+    }
+
+    /**
+     * Removes the entry from the index and the LRU list. The chunk is freed,
+     * or freed when released if pinned. Caller must hold the monitor.
+     * 
+     * @param e
+     *            Entry.
+     * @param evicted
+     *            Whether counted as an eviction.
+     */
+    private void removeEntry(int e, boolean evicted) {
+        int s = e >>> SlabTileCache.CHUNK_BITS;
+        int i = e & SlabTileCache.CHUNK_MASK;
+        this.mIndex.remove(this.mKeys[s][i]);
+        this.unlink(this.mSlabClasses[s], e);
+        this.mBytes -= this.mLengths[s][i];
+        if (evicted) {
+            this.mEvictionCount++;
+        }
+        if (this.mPins[s][i] > 0) {
+            this.mPrev[s][i] = SlabTileCache.ORPHAN;
+        } else {
+            this.freeEntry(e);
+        }
+    }
+
+    /**
+     * Adds the chunk to the free list. Caller must hold the monitor.
+     * 
+     * @param e
+     *            Entry not linked.
+     */
+    private void freeEntry(int e) {
+        int s = e >>> SlabTileCache.CHUNK_BITS;
+        int i = e & SlabTileCache.CHUNK_MASK;
+        int c = this.mSlabClasses[s];
+        this.mKeys[s][i] = SlabTileCache.NONE;
+        this.mLengths[s][i] = 0;
+        this.mNext[s][i] = this.mFreeHeads[c];
+        this.mFreeHeads[c] = e;
+    }
+
+    /**
+     * Links the entry at the head of the LRU list. Caller must hold the
+     * monitor.
+     * 
+     * @param c
+     *            Class.
+     * @param e
+     *            Entry not linked.
+     */
+    private void linkHead(int c, int e) {
+        int s = e >>> SlabTileCache.CHUNK_BITS;
+        int i = e & SlabTileCache.CHUNK_MASK;
+        int head = this.mLruHeads[c];
+        this.mPrev[s][i] = SlabTileCache.NONE;
+        this.mNext[s][i] = head;
+        if (head != SlabTileCache.NONE) {
+            this.mPrev[head >>> SlabTileCache.CHUNK_BITS][head
+                    & SlabTileCache.CHUNK_MASK] = e;
+        } else {
+            this.mLruTails[c] = e;
+        }
+        this.mLruHeads[c] = e;
+    }
+
+    /**
+     * Unlinks the entry from the LRU list. Caller must hold the monitor.
+     * 
+     * @param c
+     *            Class.
+     * @param e
+     *            Entry linked.
+     */
+    private void unlink(int c, int e) {
+        int s = e >>> SlabTileCache.CHUNK_BITS;
+        int i = e & SlabTileCache.CHUNK_MASK;
+        int prev = this.mPrev[s][i];
+        int next = this.mNext[s][i];
+        if (prev != SlabTileCache.NONE) {
+            this.mNext[prev >>> SlabTileCache.CHUNK_BITS][prev
+                    & SlabTileCache.CHUNK_MASK] = next;
+        } else {
+            this.mLruHeads[c] = next;
+        }
+        if (next != SlabTileCache.NONE) {
+            this.mPrev[next >>> SlabTileCache.CHUNK_BITS][next
+                    & SlabTileCache.CHUNK_MASK] = prev;
+        } else {
+            this.mLruTails[c] = prev;
+        }
+    }
+
+    /**
+     * Empties lists of all classes. Caller must hold the monitor.
+     */
+    private void resetClasses() {
+        Arrays.fill(this.mLruHeads, SlabTileCache.NONE);
+        Arrays.fill(this.mLruTails, SlabTileCache.NONE);
+        Arrays.fill(this.mFreeHeads, SlabTileCache.NONE);
+        Arrays.fill(this.mClassSlabCounts, 0);
+    }
+
+    /**
+     * Gets the smallest class the content fits in.
+     * 
+     * @param length
+     *            Length of the content.
+     * @return Class.
+     */
+    private int classOf(int length) {
+        int[] sizes = this.mClassSizes;
+        int lo = 0;
+        int hi = sizes.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sizes[mid] < length) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Creates chunk sizes of classes.
+     * 
+     * @param slabSize
+     *            Size of a slab.
+     * @return Sizes in ascending order. The last is a quarter of the slab.
+     */
+    private static int[] createClassSizes(int slabSize) {
+        int max = slabSize / 4;
+        ArrayList<Integer> sizes = new ArrayList<Integer>();
+        int size = SlabTileCache.MIN_CHUNK_SIZE;
+        while (size < max) {
+            sizes.add(Integer.valueOf(size));
+            int next = size + size / 4;
+            size = (next + SlabTileCache.CHUNK_ALIGN - 1)
+                    / SlabTileCache.CHUNK_ALIGN * SlabTileCache.CHUNK_ALIGN;
+        }
+        sizes.add(Integer.valueOf(max));
+        int[] ret = new int[sizes.size()];
+        for (int n = 0; n < ret.length; n++) {
+            ret[n] = sizes.get(n).intValue();
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,123 @@
+package com.gmail.boiledorange73.and4.ut.mbtiles;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a bundle written by {@link TileBundleWriter}. For clients, typically
+ * 
+ * <pre>
+ * InputStream is = resolver.openInputStream(Uri
+ *         .parse(&quot;content://(authority)/(db)/(z)/(x0-x1)/(y0-y1).bundle&quot;));
+ * TileBundleReader reader = new TileBundleReader(is);
+ * while (reader.next()) {
+ *     // reader.getZ(), reader.getX(), reader.getY(), reader.getContent()
+ * }
+ * is.close();
+ * </pre>
+ */
+public class TileBundleReader {
+    private final DataInputStream mIs;
+    private boolean mFinished = false;
+    private int mZ = 0;
+    private int mX = 0;
+    private int mY = 0;
+    private byte[] mContent = null;
+
+    /**
+     * Constructor. Reads and checks the head of the stream.
+     * 
+     * @param is
+     *            Source stream. Not closed by this.
+     * @throws IOException
+     *             Thrown if failed to read or the stream is not a bundle.
+     */
+    public TileBundleReader(InputStream is) throws IOException {
+        this.mIs = new DataInputStream(is);
+        byte[] magic = new byte[TileBundleWriter.MAGIC.length];
+        this.mIs.readFully(magic);
+        for (int n = 0; n < magic.length; n++) {
+            if (magic[n] != TileBundleWriter.MAGIC[n]) {
+                throw new IOException("Not a tile bundle.");
+            }
+        }
+        int version = this.mIs.readInt();
+        if (version != TileBundleWriter.VERSION) {
+            throw new IOException("Unsupported bundle version: " + version);
+        }
+    }
+
+    /**
+     * Reads next tile.
+     * 
+     * @return False if no more tile.
+     * @throws IOException
+     *             Thrown if failed to read or the stream is truncated.
+     */
+    public boolean next() throws IOException {
+        if (this.mFinished) {
+            return false;
+        }
+        int z = this.mIs.readInt();
+        if (z == TileBundleWriter.END_OF_BUNDLE) {
+            this.mFinished = true;
+            this.mContent = null;
+            return false;
+        }
+        int x = this.mIs.readInt();
+        int y = this.mIs.readInt();
+        int length = this.mIs.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid tile length: " + length);
+        }
+        byte[] content = new byte[length];
+        try {
+            this.mIs.readFully(content);
+        } catch (EOFException e) {
+            throw new IOException("Truncated tile bundle.");
+        }
+        this.mZ = z;
+        this.mX = x;
+        this.mY = y;
+        this.mContent = content;
+        return true;
+    }
+
+    /**
+     * Gets zoom level of current tile.
+     * 
+     * @return Zoom level.
+     */
+    public int getZ() {
+        return this.mZ;
+    }
+
+    /**
+     * Gets column of current tile.
+     * 
+     * @return Column.
+     */
+    public int getX() {
+        return this.mX;
+    }
+
+    /**
+     * Gets row of current tile.
+     * 
+     * @return Row.
+     */
+    public int getY() {
+        return this.mY;
+    }
+
+    /**
+     * Gets content of current tile.
+     * 
+     * @return Content. Null if no current tile.
+     */
+    public byte[] getContent() {
+        return this.mContent;
+    }
+}
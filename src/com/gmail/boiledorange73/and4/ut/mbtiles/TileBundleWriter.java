@@ -0,0 +1,96 @@
+package com.gmail.boiledorange73.and4.ut.mbtiles;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes tiles as a bundle, a framed binary stream which carries many tiles.
+ * 
+ * All integers are big-endian. The stream starts with {@link #MAGIC} and
+ * {@link #VERSION} (int). Each tile is a frame of z (int), x (int), y (int),
+ * length (int) and the content. The stream ends with a frame whose z is
+ * {@link #END_OF_BUNDLE} and which has no other fields.
+ * 
+ * Read bundles with {@link TileBundleReader}.
+ */
+public class TileBundleWriter {
+    /** Magic bytes at the head of the stream, "MBTB". */
+    public static final byte[] MAGIC = { 'M', 'B', 'T', 'B' };
+    /** Format version. */
+    public static final int VERSION = 1;
+    /** z value of the last frame. */
+    public static final int END_OF_BUNDLE = -1;
+
+    private final DataOutputStream mOs;
+    private int mTiles = 0;
+    private long mBytes = 0;
+
+    /**
+     * Constructor. Writes the head of the stream.
+     * 
+     * @param os
+     *            Destination stream. Not closed by this.
+     * @throws IOException
+     *             Thrown if failed to write.
+     */
+    public TileBundleWriter(OutputStream os) throws IOException {
+        this.mOs = new DataOutputStream(os);
+        this.mOs.write(TileBundleWriter.MAGIC);
+        this.mOs.writeInt(TileBundleWriter.VERSION);
+    }
+
+    /**
+     * Writes one tile.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param content
+     *            Content.
+     * @throws IOException
+     *             Thrown if failed to write.
+     */
+    public void writeTile(int z, int x, int y, byte[] content)
+            throws IOException {
+        this.mOs.writeInt(z);
+        this.mOs.writeInt(x);
+        this.mOs.writeInt(y);
+        this.mOs.writeInt(content.length);
+        this.mOs.write(content);
+        this.mTiles++;
+        this.mBytes += content.length;
+    }
+
+    /**
+     * Writes the end of the bundle and flushes.
+     * 
+     * @throws IOException
+     *             Thrown if failed to write.
+     */
+    public void finish() throws IOException {
+        this.mOs.writeInt(TileBundleWriter.END_OF_BUNDLE);
+        this.mOs.flush();
+    }
+
+    /**
+     * Gets the number of tiles written.
+     * 
+     * @return The number of tiles.
+     */
+    public int getTileCount() {
+        return this.mTiles;
+    }
+
+    /**
+     * Gets bytes of contents written, excluding frame headers.
+     * 
+     * @return Bytes of contents.
+     */
+    public long getContentBytes() {
+        return this.mBytes;
+    }
+}
@@ -0,0 +1,481 @@
+package com.gmail.boiledorange73.and4.ut.mbtiles;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Build;
+
+import com.gmail.boiledorange73.and4.ut.collection.LongObjectMap;
+import com.gmail.boiledorange73.and4.ut.collection.TileKey;
+
+/**
+ * In-memory LRU cache of tiles. Each dataset has a map keyed by
+ * {@link TileKey#pack(int, int, int)}, so that lookups allocate no key.
+ * Entries are linked in the order of use across datasets. Tiles whose
+ * coordinates cannot be packed are not cached. Size is limited by bytes of
+ * tile contents, not by the number of entries.
+ * 
+ * Tiles which share one content array, e.g. tiles of MBTiles files with
+ * map/images schema, count the content once.
+ */
+public class TileCache {
+    /** Bytes counted for each entry in addition to the content. */
+    public static final int ENTRY_OVERHEAD = 64;
+    /** Denominator of the memory class for default size. */
+    public static final int DEFAULT_MEMORY_CLASS_DIVISOR = 8;
+    /** Memory class (MiB) used if the platform cannot tell it. */
+    private static final int FALLBACK_MEMORY_CLASS = 16;
+
+    /**
+     * Value of the cache, linked in the order of use.
+     */
+    private static final class Entry {
+        private final String mDataset;
+        private final long mKey;
+        private final byte[] mContent;
+        /** Whether put by the prefetcher and not yet requested. */
+        private boolean mPrefetched;
+        /** Less recently used entry. The head if eldest. */
+        private Entry mPrev;
+        /** More recently used entry. The head if newest. */
+        private Entry mNext;
+
+        private Entry(String dataset, long key, byte[] content,
+                boolean prefetched) {
+            this.mDataset = dataset;
+            this.mKey = key;
+            this.mContent = content;
+            this.mPrefetched = prefetched;
+            this.mPrev = this;
+            this.mNext = this;
+        }
+    }
+
+    /** Maps of datasets, from packed tile keys to entries. */
+    private final HashMap<String, LongObjectMap<Entry>> mDatasets = new HashMap<String, LongObjectMap<Entry>>();
+    /** Head of the list. Next is the eldest, previous is the newest. */
+    private final Entry mHead = new Entry(null, TileKey.INVALID, null, false);
+    /** Reference counts of contents, by identity. */
+    private final IdentityHashMap<byte[], int[]> mRefs = new IdentityHashMap<byte[], int[]>();
+    private long mMaxBytes;
+    private long mBytes = 0;
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mEvictionCount = 0;
+    private long mPrefetchCount = 0;
+    private long mPrefetchHitCount = 0;
+
+    /**
+     * Constructor.
+     * 
+     * @param maxBytes
+     *            Maximum bytes. 0 disables the cache.
+     */
+    public TileCache(long maxBytes) {
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Calculates default size from the memory class of the device. Returns
+     * 1/{@link #DEFAULT_MEMORY_CLASS_DIVISOR} of the memory class.
+     * 
+     * @param context
+     *            The context.
+     * @return Default size in bytes.
+     */
+    public static long calculateDefaultMaxBytes(Context context) {
+        int memoryClass = TileCache.FALLBACK_MEMORY_CLASS;
+        if (Build.VERSION.SDK_INT >= 5 && context != null) {
+            ActivityManager am = (ActivityManager) context
+                    .getSystemService(Context.ACTIVITY_SERVICE);
+            if (am != null) {
+                memoryClass = am.getMemoryClass();
+            }
+        }
+        return (long) memoryClass * 1024L * 1024L
+                / TileCache.DEFAULT_MEMORY_CLASS_DIVISOR;
+    }
+
+    /**
+     * Gets the tile.
+     * 
+     * @param dataset
+     *            Dataset name.
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return Content. Null if not cached.
+     */
+    public byte[] get(String dataset, int z, int x, int y) {
+        synchronized (this) {
+            Entry e = this.find(dataset, z, x, y);
+            if (e == null) {
+                this.mMissCount++;
+                return null;
+            }
+            this.unlink(e);
+            this.link(e);
+            this.mHitCount++;
+            if (e.mPrefetched) {
+                e.mPrefetched = false;
+                this.mPrefetchHitCount++;
+            }
+            return e.mContent;
+        }
+    }
+
+    /**
+     * Whether the tile is cached. Does not change counters nor the order.
+     * 
+     * @param dataset
+     *            Dataset name.
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return True if cached.
+     */
+    public boolean contains(String dataset, int z, int x, int y) {
+        synchronized (this) {
+            return this.find(dataset, z, x, y) != null;
+        }
+    }
+
+    /**
+     * Puts the tile. Contents larger than maximum bytes are ignored.
+     * 
+     * @param dataset
+     *            Dataset name.
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param content
+     *            Content.
+     */
+    public void put(String dataset, int z, int x, int y, byte[] content) {
+        this.put(dataset, z, x, y, content, false);
+    }
+
+    /**
+     * Puts the tile read ahead by the prefetcher. The first hit on it is
+     * counted as a prefetch hit. Does nothing if already cached.
+     * 
+     * @param dataset
+     *            Dataset name.
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param content
+     *            Content.
+     * @return True if put.
+     */
+    public boolean putPrefetched(String dataset, int z, int x, int y,
+            byte[] content) {
+        return this.put(dataset, z, x, y, content, true);
+    }
+
+    /**
+     * Removes all tiles of the dataset.
+     * 
+     * @param dataset
+     *            Dataset name.
+     */
+    public void remove(String dataset) {
+        synchronized (this) {
+            LongObjectMap<Entry> map = this.mDatasets.remove(dataset);
+            if (map == null) {
+                return;
+            }
+            map.forEach(new LongObjectMap.Visitor<Entry>() {
+                @Override
+                public boolean visit(long key, Entry e) {
+                    TileCache.this.unlink(e);
+                    TileCache.this.release(e.mContent);
+                    return true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Evicts least recently used tiles until the size is not larger than
+     * specified bytes.
+     * 
+     * @param maxBytes
+     *            Bytes to shrink to.
+     */
+    public void trimToSize(long maxBytes) {
+        synchronized (this) {
+            this.trim(maxBytes);
+        }
+    }
+
+    /**
+     * Evicts all tiles.
+     */
+    public void evictAll() {
+        this.trimToSize(0);
+    }
+
+    /**
+     * Sets maximum bytes. Shrinks the cache if needed.
+     * 
+     * @param maxBytes
+     *            Maximum bytes. 0 disables the cache.
+     */
+    public void setMaxBytes(long maxBytes) {
+        synchronized (this) {
+            this.mMaxBytes = maxBytes;
+            this.trim(maxBytes);
+        }
+    }
+
+    /**
+     * Gets maximum bytes.
+     * 
+     * @return Maximum bytes.
+     */
+    public long getMaxBytes() {
+        synchronized (this) {
+            return this.mMaxBytes;
+        }
+    }
+
+    /**
+     * Gets current bytes including entry overheads.
+     * 
+     * @return Current bytes.
+     */
+    public long getBytes() {
+        synchronized (this) {
+            return this.mBytes;
+        }
+    }
+
+    /**
+     * Gets the number of hits.
+     * 
+     * @return The number of hits.
+     */
+    public long getHitCount() {
+        synchronized (this) {
+            return this.mHitCount;
+        }
+    }
+
+    /**
+     * Gets the number of misses.
+     * 
+     * @return The number of misses.
+     */
+    public long getMissCount() {
+        synchronized (this) {
+            return this.mMissCount;
+        }
+    }
+
+    /**
+     * Gets the number of evicted tiles.
+     * 
+     * @return The number of evicted tiles.
+     */
+    public long getEvictionCount() {
+        synchronized (this) {
+            return this.mEvictionCount;
+        }
+    }
+
+    /**
+     * Gets the number of tiles put by the prefetcher.
+     * 
+     * @return The number of prefetched tiles.
+     */
+    public long getPrefetchCount() {
+        synchronized (this) {
+            return this.mPrefetchCount;
+        }
+    }
+
+    /**
+     * Gets the number of prefetched tiles which are requested later.
+     * 
+     * @return The number of prefetch hits.
+     */
+    public long getPrefetchHitCount() {
+        synchronized (this) {
+            return this.mPrefetchHitCount;
+        }
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Puts the tile.
+     * 
+     * @param dataset
+     *            Dataset name.
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param content
+     *            Content.
+     * @param prefetched
+     *            Whether put by the prefetcher. If true, does nothing when
+     *            already cached.
+     * @return True if put.
+     */
+    private boolean put(String dataset, int z, int x, int y, byte[] content,
+            boolean prefetched) {
+        long size = content.length + TileCache.ENTRY_OVERHEAD;
+        long key = TileKey.pack(z, x, y);
+        if (key == TileKey.INVALID) {
+            return false;
+        }
+        synchronized (this) {
+            if (size > this.mMaxBytes) {
+                return false;
+            }
+            LongObjectMap<Entry> map = this.mDatasets.get(dataset);
+            if (map == null) {
+                map = new LongObjectMap<Entry>();
+                this.mDatasets.put(dataset, map);
+            } else if (prefetched && map.containsKey(key)) {
+                return false;
+            }
+            // retains new one before releasing old one, which may be same.
+            this.retain(content);
+            Entry e = new Entry(dataset, key, content, prefetched);
+            this.link(e);
+            Entry old = map.put(key, e);
+            if (old != null) {
+                this.unlink(old);
+                this.release(old.mContent);
+            }
+            if (prefetched) {
+                this.mPrefetchCount++;
+            }
+            this.trim(this.mMaxBytes);
+            return true;
+        }
+    }
+
+    /**
+     * Evicts least recently used tiles. Caller must hold the monitor.
+     * 
+     * @param maxBytes
+     *            Bytes to shrink to.
+     */
+    private void trim(long maxBytes) {
+        while (this.mBytes > maxBytes && this.mHead.mNext != this.mHead) {
+            Entry e = this.mHead.mNext;
+            this.unlink(e);
+            LongObjectMap<Entry> map = this.mDatasets.get(e.mDataset);
+            map.remove(e.mKey);
+            if (map.isEmpty()) {
+                this.mDatasets.remove(e.mDataset);
+            }
+            this.release(e.mContent);
+            this.mEvictionCount++;
+        }
+    }
+
+    /**
+     * Finds the entry. Caller must hold the monitor.
+     * 
+     * @param dataset
+     *            Dataset name.
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return Entry. Null if not cached or the coordinates cannot be packed.
+     */
+    private Entry find(String dataset, int z, int x, int y) {
+        long key = TileKey.pack(z, x, y);
+        if (key == TileKey.INVALID) {
+            return null;
+        }
+        LongObjectMap<Entry> map = this.mDatasets.get(dataset);
+        return map != null ? map.get(key) : null;
+    }
+
+    /**
+     * Links the entry as the newest. Caller must hold the monitor.
+     * 
+     * @param e
+     *            Entry not linked.
+     */
+    private void link(Entry e) {
+        Entry newest = this.mHead.mPrev;
+        e.mPrev = newest;
+        e.mNext = this.mHead;
+        newest.mNext = e;
+        this.mHead.mPrev = e;
+    }
+
+    /**
+     * Unlinks the entry. Caller must hold the monitor.
+     * 
+     * @param e
+     *            Entry linked.
+     */
+    private void unlink(Entry e) {
+        e.mPrev.mNext = e.mNext;
+        e.mNext.mPrev = e.mPrev;
+        e.mPrev = e;
+        e.mNext = e;
+    }
+
+    /**
+     * Counts bytes of a new entry. The content is counted only if no other
+     * entry refers it. Caller must hold the monitor.
+     * 
+     * @param content
+     *            Content.
+     */
+    private void retain(byte[] content) {
+        int[] ref = this.mRefs.get(content);
+        if (ref == null) {
+            this.mRefs.put(content, new int[] { 1 });
+            this.mBytes += content.length;
+        } else {
+            ref[0]++;
+        }
+        this.mBytes += TileCache.ENTRY_OVERHEAD;
+    }
+
+    /**
+     * Uncounts bytes of a removed entry. The content is uncounted when no
+     * other entry refers it. Caller must hold the monitor.
+     * 
+     * @param content
+     *            Content.
+     */
+    private void release(byte[] content) {
+        int[] ref = this.mRefs.get(content);
+        if (ref != null && --ref[0] == 0) {
+            this.mRefs.remove(content);
+            this.mBytes -= content.length;
+        }
+        this.mBytes -= TileCache.ENTRY_OVERHEAD;
+    }
+}
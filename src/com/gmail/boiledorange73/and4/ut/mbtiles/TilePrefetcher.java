@@ -0,0 +1,459 @@
+package com.gmail.boiledorange73.and4.ut.mbtiles;
+
+import java.io.FileNotFoundException;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+
+/**
+ * Reads tiles around the viewport into the tile cache ahead of requests.
+ * 
+ * The viewport of each dataset is estimated from the bounding box of recent
+ * requests at the current zoom level, and the pan direction from the movement
+ * of its center. The ring of tiles around the viewport, extended in the pan
+ * direction, and the tiles of the next zoom level under the viewport are read
+ * with range queries on a low-priority background thread.
+ * 
+ * I/O is capped: each dataset has at most one prefetch waiting or running,
+ * and one prefetch reads at most {@link #getMaxTiles()} tiles and
+ * {@link #getMaxBytes()} bytes.
+ */
+public class TilePrefetcher {
+    /**
+     * Reads tiles for the prefetcher.
+     */
+    public interface Source {
+        /**
+         * Reads tiles in the range. Ranges are inclusive.
+         * 
+         * @param dataset
+         *            Dataset name.
+         * @param z
+         *            Zoom level.
+         * @param xmin
+         *            Minimum column.
+         * @param xmax
+         *            Maximum column.
+         * @param ymin
+         *            Minimum row.
+         * @param ymax
+         *            Maximum row.
+         * @param limit
+         *            Maximum number of tiles.
+         * @param visitor
+         *            Receives tiles.
+         * @return The number of tiles visited.
+         * @throws FileNotFoundException
+         *             Thrown if the dataset is not found.
+         */
+        int getTiles(String dataset, int z, int xmin, int xmax, int ymin,
+                int ymax, int limit, TileSource.TileVisitor visitor)
+                throws FileNotFoundException;
+    }
+
+    /** Default maximum number of tiles read by one prefetch. */
+    public static final int DEFAULT_MAX_TILES = 64;
+    /** Default maximum bytes read by one prefetch. */
+    public static final int DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+    /** Requests older than this are not used to estimate the viewport. */
+    public static final long VIEWPORT_WINDOW_MS = 1000;
+    /** Number of recent requests remembered for each dataset. */
+    private static final int HISTORY_SIZE = 64;
+    /** Maximum number of prefetches waiting for the thread. */
+    private static final int QUEUE_SIZE = 4;
+    /** Maximum zoom level. Tile numbers must fit in int. */
+    private static final int MAX_ZOOM = 30;
+
+    /**
+     * Requests and viewport of one dataset.
+     */
+    private static final class Track {
+        private final int[] mXs = new int[TilePrefetcher.HISTORY_SIZE];
+        private final int[] mYs = new int[TilePrefetcher.HISTORY_SIZE];
+        private final long[] mTimes = new long[TilePrefetcher.HISTORY_SIZE];
+        private int mCount = 0;
+        private int mNext = 0;
+        private int mZ = -1;
+        /** Center of the viewport when the last prefetch was scheduled. */
+        private int mCenterX2 = 0;
+        private int mCenterY2 = 0;
+        private boolean mHasCenter = false;
+        /** Whether a prefetch is waiting or running. */
+        private boolean mPending = false;
+        /** Viewport for which the last prefetch was scheduled. */
+        private int mLastXmin, mLastXmax, mLastYmin, mLastYmax, mLastZ = -1;
+    }
+
+    private final TileCache mCache;
+    private final Source mSource;
+    private final HashMap<String, Track> mTracks = new HashMap<String, Track>();
+    private final ThreadPoolExecutor mExecutor;
+    private int mMaxTiles = TilePrefetcher.DEFAULT_MAX_TILES;
+    private int mMaxBytes = TilePrefetcher.DEFAULT_MAX_BYTES;
+
+    private long mScheduledCount = 0;
+    private long mDroppedCount = 0;
+    private long mReadTiles = 0;
+    private long mReadBytes = 0;
+
+    /**
+     * Constructor.
+     * 
+     * @param cache
+     *            Cache which receives tiles.
+     * @param source
+     *            Reads tiles.
+     */
+    public TilePrefetcher(TileCache cache, Source source) {
+        this.mCache = cache;
+        this.mSource = source;
+        this.mExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(TilePrefetcher.QUEUE_SIZE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        Thread t = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "TilePrefetcher");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Tells a tile request. Schedules a prefetch if the viewport moved.
+     * 
+     * @param dataset
+     *            Dataset name.
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     */
+    public void onRequest(String dataset, int z, int x, int y) {
+        if (z < 0 || z >= TilePrefetcher.MAX_ZOOM) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        final int xmin, xmax, ymin, ymax, dx, dy;
+        synchronized (this) {
+            Track t = this.mTracks.get(dataset);
+            if (t == null) {
+                t = new Track();
+                this.mTracks.put(dataset, t);
+            }
+            if (t.mZ != z) {
+                // zoom changed. Forgets the viewport.
+                t.mZ = z;
+                t.mCount = 0;
+                t.mNext = 0;
+                t.mHasCenter = false;
+            }
+            t.mXs[t.mNext] = x;
+            t.mYs[t.mNext] = y;
+            t.mTimes[t.mNext] = now;
+            t.mNext = (t.mNext + 1) % TilePrefetcher.HISTORY_SIZE;
+            if (t.mCount < TilePrefetcher.HISTORY_SIZE) {
+                t.mCount++;
+            }
+            if (t.mPending) {
+                return;
+            }
+            // Viewport is the bounding box of recent requests.
+            int bxmin = x, bxmax = x, bymin = y, bymax = y;
+            for (int n = 0; n < t.mCount; n++) {
+                if (now - t.mTimes[n] > TilePrefetcher.VIEWPORT_WINDOW_MS) {
+                    continue;
+                }
+                bxmin = Math.min(bxmin, t.mXs[n]);
+                bxmax = Math.max(bxmax, t.mXs[n]);
+                bymin = Math.min(bymin, t.mYs[n]);
+                bymax = Math.max(bymax, t.mYs[n]);
+            }
+            if (t.mLastZ == z && t.mLastXmin == bxmin && t.mLastXmax == bxmax
+                    && t.mLastYmin == bymin && t.mLastYmax == bymax) {
+                // Already prefetched for this viewport.
+                return;
+            }
+            int cx2 = bxmin + bxmax;
+            int cy2 = bymin + bymax;
+            dx = t.mHasCenter ? Integer.signum(cx2 - t.mCenterX2) : 0;
+            dy = t.mHasCenter ? Integer.signum(cy2 - t.mCenterY2) : 0;
+            t.mCenterX2 = cx2;
+            t.mCenterY2 = cy2;
+            t.mHasCenter = true;
+            t.mLastZ = z;
+            t.mLastXmin = bxmin;
+            t.mLastXmax = bxmax;
+            t.mLastYmin = bymin;
+            t.mLastYmax = bymax;
+            t.mPending = true;
+            xmin = bxmin;
+            xmax = bxmax;
+            ymin = bymin;
+            ymax = bymax;
+        }
+        final String fdataset = dataset;
+        final int fz = z;
+        try {
+            this.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        TilePrefetcher.this.prefetch(fdataset, fz, xmin, xmax,
+                                ymin, ymax, dx, dy);
+                    } finally {
+                        TilePrefetcher.this.finish(fdataset);
+                    }
+                }
+            });
+            synchronized (this) {
+                this.mScheduledCount++;
+            }
+        } catch (RejectedExecutionException e) {
+            this.finish(dataset);
+            synchronized (this) {
+                this.mDroppedCount++;
+            }
+        }
+    }
+
+    /**
+     * Forgets the dataset, e.g. when it is closed.
+     * 
+     * @param dataset
+     *            Dataset name.
+     */
+    public void remove(String dataset) {
+        synchronized (this) {
+            this.mTracks.remove(dataset);
+        }
+    }
+
+    /**
+     * Sets maximum number of tiles read by one prefetch.
+     * 
+     * @param maxTiles
+     *            Maximum number of tiles.
+     */
+    public void setMaxTiles(int maxTiles) {
+        synchronized (this) {
+            this.mMaxTiles = maxTiles;
+        }
+    }
+
+    /**
+     * Gets maximum number of tiles read by one prefetch.
+     * 
+     * @return Maximum number of tiles.
+     */
+    public int getMaxTiles() {
+        synchronized (this) {
+            return this.mMaxTiles;
+        }
+    }
+
+    /**
+     * Sets maximum bytes read by one prefetch.
+     * 
+     * @param maxBytes
+     *            Maximum bytes.
+     */
+    public void setMaxBytes(int maxBytes) {
+        synchronized (this) {
+            this.mMaxBytes = maxBytes;
+        }
+    }
+
+    /**
+     * Gets maximum bytes read by one prefetch.
+     * 
+     * @return Maximum bytes.
+     */
+    public int getMaxBytes() {
+        synchronized (this) {
+            return this.mMaxBytes;
+        }
+    }
+
+    /**
+     * Gets the number of prefetches scheduled.
+     * 
+     * @return The number of prefetches scheduled.
+     */
+    public long getScheduledCount() {
+        synchronized (this) {
+            return this.mScheduledCount;
+        }
+    }
+
+    /**
+     * Gets the number of prefetches dropped because the thread was busy.
+     * 
+     * @return The number of prefetches dropped.
+     */
+    public long getDroppedCount() {
+        synchronized (this) {
+            return this.mDroppedCount;
+        }
+    }
+
+    /**
+     * Gets the number of tiles read by prefetches, including ones already
+     * cached.
+     * 
+     * @return The number of tiles read.
+     */
+    public long getReadTiles() {
+        synchronized (this) {
+            return this.mReadTiles;
+        }
+    }
+
+    /**
+     * Gets bytes read by prefetches.
+     * 
+     * @return Bytes read.
+     */
+    public long getReadBytes() {
+        synchronized (this) {
+            return this.mReadBytes;
+        }
+    }
+
+    /**
+     * Gets the ratio of prefetched tiles which were requested later.
+     * 
+     * @return Prefetch hit rate, 0 to 1.
+     */
+    public double getHitRate() {
+        long prefetched = this.mCache.getPrefetchCount();
+        if (prefetched == 0) {
+            return 0;
+        }
+        return (double) this.mCache.getPrefetchHitCount() / prefetched;
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Reads the ring around the viewport and the next zoom level.
+     * 
+     * @param dataset
+     *            Dataset name.
+     * @param z
+     *            Zoom level.
+     * @param xmin
+     *            Minimum column of the viewport.
+     * @param xmax
+     *            Maximum column of the viewport.
+     * @param ymin
+     *            Minimum row of the viewport.
+     * @param ymax
+     *            Maximum row of the viewport.
+     * @param dx
+     *            Pan direction of columns, -1, 0 or 1.
+     * @param dy
+     *            Pan direction of rows, -1, 0 or 1.
+     */
+    private void prefetch(String dataset, int z, int xmin, int xmax,
+            int ymin, int ymax, int dx, int dy) {
+        final int[] budget;
+        synchronized (this) {
+            budget = new int[] { this.mMaxTiles, this.mMaxBytes };
+        }
+        int last = (1 << z) - 1;
+        // ring, one tile around and one more in the pan direction.
+        int rxmin = Math.max(0, xmin - (dx < 0 ? 2 : 1));
+        int rxmax = Math.min(last, xmax + (dx > 0 ? 2 : 1));
+        int rymin = Math.max(0, ymin - (dy < 0 ? 2 : 1));
+        int rymax = Math.min(last, ymax + (dy > 0 ? 2 : 1));
+        try {
+            // rows below and above the viewport (full width)
+            this.read(dataset, z, rxmin, rxmax, rymin, ymin - 1, budget);
+            this.read(dataset, z, rxmin, rxmax, ymax + 1, rymax, budget);
+            // columns left and right of the viewport
+            this.read(dataset, z, rxmin, xmin - 1, ymin, ymax, budget);
+            this.read(dataset, z, xmax + 1, rxmax, ymin, ymax, budget);
+            // next zoom level under the viewport
+            if (z + 1 < TilePrefetcher.MAX_ZOOM) {
+                this.read(dataset, z + 1, xmin * 2, xmax * 2 + 1, ymin * 2,
+                        ymax * 2 + 1, budget);
+            }
+        } catch (FileNotFoundException e) {
+            // closed. DOES NOTHING
+        }
+    }
+
+    /**
+     * Reads tiles in the range into the cache within the budget.
+     * 
+     * @param dataset
+     *            Dataset name.
+     * @param z
+     *            Zoom level.
+     * @param xmin
+     *            Minimum column.
+     * @param xmax
+     *            Maximum column.
+     * @param ymin
+     *            Minimum row.
+     * @param ymax
+     *            Maximum row.
+     * @param budget
+     *            Remaining tiles and bytes. Decreased.
+     * @throws FileNotFoundException
+     *             Thrown if the dataset is not found.
+     */
+    private void read(final String dataset, int z, int xmin, int xmax,
+            int ymin, int ymax, final int[] budget)
+            throws FileNotFoundException {
+        if (xmin > xmax || ymin > ymax || budget[0] <= 0 || budget[1] <= 0) {
+            return;
+        }
+        this.mSource.getTiles(dataset, z, xmin, xmax, ymin, ymax, budget[0],
+                new TileSource.TileVisitor() {
+                    @Override
+                    public boolean visit(int z, int x, int y, byte[] content) {
+                        budget[0]--;
+                        budget[1] -= content.length;
+                        synchronized (TilePrefetcher.this) {
+                            TilePrefetcher.this.mReadTiles++;
+                            TilePrefetcher.this.mReadBytes += content.length;
+                        }
+                        TilePrefetcher.this.mCache.putPrefetched(dataset, z,
+                                x, y, content);
+                        return budget[0] > 0 && budget[1] > 0;
+                    }
+                });
+    }
+
+    /**
+     * Marks the prefetch of the dataset finished.
+     * 
+     * @param dataset
+     *            Dataset name.
+     */
+    private void finish(String dataset) {
+        synchronized (this) {
+            Track t = this.mTracks.get(dataset);
+            if (t != null) {
+                t.mPending = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.gmail.boiledorange73.and4.ut.mbtiles;
+
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+
+/**
+ * Read access to a tile set file. Coordinates follow MBTiles: rows are
+ * counted from the bottom (TMS).
+ */
+public interface TileSource {
+    /**
+     * Receives tiles read by
+     * {@link TileSource#getTiles(int, int, int, int, int, int, int, TileVisitor)}
+     * .
+     */
+    public interface TileVisitor {
+        /**
+         * Called for each tile.
+         * 
+         * @param z
+         *            Zoom level.
+         * @param x
+         *            Column.
+         * @param y
+         *            Row.
+         * @param content
+         *            Content.
+         * @return False to stop reading.
+         */
+        boolean visit(int z, int x, int y, byte[] content);
+    }
+
+    /**
+     * Receives coverage read by
+     * {@link TileSource#getCoverage(int, int, int, int, int, int, int, CoverageVisitor)}
+     * and {@link TileSource#scanCoverage(CoverageVisitor)}.
+     */
+    public interface CoverageVisitor {
+        /**
+         * Called for each tile.
+         * 
+         * @param z
+         *            Zoom level.
+         * @param x
+         *            Column.
+         * @param y
+         *            Row.
+         * @param length
+         *            Length of the content.
+         * @return False to stop reading.
+         */
+        boolean visit(int z, int x, int y, int length);
+    }
+
+    /**
+     * Gets the path of the file.
+     * 
+     * @return Path.
+     */
+    String getPath();
+
+    /**
+     * Gets the metadata.
+     * 
+     * @param name
+     *            Name of one of metadata.
+     * @return Specified metadata value.
+     * @throws FileNotFoundException
+     *             Thrown if the metadata is not found.
+     */
+    String getMeta(String name) throws FileNotFoundException;
+
+    /**
+     * Gets the snapshot of metadata.
+     * 
+     * @return Snapshot of metadata.
+     * @throws FileNotFoundException
+     *             Thrown if the file is closed.
+     */
+    MBTilesMetadata getMetadata() throws FileNotFoundException;
+
+    /**
+     * Gets the tile.
+     * 
+     * @param sz
+     *            String z. Must match /^-?[0-9]+$/
+     * @param sx
+     *            String x. Must match /^-?[0-9]+$/
+     * @param sy
+     *            String y. Must match /^-?[0-9]+$/
+     * @return The content.
+     * @throws FileNotFoundException
+     *             Thrown if specified tile is not found.
+     */
+    byte[] getTile(String sz, String sx, String sy)
+            throws FileNotFoundException;
+
+    /**
+     * Gets the tile with integer coordinates. Does not create nor match any
+     * string.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return The content.
+     * @throws FileNotFoundException
+     *             Thrown if specified tile is not found.
+     */
+    byte[] getTile(int z, int x, int y) throws FileNotFoundException;
+
+    /**
+     * Gets the tile as a buffer. Memory-mapped sources return slices of the
+     * mapped file.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @return Read-only buffer of the content.
+     * @throws FileNotFoundException
+     *             Thrown if specified tile is not found.
+     */
+    ByteBuffer getTileBuffer(int z, int x, int y) throws FileNotFoundException;
+
+    /**
+     * Reads a page of tiles in the range. Ranges are inclusive. Tiles of
+     * MBTiles are ordered by column and row. Other sources may use their own
+     * order, which is fixed for the range, so that pages do not overlap.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param xmin
+     *            Minimum column.
+     * @param xmax
+     *            Maximum column.
+     * @param ymin
+     *            Minimum row.
+     * @param ymax
+     *            Maximum row.
+     * @param offset
+     *            The number of tiles to skip.
+     * @param limit
+     *            Maximum number of tiles. Negative means no limit.
+     * @param visitor
+     *            Receives tiles.
+     * @return The number of tiles visited.
+     * @throws FileNotFoundException
+     *             Thrown if the file is closed.
+     */
+    int getTiles(int z, int xmin, int xmax, int ymin, int ymax, int offset,
+            int limit, TileVisitor visitor)
+            throws FileNotFoundException;
+
+    /**
+     * Reads a page of coverage, which tiles exist and their lengths, in the
+     * range. Ranges are inclusive. Tiles are ordered as
+     * {@link #getTiles(int, int, int, int, int, int, int, TileVisitor)}
+     * .
+     * 
+     * @param z
+     *            Zoom level.
+     * @param xmin
+     *            Minimum column.
+     * @param xmax
+     *            Maximum column.
+     * @param ymin
+     *            Minimum row.
+     * @param ymax
+     *            Maximum row.
+     * @param offset
+     *            The number of tiles to skip.
+     * @param limit
+     *            Maximum number of tiles. Negative means no limit.
+     * @param visitor
+     *            Receives coverage.
+     * @return The number of tiles visited.
+     * @throws FileNotFoundException
+     *             Thrown if the file is closed.
+     */
+    int getCoverage(int z, int xmin, int xmax, int ymin, int ymax, int offset,
+            int limit, CoverageVisitor visitor)
+            throws FileNotFoundException;
+
+    /**
+     * Reads coordinates of all tiles, ordered by zoom level. Within a zoom
+     * level, tiles of MBTiles are ordered by column and row, and those of
+     * PMTiles by tile id. Lengths may be -1.
+     * 
+     * @param visitor
+     *            Receives coordinates.
+     * @return The number of tiles visited.
+     * @throws FileNotFoundException
+     *             Thrown if the file is closed.
+     */
+    int scanCoverage(CoverageVisitor visitor)
+            throws FileNotFoundException;
+
+    /**
+     * Whether tiles are read from a memory-mapped file, so that pages are
+     * cached by the kernel.
+     * 
+     * @return True if memory-mapped.
+     */
+    boolean isMapped();
+
+    /**
+     * Prepares reading, so that the first request does not pay the cost of
+     * opening connections, preparing statements and reading root pages of
+     * indexes from the storage. Takes time, so should be called in
+     * background.
+     * 
+     * @throws FileNotFoundException
+     *             Thrown if the file is closed.
+     */
+    void warmUp() throws FileNotFoundException;
+
+    /**
+     * Closes the file.
+     */
+    void close();
+}
@@ -0,0 +1,253 @@
+package com.gmail.boiledorange73.and4.ut.mbtiles;
+
+import java.io.ByteArrayOutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Variant of raster tiles, re-encoded in another format and/or downscaled,
+ * e.g. for clients which render at half resolution. Immutable.
+ */
+public final class TileVariant {
+    /**
+     * Format of the variant.
+     */
+    public enum Format {
+        /** Means the format of the source tile. */
+        original,
+        /** Means PNG. */
+        png,
+        /** Means JPEG. Transparent pixels become black. */
+        jpeg,
+        /** Means WebP. Requires API level 14. */
+        webp
+    }
+
+    /** Quality of JPEG and WebP variants. */
+    public static final int DEFAULT_QUALITY = 80;
+    /** Minimum scale. */
+    public static final float MIN_SCALE = 1.0f / 16;
+    /** Scales are rounded to multiples of 1 / SCALE_STEPS. */
+    private static final int SCALE_STEPS = 1000;
+
+    private final Format mFormat;
+    private final float mScale;
+    private final String mName;
+
+    /**
+     * Constructor.
+     * 
+     * @param format
+     *            Format.
+     * @param scale
+     *            Scale, from {@link #MIN_SCALE} to 1. Rounded to 3 decimal
+     *            places, so that variants of the same name have the same
+     *            scale.
+     * @throws IllegalArgumentException
+     *             Thrown if the scale is out of range or the format is not
+     *             supported.
+     */
+    public TileVariant(Format format, float scale) {
+        if (!(scale >= TileVariant.MIN_SCALE && scale <= 1.0f)) {
+            throw new IllegalArgumentException("Invalid scale: " + scale);
+        }
+        if (format == Format.webp && Build.VERSION.SDK_INT < 14) {
+            throw new IllegalArgumentException("WebP is not supported.");
+        }
+        this.mFormat = format;
+        this.mScale = TileVariant.roundScale(scale);
+        this.mName = format.name() + "-"
+                + Math.round(this.mScale * TileVariant.SCALE_STEPS);
+    }
+
+    /**
+     * Parses query parameters, e.g. "fmt=webp" and "scale=0.5".
+     * 
+     * @param fmt
+     *            Format name of {@link Format}, or "jpg". Can be null.
+     * @param scale
+     *            Scale. Can be null.
+     * @return Variant. Null if the parameters mean the source tile.
+     * @throws IllegalArgumentException
+     *             Thrown if the parameters are invalid.
+     */
+    public static TileVariant parse(String fmt, String scale) {
+        Format format = Format.original;
+        if (fmt != null) {
+            if ("jpg".equals(fmt)) {
+                format = Format.jpeg;
+            } else {
+                try {
+                    format = Format.valueOf(fmt);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid fmt: " + fmt);
+                }
+            }
+        }
+        float s = 1.0f;
+        if (scale != null) {
+            try {
+                s = Float.parseFloat(scale);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid scale: " + scale);
+            }
+        }
+        s = TileVariant.roundScale(s);
+        if (format == Format.original && s == 1.0f) {
+            return null;
+        }
+        return new TileVariant(format, s);
+    }
+
+    /**
+     * Gets the format.
+     * 
+     * @return Format.
+     */
+    public Format getFormat() {
+        return this.mFormat;
+    }
+
+    /**
+     * Gets the scale.
+     * 
+     * @return Scale.
+     */
+    public float getScale() {
+        return this.mScale;
+    }
+
+    /**
+     * Gets the name, usable in file names, e.g. "webp-500".
+     * 
+     * @return Name.
+     */
+    public String getName() {
+        return this.mName;
+    }
+
+    /**
+     * Makes the variant of the tile. Large reductions are decoded with
+     * subsampling, so that the full size bitmap is not allocated.
+     * 
+     * @param content
+     *            Source tile.
+     * @return Variant. The source itself if nothing is changed. Null if the
+     *         source is not an image, e.g. a vector tile.
+     */
+    public byte[] transcode(byte[] content) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(content, 0, content.length, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+        Format source = TileVariant.formatOf(bounds.outMimeType);
+        Format target = this.mFormat == Format.original ? source
+                : this.mFormat;
+        if (target == source && this.mScale == 1.0f) {
+            return content;
+        }
+        int width = Math.max(1, Math.round(bounds.outWidth * this.mScale));
+        int height = Math.max(1, Math.round(bounds.outHeight * this.mScale));
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (bounds.outWidth / (options.inSampleSize * 2) >= width
+                && bounds.outHeight / (options.inSampleSize * 2) >= height) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(content, 0,
+                content.length, options);
+        if (bitmap == null) {
+            return null;
+        }
+        try {
+            if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+                Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width,
+                        height, true);
+                if (scaled != bitmap) {
+                    bitmap.recycle();
+                    bitmap = scaled;
+                }
+            }
+            ByteArrayOutputStream os = new ByteArrayOutputStream(
+                    content.length);
+            if (!bitmap.compress(TileVariant.compressFormatOf(target),
+                    TileVariant.DEFAULT_QUALITY, os)) {
+                return null;
+            }
+            return os.toByteArray();
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return this.mName.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof TileVariant
+                && this.mName.equals(((TileVariant) o).mName);
+    }
+
+    @Override
+    public String toString() {
+        return this.mName;
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Rounds the scale to a multiple of 1 / {@link #SCALE_STEPS}, which the
+     * name shows.
+     * 
+     * @param scale
+     *            Scale.
+     * @return Rounded scale.
+     */
+    private static float roundScale(float scale) {
+        return (float) Math.round(scale * TileVariant.SCALE_STEPS)
+                / TileVariant.SCALE_STEPS;
+    }
+
+    /**
+     * Gets the format of the decoded image.
+     * 
+     * @param mimeType
+     *            MIME type given by {@link BitmapFactory}.
+     * @return Format. {@link Format#png} if unknown.
+     */
+    private static Format formatOf(String mimeType) {
+        if ("image/jpeg".equals(mimeType)) {
+            return Format.jpeg;
+        }
+        if ("image/webp".equals(mimeType) && Build.VERSION.SDK_INT >= 14) {
+            return Format.webp;
+        }
+        return Format.png;
+    }
+
+    /**
+     * Gets the compress format.
+     * 
+     * @param format
+     *            Format other than {@link Format#original}.
+     * @return Compress format.
+     */
+    private static Bitmap.CompressFormat compressFormatOf(Format format) {
+        switch (format) {
+        case jpeg:
+            return Bitmap.CompressFormat.JPEG;
+        case webp:
+            return Bitmap.CompressFormat.WEBP;
+        default:
+            return Bitmap.CompressFormat.PNG;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.gmail.boiledorange73.and4.ut.mbtiles;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On-disk LRU cache of tile variants. Each variant is one file in the
+ * directory, named by its key. Size is limited by bytes of files.
+ * 
+ * Files are kept across restarts. Their order is restored from modification
+ * times, so hits before the restart are not reflected. Keys include the
+ * modification time of the dataset, so variants of replaced datasets are
+ * never hit and are evicted in time.
+ */
+public class TileVariantCache {
+    /** Suffix of files being written. */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDir;
+    /** File names to sizes, least recently used first. */
+    private final LinkedHashMap<String, Long> mMap = new LinkedHashMap<String, Long>(
+            64, 0.75f, true);
+    private final long mMaxBytes;
+    private long mBytes = 0;
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mEvictionCount = 0;
+    private long mPutCount = 0;
+
+    /**
+     * Constructor. Reads the directory, and removes files left by
+     * interrupted writes and files over the maximum bytes.
+     * 
+     * @param dir
+     *            Directory. Created if not exists.
+     * @param maxBytes
+     *            Maximum bytes. 0 disables the cache.
+     */
+    public TileVariantCache(File dir, long maxBytes) {
+        this.mDir = dir;
+        this.mMaxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int n = 0; n < files.length; n++) {
+            modified[n] = files[n].lastModified();
+            order[n] = Integer.valueOf(n);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long ma = modified[a.intValue()];
+                long mb = modified[b.intValue()];
+                return ma < mb ? -1 : (ma > mb ? 1 : 0);
+            }
+        });
+        for (Integer n : order) {
+            File f = files[n.intValue()];
+            if (f.getName().endsWith(TileVariantCache.TEMP_SUFFIX)) {
+                f.delete();
+            } else if (f.isFile()) {
+                this.mMap.put(f.getName(), Long.valueOf(f.length()));
+                this.mBytes += f.length();
+            }
+        }
+        this.trim(maxBytes);
+    }
+
+    /**
+     * Makes the key of the variant.
+     * 
+     * @param dataset
+     *            Dataset file.
+     * @param lastModified
+     *            Modification time of the dataset file.
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row.
+     * @param variant
+     *            Variant.
+     * @return Key, usable as a file name.
+     */
+    public static String keyOf(File dataset, long lastModified, int z,
+            int x, int y, TileVariant variant) {
+        return Integer.toHexString(dataset.getAbsolutePath().hashCode())
+                + "-" + Long.toHexString(lastModified) + "-"
+                + dataset.getName() + "-" + z + "-" + x + "-" + y + "-"
+                + variant.getName();
+    }
+
+    /**
+     * Gets the file of the variant.
+     * 
+     * @param key
+     *            Key.
+     * @return File. Null if not cached.
+     */
+    public File get(String key) {
+        synchronized (this) {
+            if (this.mMap.get(key) == null) {
+                this.mMissCount++;
+                return null;
+            }
+            this.mHitCount++;
+            return new File(this.mDir, key);
+        }
+    }
+
+    /**
+     * Puts the variant. The file is written out of the monitor, so readers
+     * are not blocked. Contents larger than maximum bytes are ignored.
+     * 
+     * @param key
+     *            Key.
+     * @param content
+     *            Content.
+     * @return True if put.
+     */
+    public boolean put(String key, byte[] content) {
+        if (content.length > this.mMaxBytes) {
+            return false;
+        }
+        File temp = null;
+        try {
+            temp = File.createTempFile("variant", TileVariantCache.TEMP_SUFFIX,
+                    this.mDir);
+            FileOutputStream os = new FileOutputStream(temp);
+            try {
+                os.write(content);
+            } finally {
+                os.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (temp != null) {
+                temp.delete();
+            }
+            return false;
+        }
+        synchronized (this) {
+            if (!temp.renameTo(new File(this.mDir, key))) {
+                temp.delete();
+                return false;
+            }
+            Long old = this.mMap.put(key, Long.valueOf(content.length));
+            if (old != null) {
+                this.mBytes -= old.longValue();
+            }
+            this.mBytes += content.length;
+            this.mPutCount++;
+            this.trim(this.mMaxBytes);
+            return true;
+        }
+    }
+
+    /**
+     * Evicts least recently used variants until the size is not larger than
+     * specified bytes.
+     * 
+     * @param maxBytes
+     *            Bytes to shrink to.
+     */
+    public void trimToSize(long maxBytes) {
+        synchronized (this) {
+            this.trim(maxBytes);
+        }
+    }
+
+    /**
+     * Evicts all variants.
+     */
+    public void evictAll() {
+        this.trimToSize(0);
+    }
+
+    /**
+     * Gets maximum bytes.
+     * 
+     * @return Maximum bytes.
+     */
+    public long getMaxBytes() {
+        return this.mMaxBytes;
+    }
+
+    /**
+     * Gets current bytes of files.
+     * 
+     * @return Current bytes.
+     */
+    public long getBytes() {
+        synchronized (this) {
+            return this.mBytes;
+        }
+    }
+
+    /**
+     * Gets the number of variants.
+     * 
+     * @return The number of variants.
+     */
+    public int getCount() {
+        synchronized (this) {
+            return this.mMap.size();
+        }
+    }
+
+    /**
+     * Gets the number of hits.
+     * 
+     * @return The number of hits.
+     */
+    public long getHitCount() {
+        synchronized (this) {
+            return this.mHitCount;
+        }
+    }
+
+    /**
+     * Gets the number of misses.
+     * 
+     * @return The number of misses.
+     */
+    public long getMissCount() {
+        synchronized (this) {
+            return this.mMissCount;
+        }
+    }
+
+    /**
+     * Gets the number of evicted variants.
+     * 
+     * @return The number of evicted variants.
+     */
+    public long getEvictionCount() {
+        synchronized (this) {
+            return this.mEvictionCount;
+        }
+    }
+
+    /**
+     * Gets the number of variants put.
+     * 
+     * @return The number of variants put.
+     */
+    public long getPutCount() {
+        synchronized (this) {
+            return this.mPutCount;
+        }
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Evicts least recently used variants. Files already opened by clients
+     * stay readable. Caller must hold the monitor.
+     * 
+     * @param maxBytes
+     *            Bytes to shrink to.
+     */
+    private void trim(long maxBytes) {
+        Iterator<Map.Entry<String, Long>> it = this.mMap.entrySet()
+                .iterator();
+        while (this.mBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            new File(this.mDir, e.getKey()).delete();
+            this.mBytes -= e.getValue().longValue();
+            it.remove();
+            this.mEvictionCount++;
+        }
+    }
+}
@@ -0,0 +1,1074 @@
+package com.gmail.boiledorange73.and4.ut.pmtiles;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.gmail.boiledorange73.and4.ut.mbtiles.MBTilesMetadata;
+import com.gmail.boiledorange73.and4.ut.mbtiles.TileSource;
+
+/**
+ * Converts a tile set, typically a MBTiles file read by
+ * {@link com.gmail.boiledorange73.and4.ut.mbtiles.MBTilesOperator}, to a
+ * PMTiles version 3 file.
+ * 
+ * Memory use is bounded regardless of the size of the input:
+ * <ol>
+ * <li>Tiles are streamed zoom level by zoom level. Contents are appended to a
+ * temporary file, and identical contents found by the hash are written once.
+ * (tile id, offset, length) records are sorted in runs of
+ * {@link #DEFAULT_RUN_SIZE} and written to temporary files.</li>
+ * <li>Runs are merged in the order of tile ids on the Hilbert curve. Contents
+ * are copied in this order, so tiles near each other are stored near each
+ * other. Consecutive tiles with the same content become one entry.</li>
+ * <li>Entries are split into leaf directories if the root directory does not
+ * fit in the first 16 KiB. Directories and metadata are compressed with
+ * gzip.</li>
+ * </ol>
+ * Temporary files need about twice the size of contents.
+ */
+public class PMTilesConverter {
+    /** Default number of records sorted in memory at once. */
+    public static final int DEFAULT_RUN_SIZE = 256 * 1024;
+    /** Default number of content hashes remembered for deduplication. */
+    public static final int DEFAULT_DEDUP_SIZE = 64 * 1024;
+
+    /** Maximum bytes of the header and the root directory. */
+    private static final int MAX_ROOT_BYTES = 16384;
+    /** Initial number of entries in one leaf directory. */
+    private static final int MIN_LEAF_SIZE = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Result of the conversion.
+     */
+    public static final class Stats {
+        private long mTileCount;
+        private long mEntryCount;
+        private long mContentCount;
+        private long mInputBytes;
+        private long mOutputBytes;
+        private long mElapsedMillis;
+
+        /**
+         * Gets the number of tiles.
+         * 
+         * @return The number of tiles.
+         */
+        public long getTileCount() {
+            return this.mTileCount;
+        }
+
+        /**
+         * Gets the number of directory entries. Consecutive tiles with the
+         * same content share one entry.
+         * 
+         * @return The number of entries.
+         */
+        public long getEntryCount() {
+            return this.mEntryCount;
+        }
+
+        /**
+         * Gets the number of contents written.
+         * 
+         * @return The number of contents.
+         */
+        public long getContentCount() {
+            return this.mContentCount;
+        }
+
+        /**
+         * Gets the total bytes of tiles read.
+         * 
+         * @return Bytes.
+         */
+        public long getInputBytes() {
+            return this.mInputBytes;
+        }
+
+        /**
+         * Gets the size of the PMTiles file.
+         * 
+         * @return Bytes.
+         */
+        public long getOutputBytes() {
+            return this.mOutputBytes;
+        }
+
+        /**
+         * Gets the time spent.
+         * 
+         * @return Milliseconds.
+         */
+        public long getElapsedMillis() {
+            return this.mElapsedMillis;
+        }
+
+        /**
+         * Gets the number of tiles converted per second.
+         * 
+         * @return Tiles per second.
+         */
+        public double getTilesPerSecond() {
+            return this.mTileCount * 1000.0 / Math.max(1, this.mElapsedMillis);
+        }
+
+        /**
+         * Gets the bytes of tiles read per second.
+         * 
+         * @return Bytes per second.
+         */
+        public double getBytesPerSecond() {
+            return this.mInputBytes * 1000.0 / Math.max(1, this.mElapsedMillis);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d tiles, %d entries, %d contents, %d bytes in, %d bytes out,"
+                            + " %d ms, %.1f tiles/s, %.2f MB/s",
+                    this.mTileCount, this.mEntryCount, this.mContentCount,
+                    this.mInputBytes, this.mOutputBytes, this.mElapsedMillis,
+                    this.getTilesPerSecond(),
+                    this.getBytesPerSecond() / (1024 * 1024));
+        }
+    }
+
+    /**
+     * Directory entries.
+     */
+    private static final class Entries {
+        private final long[] mTileIds;
+        private final long[] mOffsets;
+        private final int[] mLengths;
+        private final int[] mRunLengths;
+        private int mSize = 0;
+
+        private Entries(int capacity) {
+            this.mTileIds = new long[capacity];
+            this.mOffsets = new long[capacity];
+            this.mLengths = new int[capacity];
+            this.mRunLengths = new int[capacity];
+        }
+
+        private void add(long tileId, long offset, int length, int runLength) {
+            this.mTileIds[this.mSize] = tileId;
+            this.mOffsets[this.mSize] = offset;
+            this.mLengths[this.mSize] = length;
+            this.mRunLengths[this.mSize] = runLength;
+            this.mSize++;
+        }
+    }
+
+    /**
+     * Reader of one sorted run.
+     */
+    private static final class RunReader {
+        private final DataInputStream mInput;
+        private long mTileId;
+        private long mOffset;
+        private int mLength;
+
+        private RunReader(File file) throws IOException {
+            this.mInput = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), PMTilesConverter.BUFFER_SIZE));
+        }
+
+        /**
+         * Reads the next record.
+         * 
+         * @return False if no more records.
+         * @throws IOException
+         *             Thrown if failed to read.
+         */
+        private boolean next() throws IOException {
+            try {
+                this.mTileId = this.mInput.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            this.mOffset = this.mInput.readLong();
+            this.mLength = this.mInput.readInt();
+            return true;
+        }
+
+        private void close() {
+            try {
+                this.mInput.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Key of content hashes.
+     */
+    private static final class Digest {
+        private final byte[] mBytes;
+        private final int mHashCode;
+
+        private Digest(byte[] bytes) {
+            this.mBytes = bytes;
+            this.mHashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Digest
+                    && Arrays.equals(this.mBytes, ((Digest) o).mBytes);
+        }
+    }
+
+    private final File mTempDir;
+    private final int mRunSize;
+    private final int mDedupSize;
+
+    /**
+     * Constructor.
+     * 
+     * @param tempDir
+     *            Directory of temporary files.
+     */
+    public PMTilesConverter(File tempDir) {
+        this(tempDir, PMTilesConverter.DEFAULT_RUN_SIZE,
+                PMTilesConverter.DEFAULT_DEDUP_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param tempDir
+     *            Directory of temporary files.
+     * @param runSize
+     *            Number of records sorted in memory at once. Each record uses
+     *            20 bytes.
+     * @param dedupSize
+     *            Number of content hashes remembered for deduplication.
+     */
+    public PMTilesConverter(File tempDir, int runSize, int dedupSize) {
+        this.mTempDir = tempDir;
+        this.mRunSize = runSize;
+        this.mDedupSize = dedupSize;
+    }
+
+    /**
+     * Converts the tile set. The file is written to a temporary file and
+     * renamed.
+     * 
+     * @param source
+     *            Tile set.
+     * @param dest
+     *            PMTiles file.
+     * @param canceled
+     *            Conversion stops if this becomes true. Can be null.
+     * @return Result. Null if canceled.
+     * @throws IOException
+     *             Thrown if failed to read or write.
+     */
+    public Stats convert(TileSource source, File dest,
+            final AtomicBoolean canceled) throws IOException {
+        long started = System.currentTimeMillis();
+        final Stats stats = new Stats();
+        final ArrayList<File> temps = new ArrayList<File>();
+        try {
+            // pass 1: contents and sorted runs.
+            File contents = this.createTempFile(temps, "contents");
+            final ArrayList<File> runs = new ArrayList<File>();
+            int[] zooms = this.writeRuns(source, contents, runs, temps, stats,
+                    canceled);
+            if (zooms == null) {
+                return null;
+            }
+            // pass 2: merges runs and copies contents in tile id order.
+            File data = this.createTempFile(temps, "data");
+            File entries = this.createTempFile(temps, "entries");
+            byte[] head = this.mergeRuns(runs, contents, data, entries, stats,
+                    canceled);
+            if (head == null) {
+                return null;
+            }
+            for (File run : runs) {
+                run.delete();
+            }
+            contents.delete();
+            // directories.
+            File leaves = this.createTempFile(temps, "leaves");
+            byte[] root = this.writeDirectories(entries, stats.mEntryCount,
+                    leaves);
+            entries.delete();
+            byte[] metadata = PMTilesConverter.gzip(PMTilesConverter
+                    .createMetadataJson(source.getMetadata()));
+            // output.
+            File tmp = new File(dest.getPath() + ".tmp");
+            temps.add(tmp);
+            this.writeArchive(tmp, source.getMetadata(), zooms, head, root,
+                    metadata, leaves, data, stats);
+            if (dest.exists() && !dest.delete()) {
+                throw new IOException("Cannot replace " + dest);
+            }
+            if (!tmp.renameTo(dest)) {
+                throw new IOException("Cannot rename to " + dest);
+            }
+            stats.mOutputBytes = dest.length();
+            stats.mElapsedMillis = System.currentTimeMillis() - started;
+            return stats;
+        } finally {
+            for (File f : temps) {
+                f.delete();
+            }
+        }
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Creates a temporary file.
+     * 
+     * @param temps
+     *            Receives the file, to be deleted at last.
+     * @param name
+     *            Prefix of the name.
+     * @return The file.
+     * @throws IOException
+     *             Thrown if failed to create.
+     */
+    private File createTempFile(ArrayList<File> temps, String name)
+            throws IOException {
+        File f = File.createTempFile("pmtiles-" + name, ".tmp", this.mTempDir);
+        temps.add(f);
+        return f;
+    }
+
+    /**
+     * Reads all tiles, appends unique contents to the file and writes sorted
+     * runs of records.
+     * 
+     * @param source
+     *            Tile set.
+     * @param contents
+     *            Receives contents.
+     * @param runs
+     *            Receives run files.
+     * @param temps
+     *            Receives temporary files.
+     * @param stats
+     *            Receives counts.
+     * @param canceled
+     *            Can be null.
+     * @return Minimum and maximum zoom levels. Null if canceled.
+     * @throws IOException
+     *             Thrown if failed to read or write.
+     */
+    private int[] writeRuns(TileSource source, File contents,
+            final ArrayList<File> runs, final ArrayList<File> temps,
+            final Stats stats, final AtomicBoolean canceled)
+            throws IOException {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        final LinkedHashMap<Digest, long[]> seen = this
+                .createLru(this.mDedupSize);
+        final Entries buffer = new Entries(this.mRunSize);
+        final long[] written = { 0 };
+        final IOException[] error = { null };
+        final int[] zooms = { -1, -1 };
+        final OutputStream os = new BufferedOutputStream(new FileOutputStream(
+                contents), PMTilesConverter.BUFFER_SIZE);
+        try {
+            for (int z = 0; z <= PMTilesReader.MAX_ZOOM; z++) {
+                final int last = (1 << z) - 1;
+                source.getTiles(z, 0, last, 0, last, 0, -1,
+                        new TileSource.TileVisitor() {
+                            @Override
+                            public boolean visit(int z, int x, int y,
+                                    byte[] content) {
+                                if (canceled != null && canceled.get()) {
+                                    return false;
+                                }
+                                try {
+                                    long offset;
+                                    if (content.length == 0) {
+                                        // writes nothing, shares no offset.
+                                        offset = -1;
+                                    } else {
+                                        offset = PMTilesConverter.this
+                                                .appendContent(os, content,
+                                                        md, seen, written);
+                                    }
+                                    if (buffer.mSize == buffer.mTileIds.length) {
+                                        runs.add(PMTilesConverter.this
+                                                .writeRun(buffer, temps));
+                                    }
+                                    buffer.add(PMTilesReader.zxyToTileId(z, x,
+                                            last - y), offset, content.length,
+                                            1);
+                                } catch (IOException e) {
+                                    error[0] = e;
+                                    return false;
+                                }
+                                if (zooms[0] < 0) {
+                                    zooms[0] = z;
+                                }
+                                zooms[1] = z;
+                                stats.mTileCount++;
+                                stats.mInputBytes += content.length;
+                                return true;
+                            }
+                        });
+                if (error[0] != null) {
+                    throw error[0];
+                }
+                if (canceled != null && canceled.get()) {
+                    return null;
+                }
+            }
+            if (buffer.mSize > 0) {
+                runs.add(this.writeRun(buffer, temps));
+            }
+        } finally {
+            os.close();
+        }
+        return zooms;
+    }
+
+    /**
+     * Appends the content unless the same content is remembered.
+     * 
+     * @param os
+     *            Contents file.
+     * @param content
+     *            Content, not empty.
+     * @param md
+     *            Digest of contents.
+     * @param seen
+     *            Offsets and lengths of remembered contents, by hashes.
+     * @param written
+     *            Bytes written to the contents file. Updated.
+     * @return Offset of the content in the contents file.
+     * @throws IOException
+     *             Thrown if failed to write.
+     */
+    private long appendContent(OutputStream os, byte[] content,
+            MessageDigest md, LinkedHashMap<Digest, long[]> seen,
+            long[] written) throws IOException {
+        Digest key = new Digest(md.digest(content));
+        long[] found = seen.get(key);
+        if (found != null && found[1] == content.length) {
+            return found[0];
+        }
+        long offset = written[0];
+        os.write(content);
+        written[0] += content.length;
+        seen.put(key, new long[] { offset, content.length });
+        return offset;
+    }
+
+    /**
+     * Sorts buffered records by tile id and writes them to a run file. The
+     * buffer is cleared.
+     * 
+     * @param buffer
+     *            Records.
+     * @param temps
+     *            Receives the file.
+     * @return Run file.
+     * @throws IOException
+     *             Thrown if failed to write.
+     */
+    private File writeRun(Entries buffer, ArrayList<File> temps)
+            throws IOException {
+        PMTilesConverter.sort(buffer);
+        File f = this.createTempFile(temps, "run");
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(f), PMTilesConverter.BUFFER_SIZE));
+        try {
+            for (int n = 0; n < buffer.mSize; n++) {
+                os.writeLong(buffer.mTileIds[n]);
+                os.writeLong(buffer.mOffsets[n]);
+                os.writeInt(buffer.mLengths[n]);
+            }
+        } finally {
+            os.close();
+        }
+        buffer.mSize = 0;
+        return f;
+    }
+
+    /**
+     * Merges runs, copies contents in tile id order and writes entries.
+     * 
+     * @param runs
+     *            Run files.
+     * @param contents
+     *            Contents written in pass 1.
+     * @param data
+     *            Receives tile data section.
+     * @param entries
+     *            Receives entries, (tile id, offset, length, run length).
+     * @param stats
+     *            Receives counts.
+     * @param canceled
+     *            Can be null.
+     * @return First bytes of the first content, to detect compression. Null
+     *         if canceled.
+     * @throws IOException
+     *             Thrown if failed to read or write.
+     */
+    private byte[] mergeRuns(ArrayList<File> runs, File contents, File data,
+            File entries, Stats stats, AtomicBoolean canceled)
+            throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(
+                Math.max(1, runs.size()), new Comparator<RunReader>() {
+                    @Override
+                    public int compare(RunReader a, RunReader b) {
+                        return a.mTileId < b.mTileId ? -1
+                                : (a.mTileId == b.mTileId ? 0 : 1);
+                    }
+                });
+        ArrayList<RunReader> readers = new ArrayList<RunReader>();
+        RandomAccessFile in = new RandomAccessFile(contents, "r");
+        OutputStream dos = new BufferedOutputStream(new FileOutputStream(data),
+                PMTilesConverter.BUFFER_SIZE);
+        DataOutputStream eos = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(entries), PMTilesConverter.BUFFER_SIZE));
+        byte[] head = new byte[0];
+        try {
+            for (File run : runs) {
+                RunReader r = new RunReader(run);
+                readers.add(r);
+                if (r.next()) {
+                    queue.add(r);
+                }
+            }
+            LinkedHashMap<Long, long[]> copied = this
+                    .createLru(this.mDedupSize);
+            byte[] buf = new byte[PMTilesConverter.BUFFER_SIZE];
+            long dataSize = 0;
+            long lastTileId = -1;
+            // pending entry.
+            long pTileId = -1, pOffset = 0;
+            int pLength = 0, pRunLength = 0;
+            while (!queue.isEmpty()) {
+                if (canceled != null && canceled.get()) {
+                    return null;
+                }
+                RunReader r = queue.poll();
+                long tileId = r.mTileId;
+                long src = r.mOffset;
+                int length = r.mLength;
+                if (r.next()) {
+                    queue.add(r);
+                }
+                if (tileId == lastTileId) {
+                    // duplicated coordinates.
+                    continue;
+                }
+                lastTileId = tileId;
+                // Empty contents have no bytes of their own. Keyed by offset,
+                // they would take the place of the next content.
+                Long key = Long.valueOf(src);
+                long[] found = length > 0 ? copied.get(key) : null;
+                long offset;
+                if (length == 0) {
+                    offset = dataSize;
+                } else if (found != null) {
+                    offset = found[0];
+                } else {
+                    offset = dataSize;
+                    in.seek(src);
+                    for (int done = 0; done < length;) {
+                        int n = in.read(buf, 0,
+                                Math.min(buf.length, length - done));
+                        if (n < 0) {
+                            throw new EOFException();
+                        }
+                        if (dataSize == 0 && done == 0) {
+                            head = new byte[Math.min(n, 2)];
+                            System.arraycopy(buf, 0, head, 0, head.length);
+                        }
+                        dos.write(buf, 0, n);
+                        done += n;
+                    }
+                    dataSize += length;
+                    copied.put(key, new long[] { offset });
+                    stats.mContentCount++;
+                }
+                if (pRunLength > 0 && tileId == pTileId + pRunLength
+                        && offset == pOffset && length == pLength) {
+                    pRunLength++;
+                    continue;
+                }
+                if (pRunLength > 0) {
+                    PMTilesConverter.writeEntry(eos, pTileId, pOffset,
+                            pLength, pRunLength);
+                    stats.mEntryCount++;
+                }
+                pTileId = tileId;
+                pOffset = offset;
+                pLength = length;
+                pRunLength = 1;
+            }
+            if (pRunLength > 0) {
+                PMTilesConverter.writeEntry(eos, pTileId, pOffset, pLength,
+                        pRunLength);
+                stats.mEntryCount++;
+            }
+        } finally {
+            for (RunReader r : readers) {
+                r.close();
+            }
+            in.close();
+            dos.close();
+            eos.close();
+        }
+        return head;
+    }
+
+    /**
+     * Builds directories. If all entries fit in the root directory, no leaf
+     * directory is written. Otherwise entries are split into leaves, doubling
+     * the leaf size until the root directory fits.
+     * 
+     * @param entries
+     *            Entries file.
+     * @param count
+     *            The number of entries.
+     * @param leaves
+     *            Receives leaf directories.
+     * @return Compressed root directory.
+     * @throws IOException
+     *             Thrown if failed to read or write.
+     */
+    private byte[] writeDirectories(File entries, long count, File leaves)
+            throws IOException {
+        int maxRoot = PMTilesConverter.MAX_ROOT_BYTES
+                - PMTilesReader.HEADER_SIZE;
+        if (count <= PMTilesConverter.MIN_LEAF_SIZE) {
+            Entries all = new Entries((int) count);
+            DataInputStream is = PMTilesConverter.openEntries(entries);
+            try {
+                PMTilesConverter.readEntries(is, all);
+            } finally {
+                is.close();
+            }
+            byte[] root = PMTilesConverter.encodeDirectory(all);
+            if (root.length <= maxRoot) {
+                return root;
+            }
+        }
+        for (long leafSize = PMTilesConverter.MIN_LEAF_SIZE;; leafSize *= 2) {
+            int size = (int) Math.min(leafSize, count);
+            Entries rootEntries = new Entries((int) ((count + size - 1) / size));
+            Entries leaf = new Entries(size);
+            DataInputStream is = PMTilesConverter.openEntries(entries);
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(
+                    leaves), PMTilesConverter.BUFFER_SIZE);
+            try {
+                long offset = 0;
+                while (PMTilesConverter.readEntries(is, leaf) > 0) {
+                    byte[] dir = PMTilesConverter.encodeDirectory(leaf);
+                    os.write(dir);
+                    rootEntries.add(leaf.mTileIds[0], offset, dir.length, 0);
+                    offset += dir.length;
+                }
+            } finally {
+                is.close();
+                os.close();
+            }
+            byte[] root = PMTilesConverter.encodeDirectory(rootEntries);
+            if (root.length <= maxRoot) {
+                return root;
+            }
+        }
+    }
+
+    /**
+     * Writes the PMTiles file.
+     * 
+     * @param file
+     *            Output file.
+     * @param meta
+     *            Metadata of the source.
+     * @param zooms
+     *            Minimum and maximum zoom levels.
+     * @param head
+     *            First bytes of the first content.
+     * @param root
+     *            Compressed root directory.
+     * @param metadata
+     *            Compressed metadata.
+     * @param leaves
+     *            Leaf directories.
+     * @param data
+     *            Tile data section.
+     * @param stats
+     *            Counts.
+     * @throws IOException
+     *             Thrown if failed to write.
+     */
+    private void writeArchive(File file, MBTilesMetadata meta, int[] zooms,
+            byte[] head, byte[] root, byte[] metadata, File leaves, File data,
+            Stats stats) throws IOException {
+        int tileType = PMTilesConverter.getTileType(meta.get("format"));
+        int tileCompression = PMTilesReader.COMPRESSION_NONE;
+        if (head.length >= 2 && (head[0] & 0xff) == 0x1f
+                && (head[1] & 0xff) == 0x8b) {
+            tileCompression = PMTilesReader.COMPRESSION_GZIP;
+        }
+        int minZoom = Math.max(zooms[0], 0);
+        int maxZoom = Math.max(zooms[1], 0);
+        double[] bounds = PMTilesConverter.parseDoubles(meta.get("bounds"), 4);
+        if (bounds == null) {
+            bounds = new double[] { -180, -85.0511287, 180, 85.0511287 };
+        }
+        double[] center = PMTilesConverter.parseDoubles(meta.get("center"), 3);
+        if (center == null) {
+            center = new double[] { (bounds[0] + bounds[2]) / 2,
+                    (bounds[1] + bounds[3]) / 2, minZoom };
+        }
+        long rootOffset = PMTilesReader.HEADER_SIZE;
+        long metadataOffset = rootOffset + root.length;
+        long leafOffset = metadataOffset + metadata.length;
+        long dataOffset = leafOffset + leaves.length();
+        ByteBuffer h = ByteBuffer.allocate(PMTilesReader.HEADER_SIZE);
+        h.order(ByteOrder.LITTLE_ENDIAN);
+        h.put("PMTiles".getBytes("US-ASCII"));
+        h.put((byte) 3);
+        h.putLong(rootOffset);
+        h.putLong(root.length);
+        h.putLong(metadataOffset);
+        h.putLong(metadata.length);
+        h.putLong(leafOffset);
+        h.putLong(leaves.length());
+        h.putLong(dataOffset);
+        h.putLong(data.length());
+        h.putLong(stats.mTileCount);
+        h.putLong(stats.mEntryCount);
+        h.putLong(stats.mContentCount);
+        h.put((byte) 1); // clustered
+        h.put((byte) PMTilesReader.COMPRESSION_GZIP);
+        h.put((byte) tileCompression);
+        h.put((byte) tileType);
+        h.put((byte) minZoom);
+        h.put((byte) maxZoom);
+        h.putInt(PMTilesConverter.e7(bounds[0]));
+        h.putInt(PMTilesConverter.e7(bounds[1]));
+        h.putInt(PMTilesConverter.e7(bounds[2]));
+        h.putInt(PMTilesConverter.e7(bounds[3]));
+        h.put((byte) Math.min(Math.max((int) center[2], minZoom), maxZoom));
+        h.putInt(PMTilesConverter.e7(center[0]));
+        h.putInt(PMTilesConverter.e7(center[1]));
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file),
+                PMTilesConverter.BUFFER_SIZE);
+        try {
+            os.write(h.array());
+            os.write(root);
+            os.write(metadata);
+            PMTilesConverter.copy(leaves, os);
+            PMTilesConverter.copy(data, os);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Creates a LRU map.
+     * 
+     * @param maxSize
+     *            Maximum number of entries.
+     * @return Map.
+     */
+    private <K, V> LinkedHashMap<K, V> createLru(final int maxSize) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return this.size() > maxSize;
+            }
+        };
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Sorts entries by tile id with heap sort, which needs no extra memory.
+     * 
+     * @param e
+     *            Entries.
+     */
+    private static void sort(Entries e) {
+        int n = e.mSize;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            PMTilesConverter.siftDown(e, i, n);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            PMTilesConverter.swap(e, 0, end);
+            PMTilesConverter.siftDown(e, 0, end);
+        }
+    }
+
+    private static void siftDown(Entries e, int i, int n) {
+        while (true) {
+            int c = 2 * i + 1;
+            if (c >= n) {
+                return;
+            }
+            if (c + 1 < n && e.mTileIds[c + 1] > e.mTileIds[c]) {
+                c++;
+            }
+            if (e.mTileIds[i] >= e.mTileIds[c]) {
+                return;
+            }
+            PMTilesConverter.swap(e, i, c);
+            i = c;
+        }
+    }
+
+    private static void swap(Entries e, int a, int b) {
+        long t = e.mTileIds[a];
+        e.mTileIds[a] = e.mTileIds[b];
+        e.mTileIds[b] = t;
+        t = e.mOffsets[a];
+        e.mOffsets[a] = e.mOffsets[b];
+        e.mOffsets[b] = t;
+        int i = e.mLengths[a];
+        e.mLengths[a] = e.mLengths[b];
+        e.mLengths[b] = i;
+        i = e.mRunLengths[a];
+        e.mRunLengths[a] = e.mRunLengths[b];
+        e.mRunLengths[b] = i;
+    }
+
+    private static void writeEntry(DataOutputStream os, long tileId,
+            long offset, int length, int runLength) throws IOException {
+        os.writeLong(tileId);
+        os.writeLong(offset);
+        os.writeInt(length);
+        os.writeInt(runLength);
+    }
+
+    private static DataInputStream openEntries(File entries)
+            throws FileNotFoundException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(
+                entries), PMTilesConverter.BUFFER_SIZE));
+    }
+
+    /**
+     * Reads entries until the buffer is full or the stream ends.
+     * 
+     * @param is
+     *            Entries stream.
+     * @param e
+     *            Buffer. Cleared before reading.
+     * @return The number of entries read.
+     * @throws IOException
+     *             Thrown if failed to read.
+     */
+    private static int readEntries(DataInputStream is, Entries e)
+            throws IOException {
+        e.mSize = 0;
+        while (e.mSize < e.mTileIds.length) {
+            long tileId;
+            try {
+                tileId = is.readLong();
+            } catch (EOFException ex) {
+                break;
+            }
+            e.add(tileId, is.readLong(), is.readInt(), is.readInt());
+        }
+        return e.mSize;
+    }
+
+    /**
+     * Encodes and compresses the directory.
+     * 
+     * @param e
+     *            Entries.
+     * @return Compressed directory.
+     * @throws IOException
+     *             Thrown if failed to compress.
+     */
+    private static byte[] encodeDirectory(Entries e) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(e.mSize * 8 + 8);
+        PMTilesConverter.writeVarint(os, e.mSize);
+        long last = 0;
+        for (int n = 0; n < e.mSize; n++) {
+            PMTilesConverter.writeVarint(os, e.mTileIds[n] - last);
+            last = e.mTileIds[n];
+        }
+        for (int n = 0; n < e.mSize; n++) {
+            PMTilesConverter.writeVarint(os, e.mRunLengths[n]);
+        }
+        for (int n = 0; n < e.mSize; n++) {
+            PMTilesConverter.writeVarint(os, e.mLengths[n]);
+        }
+        for (int n = 0; n < e.mSize; n++) {
+            if (n > 0
+                    && e.mOffsets[n] == e.mOffsets[n - 1] + e.mLengths[n - 1]) {
+                PMTilesConverter.writeVarint(os, 0);
+            } else {
+                PMTilesConverter.writeVarint(os, e.mOffsets[n] + 1);
+            }
+        }
+        return PMTilesConverter.gzip(os.toByteArray());
+    }
+
+    private static void writeVarint(ByteArrayOutputStream os, long v) {
+        while ((v & ~0x7fL) != 0) {
+            os.write((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        os.write((int) v);
+    }
+
+    private static byte[] gzip(byte[] raw) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(raw.length / 2 + 32);
+        GZIPOutputStream os = new GZIPOutputStream(bos);
+        try {
+            os.write(raw);
+        } finally {
+            os.close();
+        }
+        return bos.toByteArray();
+    }
+
+    private static void copy(File file, OutputStream os) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[PMTilesConverter.BUFFER_SIZE];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                os.write(buf, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Creates JSON metadata. All values are strings, except that members of
+     * the "json" value (e.g. vector_layers) are merged to the top level.
+     * 
+     * @param meta
+     *            Metadata of the source.
+     * @return UTF-8 JSON text.
+     * @throws IOException
+     *             Thrown if failed to encode.
+     */
+    private static byte[] createMetadataJson(MBTilesMetadata meta)
+            throws IOException {
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<String, String> e : meta.getValues().entrySet()) {
+                if ("json".equals(e.getKey()) || e.getValue() == null) {
+                    continue;
+                }
+                json.put(e.getKey(), e.getValue());
+            }
+            String extra = meta.get("json");
+            if (extra != null) {
+                try {
+                    JSONObject obj = new JSONObject(extra);
+                    Iterator<String> keys = obj.keys();
+                    while (keys.hasNext()) {
+                        String k = keys.next();
+                        json.put(k, obj.opt(k));
+                    }
+                } catch (JSONException e) {
+                    // keeps as text.
+                    json.put("json", extra);
+                }
+            }
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+        return json.toString().getBytes("UTF-8");
+    }
+
+    private static int getTileType(String format) {
+        if ("pbf".equals(format) || "mvt".equals(format)) {
+            return PMTilesReader.TILE_TYPE_MVT;
+        } else if ("png".equals(format)) {
+            return PMTilesReader.TILE_TYPE_PNG;
+        } else if ("jpg".equals(format) || "jpeg".equals(format)) {
+            return PMTilesReader.TILE_TYPE_JPEG;
+        } else if ("webp".equals(format)) {
+            return PMTilesReader.TILE_TYPE_WEBP;
+        } else if ("avif".equals(format)) {
+            return PMTilesReader.TILE_TYPE_AVIF;
+        }
+        return PMTilesReader.TILE_TYPE_UNKNOWN;
+    }
+
+    /**
+     * Parses comma-separated numbers.
+     * 
+     * @param text
+     *            Text. Can be null.
+     * @param count
+     *            The number of values.
+     * @return Values. Null if text is null or invalid.
+     */
+    private static double[] parseDoubles(String text, int count) {
+        if (text == null) {
+            return null;
+        }
+        String[] parts = text.split(",");
+        if (parts.length != count) {
+            return null;
+        }
+        double[] ret = new double[count];
+        try {
+            for (int n = 0; n < count; n++) {
+                ret[n] = Double.parseDouble(parts[n].trim());
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ret;
+    }
+
+    private static int e7(double v) {
+        return (int) Math.round(v * 1e7);
+    }
+}
@@ -0,0 +1,960 @@
+package com.gmail.boiledorange73.and4.ut.pmtiles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.gmail.boiledorange73.and4.ut.mbtiles.MBTilesMetadata;
+import com.gmail.boiledorange73.and4.ut.mbtiles.TileSource;
+
+/**
+ * Reader of PMTiles version 3 files. The file is mapped to memory, and a
+ * tile is found with the root directory and at most a few leaf directories.
+ * Decoded leaf directories are cached.
+ * 
+ * PMTiles counts rows from the top (XYZ), while {@link TileSource} counts
+ * them from the bottom as MBTiles does. Rows are flipped in this class.
+ * 
+ * Directories and metadata compressed with gzip are supported. Tiles are
+ * returned as stored, e.g. gzipped vector tiles stay gzipped.
+ */
+public class PMTilesReader implements TileSource {
+    /** Default number of leaf directories cached. */
+    public static final int DEFAULT_DIRECTORY_CACHE_SIZE = 64;
+    /** Maximum size of one mapped region. */
+    public static final int MAX_CHUNK_SIZE = 1 << 30;
+
+    /** Size of the header. */
+    public static final int HEADER_SIZE = 127;
+
+    /** Compression types. */
+    public static final int COMPRESSION_UNKNOWN = 0;
+    public static final int COMPRESSION_NONE = 1;
+    public static final int COMPRESSION_GZIP = 2;
+    public static final int COMPRESSION_BROTLI = 3;
+    public static final int COMPRESSION_ZSTD = 4;
+
+    /** Tile types. */
+    public static final int TILE_TYPE_UNKNOWN = 0;
+    public static final int TILE_TYPE_MVT = 1;
+    public static final int TILE_TYPE_PNG = 2;
+    public static final int TILE_TYPE_JPEG = 3;
+    public static final int TILE_TYPE_WEBP = 4;
+    public static final int TILE_TYPE_AVIF = 5;
+
+    /** Maximum depth of directories, to detect loops in broken files. */
+    private static final int MAX_DEPTH = 4;
+    /** Maximum zoom level. Tile numbers must fit in int. */
+    static final int MAX_ZOOM = 30;
+    /**
+     * Ranges up to this number of tiles are read tile by tile. Larger ones are
+     * read by walking directories of the zoom level.
+     */
+    private static final int MAX_LOOKUP_AREA = 4096;
+
+    /**
+     * Decoded directory. Entries are ordered by tile id.
+     */
+    private static final class Directory {
+        private final long[] mTileIds;
+        private final long[] mOffsets;
+        private final int[] mLengths;
+        /** 0 means the entry points a leaf directory. */
+        private final int[] mRunLengths;
+
+        private Directory(int size) {
+            this.mTileIds = new long[size];
+            this.mOffsets = new long[size];
+            this.mLengths = new int[size];
+            this.mRunLengths = new int[size];
+        }
+
+        /**
+         * Finds the last entry whose tile id is not greater than the tile id.
+         * 
+         * @param tileId
+         *            Tile id.
+         * @return Index. -1 if none.
+         */
+        private int find(long tileId) {
+            int lo = 0;
+            int hi = this.mTileIds.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long v = this.mTileIds[mid];
+                if (v < tileId) {
+                    lo = mid + 1;
+                } else if (v > tileId) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return hi;
+        }
+    }
+
+    /**
+     * Receives tile entries while walking directories.
+     */
+    private interface EntryVisitor {
+        /**
+         * Called for each run of tiles.
+         * 
+         * @param tileId
+         *            First tile id.
+         * @param runLength
+         *            The number of tiles which share the content.
+         * @param offset
+         *            Offset of the content in the tile data section.
+         * @param length
+         *            Length of the content.
+         * @return False to stop walking.
+         * @throws FileNotFoundException
+         *             Thrown if the content cannot be read.
+         */
+        boolean visit(long tileId, int runLength, long offset, int length)
+                throws FileNotFoundException;
+    }
+
+    /**
+     * Receives tiles found by
+     * {@link PMTilesReader#visitRange(int, int, int, int, int, int, int, RangeVisitor)}
+     * .
+     */
+    private interface RangeVisitor {
+        /**
+         * Called for each tile.
+         * 
+         * @param x
+         *            Column.
+         * @param y
+         *            Row (from the bottom).
+         * @param offset
+         *            Offset of the content in the tile data section.
+         * @param length
+         *            Length of the content.
+         * @return False to stop.
+         * @throws FileNotFoundException
+         *             Thrown if the content cannot be read.
+         */
+        boolean visit(int x, int y, long offset, int length)
+                throws FileNotFoundException;
+    }
+
+    /**
+     * Skips and limits tiles passed to a {@link RangeVisitor}.
+     */
+    private static final class Page {
+        private final int mOffset;
+        private final int mLimit;
+        private final RangeVisitor mVisitor;
+        private int mSkipped = 0;
+        /** The number of tiles visited. */
+        private int mCount = 0;
+
+        private Page(int offset, int limit, RangeVisitor visitor) {
+            this.mOffset = Math.max(offset, 0);
+            this.mLimit = limit;
+            this.mVisitor = visitor;
+        }
+
+        /**
+         * Passes the tile unless skipped.
+         * 
+         * @return False to stop, if the visitor stopped or the limit is
+         *         reached.
+         */
+        private boolean add(int x, int y, long offset, int length)
+                throws FileNotFoundException {
+            if (this.mSkipped < this.mOffset) {
+                this.mSkipped++;
+                return true;
+            }
+            this.mCount++;
+            if (!this.mVisitor.visit(x, y, offset, length)) {
+                return false;
+            }
+            return this.mLimit < 0 || this.mCount < this.mLimit;
+        }
+    }
+
+    private final String mPath;
+    private final ByteBuffer[] mChunks;
+    private final long mRootOffset;
+    private final long mRootLength;
+    private final long mMetadataOffset;
+    private final long mMetadataLength;
+    private final long mLeafOffset;
+    private final long mTileDataOffset;
+    private final int mInternalCompression;
+    private final int mTileCompression;
+    private final int mTileType;
+    private final int mMinZoom;
+    private final int mMaxZoom;
+    private final int[] mBoundsE7 = new int[4];
+    private final Directory mRoot;
+    private final LinkedHashMap<Long, Directory> mDirectories;
+    private final int mDirectoryCacheSize;
+    private volatile MBTilesMetadata mMetadata = null;
+    private volatile boolean mClosed = false;
+
+    /**
+     * Constructor.
+     * 
+     * @param file
+     *            PMTiles file.
+     * @throws IOException
+     *             Thrown if the file cannot be read or is not supported.
+     */
+    public PMTilesReader(File file) throws IOException {
+        this(file, PMTilesReader.DEFAULT_DIRECTORY_CACHE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param file
+     *            PMTiles file.
+     * @param directoryCacheSize
+     *            Maximum number of leaf directories cached.
+     * @throws IOException
+     *             Thrown if the file cannot be read or is not supported.
+     */
+    public PMTilesReader(File file, int directoryCacheSize) throws IOException {
+        this.mPath = file.getPath();
+        this.mDirectoryCacheSize = directoryCacheSize;
+        this.mDirectories = new LinkedHashMap<Long, Directory>(16, 0.75f, true);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            long size = ch.size();
+            if (size < PMTilesReader.HEADER_SIZE) {
+                throw new IOException("Too short.");
+            }
+            int chunks = (int) ((size + PMTilesReader.MAX_CHUNK_SIZE - 1) / PMTilesReader.MAX_CHUNK_SIZE);
+            this.mChunks = new ByteBuffer[chunks];
+            for (int n = 0; n < chunks; n++) {
+                long start = (long) n * PMTilesReader.MAX_CHUNK_SIZE;
+                this.mChunks[n] = ch.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(PMTilesReader.MAX_CHUNK_SIZE, size - start));
+            }
+        } finally {
+            raf.close();
+        }
+        ByteBuffer h = this.mChunks[0].duplicate();
+        h.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[7];
+        h.get(magic);
+        if (!"PMTiles".equals(new String(magic, "US-ASCII"))) {
+            throw new IOException("Not a PMTiles file.");
+        }
+        if (h.get(7) != 3) {
+            throw new IOException("Unsupported PMTiles version: " + h.get(7));
+        }
+        this.mRootOffset = h.getLong(8);
+        this.mRootLength = h.getLong(16);
+        this.mMetadataOffset = h.getLong(24);
+        this.mMetadataLength = h.getLong(32);
+        this.mLeafOffset = h.getLong(40);
+        this.mTileDataOffset = h.getLong(56);
+        this.mInternalCompression = h.get(97) & 0xff;
+        this.mTileCompression = h.get(98) & 0xff;
+        this.mTileType = h.get(99) & 0xff;
+        this.mMinZoom = h.get(100) & 0xff;
+        this.mMaxZoom = h.get(101) & 0xff;
+        for (int n = 0; n < 4; n++) {
+            this.mBoundsE7[n] = h.getInt(102 + n * 4);
+        }
+        this.mRoot = this.readDirectory(this.mRootOffset, this.mRootLength);
+    }
+
+    /**
+     * Gets the compression of tiles.
+     * 
+     * @return One of COMPRESSION_*.
+     */
+    public int getTileCompression() {
+        return this.mTileCompression;
+    }
+
+    /**
+     * Gets the type of tiles.
+     * 
+     * @return One of TILE_TYPE_*.
+     */
+    public int getTileType() {
+        return this.mTileType;
+    }
+
+    @Override
+    public String getPath() {
+        return this.mPath;
+    }
+
+    @Override
+    public String getMeta(String name) throws FileNotFoundException {
+        MBTilesMetadata meta = this.getMetadata();
+        if (!meta.getValues().containsKey(name)) {
+            throw new FileNotFoundException();
+        }
+        return meta.get(name);
+    }
+
+    /**
+     * Gets the metadata. Values are made from the header (format, bounds,
+     * minzoom, maxzoom) and top-level members of JSON metadata.
+     */
+    @Override
+    public MBTilesMetadata getMetadata() throws FileNotFoundException {
+        this.checkOpened();
+        MBTilesMetadata meta = this.mMetadata;
+        if (meta == null) {
+            meta = this.loadMetadata();
+            this.mMetadata = meta;
+        }
+        return meta;
+    }
+
+    @Override
+    public byte[] getTile(String sz, String sx, String sy)
+            throws FileNotFoundException {
+        int z, x, y;
+        try {
+            z = Integer.parseInt(sz);
+            x = Integer.parseInt(sx);
+            y = Integer.parseInt(sy);
+        } catch (NumberFormatException e) {
+            throw new FileNotFoundException();
+        }
+        return this.getTile(z, x, y);
+    }
+
+    @Override
+    public byte[] getTile(int z, int x, int y) throws FileNotFoundException {
+        ByteBuffer buf = this.getTileBuffer(z, x, y);
+        byte[] ret = new byte[buf.remaining()];
+        buf.get(ret);
+        return ret;
+    }
+
+    @Override
+    public ByteBuffer getTileBuffer(int z, int x, int y)
+            throws FileNotFoundException {
+        this.checkOpened();
+        if (z < 0 || z > PMTilesReader.MAX_ZOOM || x < 0 || y < 0
+                || x >= (1 << z) || y >= (1 << z)) {
+            throw new FileNotFoundException();
+        }
+        long[] entry = this.findEntry(PMTilesReader.zxyToTileId(z, x,
+                (1 << z) - 1 - y));
+        if (entry == null) {
+            throw new FileNotFoundException();
+        }
+        return this.slice(this.mTileDataOffset + entry[0], (int) entry[1]);
+    }
+
+    @Override
+    public int getTiles(final int z, int xmin, int xmax, int ymin, int ymax,
+            int offset, int limit, final TileSource.TileVisitor visitor)
+            throws FileNotFoundException {
+        return this.visitRange(z, xmin, xmax, ymin, ymax, offset, limit,
+                new RangeVisitor() {
+                    @Override
+                    public boolean visit(int x, int y, long offset, int length)
+                            throws FileNotFoundException {
+                        ByteBuffer buf = PMTilesReader.this.slice(
+                                PMTilesReader.this.mTileDataOffset + offset,
+                                length);
+                        byte[] content = new byte[buf.remaining()];
+                        buf.get(content);
+                        return visitor.visit(z, x, y, content);
+                    }
+                });
+    }
+
+    @Override
+    public int getCoverage(final int z, int xmin, int xmax, int ymin,
+            int ymax, int offset, int limit,
+            final TileSource.CoverageVisitor visitor)
+            throws FileNotFoundException {
+        return this.visitRange(z, xmin, xmax, ymin, ymax, offset, limit,
+                new RangeVisitor() {
+                    @Override
+                    public boolean visit(int x, int y, long offset, int length) {
+                        return visitor.visit(z, x, y, length);
+                    }
+                });
+    }
+
+    /**
+     * Reads coordinates of all tiles. Within a zoom level, tiles are ordered
+     * by tile id (Hilbert curve), not by column and row, so that entries are
+     * streamed from directories without being held in memory.
+     */
+    @Override
+    public int scanCoverage(final TileSource.CoverageVisitor visitor)
+            throws FileNotFoundException {
+        final boolean[] stopped = { false };
+        TileSource.CoverageVisitor levelVisitor = new TileSource.CoverageVisitor() {
+            @Override
+            public boolean visit(int z, int x, int y, int length) {
+                if (!visitor.visit(z, x, y, length)) {
+                    stopped[0] = true;
+                    return false;
+                }
+                return true;
+            }
+        };
+        int count = 0;
+        for (int z = this.mMinZoom; z <= this.mMaxZoom
+                && z <= PMTilesReader.MAX_ZOOM && !stopped[0]; z++) {
+            int n = (1 << z) - 1;
+            count += this.getCoverage(z, 0, n, 0, n, 0, -1, levelVisitor);
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isMapped() {
+        return true;
+    }
+
+    /**
+     * Reads metadata and looks up a tile, which decodes the first leaf
+     * directory if any.
+     */
+    @Override
+    public void warmUp() throws FileNotFoundException {
+        this.getMetadata();
+        this.findEntry(PMTilesReader.zxyToTileId(
+                Math.min(this.mMinZoom, PMTilesReader.MAX_ZOOM), 0, 0));
+    }
+
+    /**
+     * Closes the file. Mapped regions are released by the garbage collector.
+     */
+    @Override
+    public void close() {
+        this.mClosed = true;
+        synchronized (this.mDirectories) {
+            this.mDirectories.clear();
+        }
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Throws if closed.
+     * 
+     * @throws FileNotFoundException
+     *             Thrown if closed.
+     */
+    private void checkOpened() throws FileNotFoundException {
+        if (this.mClosed) {
+            throw new FileNotFoundException();
+        }
+    }
+
+    /**
+     * Finds the tile entry.
+     * 
+     * @param tileId
+     *            Tile id.
+     * @return Offset in the tile data section and length. Null if not found.
+     * @throws FileNotFoundException
+     *             Thrown if the directory cannot be read.
+     */
+    private long[] findEntry(long tileId) throws FileNotFoundException {
+        Directory dir = this.mRoot;
+        for (int depth = 0; depth < PMTilesReader.MAX_DEPTH; depth++) {
+            int n = dir.find(tileId);
+            if (n < 0) {
+                return null;
+            }
+            if (dir.mRunLengths[n] == 0) {
+                dir = this.getLeafDirectory(dir.mOffsets[n], dir.mLengths[n]);
+                continue;
+            }
+            if (tileId - dir.mTileIds[n] >= dir.mRunLengths[n]) {
+                return null;
+            }
+            return new long[] { dir.mOffsets[n], dir.mLengths[n] };
+        }
+        return null;
+    }
+
+    /**
+     * Visits a page of tiles in the range. Small ranges are looked up tile by
+     * tile, ordered by column and row. Larger ones are walked in directories,
+     * ordered by tile id, and entries are passed on as found, so that no
+     * list of the range is held in memory. The order of each range is fixed,
+     * so pages of it do not overlap.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param xmin
+     *            Minimum column.
+     * @param xmax
+     *            Maximum column.
+     * @param ymin
+     *            Minimum row (from the bottom).
+     * @param ymax
+     *            Maximum row (from the bottom).
+     * @param offset
+     *            The number of tiles to skip.
+     * @param limit
+     *            Maximum number of tiles. Negative means no limit.
+     * @param visitor
+     *            Receives tiles.
+     * @return The number of tiles visited.
+     * @throws FileNotFoundException
+     *             Thrown if closed or the directory cannot be read.
+     */
+    private int visitRange(final int z, int xmin, int xmax, int ymin,
+            int ymax, int offset, int limit, RangeVisitor visitor)
+            throws FileNotFoundException {
+        this.checkOpened();
+        if (z < 0 || z > PMTilesReader.MAX_ZOOM || limit == 0) {
+            return 0;
+        }
+        final int last = (1 << z) - 1;
+        final int x0 = Math.max(0, xmin);
+        final int x1 = Math.min(last, xmax);
+        final int y0 = Math.max(0, ymin);
+        final int y1 = Math.min(last, ymax);
+        if (x0 > x1 || y0 > y1) {
+            return 0;
+        }
+        final Page page = new Page(offset, limit, visitor);
+        long area = (long) (x1 - x0 + 1) * (y1 - y0 + 1);
+        if (area <= PMTilesReader.MAX_LOOKUP_AREA) {
+            for (int x = x0; x <= x1; x++) {
+                for (int y = y0; y <= y1; y++) {
+                    long[] e = this.findEntry(PMTilesReader.zxyToTileId(z, x,
+                            last - y));
+                    if (e != null && !page.add(x, y, e[0], (int) e[1])) {
+                        return page.mCount;
+                    }
+                }
+            }
+            return page.mCount;
+        }
+        long first = PMTilesReader.zxyToTileId(z, 0, 0);
+        final long end = first + (1L << (2 * z));
+        final int[] xy = new int[2];
+        this.walk(this.mRoot, first, end, 0, new EntryVisitor() {
+            @Override
+            public boolean visit(long tileId, int runLength, long offset,
+                    int length) throws FileNotFoundException {
+                long to = Math.min(tileId + runLength, end);
+                for (long id = tileId; id < to; id++) {
+                    PMTilesReader.tileIdToXy(z, id, xy);
+                    int y = last - xy[1];
+                    if (xy[0] >= x0 && xy[0] <= x1 && y >= y0 && y <= y1
+                            && !page.add(xy[0], y, offset, length)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+        return page.mCount;
+    }
+
+    /**
+     * Walks tile entries whose tile ids are in the range.
+     * 
+     * @param dir
+     *            Directory.
+     * @param first
+     *            First tile id (inclusive).
+     * @param end
+     *            Last tile id (exclusive).
+     * @param depth
+     *            Depth of the directory.
+     * @param visitor
+     *            Receives entries.
+     * @return False if the visitor stopped walking.
+     * @throws FileNotFoundException
+     *             Thrown if the directory cannot be read.
+     */
+    private boolean walk(Directory dir, long first, long end, int depth,
+            EntryVisitor visitor) throws FileNotFoundException {
+        if (depth >= PMTilesReader.MAX_DEPTH) {
+            return true;
+        }
+        int start = Math.max(0, dir.find(first));
+        for (int n = start; n < dir.mTileIds.length; n++) {
+            long id = dir.mTileIds[n];
+            if (id >= end) {
+                break;
+            }
+            if (dir.mRunLengths[n] == 0) {
+                if (!this.walk(
+                        this.getLeafDirectory(dir.mOffsets[n], dir.mLengths[n]),
+                        first, end, depth + 1, visitor)) {
+                    return false;
+                }
+            } else if (id + dir.mRunLengths[n] > first) {
+                long from = Math.max(id, first);
+                if (!visitor.visit(from,
+                        (int) (id + dir.mRunLengths[n] - from),
+                        dir.mOffsets[n], dir.mLengths[n])) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the leaf directory from the cache, or decodes it.
+     * 
+     * @param offset
+     *            Offset in the leaf directories section.
+     * @param length
+     *            Length.
+     * @return Directory.
+     * @throws FileNotFoundException
+     *             Thrown if the directory cannot be read.
+     */
+    private Directory getLeafDirectory(long offset, int length)
+            throws FileNotFoundException {
+        Long key = Long.valueOf(offset);
+        synchronized (this.mDirectories) {
+            Directory dir = this.mDirectories.get(key);
+            if (dir != null) {
+                return dir;
+            }
+        }
+        Directory dir;
+        try {
+            dir = this.readDirectory(this.mLeafOffset + offset, length);
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+        synchronized (this.mDirectories) {
+            this.mDirectories.put(key, dir);
+            Iterator<Map.Entry<Long, Directory>> it = this.mDirectories
+                    .entrySet().iterator();
+            while (this.mDirectories.size() > this.mDirectoryCacheSize
+                    && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * Reads and decodes the directory.
+     * 
+     * @param offset
+     *            Offset in the file.
+     * @param length
+     *            Length.
+     * @return Directory.
+     * @throws IOException
+     *             Thrown if the directory is broken.
+     */
+    private Directory readDirectory(long offset, long length)
+            throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(this.readInternal(offset, length));
+        long size = PMTilesReader.readVarint(b);
+        if (size < 0 || size > b.remaining()) {
+            throw new IOException("Broken directory.");
+        }
+        int n = (int) size;
+        Directory dir = new Directory(n);
+        long last = 0;
+        for (int i = 0; i < n; i++) {
+            last += PMTilesReader.readVarint(b);
+            dir.mTileIds[i] = last;
+        }
+        for (int i = 0; i < n; i++) {
+            dir.mRunLengths[i] = (int) PMTilesReader.readVarint(b);
+        }
+        for (int i = 0; i < n; i++) {
+            dir.mLengths[i] = (int) PMTilesReader.readVarint(b);
+        }
+        for (int i = 0; i < n; i++) {
+            long v = PMTilesReader.readVarint(b);
+            if (v == 0 && i > 0) {
+                dir.mOffsets[i] = dir.mOffsets[i - 1] + dir.mLengths[i - 1];
+            } else {
+                dir.mOffsets[i] = v - 1;
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * Reads metadata and makes the snapshot.
+     * 
+     * @return Snapshot.
+     */
+    private MBTilesMetadata loadMetadata() {
+        LinkedHashMap<String, String> values = new LinkedHashMap<String, String>();
+        switch (this.mTileType) {
+        case PMTilesReader.TILE_TYPE_MVT:
+            values.put("format", "pbf");
+            break;
+        case PMTilesReader.TILE_TYPE_PNG:
+            values.put("format", "png");
+            break;
+        case PMTilesReader.TILE_TYPE_JPEG:
+            values.put("format", "jpg");
+            break;
+        case PMTilesReader.TILE_TYPE_WEBP:
+            values.put("format", "webp");
+            break;
+        case PMTilesReader.TILE_TYPE_AVIF:
+            values.put("format", "avif");
+            break;
+        }
+        values.put("bounds", PMTilesReader.e7(this.mBoundsE7[0]) + ","
+                + PMTilesReader.e7(this.mBoundsE7[1]) + ","
+                + PMTilesReader.e7(this.mBoundsE7[2]) + ","
+                + PMTilesReader.e7(this.mBoundsE7[3]));
+        values.put("minzoom", String.valueOf(this.mMinZoom));
+        values.put("maxzoom", String.valueOf(this.mMaxZoom));
+        if (this.mMetadataLength > 0) {
+            try {
+                JSONObject json = new JSONObject(new String(this.readInternal(
+                        this.mMetadataOffset, this.mMetadataLength), "UTF-8"));
+                Iterator<String> keys = json.keys();
+                while (keys.hasNext()) {
+                    String k = keys.next();
+                    Object v = json.opt(k);
+                    if (v != null && v != JSONObject.NULL) {
+                        values.put(k, v.toString());
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+        File f = new File(this.mPath);
+        return new MBTilesMetadata(values, f.length(), f.lastModified());
+    }
+
+    /**
+     * Reads a part compressed with the internal compression.
+     * 
+     * @param offset
+     *            Offset in the file.
+     * @param length
+     *            Length.
+     * @return Decompressed bytes.
+     * @throws IOException
+     *             Thrown if the compression is not supported or broken.
+     */
+    private byte[] readInternal(long offset, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Too large.");
+        }
+        ByteBuffer src = this.slice(offset, (int) length);
+        byte[] raw = new byte[src.remaining()];
+        src.get(raw);
+        switch (this.mInternalCompression) {
+        case PMTilesReader.COMPRESSION_NONE:
+            return raw;
+        case PMTilesReader.COMPRESSION_GZIP:
+            return PMTilesReader.gunzip(raw);
+        default:
+            throw new IOException("Unsupported compression: "
+                    + this.mInternalCompression);
+        }
+    }
+
+    /**
+     * Gets a part of the file. If the part is in one mapped region, returns a
+     * slice without copy.
+     * 
+     * @param offset
+     *            Offset in the file.
+     * @param length
+     *            Length.
+     * @return Read-only buffer from position 0 to the length.
+     * @throws FileNotFoundException
+     *             Thrown if the part is out of the file.
+     */
+    private ByteBuffer slice(long offset, int length)
+            throws FileNotFoundException {
+        int chunk = (int) (offset / PMTilesReader.MAX_CHUNK_SIZE);
+        int pos = (int) (offset % PMTilesReader.MAX_CHUNK_SIZE);
+        if (offset < 0 || length < 0 || chunk >= this.mChunks.length) {
+            throw new FileNotFoundException();
+        }
+        ByteBuffer c = this.mChunks[chunk];
+        if (pos + (long) length <= c.capacity()) {
+            ByteBuffer d = c.duplicate();
+            d.limit(pos + length);
+            d.position(pos);
+            return d.slice();
+        }
+        // crosses regions.
+        byte[] out = new byte[length];
+        int done = 0;
+        while (done < length) {
+            if (chunk >= this.mChunks.length) {
+                throw new FileNotFoundException();
+            }
+            ByteBuffer d = this.mChunks[chunk].duplicate();
+            d.position(pos);
+            int n = Math.min(d.remaining(), length - done);
+            d.get(out, done, n);
+            done += n;
+            chunk++;
+            pos = 0;
+        }
+        return ByteBuffer.wrap(out).asReadOnlyBuffer();
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Converts z/x/y (XYZ) to the tile id on the Hilbert curve.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param x
+     *            Column.
+     * @param y
+     *            Row from the top.
+     * @return Tile id.
+     */
+    static long zxyToTileId(int z, int x, int y) {
+        long acc = ((1L << (2 * z)) - 1) / 3;
+        long d = 0;
+        int tx = x;
+        int ty = y;
+        for (int s = (1 << z) >>> 1; s > 0; s >>>= 1) {
+            int rx = (tx & s) != 0 ? 1 : 0;
+            int ry = (ty & s) != 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    tx = s - 1 - tx;
+                    ty = s - 1 - ty;
+                }
+                int t = tx;
+                tx = ty;
+                ty = t;
+            }
+        }
+        return acc + d;
+    }
+
+    /**
+     * Converts the tile id to x/y (XYZ) of the zoom level.
+     * 
+     * @param z
+     *            Zoom level.
+     * @param tileId
+     *            Tile id of the zoom level.
+     * @param xy
+     *            Receives column and row from the top.
+     */
+    static void tileIdToXy(int z, long tileId, int[] xy) {
+        long t = tileId - ((1L << (2 * z)) - 1) / 3;
+        int x = 0;
+        int y = 0;
+        for (int s = 1; s < (1 << z); s <<= 1) {
+            int rx = (int) (1 & (t >>> 1));
+            int ry = (int) (1 & (t ^ rx));
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int tmp = x;
+                x = y;
+                y = tmp;
+            }
+            x += s * rx;
+            y += s * ry;
+            t >>>= 2;
+        }
+        xy[0] = x;
+        xy[1] = y;
+    }
+
+    /**
+     * Reads an unsigned LEB128 variable-length integer.
+     * 
+     * @param b
+     *            Buffer.
+     * @return Value.
+     * @throws IOException
+     *             Thrown if too long.
+     */
+    private static long readVarint(ByteBuffer b) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!b.hasRemaining()) {
+                throw new IOException("Broken directory.");
+            }
+            int c = b.get() & 0xff;
+            v |= (long) (c & 0x7f) << shift;
+            if ((c & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Broken varint.");
+    }
+
+    /**
+     * Decompresses gzip.
+     * 
+     * @param raw
+     *            Compressed bytes.
+     * @return Decompressed bytes.
+     * @throws IOException
+     *             Thrown if broken.
+     */
+    private static byte[] gunzip(byte[] raw) throws IOException {
+        InputStream is = new GZIPInputStream(new java.io.ByteArrayInputStream(
+                raw));
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream(raw.length * 4);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                os.write(buf, 0, n);
+            }
+            return os.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Formats a coordinate in 1e-7 degrees.
+     * 
+     * @param e7
+     *            Coordinate in 1e-7 degrees.
+     * @return Text.
+     */
+    private static String e7(int e7) {
+        return String.valueOf(e7 / 1e7);
+    }
+}
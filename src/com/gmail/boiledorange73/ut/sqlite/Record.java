@@ -0,0 +1,366 @@
+package com.gmail.boiledorange73.ut.sqlite;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Record of a table or an index in a SQLite file. Values are decoded when they
+ * are got. Blobs are slices of the mapped file unless they are split into
+ * overflow pages.
+ */
+public final class Record {
+    /** Type of NULL. Types are ordered as SQLite sorts them. */
+    public static final int TYPE_NULL = 0;
+    /** Type of integers and floats. */
+    public static final int TYPE_NUMERIC = 1;
+    /** Type of text. */
+    public static final int TYPE_TEXT = 2;
+    /** Type of blobs. */
+    public static final int TYPE_BLOB = 3;
+
+    private final SQLiteFile.Payload mPayload;
+    private final long mRowid;
+    private final Charset mCharset;
+    private final long[] mSerialTypes;
+    private final int[] mOffsets;
+
+    /**
+     * Constructor. Parses the record header.
+     * 
+     * @param payload
+     *            Payload of the cell.
+     * @param rowid
+     *            Rowid. -1 for index records.
+     * @param charset
+     *            Text encoding of the file.
+     * @throws SQLiteFormatException
+     *             Thrown if the header is broken.
+     */
+    Record(SQLiteFile.Payload payload, long rowid, Charset charset)
+            throws SQLiteFormatException {
+        this.mPayload = payload;
+        this.mRowid = rowid;
+        this.mCharset = charset;
+        long[] v = new long[1];
+        ByteBuffer head = payload.slice(0,
+                (int) Math.min(9, payload.getSize()));
+        SQLiteFile.readVarint(head, 0, v);
+        if (v[0] <= 0 || v[0] > payload.getSize()) {
+            throw new SQLiteFormatException("Broken record header.");
+        }
+        int headerSize = (int) v[0];
+        ByteBuffer header = payload.slice(0, headerSize);
+        int pos = SQLiteFile.readVarint(header, 0, v);
+        int count = 0;
+        for (int p = pos; p < headerSize; count++) {
+            p += SQLiteFile.readVarint(header, p, v);
+        }
+        this.mSerialTypes = new long[count];
+        this.mOffsets = new int[count + 1];
+        int offset = headerSize;
+        for (int n = 0; n < count; n++) {
+            pos += SQLiteFile.readVarint(header, pos, v);
+            this.mSerialTypes[n] = v[0];
+            this.mOffsets[n] = offset;
+            offset += Record.sizeOf(v[0]);
+        }
+        this.mOffsets[count] = offset;
+        if (offset > payload.getSize()) {
+            throw new SQLiteFormatException("Broken record.");
+        }
+    }
+
+    /**
+     * Gets the rowid.
+     * 
+     * @return Rowid. -1 for index records.
+     */
+    public long getRowid() {
+        return this.mRowid;
+    }
+
+    /**
+     * Gets the number of columns.
+     * 
+     * @return The number of columns.
+     */
+    public int getColumnCount() {
+        return this.mSerialTypes.length;
+    }
+
+    /**
+     * Gets the type of the column. Columns after the last one are NULL.
+     * 
+     * @param col
+     *            Column index.
+     * @return One of TYPE_*.
+     */
+    public int getType(int col) {
+        if (col >= this.mSerialTypes.length) {
+            return Record.TYPE_NULL;
+        }
+        long st = this.mSerialTypes[col];
+        if (st == 0) {
+            return Record.TYPE_NULL;
+        } else if (st < 12) {
+            return Record.TYPE_NUMERIC;
+        } else if ((st & 1) == 0) {
+            return Record.TYPE_BLOB;
+        }
+        return Record.TYPE_TEXT;
+    }
+
+    /**
+     * Gets the length of the value in the record.
+     * 
+     * @param col
+     *            Column index.
+     * @return Bytes.
+     */
+    public int getLength(int col) {
+        if (col >= this.mSerialTypes.length) {
+            return 0;
+        }
+        return this.mOffsets[col + 1] - this.mOffsets[col];
+    }
+
+    /**
+     * Gets the value as integer. Floats are truncated, text and blobs are 0.
+     * 
+     * @param col
+     *            Column index.
+     * @return Value.
+     */
+    public long getLong(int col) {
+        if (col >= this.mSerialTypes.length) {
+            return 0;
+        }
+        long st = this.mSerialTypes[col];
+        switch ((int) Math.min(st, 12)) {
+        case 8:
+            return 0;
+        case 9:
+            return 1;
+        case 7:
+            return (long) Double.longBitsToDouble(this.readInteger(col));
+        case 1:
+        case 2:
+        case 3:
+        case 4:
+        case 5:
+        case 6:
+            return this.readInteger(col);
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Gets the value as text. Numbers are converted to text.
+     * 
+     * @param col
+     *            Column index.
+     * @return Value. Null if NULL.
+     */
+    public String getString(int col) {
+        switch (this.getType(col)) {
+        case Record.TYPE_NULL:
+            return null;
+        case Record.TYPE_NUMERIC:
+            if (this.mSerialTypes[col] == 7) {
+                return String.valueOf(Double.longBitsToDouble(this
+                        .readInteger(col)));
+            }
+            return String.valueOf(this.getLong(col));
+        default:
+            ByteBuffer b = this.getBlob(col);
+            byte[] bytes = new byte[b.remaining()];
+            b.get(bytes);
+            return new String(bytes, this.mCharset);
+        }
+    }
+
+    /**
+     * Gets the raw bytes of the value. If the value is in one page, returns a
+     * slice of the mapped file without copy.
+     * 
+     * @param col
+     *            Column index.
+     * @return Read-only buffer from position 0 to the length.
+     */
+    public ByteBuffer getBlob(int col) {
+        if (col >= this.mSerialTypes.length) {
+            return ByteBuffer.allocate(0);
+        }
+        return this.mPayload.slice(this.mOffsets[col], this.getLength(col));
+    }
+
+    /**
+     * Gets the value as Long, Double, String or ByteBuffer for comparison.
+     * 
+     * @param col
+     *            Column index.
+     * @return Value. Null if NULL.
+     */
+    public Object getValue(int col) {
+        switch (this.getType(col)) {
+        case Record.TYPE_NULL:
+            return null;
+        case Record.TYPE_NUMERIC:
+            if (this.mSerialTypes[col] == 7) {
+                return Double.valueOf(Double.longBitsToDouble(this
+                        .readInteger(col)));
+            }
+            return Long.valueOf(this.getLong(col));
+        case Record.TYPE_TEXT:
+            return this.getString(col);
+        default:
+            return this.getBlob(col);
+        }
+    }
+
+    /**
+     * Compares leading columns with the key, with BINARY collation.
+     * 
+     * @param key
+     *            Values of leading columns. Long, Integer, Double, String,
+     *            ByteBuffer or null.
+     * @return Negative, 0 or positive if this is less than, equal to or
+     *         greater than the key.
+     */
+    public int compareTo(Object[] key) {
+        for (int n = 0; n < key.length; n++) {
+            int c = this.compareColumn(n, key[n]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    /**
+     * Compares one column with the value.
+     * 
+     * @param col
+     *            Column index.
+     * @param value
+     *            Value.
+     * @return Negative, 0 or positive.
+     */
+    private int compareColumn(int col, Object value) {
+        int type = this.getType(col);
+        int vtype = Record.typeOf(value);
+        if (type != vtype) {
+            return type < vtype ? -1 : 1;
+        }
+        switch (type) {
+        case Record.TYPE_NULL:
+            return 0;
+        case Record.TYPE_NUMERIC:
+            if (this.mSerialTypes[col] != 7 && !(value instanceof Double)) {
+                long a = this.getLong(col);
+                long b = ((Number) value).longValue();
+                return a < b ? -1 : (a == b ? 0 : 1);
+            }
+            double da = this.mSerialTypes[col] == 7 ? Double
+                    .longBitsToDouble(this.readInteger(col)) : this
+                    .getLong(col);
+            return Double.compare(da, ((Number) value).doubleValue());
+        case Record.TYPE_TEXT:
+            return Record.compareBytes(this.getBlob(col),
+                    ByteBuffer.wrap(((String) value).getBytes(this.mCharset)));
+        default:
+            return Record.compareBytes(this.getBlob(col),
+                    ((ByteBuffer) value).duplicate());
+        }
+    }
+
+    /**
+     * Reads big-endian integer or float bits of the column.
+     * 
+     * @param col
+     *            Column index.
+     * @return Value.
+     */
+    private long readInteger(int col) {
+        int len = this.getLength(col);
+        ByteBuffer b = this.mPayload.slice(this.mOffsets[col], len);
+        long v = b.get(0);
+        for (int n = 1; n < len; n++) {
+            v = (v << 8) | (b.get(n) & 0xff);
+        }
+        return v;
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Calculates the size of the value from the serial type.
+     * 
+     * @param st
+     *            Serial type.
+     * @return Bytes.
+     */
+    private static int sizeOf(long st) {
+        if (st >= 12) {
+            return (int) ((st - 12) >>> 1);
+        }
+        switch ((int) st) {
+        case 1:
+        case 2:
+        case 3:
+        case 4:
+            return (int) st;
+        case 5:
+            return 6;
+        case 6:
+        case 7:
+            return 8;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Gets the type of the key value.
+     * 
+     * @param value
+     *            Value.
+     * @return One of TYPE_*.
+     */
+    private static int typeOf(Object value) {
+        if (value == null) {
+            return Record.TYPE_NULL;
+        } else if (value instanceof Number) {
+            return Record.TYPE_NUMERIC;
+        } else if (value instanceof String) {
+            return Record.TYPE_TEXT;
+        }
+        return Record.TYPE_BLOB;
+    }
+
+    /**
+     * Compares bytes as unsigned, like memcmp.
+     * 
+     * @param a
+     *            Buffer.
+     * @param b
+     *            Buffer.
+     * @return Negative, 0 or positive.
+     */
+    private static int compareBytes(ByteBuffer a, ByteBuffer b) {
+        int len = Math.min(a.remaining(), b.remaining());
+        for (int n = 0; n < len; n++) {
+            int ca = a.get(a.position() + n) & 0xff;
+            int cb = b.get(b.position() + n) & 0xff;
+            if (ca != cb) {
+                return ca - cb;
+            }
+        }
+        return a.remaining() - b.remaining();
+    }
+}
@@ -0,0 +1,870 @@
+package com.gmail.boiledorange73.ut.sqlite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Read-only reader of SQLite database files, which maps the file to memory
+ * and parses b-tree pages directly.
+ * 
+ * Supports rowid tables, indexes and overflow pages. Does not support WAL
+ * files which are not checkpointed, WITHOUT ROWID tables nor collations other
+ * than BINARY. The file must not be modified while opened.
+ * 
+ * Instances are thread-safe. Buffers are never repositioned after mapped, so
+ * readers share them.
+ */
+public class SQLiteFile {
+    /** Maximum size of one mapped region. Must be a multiple of page size. */
+    public static final int MAX_CHUNK_SIZE = 1 << 30;
+
+    /**
+     * Receives records.
+     */
+    public interface RecordVisitor {
+        /**
+         * Called for each record.
+         * 
+         * @param record
+         *            Record.
+         * @return False to stop scanning.
+         * @throws IOException
+         *             Thrown if the file is broken.
+         */
+        boolean visit(Record record) throws IOException;
+    }
+
+    /**
+     * Row of sqlite_master.
+     */
+    public static final class SchemaEntry {
+        private final String mType;
+        private final String mName;
+        private final String mTableName;
+        private final int mRootPage;
+        private final String mSql;
+
+        private SchemaEntry(String type, String name, String tableName,
+                int rootPage, String sql) {
+            this.mType = type;
+            this.mName = name;
+            this.mTableName = tableName;
+            this.mRootPage = rootPage;
+            this.mSql = sql;
+        }
+
+        /**
+         * Gets the type, "table", "index", "view" or "trigger".
+         * 
+         * @return Type.
+         */
+        public String getType() {
+            return this.mType;
+        }
+
+        /**
+         * Gets the name.
+         * 
+         * @return Name.
+         */
+        public String getName() {
+            return this.mName;
+        }
+
+        /**
+         * Gets the name of the table which the entry belongs to.
+         * 
+         * @return Table name.
+         */
+        public String getTableName() {
+            return this.mTableName;
+        }
+
+        /**
+         * Gets the root page of the b-tree.
+         * 
+         * @return Page number. 0 for views and triggers.
+         */
+        public int getRootPage() {
+            return this.mRootPage;
+        }
+
+        /**
+         * Gets the SQL which created the entry.
+         * 
+         * @return SQL. Null for automatic indexes.
+         */
+        public String getSql() {
+            return this.mSql;
+        }
+
+        /**
+         * Gets column names of the table or the index, parsed from the SQL.
+         * 
+         * @return Column names in lower case.
+         */
+        public List<String> getColumns() {
+            ArrayList<String> ret = new ArrayList<String>();
+            if (this.mSql == null) {
+                return ret;
+            }
+            int start = this.mSql.indexOf('(');
+            int end = this.mSql.lastIndexOf(')');
+            if (start < 0 || end < start) {
+                return ret;
+            }
+            for (String def : SQLiteFile.splitDefinitions(this.mSql.substring(
+                    start + 1, end))) {
+                String name = SQLiteFile.firstToken(def);
+                if (name == null) {
+                    continue;
+                }
+                String lower = name.toLowerCase();
+                if ("table".equals(this.mType)
+                        && (lower.equals("constraint")
+                                || lower.equals("primary")
+                                || lower.equals("unique")
+                                || lower.equals("check") || lower
+                                    .equals("foreign"))) {
+                    // table constraint.
+                    continue;
+                }
+                ret.add(lower);
+            }
+            return ret;
+        }
+
+        /**
+         * Whether the table is created WITHOUT ROWID.
+         * 
+         * @return True if WITHOUT ROWID.
+         */
+        public boolean isWithoutRowid() {
+            if (this.mSql == null) {
+                return false;
+            }
+            String tail = this.mSql.substring(this.mSql.lastIndexOf(')') + 1)
+                    .toLowerCase();
+            return tail.indexOf("without") >= 0;
+        }
+
+        /**
+         * Gets the column which is an alias of rowid (INTEGER PRIMARY KEY).
+         * Values of the column are stored as NULL in records.
+         * 
+         * @return Column index. -1 if none.
+         */
+        public int getRowidAliasColumn() {
+            if (this.mSql == null || !"table".equals(this.mType)) {
+                return -1;
+            }
+            int start = this.mSql.indexOf('(');
+            int end = this.mSql.lastIndexOf(')');
+            if (start < 0 || end < start) {
+                return -1;
+            }
+            int col = 0;
+            for (String def : SQLiteFile.splitDefinitions(this.mSql.substring(
+                    start + 1, end))) {
+                String lower = def.trim().toLowerCase()
+                        .replaceAll("\\s+", " ");
+                String name = SQLiteFile.firstToken(def);
+                if (name == null) {
+                    continue;
+                }
+                if (lower.startsWith("constraint ")
+                        || lower.startsWith("primary ")
+                        || lower.startsWith("unique")
+                        || lower.startsWith("check")
+                        || lower.startsWith("foreign ")) {
+                    continue;
+                }
+                String rest = lower.substring(Math.min(lower.length(),
+                        lower.indexOf(' ') < 0 ? lower.length() : lower
+                                .indexOf(' ') + 1));
+                if (rest.startsWith("integer primary key")) {
+                    return col;
+                }
+                col++;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Payload of a cell, the local part in a page and overflow pages.
+     */
+    static final class Payload {
+        private final SQLiteFile mFile;
+        private final ByteBuffer mChunk;
+        private final int mLocalStart;
+        private final int mLocalSize;
+        private final long mSize;
+        private final int mOverflowPage;
+
+        private Payload(SQLiteFile file, ByteBuffer chunk, int localStart,
+                int localSize, long size, int overflowPage) {
+            this.mFile = file;
+            this.mChunk = chunk;
+            this.mLocalStart = localStart;
+            this.mLocalSize = localSize;
+            this.mSize = size;
+            this.mOverflowPage = overflowPage;
+        }
+
+        /**
+         * Gets total size.
+         * 
+         * @return Bytes.
+         */
+        long getSize() {
+            return this.mSize;
+        }
+
+        /**
+         * Gets a part of the payload. If the part is in the local page,
+         * returns a slice of the mapped file. Otherwise, copies it from
+         * overflow pages.
+         * 
+         * @param offset
+         *            Offset in the payload.
+         * @param length
+         *            Length.
+         * @return Read-only buffer from position 0 to the length.
+         */
+        ByteBuffer slice(int offset, int length) {
+            if (offset + length <= this.mLocalSize) {
+                ByteBuffer d = this.mChunk.duplicate();
+                d.limit(this.mLocalStart + offset + length);
+                d.position(this.mLocalStart + offset);
+                return d.slice();
+            }
+            byte[] out = new byte[length];
+            int done = 0;
+            if (offset < this.mLocalSize) {
+                ByteBuffer d = this.mChunk.duplicate();
+                d.position(this.mLocalStart + offset);
+                done = this.mLocalSize - offset;
+                d.get(out, 0, done);
+            }
+            long pos = this.mLocalSize;
+            int page = this.mOverflowPage;
+            int contentSize = this.mFile.mUsableSize - 4;
+            while (done < length && page != 0) {
+                ByteBuffer chunk = this.mFile.chunkOf(page);
+                int start = this.mFile.positionOf(page);
+                long end = pos + contentSize;
+                long from = offset + done;
+                if (from < end) {
+                    int n = (int) Math.min(end - from, length - done);
+                    ByteBuffer d = chunk.duplicate();
+                    d.position(start + 4 + (int) (from - pos));
+                    d.get(out, done, n);
+                    done += n;
+                }
+                pos = end;
+                page = chunk.getInt(start);
+            }
+            return ByteBuffer.wrap(out).asReadOnlyBuffer();
+        }
+    }
+
+    private static final byte[] MAGIC = { 'S', 'Q', 'L', 'i', 't', 'e', ' ',
+            'f', 'o', 'r', 'm', 'a', 't', ' ', '3', 0 };
+
+    /** Page types. */
+    private static final int PAGE_INDEX_INTERIOR = 2;
+    private static final int PAGE_TABLE_INTERIOR = 5;
+    private static final int PAGE_INDEX_LEAF = 10;
+    private static final int PAGE_TABLE_LEAF = 13;
+
+    /** Maximum depth of b-trees, to detect loops in broken files. */
+    private static final int MAX_DEPTH = 64;
+
+    /** Results of scanning a subtree. */
+    private static final int SCAN_CONTINUE = 0;
+    private static final int SCAN_STOP = 1;
+    /** Passed the upper bound. */
+    private static final int SCAN_END = 2;
+
+    private final ByteBuffer[] mChunks;
+    private final int mPageSize;
+    private final int mUsableSize;
+    private final long mPageCount;
+    private final Charset mCharset;
+    private final List<SchemaEntry> mSchema;
+
+    /**
+     * Constructor. Maps the file and reads sqlite_master.
+     * 
+     * @param file
+     *            SQLite file.
+     * @throws IOException
+     *             Thrown if the file cannot be read or is not supported.
+     */
+    public SQLiteFile(File file) throws IOException {
+        File wal = new File(file.getPath() + "-wal");
+        if (wal.exists() && wal.length() > 0) {
+            throw new SQLiteFormatException(
+                    "WAL file is not checkpointed: " + wal);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            long size = ch.size();
+            if (size < 100) {
+                throw new SQLiteFormatException("Too short.");
+            }
+            int chunks = (int) ((size + SQLiteFile.MAX_CHUNK_SIZE - 1) / SQLiteFile.MAX_CHUNK_SIZE);
+            this.mChunks = new ByteBuffer[chunks];
+            for (int n = 0; n < chunks; n++) {
+                long start = (long) n * SQLiteFile.MAX_CHUNK_SIZE;
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY,
+                        start, Math.min(SQLiteFile.MAX_CHUNK_SIZE, size
+                                - start));
+                this.mChunks[n] = buf;
+            }
+            ByteBuffer head = this.mChunks[0];
+            for (int n = 0; n < SQLiteFile.MAGIC.length; n++) {
+                if (head.get(n) != SQLiteFile.MAGIC[n]) {
+                    throw new SQLiteFormatException("Not a SQLite file.");
+                }
+            }
+            int pageSize = head.getShort(16) & 0xffff;
+            this.mPageSize = pageSize == 1 ? 65536 : pageSize;
+            if (this.mPageSize < 512 || (this.mPageSize & (this.mPageSize - 1)) != 0) {
+                throw new SQLiteFormatException("Invalid page size.");
+            }
+            this.mUsableSize = this.mPageSize - (head.get(20) & 0xff);
+            this.mPageCount = size / this.mPageSize;
+            switch (head.getInt(56)) {
+            case 2:
+                this.mCharset = Charset.forName("UTF-16LE");
+                break;
+            case 3:
+                this.mCharset = Charset.forName("UTF-16BE");
+                break;
+            default:
+                this.mCharset = Charset.forName("UTF-8");
+            }
+        } finally {
+            raf.close();
+        }
+        this.mSchema = Collections.unmodifiableList(this.readSchema());
+    }
+
+    /**
+     * Gets page size.
+     * 
+     * @return Bytes.
+     */
+    public int getPageSize() {
+        return this.mPageSize;
+    }
+
+    /**
+     * Gets all rows of sqlite_master.
+     * 
+     * @return Unmodifiable list.
+     */
+    public List<SchemaEntry> getSchema() {
+        return this.mSchema;
+    }
+
+    /**
+     * Finds the row of sqlite_master.
+     * 
+     * @param type
+     *            Type, e.g. "table".
+     * @param name
+     *            Name. Case insensitive.
+     * @return Row. Null if not found.
+     */
+    public SchemaEntry findSchemaEntry(String type, String name) {
+        for (SchemaEntry e : this.mSchema) {
+            if (type.equals(e.mType) && name.equalsIgnoreCase(e.mName)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the index of the table whose leading columns are specified ones.
+     * 
+     * @param table
+     *            Table name.
+     * @param columns
+     *            Leading columns in lower case.
+     * @return Row of the index. Null if not found.
+     */
+    public SchemaEntry findIndex(String table, String[] columns) {
+        for (SchemaEntry e : this.mSchema) {
+            if (!"index".equals(e.mType) || !table.equalsIgnoreCase(e.mTableName)
+                    || e.mRootPage <= 0) {
+                continue;
+            }
+            List<String> cols = e.getColumns();
+            if (cols.size() < columns.length) {
+                continue;
+            }
+            boolean match = true;
+            for (int n = 0; n < columns.length; n++) {
+                if (!columns[n].equals(cols.get(n))) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the row of the table by rowid.
+     * 
+     * @param rootPage
+     *            Root page of the table.
+     * @param rowid
+     *            Rowid.
+     * @return Record. Null if not found.
+     * @throws IOException
+     *             Thrown if the file is broken.
+     */
+    public Record findRow(int rootPage, long rowid) throws IOException {
+        long[] v = new long[1];
+        int page = rootPage;
+        for (int depth = 0; depth < SQLiteFile.MAX_DEPTH; depth++) {
+            ByteBuffer chunk = this.chunkOf(page);
+            int start = this.positionOf(page);
+            int header = start + (page == 1 ? 100 : 0);
+            int type = chunk.get(header);
+            int cells = chunk.getShort(header + 3) & 0xffff;
+            if (type == SQLiteFile.PAGE_TABLE_LEAF) {
+                int lo = 0;
+                int hi = cells - 1;
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    int cell = start
+                            + (chunk.getShort(header + 8 + mid * 2) & 0xffff);
+                    int pos = cell + SQLiteFile.readVarint(chunk, cell, v);
+                    long size = v[0];
+                    pos += SQLiteFile.readVarint(chunk, pos, v);
+                    if (v[0] < rowid) {
+                        lo = mid + 1;
+                    } else if (v[0] > rowid) {
+                        hi = mid - 1;
+                    } else {
+                        return new Record(this.createPayload(chunk, start,
+                                pos, size, true), rowid, this.mCharset);
+                    }
+                }
+                return null;
+            } else if (type != SQLiteFile.PAGE_TABLE_INTERIOR) {
+                throw new SQLiteFormatException("Not a table page: " + page);
+            }
+            // first cell whose key is not less than rowid.
+            int lo = 0;
+            int hi = cells;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int cell = start
+                        + (chunk.getShort(header + 12 + mid * 2) & 0xffff);
+                SQLiteFile.readVarint(chunk, cell + 4, v);
+                if (v[0] < rowid) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            if (lo < cells) {
+                int cell = start
+                        + (chunk.getShort(header + 12 + lo * 2) & 0xffff);
+                page = chunk.getInt(cell);
+            } else {
+                page = chunk.getInt(header + 8);
+            }
+        }
+        throw new SQLiteFormatException("Too deep b-tree.");
+    }
+
+    /**
+     * Finds the first index record whose leading columns equal to the key.
+     * 
+     * @param rootPage
+     *            Root page of the index.
+     * @param key
+     *            Values of leading columns.
+     * @return Record. The last column is rowid. Null if not found.
+     * @throws IOException
+     *             Thrown if the file is broken.
+     */
+    public Record seekIndex(int rootPage, Object[] key) throws IOException {
+        long[] v = new long[1];
+        int page = rootPage;
+        Record found = null;
+        for (int depth = 0; depth < SQLiteFile.MAX_DEPTH; depth++) {
+            ByteBuffer chunk = this.chunkOf(page);
+            int start = this.positionOf(page);
+            int header = start + (page == 1 ? 100 : 0);
+            int type = chunk.get(header);
+            boolean leaf = type == SQLiteFile.PAGE_INDEX_LEAF;
+            if (!leaf && type != SQLiteFile.PAGE_INDEX_INTERIOR) {
+                throw new SQLiteFormatException("Not an index page: " + page);
+            }
+            int cells = chunk.getShort(header + 3) & 0xffff;
+            int ptrs = header + (leaf ? 8 : 12);
+            // first cell whose key is not less than the key.
+            int lo = 0;
+            int hi = cells;
+            Record loRecord = null;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                Record r = this.readIndexCell(chunk, start,
+                        start + (chunk.getShort(ptrs + mid * 2) & 0xffff),
+                        leaf, v);
+                if (r.compareTo(key) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                    loRecord = r;
+                }
+            }
+            if (lo < cells && loRecord != null && loRecord.compareTo(key) == 0) {
+                // an equal key may exist in the left subtree too.
+                found = loRecord;
+            }
+            if (leaf) {
+                return found;
+            }
+            if (lo < cells) {
+                page = chunk.getInt(start
+                        + (chunk.getShort(ptrs + lo * 2) & 0xffff));
+            } else {
+                page = chunk.getInt(header + 8);
+            }
+        }
+        throw new SQLiteFormatException("Too deep b-tree.");
+    }
+
+    /**
+     * Scans index records in the range in order.
+     * 
+     * @param rootPage
+     *            Root page of the index.
+     * @param lo
+     *            Lower bound of leading columns (inclusive). Null for no
+     *            bound.
+     * @param hi
+     *            Upper bound of leading columns (inclusive). Null for no
+     *            bound.
+     * @param visitor
+     *            Receives records. The last column is rowid.
+     * @return False if the visitor stopped scanning.
+     * @throws IOException
+     *             Thrown if the file is broken.
+     */
+    public boolean scanIndex(int rootPage, Object[] lo, Object[] hi,
+            RecordVisitor visitor) throws IOException {
+        return this.scanIndex(rootPage, lo, hi, visitor, new long[1], 0) != SQLiteFile.SCAN_STOP;
+    }
+
+    /**
+     * Scans all rows of the table in rowid order.
+     * 
+     * @param rootPage
+     *            Root page of the table.
+     * @param visitor
+     *            Receives records.
+     * @return False if the visitor stopped scanning.
+     * @throws IOException
+     *             Thrown if the file is broken.
+     */
+    public boolean scanTable(int rootPage, RecordVisitor visitor)
+            throws IOException {
+        return this.scanTable(rootPage, visitor, new long[1], 0);
+    }
+
+    // ----------------
+    // Private methods
+    // ----------------
+    private int scanIndex(int page, Object[] lo, Object[] hi,
+            RecordVisitor visitor, long[] v, int depth) throws IOException {
+        if (depth >= SQLiteFile.MAX_DEPTH) {
+            throw new SQLiteFormatException("Too deep b-tree.");
+        }
+        ByteBuffer chunk = this.chunkOf(page);
+        int start = this.positionOf(page);
+        int header = start + (page == 1 ? 100 : 0);
+        int type = chunk.get(header);
+        boolean leaf = type == SQLiteFile.PAGE_INDEX_LEAF;
+        if (!leaf && type != SQLiteFile.PAGE_INDEX_INTERIOR) {
+            throw new SQLiteFormatException("Not an index page: " + page);
+        }
+        int cells = chunk.getShort(header + 3) & 0xffff;
+        int ptrs = header + (leaf ? 8 : 12);
+        for (int n = 0; n < cells; n++) {
+            int cell = start + (chunk.getShort(ptrs + n * 2) & 0xffff);
+            Record r = this.readIndexCell(chunk, start, cell, leaf, v);
+            int cmpLo = lo == null ? 1 : r.compareTo(lo);
+            if (!leaf && cmpLo > 0) {
+                // left subtree may have keys in the range.
+                int ret = this.scanIndex(chunk.getInt(cell), lo, hi, visitor,
+                        v, depth + 1);
+                if (ret != SQLiteFile.SCAN_CONTINUE) {
+                    return ret;
+                }
+            }
+            if (hi != null && r.compareTo(hi) > 0) {
+                return SQLiteFile.SCAN_END;
+            }
+            if (cmpLo >= 0 && !visitor.visit(r)) {
+                return SQLiteFile.SCAN_STOP;
+            }
+        }
+        if (!leaf) {
+            return this.scanIndex(chunk.getInt(header + 8), lo, hi, visitor, v,
+                    depth + 1);
+        }
+        return SQLiteFile.SCAN_CONTINUE;
+    }
+
+    private boolean scanTable(int page, RecordVisitor visitor, long[] v,
+            int depth) throws IOException {
+        if (depth >= SQLiteFile.MAX_DEPTH) {
+            throw new SQLiteFormatException("Too deep b-tree.");
+        }
+        ByteBuffer chunk = this.chunkOf(page);
+        int start = this.positionOf(page);
+        int header = start + (page == 1 ? 100 : 0);
+        int type = chunk.get(header);
+        int cells = chunk.getShort(header + 3) & 0xffff;
+        if (type == SQLiteFile.PAGE_TABLE_LEAF) {
+            for (int n = 0; n < cells; n++) {
+                int cell = start
+                        + (chunk.getShort(header + 8 + n * 2) & 0xffff);
+                int pos = cell + SQLiteFile.readVarint(chunk, cell, v);
+                long size = v[0];
+                pos += SQLiteFile.readVarint(chunk, pos, v);
+                Record r = new Record(this.createPayload(chunk, start, pos,
+                        size, true), v[0], this.mCharset);
+                if (!visitor.visit(r)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (type != SQLiteFile.PAGE_TABLE_INTERIOR) {
+            throw new SQLiteFormatException("Not a table page: " + page);
+        }
+        for (int n = 0; n < cells; n++) {
+            int cell = start + (chunk.getShort(header + 12 + n * 2) & 0xffff);
+            if (!this.scanTable(chunk.getInt(cell), visitor, v, depth + 1)) {
+                return false;
+            }
+        }
+        return this.scanTable(chunk.getInt(header + 8), visitor, v, depth + 1);
+    }
+
+    /**
+     * Reads sqlite_master, whose root is page 1.
+     * 
+     * @return Rows.
+     * @throws IOException
+     *             Thrown if the file is broken.
+     */
+    private ArrayList<SchemaEntry> readSchema() throws IOException {
+        final ArrayList<SchemaEntry> ret = new ArrayList<SchemaEntry>();
+        this.scanTable(1, new RecordVisitor() {
+            @Override
+            public boolean visit(Record r) {
+                ret.add(new SchemaEntry(r.getString(0), r.getString(1), r
+                        .getString(2), (int) r.getLong(3), r.getString(4)));
+                return true;
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Reads the cell of an index page.
+     * 
+     * @param chunk
+     *            Chunk which has the page.
+     * @param start
+     *            Position of the page in the chunk.
+     * @param cell
+     *            Position of the cell in the chunk.
+     * @param leaf
+     *            Whether the page is a leaf.
+     * @param v
+     *            Work area.
+     * @return Record.
+     * @throws SQLiteFormatException
+     *             Thrown if the record is broken.
+     */
+    private Record readIndexCell(ByteBuffer chunk, int start, int cell,
+            boolean leaf, long[] v) throws SQLiteFormatException {
+        int pos = leaf ? cell : cell + 4;
+        pos += SQLiteFile.readVarint(chunk, pos, v);
+        return new Record(this.createPayload(chunk, start, pos, v[0], false),
+                -1, this.mCharset);
+    }
+
+    /**
+     * Creates the payload, calculating the local size as SQLite does.
+     * 
+     * @param chunk
+     *            Chunk which has the page.
+     * @param start
+     *            Position of the page in the chunk.
+     * @param pos
+     *            Position of the payload in the chunk.
+     * @param size
+     *            Total size of the payload.
+     * @param table
+     *            Whether the page is a table leaf page.
+     * @return Payload.
+     */
+    private Payload createPayload(ByteBuffer chunk, int start, int pos,
+            long size, boolean table) {
+        int u = this.mUsableSize;
+        int x = table ? u - 35 : ((u - 12) * 64 / 255) - 23;
+        if (size <= x) {
+            return new Payload(this, chunk, pos, (int) size, size, 0);
+        }
+        int m = ((u - 12) * 32 / 255) - 23;
+        int k = (int) (m + ((size - m) % (u - 4)));
+        int local = k <= x ? k : m;
+        return new Payload(this, chunk, pos, local, size, chunk.getInt(pos
+                + local));
+    }
+
+    /**
+     * Gets the chunk which has the page.
+     * 
+     * @param page
+     *            Page number, from 1.
+     * @return Chunk.
+     * @throws IllegalStateException
+     *             Thrown if the page is out of the file.
+     */
+    private ByteBuffer chunkOf(int page) {
+        if (page < 1 || page > this.mPageCount) {
+            throw new IllegalStateException("Invalid page: " + page);
+        }
+        long offset = (long) (page - 1) * this.mPageSize;
+        return this.mChunks[(int) (offset / SQLiteFile.MAX_CHUNK_SIZE)];
+    }
+
+    /**
+     * Gets the position of the page in its chunk.
+     * 
+     * @param page
+     *            Page number, from 1.
+     * @return Position.
+     */
+    private int positionOf(int page) {
+        long offset = (long) (page - 1) * this.mPageSize;
+        return (int) (offset % SQLiteFile.MAX_CHUNK_SIZE);
+    }
+
+    // --------
+    // subs
+    // --------
+    /**
+     * Reads a variable-length integer.
+     * 
+     * @param b
+     *            Buffer.
+     * @param pos
+     *            Position.
+     * @param out
+     *            Receives the value in the first element.
+     * @return Bytes read.
+     */
+    static int readVarint(ByteBuffer b, int pos, long[] out) {
+        long v = 0;
+        for (int n = 0; n < 8; n++) {
+            int c = b.get(pos + n) & 0xff;
+            v = (v << 7) | (c & 0x7f);
+            if ((c & 0x80) == 0) {
+                out[0] = v;
+                return n + 1;
+            }
+        }
+        out[0] = (v << 8) | (b.get(pos + 8) & 0xff);
+        return 9;
+    }
+
+    /**
+     * Splits definitions in parentheses by commas out of parentheses and
+     * quotes.
+     * 
+     * @param body
+     *            Text in parentheses.
+     * @return Definitions.
+     */
+    private static List<String> splitDefinitions(String body) {
+        ArrayList<String> ret = new ArrayList<String>();
+        int depth = 0;
+        char quote = 0;
+        int from = 0;
+        for (int n = 0; n < body.length(); n++) {
+            char c = body.charAt(n);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'' || c == '`') {
+                quote = c;
+            } else if (c == '[') {
+                quote = ']';
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                ret.add(body.substring(from, n));
+                from = n + 1;
+            }
+        }
+        ret.add(body.substring(from));
+        return ret;
+    }
+
+    /**
+     * Gets the first token, removing quotes.
+     * 
+     * @param def
+     *            Definition.
+     * @return Token. Null if empty.
+     */
+    private static String firstToken(String def) {
+        String s = def.trim();
+        if (s.length() == 0) {
+            return null;
+        }
+        char c = s.charAt(0);
+        char close = c == '[' ? ']' : c;
+        if (c == '"' || c == '\'' || c == '`' || c == '[') {
+            int end = s.indexOf(close, 1);
+            return end < 0 ? s.substring(1) : s.substring(1, end);
+        }
+        int end = 0;
+        while (end < s.length() && !Character.isWhitespace(s.charAt(end))
+                && s.charAt(end) != '(') {
+            end++;
+        }
+        return s.substring(0, end);
+    }
+}
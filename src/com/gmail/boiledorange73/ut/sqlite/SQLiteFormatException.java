@@ -0,0 +1,21 @@
+package com.gmail.boiledorange73.ut.sqlite;
+
+import java.io.IOException;
+
+/**
+ * Thrown if the file is not a SQLite file, is broken, or uses features which
+ * {@link SQLiteFile} does not support.
+ */
+public class SQLiteFormatException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     * 
+     * @param message
+     *            Message.
+     */
+    public SQLiteFormatException(String message) {
+        super(message);
+    }
+}